@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.buglife.sdk.reporting.BlobIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Writes the attachments array of a report, deciding for each attachment whether its data is
+ * base64-encoded inline, or sent elsewhere and referenced from the report.
+ *
+ * By default, all attachment data is written inline.
+ */
+final class AttachmentWriter {
+    @Nullable private File mPartsDir;
+    @Nullable private File mUploadsDir;
+    private long mChunkedUploadThreshold;
+    @Nullable private BlobIndex mBlobIndex;
+    private final List<String> mUploadedBlobs = new ArrayList<>();
+    private final Set<String> mWrittenBlobs = new HashSet<>();
+
+    /**
+     * Attachment files are moved into this directory, to be uploaded as multipart parts.
+     */
+    AttachmentWriter setPartsDir(@Nullable File partsDir) {
+        mPartsDir = partsDir;
+        return this;
+    }
+
+    /**
+     * Attachment files at least as large as the threshold are moved into this directory, to be
+     * sent ahead of the report as chunked uploads.
+     */
+    AttachmentWriter setChunkedUploads(@Nullable File uploadsDir, long threshold) {
+        mUploadsDir = uploadsDir;
+        mChunkedUploadThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Attachments are hashed; those that have already been uploaded (or that appear earlier in
+     * the same report) are written as references to their digest.
+     */
+    AttachmentWriter setBlobIndex(@Nullable BlobIndex blobIndex) {
+        mBlobIndex = blobIndex;
+        return this;
+    }
+
+    /**
+     * @return The digests of the attachments whose data is carried by the report
+     */
+    @NonNull List<String> getUploadedBlobs() {
+        return mUploadedBlobs;
+    }
+
+    void writeAttachments(@NonNull TokenWriter writer, @NonNull List<FileAttachment> attachments) throws IOException {
+        writer.beginArray();
+        for (int i = 0; i < attachments.size(); i++) {
+            FileAttachment attachment = attachments.get(i);
+
+            if (mBlobIndex != null) {
+                String sha256 = attachment.getSha256();
+
+                if (mBlobIndex.contains(sha256) || mWrittenBlobs.contains(sha256)) {
+                    attachment.writeBlobReferenceJSON(writer);
+                    continue;
+                }
+
+                mWrittenBlobs.add(sha256);
+                mUploadedBlobs.add(sha256);
+            }
+
+            if (shouldUseChunkedUpload(attachment)) {
+                String uploadId = UUID.randomUUID().toString();
+                moveAttachmentFile(attachment, new File(mUploadsDir, uploadId));
+                attachment.writeUploadReferenceJSON(writer, uploadId);
+            } else if (mPartsDir != null) {
+                String partName = "attachment_" + i;
+                moveAttachmentFile(attachment, new File(mPartsDir, partName));
+                attachment.writeJSON(writer, partName);
+            } else {
+                attachment.writeJSON(writer);
+            }
+        }
+        writer.endArray();
+    }
+
+    private boolean shouldUseChunkedUpload(FileAttachment attachment) throws IOException {
+        if (mUploadsDir == null || mChunkedUploadThreshold <= 0) {
+            return false;
+        }
+
+        if (attachment.getFile().length() < mChunkedUploadThreshold) {
+            return false;
+        }
+
+        if (!mUploadsDir.isDirectory() && !mUploadsDir.mkdirs()) {
+            throw new IOException("Unable to create uploads directory " + mUploadsDir);
+        }
+
+        return true;
+    }
+
+    private static void moveAttachmentFile(FileAttachment attachment, File destination) throws IOException {
+        File source = attachment.getFile();
+        if (!source.renameTo(destination)) {
+            IOUtils.copy(source, destination);
+        }
+    }
+}
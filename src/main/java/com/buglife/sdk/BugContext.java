@@ -24,6 +24,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import com.buglife.sdk.reporting.DeviceSnapshot;
+import com.buglife.sdk.reporting.EnvelopeCache;
 import com.buglife.sdk.reporting.EnvironmentSnapshot;
 import com.buglife.sdk.reporting.SessionSnapshot;
 
@@ -190,9 +191,10 @@ final class BugContext implements Parcelable {
         }
 
         public BugContext build() {
-            SessionSnapshot sessionSnapshot = new SessionSnapshot(mContext, mUserEmail, mUserIdentifier);
+            EnvelopeCache envelopeCache = EnvelopeCache.getInstance();
+            SessionSnapshot sessionSnapshot = envelopeCache.getSessionSnapshot(mContext, mUserEmail, mUserIdentifier);
             EnvironmentSnapshot environment = new EnvironmentSnapshot(mContext, mInvocationMethod, mShouldCollectLocation);
-            DeviceSnapshot deviceSnapshot = new DeviceSnapshot(mContext);
+            DeviceSnapshot deviceSnapshot = envelopeCache.getDeviceSnapshot(mContext);
             return new BugContext(mApiIdentity, mAttachments, mAttributeMap, sessionSnapshot, deviceSnapshot, environment);
         }
 
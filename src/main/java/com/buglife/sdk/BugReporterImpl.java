@@ -17,61 +17,159 @@
 
 package com.buglife.sdk;
 
-import android.app.job.JobInfo;
-import android.app.job.JobScheduler;
 import android.content.Context;
-import android.os.Build;
-import android.os.PersistableBundle;
+import android.os.Process;
 import android.support.annotation.NonNull;
-import android.support.annotation.RequiresApi;
 
+import com.buglife.sdk.reporting.BlobIndex;
 import com.buglife.sdk.reporting.BugReporter;
+import com.buglife.sdk.reporting.PendingReport;
+import com.buglife.sdk.reporting.ReportSubmission;
+import com.buglife.sdk.reporting.ReportSubmissionAccessor;
 import com.buglife.sdk.reporting.ReportSubmissionCallback;
-import com.buglife.sdk.reporting.SubmitReportLegacyService;
-import com.buglife.sdk.reporting.SubmitReportService;
-import com.buglife.sdk.reporting.SubmitReportTask;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.buglife.sdk.reporting.SubmissionScheduler;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 final class BugReporterImpl implements BugReporter {
     private final Context mContext;
+    // Reports are written one at a time, in the order they were submitted
+    private final ExecutorService mReportExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(@NonNull final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "Buglife report writer");
+        }
+    });
+    // Only accessed on the report writer thread
+    private final Map<Report, PreparedReport> mPreparedReports = new HashMap<>();
 
     BugReporterImpl(Context context) {
         mContext = context;
-        if (shouldUseLegacyReporter()) {
-            // Kick off submit report service in case there are cached reports still
-            // available.
-            SubmitReportLegacyService.start(mContext);
+        // Starts submitting any reports that are still queued
+        SubmissionScheduler.getInstance(mContext);
+    }
+
+    /**
+     * Writes everything but the summary and attributes of the report on the report worker
+     * thread, so that submitting it later doesn't depend on attachment size. Reports whose
+     * attachments are split off, or reduced to fit a budget, are left to be written on submit.
+     */
+    @Override public void prepare(final Report report) {
+        final UploadMode uploadMode = Buglife.getUploadMode();
+
+        if (!PreparedReport.isSupported(uploadMode, getChunkedUploadThreshold(), getDeferredAttachmentThreshold(), Buglife.getMaxReportSize())) {
+            return;
         }
+
+        final BlobIndex blobIndex = Buglife.isAttachmentDeduplicationEnabled() ? BlobIndex.getInstance(mContext) : null;
+
+        mReportExecutor.execute(new Runnable() {
+            @Override public void run() {
+                PreparedReport preparedReport = mPreparedReports.get(report);
+
+                if (preparedReport == null) {
+                    preparedReport = new PreparedReport(report, newPendingReport(uploadMode), uploadMode, blobIndex);
+                    mPreparedReports.put(report, preparedReport);
+                }
+
+                try {
+                    preparedReport.update();
+                } catch (IOException e) {
+                    // The report is written from scratch when it's submitted
+                    Log.e("Failed to prepare bug report file", e);
+                    mPreparedReports.remove(report);
+                } catch (RuntimeException e) {
+                    Log.e("Failed to prepare bug report file", e);
+                    preparedReport.discard();
+                    mPreparedReports.remove(report);
+                }
+            }
+        });
     }
 
-    @Override public void report(Report report, ReportSubmissionCallback callback) {
-        File reportFile;
+    @Override public void discard(final Report report) {
+        mReportExecutor.execute(new Runnable() {
+            @Override public void run() {
+                PreparedReport preparedReport = mPreparedReports.remove(report);
 
-        try {
-            JSONObject jsonReport = report.toJSON();
+                if (preparedReport != null) {
+                    preparedReport.discard();
+                }
+            }
+        });
+    }
 
-            boolean forceSynchronous = (Buglife.getRetryPolicy() == RetryPolicy.MANUAL);
+    /**
+     * Serializes and queues the report on the report worker thread, so that attachments (which
+     * may include large screen recordings) are never read or encoded on the main thread.
+     * @param callback Called on the main thread once the report has been durably queued, or
+     *                 submitted in the case of {@link RetryPolicy#MANUAL}
+     */
+    @Override public ReportSubmission report(final Report report, ReportSubmissionCallback callback) {
+        final ReportSubmission submission = new ReportSubmission();
+        submission.addCallback(callback);
 
-            if (forceSynchronous) {
-                reportSynchronously(jsonReport, callback);
-                return;
+        mReportExecutor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    writeAndQueue(report, submission);
+                } catch (RuntimeException e) {
+                    Log.e("Failed to write bug report file!", e);
+                    ReportSubmissionAccessor.fail(submission, ReportSubmissionCallback.Error.SERIALIZATION, e);
+                }
             }
+        });
 
-            String filename = "buglife_report_" + System.currentTimeMillis() + ".json";
-            reportFile = new File(mContext.getCacheDir(), filename);
-            IOUtils.writeStringToFile(jsonReport.toString(), reportFile);
-        } catch (JSONException e) {
-            Log.e("Failed to serialize bug report!", e);
-            callback.onFailure(ReportSubmissionCallback.Error.SERIALIZATION, e);
+        return submission;
+    }
+
+    private void writeAndQueue(Report report, ReportSubmission submission) {
+        PendingReport pendingReport;
+        PreparedReport preparedReport = mPreparedReports.remove(report);
+
+        if (submission.isCancelled()) {
+            if (preparedReport != null) {
+                preparedReport.discard();
+            }
             return;
+        }
+
+        UploadMode uploadMode = Buglife.getUploadMode();
+        long chunkedUploadThreshold = getChunkedUploadThreshold();
+        long deferredAttachmentThreshold = getDeferredAttachmentThreshold();
+        long maxReportSize = Buglife.getMaxReportSize();
+
+        if (preparedReport != null && (preparedReport.getUploadMode() != uploadMode || !PreparedReport.isSupported(uploadMode, chunkedUploadThreshold, deferredAttachmentThreshold, maxReportSize))) {
+            // Settings have changed since the report was prepared
+            preparedReport.discard();
+            preparedReport = null;
+        }
+
+        try {
+            if (preparedReport != null) {
+                pendingReport = preparedReport.getPendingReport();
+                preparedReport.finish();
+            } else {
+                pendingReport = newPendingReport(uploadMode);
+                BlobIndex blobIndex = Buglife.isAttachmentDeduplicationEnabled() ? BlobIndex.getInstance(mContext) : null;
+                if (maxReportSize > 0) {
+                    report.applyBudget(new ReportBudget(maxReportSize, uploadMode));
+                }
+                report.writeTo(pendingReport, uploadMode, blobIndex, chunkedUploadThreshold, deferredAttachmentThreshold);
+            }
         } catch (IOException e) {
             Log.e("Failed to write bug report file!", e);
-            callback.onFailure(ReportSubmissionCallback.Error.SERIALIZATION, e);
+            ReportSubmissionAccessor.fail(submission, ReportSubmissionCallback.Error.SERIALIZATION, e);
             return;
         }
         finally {
@@ -85,54 +183,140 @@ final class BugReporterImpl implements BugReporter {
             }
         }
 
-        boolean forceLegacy = (Buglife.getRetryPolicy() == RetryPolicy.AUTOMATIC_LEGACY);
+        // Manual reports are attempted once, and the callback is notified of the outcome
+        boolean manual = (Buglife.getRetryPolicy() == RetryPolicy.MANUAL);
+        SubmissionScheduler scheduler = getScheduler();
+
+        if (submission.isCancelled()) {
+            pendingReport.delete();
+            return;
+        }
+
+        try {
+            scheduler.enqueue(pendingReport, getPriority(report), manual ? submission : null);
+        } catch (IOException e) {
+            Log.e("Failed to queue bug report!", e);
+            pendingReport.delete();
+            ReportSubmissionAccessor.fail(submission, ReportSubmissionCallback.Error.SERIALIZATION, e);
+            return;
+        }
 
-        if (!forceLegacy && !shouldUseLegacyReporter()) {
-            Log.d("Attempting to schedule report submission...");
+        if (!manual) {
+            // The report ID is only known once the queue gets to the report
+            ReportSubmissionAccessor.complete(submission, null);
+        }
+    }
 
-            JobScheduler jobScheduler = (JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    /**
+     * Serializes and queues the update on the report worker thread, like a report, so that it
+     * is retried with backoff rather than submitted on the worker thread.
+     * @param callback Called on the main thread once the update has been durably queued, or
+     *                 submitted in the case of {@link RetryPolicy#MANUAL}
+     */
+    @Override public void update(final ReportUpdate update, ReportSubmissionCallback callback) {
+        final ReportSubmission submission = new ReportSubmission();
+        submission.addCallback(callback);
 
-            if (jobScheduler != null) {
-                Log.d("Acquired JobScheduler service...");
-                reportWithJobScheduler(reportFile, jobScheduler);
-            } else {
-                Log.e("JobScheduler unavailable; Falling back to legacy report submission.");
-                reportWithLegacy(reportFile);
+        mReportExecutor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    writeAndQueue(update, submission);
+                } catch (RuntimeException e) {
+                    Log.e("Failed to write report update file!", e);
+                    ReportSubmissionAccessor.fail(submission, ReportSubmissionCallback.Error.SERIALIZATION, e);
+                }
             }
-        } else {
-            Log.d("Submitting report using legacy service.");
-            reportWithLegacy(reportFile);
+        });
+    }
+
+    private void writeAndQueue(ReportUpdate update, ReportSubmission submission) {
+        UploadMode uploadMode = Buglife.getUploadMode() == UploadMode.CBOR ? UploadMode.CBOR : UploadMode.JSON;
+        PendingReport pendingUpdate = newPendingReport("buglife_update_", uploadMode, "");
+        BlobIndex blobIndex = Buglife.isAttachmentDeduplicationEnabled() ? BlobIndex.getInstance(mContext) : null;
+
+        try {
+            update.writeTo(pendingUpdate, uploadMode, blobIndex);
+        } catch (IOException e) {
+            Log.e("Failed to write report update file!", e);
+            ReportSubmissionAccessor.fail(submission, ReportSubmissionCallback.Error.SERIALIZATION, e);
+            return;
+        }
+
+        // Manual updates are attempted once, and the callback is notified of the outcome
+        boolean manual = (Buglife.getRetryPolicy() == RetryPolicy.MANUAL);
+        ReportPriority priority = manual ? ReportPriority.HIGH : Buglife.getReportPriority();
+
+        try {
+            getScheduler().enqueueUpdate(pendingUpdate, update.getReportId(), priority, manual ? submission : null);
+        } catch (IOException e) {
+            Log.e("Failed to queue report update!", e);
+            pendingUpdate.delete();
+            ReportSubmissionAccessor.fail(submission, ReportSubmissionCallback.Error.SERIALIZATION, e);
+            return;
         }
 
-        callback.onSuccess();
+        if (!manual) {
+            ReportSubmissionAccessor.complete(submission, update.getReportId());
+        }
     }
 
-    private void reportWithLegacy(File reportFile) {
-        SubmitReportLegacyService.start(mContext, reportFile);
+    /**
+     * @return The submission queue, configured with the current settings
+     */
+    private SubmissionScheduler getScheduler() {
+        SubmissionScheduler scheduler = SubmissionScheduler.getInstance(mContext);
+        scheduler.setUseLegacyService(Buglife.getRetryPolicy() == RetryPolicy.AUTOMATIC_LEGACY);
+        scheduler.setDeferredUploadConstraints(Buglife.getDeferredUploadConstraints());
+        scheduler.setQuota(Buglife.getMaxPendingReportBytes(), Buglife.getMaxPendingReports(), Buglife.getEvictionPolicy());
+        return scheduler;
     }
 
+    private PendingReport newPendingReport(UploadMode uploadMode) {
+        return newPendingReport("buglife_report_", uploadMode, PendingReport.CONTAINER_EXTENSION);
+    }
 
-    private void reportSynchronously(JSONObject jsonReport, ReportSubmissionCallback callback) {
-        SubmitReportTask task = new SubmitReportTask();
-        task.execute(jsonReport, callback);
+    private PendingReport newPendingReport(String prefix, UploadMode uploadMode, String suffix) {
+        String extension = uploadMode == UploadMode.CBOR ? PendingReport.CBOR_EXTENSION : ".json";
+        String filename = prefix + System.currentTimeMillis() + extension + suffix;
+        return new PendingReport(new File(mContext.getCacheDir(), filename));
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private void reportWithJobScheduler(@NonNull File reportFile, @NonNull JobScheduler jobScheduler) {
-        int jobId = (int) System.currentTimeMillis();
-        PersistableBundle data = new PersistableBundle();
-        data.putString(SubmitReportService.KEY_EXTRA_REPORT_PATH, reportFile.getAbsolutePath());
+    private static long getChunkedUploadThreshold() {
+        // Manual reports are never retried, so there is nothing to resume
+        return Buglife.getRetryPolicy() == RetryPolicy.MANUAL ? 0 : Buglife.getChunkedUploadThreshold();
+    }
 
-        JobInfo info = new JobInfo.Builder(jobId, SubmitReportService.getComponentName(mContext))
-                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
-                .setPersisted(true)
-                .setExtras(data)
-                .build();
+    /**
+     * @return The lane of the submission queue for the report: the priority set by the app,
+     * boosted if someone is waiting for the report
+     */
+    static ReportPriority getPriority(Report report) {
+        if (Buglife.getRetryPolicy() == RetryPolicy.MANUAL) {
+            // The reporter UI waits for the outcome
+            return ReportPriority.HIGH;
+        }
 
-        jobScheduler.schedule(info);
+        return getPriority(Buglife.getReportPriority(), report.getInvocationMethod());
+    }
+
+    /**
+     * @return The priority, boosted if the reporter was invoked by a user gesture (a shake, a
+     * screenshot or the bug button). Reports shown programmatically keep their priority, and so do
+     * screen recordings, which the app may start itself.
+     */
+    static ReportPriority getPriority(ReportPriority priority, InvocationMethod invocationMethod) {
+        switch (invocationMethod) {
+            case SHAKE:
+            case SCREENSHOT:
+            case BUG_BUTTON:
+                return priority.boost();
+            default:
+                return priority;
+        }
     }
 
-    private boolean shouldUseLegacyReporter() {
-        return Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP;
+    private static long getDeferredAttachmentThreshold() {
+        // Manual reports are attempted once, and the callback can't wait for deferred uploads
+        return Buglife.getRetryPolicy() == RetryPolicy.MANUAL ? 0 : Buglife.getDeferredAttachmentThreshold();
     }
 }
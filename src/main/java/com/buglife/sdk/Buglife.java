@@ -25,10 +25,18 @@ import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.buglife.sdk.reporting.EvictionPolicy;
+import com.buglife.sdk.reporting.OnReportSubmittedListener;
+import com.buglife.sdk.reporting.QueueStats;
+import com.buglife.sdk.reporting.ReportSubmission;
 import com.buglife.sdk.reporting.ReportSubmissionCallback;
+import com.buglife.sdk.reporting.UploadConstraints;
+import com.buglife.sdk.reporting.UploadStats;
 
 import java.util.List;
 
+import okhttp3.OkHttpClient;
+
 /**
  * Buglife! Handles initialization and configuration of Buglife.
  */
@@ -249,8 +257,314 @@ public final class Buglife {
         getClient().setRetryPolicy(retryPolicy);
     }
 
-    static void submitReport(Report report, ReportSubmissionCallback callback) {
-        getClient().submitReport(report, callback);
+    /**
+     * Gets the priority of bug reports in the submission queue.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    @NonNull public static ReportPriority getReportPriority() {
+        return getClient().getReportPriority();
+    }
+
+    /**
+     * Specifies the priority of bug reports submitted from now on. Reports that the user invoked
+     * are boosted one priority higher; see {@link ReportPriority}.
+     * @param reportPriority The priority; {@link ReportPriority#NORMAL} by default
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static void setReportPriority(@NonNull ReportPriority reportPriority) {
+        getClient().setReportPriority(reportPriority);
+    }
+
+    /**
+     * Gets the current upload mode.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static UploadMode getUploadMode() {
+        return getClient().getUploadMode();
+    }
+
+    /**
+     * Specifies how bug reports and their attachments are encoded for upload.
+     * @param uploadMode The upload mode
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static void setUploadMode(@NonNull UploadMode uploadMode) {
+        getClient().setUploadMode(uploadMode);
+    }
+
+    /**
+     * Returns true if attachment deduplication is enabled.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static boolean isAttachmentDeduplicationEnabled() {
+        return getClient().isAttachmentDeduplicationEnabled();
+    }
+
+    /**
+     * Specifies whether attachments that have already been uploaded with an earlier report,
+     * such as a config file queued with every report, should be referenced by their SHA-256
+     * digest instead of being uploaded again. Disabled by default.
+     * @param enabled true to enable attachment deduplication
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static void setAttachmentDeduplicationEnabled(boolean enabled) {
+        getClient().setAttachmentDeduplicationEnabled(enabled);
+    }
+
+    /**
+     * Gets the minimum size of attachments that are uploaded in resumable chunks.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static long getChunkedUploadThreshold() {
+        return getClient().getChunkedUploadThreshold();
+    }
+
+    /**
+     * Specifies the minimum size of attachments, such as screen recordings, that are uploaded
+     * separately from their report in fixed-size chunks. If the upload is interrupted, it
+     * resumes from the last chunk acknowledged by the server when the report is retried.
+     * This has no effect with {@link RetryPolicy#MANUAL}, since reports are not retried.
+     * @param thresholdBytes The threshold in bytes, or 0 to disable chunked uploads (the default)
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static void setChunkedUploadThreshold(long thresholdBytes) {
+        getClient().setChunkedUploadThreshold(thresholdBytes);
+    }
+
+    /**
+     * Gets the minimum size of images and videos that are uploaded after their report.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static long getDeferredAttachmentThreshold() {
+        return getClient().getDeferredAttachmentThreshold();
+    }
+
+    /**
+     * Specifies the minimum size of images and videos, such as screen recordings, that are left
+     * out of their report and uploaded once it has been submitted, as a follow-up update. The
+     * text of the report is sent right away; the deferred attachments are sent when the device
+     * meets the constraints set with {@link #setDeferredUploadConstraints}.
+     * This has no effect with {@link RetryPolicy#MANUAL}.
+     * @param thresholdBytes The threshold in bytes, or 0 to send all attachments with their
+     *                       report (the default)
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static void setDeferredAttachmentThreshold(long thresholdBytes) {
+        getClient().setDeferredAttachmentThreshold(thresholdBytes);
+    }
+
+    /**
+     * Gets the conditions under which deferred attachments are uploaded.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    @NonNull public static UploadConstraints getDeferredUploadConstraints() {
+        return getClient().getDeferredUploadConstraints();
+    }
+
+    /**
+     * Specifies the conditions under which deferred attachments are uploaded, e.g. only on an
+     * unmetered network, or while charging; see {@link #setDeferredAttachmentThreshold}.
+     * @param constraints The constraints, or {@link UploadConstraints#NONE} to upload deferred
+     *                    attachments right after their report (the default)
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static void setDeferredUploadConstraints(@NonNull UploadConstraints constraints) {
+        getClient().setDeferredUploadConstraints(constraints);
+    }
+
+    /**
+     * Gets the size budget for bug report payloads.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static long getMaxReportSize() {
+        return getClient().getMaxReportSize();
+    }
+
+    /**
+     * Specifies a size budget for bug report payloads. Reports that exceed it are reduced step
+     * by step until they fit: screenshots are re-encoded as lossy WebP, then downscaled, then
+     * the log window is trimmed, and finally videos are replaced by a strip of keyframes. The
+     * steps taken are recorded as attributes of the report.
+     * @param maxBytes The budget in bytes, or 0 for no budget (the default)
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static void setMaxReportSize(long maxBytes) {
+        getClient().setMaxReportSize(maxBytes);
+    }
+
+    /**
+     * Gets the maximum disk space taken up by reports waiting to be submitted.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static long getMaxPendingReportBytes() {
+        return getClient().getMaxPendingReportBytes();
+    }
+
+    /**
+     * Specifies the maximum disk space taken up by reports waiting to be submitted, e.g. while
+     * the device is offline. Once a new report takes the queue over it, reports are stripped
+     * of their media or evicted, as decided by the policy set with {@link #setEvictionPolicy}.
+     * @param maxBytes The quota in bytes, or 0 for no limit (the default)
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static void setMaxPendingReportBytes(long maxBytes) {
+        getClient().setMaxPendingReportBytes(maxBytes);
+    }
+
+    /**
+     * Gets the maximum number of reports waiting to be submitted.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static int getMaxPendingReports() {
+        return getClient().getMaxPendingReports();
+    }
+
+    /**
+     * Specifies the maximum number of reports waiting to be submitted. Once a new report takes
+     * the queue over it, reports are evicted, as decided by the policy set with
+     * {@link #setEvictionPolicy}.
+     * @param maxReports The quota, or 0 for no limit (the default)
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static void setMaxPendingReports(int maxReports) {
+        getClient().setMaxPendingReports(maxReports);
+    }
+
+    /**
+     * Gets the policy that decides which pending reports make way once the queue is over quota.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    @NonNull public static EvictionPolicy getEvictionPolicy() {
+        return getClient().getEvictionPolicy();
+    }
+
+    /**
+     * Specifies the policy that decides which pending reports make way once the queue is over
+     * quota, e.g. {@link EvictionPolicy#STRIP_MEDIA} to keep the text of every report for as
+     * long as possible.
+     * @param evictionPolicy The policy; {@link EvictionPolicy#OLDEST_FIRST} by default
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static void setEvictionPolicy(@NonNull EvictionPolicy evictionPolicy) {
+        getClient().setEvictionPolicy(evictionPolicy);
+    }
+
+    /**
+     * Gets the counters of the queue of reports waiting to be submitted, such as its depth and
+     * the number of bytes evicted to stay within quota.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    @NonNull public static QueueStats getQueueStats() {
+        return getClient().getQueueStats();
+    }
+
+    /**
+     * Gets the throughput and time to first byte of the uploads of reports, e.g. to tune the
+     * chunk size and timeouts of the HTTP client from real data.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    @NonNull public static UploadStats getUploadStats() {
+        return getClient().getUploadStats();
+    }
+
+    /**
+     * Gets the host app's HTTP client that Buglife shares, if any.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    @Nullable public static OkHttpClient getHttpClient() {
+        return getClient().getHttpClient();
+    }
+
+    /**
+     * Specifies the host app's HTTP client, for Buglife to share its connection pool,
+     * dispatcher threads and TLS configuration instead of creating its own. Buglife derives
+     * its client from it with {@link OkHttpClient#newBuilder()}, so the host's timeouts and
+     * interceptors apply to Buglife's requests as well.
+     * @param httpClient The host app's client, or null for Buglife to use its own client (the
+     *                   default), configured with {@link #setHttpClientOptions}
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static void setHttpClient(@Nullable OkHttpClient httpClient) {
+        getClient().setHttpClient(httpClient);
+    }
+
+    /**
+     * Gets the tunables of Buglife's own HTTP client.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    @NonNull public static HttpClientOptions getHttpClientOptions() {
+        return getClient().getHttpClientOptions();
+    }
+
+    /**
+     * Specifies the timeouts, connection pool size and request limits of Buglife's own HTTP
+     * client. These have no effect while the host app's client is shared; see
+     * {@link #setHttpClient}.
+     * @param options The tunables; {@link HttpClientOptions#DEFAULT} by default
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static void setHttpClientOptions(@NonNull HttpClientOptions options) {
+        getClient().setHttpClientOptions(options);
+    }
+
+    /**
+     * Gets the window within which successive invocations are coalesced into a single report.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static long getCoalescingWindow() {
+        return getClient().getCoalescingWindow();
+    }
+
+    /**
+     * Specifies a window within which successive invocations are coalesced into a single
+     * report. When the reporter is dismissed without submitting the report, an invocation
+     * within the window reopens the same draft, with the new screenshot appended to its
+     * attachments, instead of starting a new report with its own log dump and environment
+     * snapshot. Each invocation extends the window.
+     * @param windowMillis The window in milliseconds, or 0 to disable coalescing (the default)
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static void setCoalescingWindow(long windowMillis) {
+        getClient().setCoalescingWindow(windowMillis);
+    }
+
+    /**
+     * Sets a listener that is notified with the server-side ID of each submitted report, which
+     * can be used to send follow-up updates with {@link #submitReportUpdate}.
+     * @param listener The listener, or null to remove it; it is called on a background thread
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static void setOnReportSubmittedListener(@Nullable OnReportSubmittedListener listener) {
+        getClient().setOnReportSubmittedListener(listener);
+    }
+
+    /**
+     * Appends attachments or attributes to a report that has already been submitted, sending
+     * only what the update adds rather than a whole new report.
+     * @param update The update, which refers to the report by its server-side ID
+     * @param callback Called on the main thread once the update has been queued for submission,
+     *                 or if queueing it failed. With {@link RetryPolicy#MANUAL}, it is called
+     *                 once the update has been submitted, or if submitting it failed.
+     * @warning This is an experimental API, and is subject to change!
+     */
+    public static void submitReportUpdate(@NonNull ReportUpdate update, @NonNull ReportSubmissionCallback callback) {
+        getClient().submitReportUpdate(update, callback);
+    }
+
+    static void prepareReport(Report report) {
+        getClient().prepareReport(report);
+    }
+
+    static void discardReport(Report report) {
+        getClient().discardReport(report);
+    }
+
+    static ReportSubmission submitReport(Report report, ReportSubmissionCallback callback) {
+        return getClient().submitReport(report, callback);
+    }
+
+    static void keepDraft(@NonNull BugContext bugContext) {
+        getClient().keepDraft(bugContext);
     }
 
     static void onFinishReportFlow() {
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Writes CBOR (RFC 7049) directly to an output stream, one token at a time.
+ *
+ * Objects and arrays are written as indefinite-length maps and arrays, so that they can be
+ * streamed without knowing their size up front. Binary values are written as byte strings,
+ * streamed from disk, without the size and CPU overhead of base64.
+ *
+ * Null values are skipped along with their names, matching {@link JsonStreamWriter}.
+ */
+public final class CborStreamWriter implements TokenWriter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAJOR_TYPE_UNSIGNED_INTEGER = 0;
+    private static final int MAJOR_TYPE_NEGATIVE_INTEGER = 1 << 5;
+    private static final int MAJOR_TYPE_BYTE_STRING = 2 << 5;
+    private static final int MAJOR_TYPE_TEXT_STRING = 3 << 5;
+    private static final int MAJOR_TYPE_ARRAY = 4 << 5;
+    private static final int MAJOR_TYPE_MAP = 5 << 5;
+
+    private static final int INDEFINITE_LENGTH = 31;
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int DOUBLE = 0xfb;
+    private static final int BREAK = 0xff;
+
+    private enum Scope {
+        OBJECT,
+        ARRAY
+    }
+
+    private final OutputStream mOutput;
+    private final ArrayList<Scope> mStack = new ArrayList<>();
+    @Nullable private String mDeferredName;
+
+    public CborStreamWriter(@NonNull OutputStream output) {
+        mOutput = new BufferedOutputStream(output);
+    }
+
+    @Override public CborStreamWriter beginObject() throws IOException {
+        beforeValue();
+        mStack.add(Scope.OBJECT);
+        mOutput.write(MAJOR_TYPE_MAP | INDEFINITE_LENGTH);
+        return this;
+    }
+
+    @Override public CborStreamWriter endObject() throws IOException {
+        pop(Scope.OBJECT);
+        mOutput.write(BREAK);
+        return this;
+    }
+
+    @Override public CborStreamWriter beginArray() throws IOException {
+        beforeValue();
+        mStack.add(Scope.ARRAY);
+        mOutput.write(MAJOR_TYPE_ARRAY | INDEFINITE_LENGTH);
+        return this;
+    }
+
+    @Override public CborStreamWriter endArray() throws IOException {
+        pop(Scope.ARRAY);
+        mOutput.write(BREAK);
+        return this;
+    }
+
+    @Override public CborStreamWriter name(@NonNull String name) throws IOException {
+        if (mDeferredName != null) {
+            throw new IllegalStateException("Expected a value for " + mDeferredName);
+        }
+
+        if (peek() != Scope.OBJECT) {
+            throw new IllegalStateException("Names are only allowed within objects");
+        }
+
+        mDeferredName = name;
+        return this;
+    }
+
+    @Override public CborStreamWriter value(@Nullable String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+
+        beforeValue();
+        writeTextString(value);
+        return this;
+    }
+
+    @Override public CborStreamWriter value(boolean value) throws IOException {
+        beforeValue();
+        mOutput.write(value ? TRUE : FALSE);
+        return this;
+    }
+
+    @Override public CborStreamWriter value(long value) throws IOException {
+        beforeValue();
+        writeInteger(value);
+        return this;
+    }
+
+    @Override public CborStreamWriter value(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+        }
+
+        beforeValue();
+        if (value == (long) value) {
+            writeInteger((long) value);
+        } else {
+            mOutput.write(DOUBLE);
+            writeBigEndian(Double.doubleToLongBits(value), 8);
+        }
+        return this;
+    }
+
+    /**
+     * Skips the pending name, if any. Nulls are only written within arrays.
+     */
+    @Override public CborStreamWriter nullValue() throws IOException {
+        if (mDeferredName != null) {
+            mDeferredName = null;
+            return this;
+        }
+
+        if (peek() == Scope.ARRAY) {
+            beforeValue();
+            mOutput.write(NULL);
+        }
+        return this;
+    }
+
+    /**
+     * Writes the contents of a file as a byte string, reading the file in fixed-size chunks.
+     */
+    @Override public CborStreamWriter binaryValue(@NonNull File file) throws IOException {
+        long length = file.length();
+        InputStream input = new FileInputStream(file);
+
+        try {
+            beforeValue();
+            writeHeader(MAJOR_TYPE_BYTE_STRING, length);
+
+            byte[] buffer = new byte[8192];
+            long remaining = length;
+            int count;
+            while (remaining > 0 && (count = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                mOutput.write(buffer, 0, count);
+                remaining -= count;
+            }
+
+            if (remaining > 0) {
+                throw new IOException("File " + file + " was truncated while being written");
+            }
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+        return this;
+    }
+
+    @Override public void flush() throws IOException {
+        mOutput.flush();
+    }
+
+    @Override public void close() throws IOException {
+        mOutput.close();
+
+        if (!mStack.isEmpty()) {
+            throw new IOException("Incomplete document");
+        }
+    }
+
+    private void beforeValue() throws IOException {
+        Scope scope = peek();
+
+        if (scope == Scope.OBJECT) {
+            if (mDeferredName == null) {
+                throw new IllegalStateException("Values within objects must be named");
+            }
+            writeTextString(mDeferredName);
+            mDeferredName = null;
+        } else if (scope == null && mDeferredName != null) {
+            throw new IllegalStateException("Names are only allowed within objects");
+        }
+    }
+
+    @Nullable private Scope peek() {
+        return mStack.isEmpty() ? null : mStack.get(mStack.size() - 1);
+    }
+
+    private void pop(Scope expected) {
+        if (mDeferredName != null) {
+            throw new IllegalStateException("Dangling name: " + mDeferredName);
+        }
+        if (peek() != expected) {
+            throw new IllegalStateException("Nesting problem");
+        }
+        mStack.remove(mStack.size() - 1);
+    }
+
+    private void writeInteger(long value) throws IOException {
+        if (value >= 0) {
+            writeHeader(MAJOR_TYPE_UNSIGNED_INTEGER, value);
+        } else {
+            writeHeader(MAJOR_TYPE_NEGATIVE_INTEGER, -1 - value);
+        }
+    }
+
+    private void writeTextString(String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeHeader(MAJOR_TYPE_TEXT_STRING, bytes.length);
+        mOutput.write(bytes);
+    }
+
+    /**
+     * Writes the header of a byte string of the given length, e.g. to splice raw data into a
+     * CBOR document that was written without it.
+     */
+    public static void writeByteStringHeader(@NonNull OutputStream output, long length) throws IOException {
+        writeHeader(output, MAJOR_TYPE_BYTE_STRING, length);
+    }
+
+    /**
+     * Writes a non-negative integer, e.g. to fill in a value that was left out of a CBOR
+     * document when it was written.
+     */
+    public static void writeUnsignedInteger(@NonNull OutputStream output, long value) throws IOException {
+        writeHeader(output, MAJOR_TYPE_UNSIGNED_INTEGER, value);
+    }
+
+    private void writeHeader(int majorType, long argument) throws IOException {
+        writeHeader(mOutput, majorType, argument);
+    }
+
+    private void writeBigEndian(long value, int byteCount) throws IOException {
+        writeBigEndian(mOutput, value, byteCount);
+    }
+
+    /**
+     * Writes a major type along with its argument, in the shortest form that holds it.
+     */
+    private static void writeHeader(OutputStream output, int majorType, long argument) throws IOException {
+        if (argument < 24) {
+            output.write(majorType | (int) argument);
+        } else if (argument <= 0xffL) {
+            output.write(majorType | 24);
+            writeBigEndian(output, argument, 1);
+        } else if (argument <= 0xffffL) {
+            output.write(majorType | 25);
+            writeBigEndian(output, argument, 2);
+        } else if (argument <= 0xffffffffL) {
+            output.write(majorType | 26);
+            writeBigEndian(output, argument, 4);
+        } else {
+            output.write(majorType | 27);
+            writeBigEndian(output, argument, 8);
+        }
+    }
+
+    private static void writeBigEndian(OutputStream output, long value, int byteCount) throws IOException {
+        for (int shift = (byteCount - 1) * 8; shift >= 0; shift -= 8) {
+            output.write((int) (value >>> shift) & 0xff);
+        }
+    }
+}
@@ -28,6 +28,7 @@ import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.os.Build;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AlertDialog;
@@ -35,7 +36,15 @@ import android.widget.Toast;
 
 import com.buglife.sdk.reporting.BugReporter;
 import com.buglife.sdk.reporting.ClientEventReporter;
+import com.buglife.sdk.reporting.EvictionPolicy;
+import com.buglife.sdk.reporting.OnReportSubmittedListener;
+import com.buglife.sdk.reporting.QueueStats;
+import com.buglife.sdk.reporting.ReportSubmission;
 import com.buglife.sdk.reporting.ReportSubmissionCallback;
+import com.buglife.sdk.reporting.SubmissionScheduler;
+import com.buglife.sdk.reporting.SubmitReportTask;
+import com.buglife.sdk.reporting.UploadConstraints;
+import com.buglife.sdk.reporting.UploadStats;
 import com.buglife.sdk.screenrecorder.ScreenRecorder;
 import com.buglife.sdk.screenrecorder.ScreenRecordingPermissionHelper;
 
@@ -48,6 +57,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import okhttp3.OkHttpClient;
+
 final class Client implements ForegroundDetector.OnForegroundListener, InvocationMethodManager.OnInvocationMethodTriggeredListener {
     private static final InvocationMethod DEFAULT_INVOCATION_METHOD = InvocationMethod.SHAKE;
     private static final String PERMISSION_INTERNET = "android.permission.INTERNET";
@@ -57,6 +68,19 @@ final class Client implements ForegroundDetector.OnForegroundListener, Invocatio
     private static final String PERMISSION_ACCESS_NETWORK_STATE = "android.permission.ACCESS_NETWORK_STATE";
 
     private RetryPolicy mRetryPolicy = RetryPolicy.AUTOMATIC;
+    @NonNull private ReportPriority mReportPriority = ReportPriority.NORMAL;
+    @NonNull private UploadMode mUploadMode = UploadMode.JSON;
+    private boolean mAttachmentDeduplicationEnabled = false;
+    private long mChunkedUploadThreshold = 0;
+    private long mDeferredAttachmentThreshold = 0;
+    @NonNull private UploadConstraints mDeferredUploadConstraints = UploadConstraints.NONE;
+    private long mMaxReportSize = 0;
+    private long mMaxPendingReportBytes = 0;
+    private int mMaxPendingReports = 0;
+    @NonNull private EvictionPolicy mEvictionPolicy = EvictionPolicy.OLDEST_FIRST;
+    @Nullable private OkHttpClient mHttpClient;
+    @NonNull private HttpClientOptions mHttpClientOptions = HttpClientOptions.DEFAULT;
+    private final DraftCoalescer mDraftCoalescer = new DraftCoalescer();
     @NonNull private final Context mAppContext;
     @NonNull private final ApiIdentity mApiIdentity;
     @Nullable private BuglifeListener mListener;
@@ -116,6 +140,120 @@ final class Client implements ForegroundDetector.OnForegroundListener, Invocatio
         mRetryPolicy = retryPolicy;
     }
 
+    @NonNull ReportPriority getReportPriority() {
+        return mReportPriority;
+    }
+
+    void setReportPriority(@NonNull ReportPriority reportPriority) {
+        mReportPriority = reportPriority;
+    }
+
+    @NonNull UploadMode getUploadMode() {
+        return mUploadMode;
+    }
+
+    void setUploadMode(@NonNull UploadMode uploadMode) {
+        mUploadMode = uploadMode;
+    }
+
+    boolean isAttachmentDeduplicationEnabled() {
+        return mAttachmentDeduplicationEnabled;
+    }
+
+    void setAttachmentDeduplicationEnabled(boolean enabled) {
+        mAttachmentDeduplicationEnabled = enabled;
+    }
+
+    long getChunkedUploadThreshold() {
+        return mChunkedUploadThreshold;
+    }
+
+    void setChunkedUploadThreshold(long thresholdBytes) {
+        mChunkedUploadThreshold = thresholdBytes;
+    }
+
+    long getDeferredAttachmentThreshold() {
+        return mDeferredAttachmentThreshold;
+    }
+
+    void setDeferredAttachmentThreshold(long thresholdBytes) {
+        mDeferredAttachmentThreshold = thresholdBytes;
+    }
+
+    @NonNull UploadConstraints getDeferredUploadConstraints() {
+        return mDeferredUploadConstraints;
+    }
+
+    void setDeferredUploadConstraints(@NonNull UploadConstraints constraints) {
+        mDeferredUploadConstraints = constraints;
+    }
+
+    long getMaxReportSize() {
+        return mMaxReportSize;
+    }
+
+    void setMaxReportSize(long maxBytes) {
+        mMaxReportSize = maxBytes;
+    }
+
+    long getMaxPendingReportBytes() {
+        return mMaxPendingReportBytes;
+    }
+
+    void setMaxPendingReportBytes(long maxBytes) {
+        mMaxPendingReportBytes = maxBytes;
+    }
+
+    int getMaxPendingReports() {
+        return mMaxPendingReports;
+    }
+
+    void setMaxPendingReports(int maxReports) {
+        mMaxPendingReports = maxReports;
+    }
+
+    @NonNull EvictionPolicy getEvictionPolicy() {
+        return mEvictionPolicy;
+    }
+
+    void setEvictionPolicy(@NonNull EvictionPolicy evictionPolicy) {
+        mEvictionPolicy = evictionPolicy;
+    }
+
+    @NonNull QueueStats getQueueStats() {
+        return SubmissionScheduler.getInstance(mAppContext).getStats();
+    }
+
+    @NonNull UploadStats getUploadStats() {
+        return SubmitReportTask.getUploadStats();
+    }
+
+    @Nullable OkHttpClient getHttpClient() {
+        return mHttpClient;
+    }
+
+    void setHttpClient(@Nullable OkHttpClient httpClient) {
+        mHttpClient = httpClient;
+        NetworkManager.getInstance().setHttpClient(mHttpClient, mHttpClientOptions);
+    }
+
+    @NonNull HttpClientOptions getHttpClientOptions() {
+        return mHttpClientOptions;
+    }
+
+    void setHttpClientOptions(@NonNull HttpClientOptions options) {
+        mHttpClientOptions = options;
+        NetworkManager.getInstance().setHttpClient(mHttpClient, mHttpClientOptions);
+    }
+
+    long getCoalescingWindow() {
+        return mDraftCoalescer.getWindow();
+    }
+
+    void setCoalescingWindow(long windowMillis) {
+        mDraftCoalescer.setWindow(windowMillis);
+    }
+
     @Override
     public void onForegroundEvent() {
         startInvocationMethod();
@@ -303,8 +441,35 @@ final class Client implements ForegroundDetector.OnForegroundListener, Invocatio
         startScreenRecordingFlow();
     }
 
-    void submitReport(Report report, ReportSubmissionCallback callback) {
-        reporter.report(report, callback);
+    void prepareReport(Report report) {
+        reporter.prepare(report);
+    }
+
+    void discardReport(Report report) {
+        reporter.discard(report);
+    }
+
+    ReportSubmission submitReport(Report report, ReportSubmissionCallback callback) {
+        // Later invocations start a new report
+        mDraftCoalescer.close();
+        return reporter.report(report, callback);
+    }
+
+    void submitReportUpdate(ReportUpdate update, ReportSubmissionCallback callback) {
+        update.setApiIdentity(mApiIdentity);
+        reporter.update(update, callback);
+    }
+
+    void setOnReportSubmittedListener(@Nullable OnReportSubmittedListener listener) {
+        SubmitReportTask.setOnReportSubmittedListener(listener);
+    }
+
+    /**
+     * Called when a report flow is dismissed without submitting the report, with the bug
+     * context as it was left, so that invocations within the coalescing window can reopen it.
+     */
+    void keepDraft(@NonNull BugContext bugContext) {
+        mDraftCoalescer.keep(bugContext, SystemClock.elapsedRealtime());
     }
 
     /**
@@ -388,6 +553,8 @@ final class Client implements ForegroundDetector.OnForegroundListener, Invocatio
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 alertDialog.dismiss();
+                // Within the coalescing window, the screenshot still goes into the open draft
+                mDraftCoalescer.append(screenshotAttachment, SystemClock.elapsedRealtime());
                 onFinishReportFlow();
             }
         });
@@ -454,6 +621,18 @@ final class Client implements ForegroundDetector.OnForegroundListener, Invocatio
     }
 
     private @NonNull BugContext buildBugContext() {
+        long now = SystemClock.elapsedRealtime();
+        BugContext draft = mDraftCoalescer.reopen(now, mQueuedAttachments);
+
+        if (draft != null) {
+            // Coalesce this invocation into the open draft, rather than dumping logs and taking
+            // another environment snapshot. The host's attachments were requested when the draft
+            // was built, so they aren't requested again; only this invocation's capture is added.
+            mQueuedAttachments.clear();
+            mActualInvocationMethod = InvocationMethod.NONE;
+            return draft;
+        }
+
         BugContext.Builder builder = new BugContext.Builder(mAppContext)
                 .setUserEmail(mUserEmail)
                 .setUserIdentifier(mUserIdentifier)
@@ -473,7 +652,9 @@ final class Client implements ForegroundDetector.OnForegroundListener, Invocatio
 
         builder.setAttributes(mAttributes);
 
-        return builder.build();
+        BugContext bugContext = builder.build();
+        mDraftCoalescer.keep(bugContext, now);
+        return bugContext;
     }
 
     private void startInvocationMethod() {
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import java.util.Locale;
+
+/**
+ * Records how much a request body was shrunk by gzip compression. Attach an instance to a
+ * request as a tag, and it will be filled in when the body is written.
+ */
+public final class CompressionStats {
+    private volatile long mUncompressedBytes;
+    private volatile long mCompressedBytes;
+    private volatile boolean mCompressed;
+
+    void record(long uncompressedBytes, long compressedBytes) {
+        mUncompressedBytes = uncompressedBytes;
+        mCompressedBytes = compressedBytes;
+        mCompressed = true;
+    }
+
+    void reset() {
+        mUncompressedBytes = 0;
+        mCompressedBytes = 0;
+        mCompressed = false;
+    }
+
+    /**
+     * @return true if the body was sent with Content-Encoding: gzip
+     */
+    public boolean isCompressed() {
+        return mCompressed;
+    }
+
+    public long getUncompressedBytes() {
+        return mUncompressedBytes;
+    }
+
+    public long getCompressedBytes() {
+        return mCompressedBytes;
+    }
+
+    /**
+     * @return The compression ratio (uncompressed size / compressed size), or 1 if the body
+     * was not compressed
+     */
+    public float getRatio() {
+        if (!mCompressed || mCompressedBytes == 0) {
+            return 1;
+        }
+        return (float) mUncompressedBytes / mCompressedBytes;
+    }
+
+    @Override public String toString() {
+        if (!mCompressed) {
+            return "uncompressed";
+        }
+        return mUncompressedBytes + " -> " + mCompressedBytes + " bytes (" + String.format(Locale.US, "%.1f", getRatio()) + "x)";
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Coalesces invocations that follow each other within a time window into a single report.
+ *
+ * When a report flow ends without the report being submitted, its bug context is kept as an
+ * open draft. An invocation within the window after that reopens the draft, and its capture is
+ * appended to the draft's attachments, instead of a new bug context (with its own log dump and
+ * environment snapshot) being built. Each reopening extends the window.
+ *
+ * Submitting the draft closes it. A draft that expires is dropped, and its attachment files are
+ * deleted.
+ */
+final class DraftCoalescer {
+    static final String ATTRIBUTE_COALESCED_INVOCATIONS = "Coalesced invocations";
+
+    private long mWindow;
+    @Nullable private BugContext mDraft;
+    private long mLastUpdated;
+
+    /**
+     * @param window The coalescing window in milliseconds, or 0 to disable coalescing
+     */
+    void setWindow(long window) {
+        mWindow = window;
+
+        if (window <= 0) {
+            expire();
+        }
+    }
+
+    long getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * @param now The current time, in milliseconds since an arbitrary (but fixed) point
+     * @return The open draft for a new invocation, or null if a new bug context should be
+     * built; the invocation is counted in the draft's attributes
+     */
+    @Nullable BugContext reopen(long now) {
+        return reopen(now, Collections.<FileAttachment>emptyList());
+    }
+
+    /**
+     * Like {@link #reopen(long)}, appending the captures of the new invocation to the draft.
+     * Captures the draft already has are skipped, so that reopening it again doesn't duplicate
+     * them.
+     */
+    @Nullable BugContext reopen(long now, @NonNull List<FileAttachment> captures) {
+        if (!isOpen(now)) {
+            expire();
+            return null;
+        }
+
+        for (FileAttachment capture : captures) {
+            if (!containsFile(mDraft.getAttachments(), capture)) {
+                mDraft.addAttachment(capture);
+            }
+        }
+
+        Attribute attribute = mDraft.getAttribute(ATTRIBUTE_COALESCED_INVOCATIONS);
+        int invocations = attribute == null ? 1 : Integer.parseInt(attribute.getValue());
+        mDraft.getAttributes().put(ATTRIBUTE_COALESCED_INVOCATIONS, new Attribute(Integer.toString(invocations + 1), Attribute.ValueType.STRING, Attribute.FLAG_SYSTEM));
+        mLastUpdated = now;
+        return mDraft;
+    }
+
+    /**
+     * Keeps a bug context as the open draft, replacing the previous one. The bug context is
+     * expected to be a later copy of the draft if it originates from the same invocation, as
+     * when a reopened draft is handed back; otherwise the previous draft is dropped.
+     */
+    void keep(@NonNull BugContext bugContext, long now) {
+        if (mWindow <= 0) {
+            return;
+        }
+
+        if (mDraft != null && mDraft != bugContext && !isSameInvocation(mDraft, bugContext)) {
+            expire();
+        }
+
+        mDraft = bugContext;
+        mLastUpdated = now;
+    }
+
+    /**
+     * Appends a capture to the open draft, e.g. a screenshot for which the reporter was
+     * dismissed.
+     * @return true if there was an open draft
+     */
+    boolean append(@NonNull FileAttachment attachment, long now) {
+        if (!isOpen(now)) {
+            return false;
+        }
+
+        if (!containsFile(mDraft.getAttachments(), attachment)) {
+            mDraft.addAttachment(attachment);
+        }
+        mLastUpdated = now;
+        return true;
+    }
+
+    /**
+     * Closes the draft without deleting its attachments, e.g. once it has been submitted.
+     */
+    void close() {
+        mDraft = null;
+    }
+
+    private boolean isOpen(long now) {
+        return mWindow > 0 && mDraft != null && now - mLastUpdated <= mWindow;
+    }
+
+    private void expire() {
+        if (mDraft != null) {
+            for (FileAttachment attachment : mDraft.getAttachments()) {
+                attachment.getFile().delete();
+            }
+            mDraft = null;
+        }
+    }
+
+    private static boolean isSameInvocation(BugContext draft, BugContext bugContext) {
+        return draft.getEnvironmentSnapshot() != null && bugContext.getEnvironmentSnapshot() != null
+                && draft.getEnvironmentSnapshot().getInvokedAt().equals(bugContext.getEnvironmentSnapshot().getInvokedAt());
+    }
+
+    private static boolean containsFile(List<FileAttachment> attachments, FileAttachment attachment) {
+        for (FileAttachment other : attachments) {
+            if (other.getFile().equals(attachment.getFile())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
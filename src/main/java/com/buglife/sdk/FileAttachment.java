@@ -21,21 +21,22 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Base64;
+
+import com.buglife.sdk.reporting.ReportContainerWriter;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.Serializable;
 
 public class FileAttachment implements Parcelable {
+    private static final String BLOB_REFERENCE_FIELD = "blob_sha256";
+
     @NonNull private final File mFile;
     @NonNull private final String mMimeType;
+    @Nullable private String mSha256;
 
     public FileAttachment(@NonNull File file, @NonNull String mimeType) {
         this.mFile = file;
@@ -43,42 +44,124 @@ public class FileAttachment implements Parcelable {
     }
 
     public JSONObject toJSON() throws JSONException, IOException {
-        JSONObject json = new JSONObject();
-        json.put("filename", mFile.getName());
+        ByteArrayOutputStream output = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, mFile.length() * 4 / 3 + 256));
+        JsonStreamWriter writer = new JsonStreamWriter(output);
+        try {
+            writeJSON(writer);
+            writer.close();
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+        return new JSONObject(output.toString("utf-8"));
+    }
+
+    /**
+     * Writes this attachment as a JSON object, streaming the file contents from disk.
+     */
+    void writeJSON(@NonNull TokenWriter writer) throws IOException {
+        writeJSON(writer, null);
+    }
 
-        byte[] data = toByteArray();
-        if (data != null) {
-            json.put("base64_attachment_data", Base64.encodeToString(data, Base64.NO_WRAP));
+    /**
+     * Writes this attachment as a JSON object.
+     * @param partName If non-null, the attachment data is uploaded separately as a multipart
+     *                 part with this name, and only a reference to it is written.
+     */
+    void writeJSON(@NonNull TokenWriter writer, @Nullable String partName) throws IOException {
+        if (partName != null) {
+            writeJSON(writer, "attachment_part", partName);
+        } else {
+            writeJSON(writer, null, null);
         }
+    }
+
+    /**
+     * Writes this attachment as a JSON object that refers to a chunked upload, which carries
+     * the attachment data separately.
+     */
+    void writeUploadReferenceJSON(@NonNull TokenWriter writer, @NonNull String uploadId) throws IOException {
+        writeJSON(writer, "upload_id", uploadId);
+    }
+
+    /**
+     * Writes this attachment as a JSON object that refers to a blob that has already been
+     * uploaded with an earlier report, by its SHA-256 digest, instead of carrying its data.
+     * {@link #getSha256()} must have been called first.
+     */
+    void writeBlobReferenceJSON(@NonNull TokenWriter writer) throws IOException {
+        writeJSON(writer, BLOB_REFERENCE_FIELD, mSha256);
+    }
 
-        json.put("mime_type", mMimeType);
-        return json;
+    private void writeJSON(@NonNull TokenWriter writer, @Nullable String referenceName, @Nullable String referenceValue) throws IOException {
+        writer.beginObject();
+        writeJSONFields(writer, referenceName, referenceValue);
+        writer.endObject();
+    }
+
+    /**
+     * @param referenceName If non-null, the name of a field that refers to data sent elsewhere;
+     *                      otherwise the data is base64-encoded inline
+     */
+    void writeJSONFields(@NonNull TokenWriter writer, @Nullable String referenceName, @Nullable String referenceValue) throws IOException {
+        writer.name("filename").value(mFile.getName());
+
+        if (writer instanceof ReportContainerWriter && BLOB_REFERENCE_FIELD.equals(referenceName)) {
+            // The data is kept in the container, in case the server no longer has the blob
+            ((ReportContainerWriter) writer).name(referenceName).blobReferenceValue(referenceValue, mFile);
+        } else if (referenceName != null) {
+            writer.name(referenceName).value(referenceValue);
+        } else if (writer instanceof ReportContainerWriter && (isImage() || isVideo())) {
+            // Marked as media, so that it can be stripped if the queue runs out of space
+            ((ReportContainerWriter) writer).name("base64_attachment_data").mediaValue(mFile);
+        } else {
+            // Base64-encoded in JSON, but sent as raw bytes by binary formats
+            writer.name("base64_attachment_data").binaryValue(mFile);
+        }
+
+        if (!BLOB_REFERENCE_FIELD.equals(referenceName)) {
+            // Lets the server store the data by digest, so that later reports can refer to it
+            writer.name("sha256").value(mSha256);
+        }
+
+        writer.name("mime_type").value(mMimeType);
+    }
+
+    /**
+     * Computes the SHA-256 digest of the attachment file, streaming it from disk. The digest is
+     * computed once, and cached thereafter.
+     * @return The digest as a lowercase hex string
+     */
+    @NonNull String getSha256() throws IOException {
+        if (mSha256 == null) {
+            mSha256 = IOUtils.sha256(mFile);
+        }
+        return mSha256;
+    }
+
+    /**
+     * Forgets the cached digest, after the attachment file has been modified in place (e.g. by
+     * the screenshot annotator).
+     */
+    void clearSha256() {
+        mSha256 = null;
     }
 
     @NonNull public File getFile() {
         return mFile;
     }
 
+    @NonNull String getMimeType() {
+        return mMimeType;
+    }
+
     public boolean isImage() {
-        return mMimeType.equals(MimeTypes.JPG) || mMimeType.equals(MimeTypes.PNG);
+        return mMimeType.equals(MimeTypes.JPG) || mMimeType.equals(MimeTypes.PNG) || mMimeType.equals(MimeTypes.WEBP);
     }
 
     public boolean isVideo() {
         return mMimeType.equals(MimeTypes.MP4);
     }
 
-    private byte[] toByteArray() throws IOException {
-        FileInputStream inputStream = new FileInputStream(mFile);
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) mFile.length());
-        try {
-            IOUtils.write(inputStream, outputStream);
-            return outputStream.toByteArray();
-        } finally {
-            IOUtils.closeQuietly(inputStream);
-            IOUtils.closeQuietly(outputStream);
-        }
-    }
-
     /* Parcelable */
 
     @Override public int describeContents() {
@@ -88,11 +171,13 @@ public class FileAttachment implements Parcelable {
     @Override public void writeToParcel(Parcel dest, int flags) {
         dest.writeSerializable(this.mFile);
         dest.writeString(this.mMimeType);
+        dest.writeString(this.mSha256);
     }
 
     protected FileAttachment(Parcel in) {
         this.mFile = (File) in.readSerializable();
         this.mMimeType = in.readString();
+        this.mSha256 = in.readString();
     }
 
     public static final Creator<FileAttachment> CREATOR = new Creator<FileAttachment>() {
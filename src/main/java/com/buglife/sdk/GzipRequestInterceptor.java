@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Sink;
+
+/**
+ * Compresses JSON request bodies with gzip as they are streamed to the network.
+ *
+ * If the server rejects a compressed request as unsupported, the request is retried once
+ * without compression. If that succeeds, subsequent requests to the same host are no longer
+ * compressed. Only HTTP 415, or HTTP 400 with a response that names the content encoding, count
+ * as rejecting compression; any other HTTP 400 is a genuine error, and is returned as is. The
+ * fallback writes the original body again, so bodies that report their progress or measure their
+ * upload start over, and only the uncompressed request is counted.
+ *
+ * The hosts are remembered by the interceptor, so the same instance is meant to be reused
+ * across clients.
+ */
+final class GzipRequestInterceptor implements Interceptor {
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final int HTTP_BAD_REQUEST = 400;
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+    // Error responses naming the encoding do so near the start; there's no need to read more
+    private static final long MAX_ERROR_PEEK_BYTES = 4096;
+
+    private final Set<String> mUncompressedHosts = Collections.synchronizedSet(new HashSet<String>());
+
+    @Override public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+
+        if (!shouldCompress(request)) {
+            return chain.proceed(request);
+        }
+
+        CompressionStats stats = request.tag(CompressionStats.class);
+        Request compressedRequest = request.newBuilder()
+                .header(HEADER_CONTENT_ENCODING, "gzip")
+                .method(request.method(), new GzipRequestBody(request.body(), stats))
+                .build();
+
+        Response response = chain.proceed(compressedRequest);
+
+        if (!isRejected(response)) {
+            return response;
+        }
+
+        response.close();
+
+        if (stats != null) {
+            stats.reset();
+        }
+
+        Response uncompressedResponse = chain.proceed(request);
+
+        if (uncompressedResponse.isSuccessful()) {
+            mUncompressedHosts.add(request.url().host());
+        }
+
+        return uncompressedResponse;
+    }
+
+    private boolean shouldCompress(Request request) {
+        RequestBody body = request.body();
+
+        if (body == null || request.header(HEADER_CONTENT_ENCODING) != null) {
+            return false;
+        }
+
+        if (mUncompressedHosts.contains(request.url().host())) {
+            return false;
+        }
+
+        // Media attachments in multipart bodies are already compressed; don't bother
+        MediaType contentType = body.contentType();
+        return contentType != null && "json".equals(contentType.subtype());
+    }
+
+    private static boolean isRejected(Response response) throws IOException {
+        if (response.code() == HTTP_UNSUPPORTED_MEDIA_TYPE) {
+            return true;
+        }
+
+        if (response.code() != HTTP_BAD_REQUEST) {
+            return false;
+        }
+
+        // Servers that can't decode the body may advertise the encodings they do accept
+        if (response.header("Accept-Encoding") != null) {
+            return true;
+        }
+
+        String error = response.peekBody(MAX_ERROR_PEEK_BYTES).string().toLowerCase(Locale.US);
+        return error.contains("gzip") || error.contains("content-encoding");
+    }
+
+    private static final class GzipRequestBody extends RequestBody {
+        private final RequestBody mBody;
+        @Nullable private final CompressionStats mStats;
+
+        GzipRequestBody(RequestBody body, @Nullable CompressionStats stats) {
+            mBody = body;
+            mStats = stats;
+        }
+
+        @Override public MediaType contentType() {
+            return mBody.contentType();
+        }
+
+        @Override public long contentLength() {
+            // Unknown until the body has been compressed
+            return -1;
+        }
+
+        @Override public void writeTo(BufferedSink sink) throws IOException {
+            CountingSink compressedSink = new CountingSink(sink);
+            CountingSink uncompressedSink = new CountingSink(new GzipSink(compressedSink));
+            BufferedSink gzipSink = Okio.buffer(uncompressedSink);
+            mBody.writeTo(gzipSink);
+            gzipSink.close();
+
+            if (mStats != null) {
+                mStats.record(uncompressedSink.getBytesWritten(), compressedSink.getBytesWritten());
+            }
+        }
+    }
+
+    private static final class CountingSink extends ForwardingSink {
+        private long mBytesWritten;
+
+        CountingSink(Sink delegate) {
+            super(delegate);
+        }
+
+        @Override public void write(Buffer source, long byteCount) throws IOException {
+            super.write(source, byteCount);
+            mBytesWritten += byteCount;
+        }
+
+        long getBytesWritten() {
+            return mBytesWritten;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+/**
+ * Tunables of the HTTP client that Buglife creates for itself, when it isn't given the host
+ * app's client. See {@link Buglife#setHttpClientOptions}.
+ *
+ * @warning This is an experimental API, and is subject to change!
+ */
+public final class HttpClientOptions {
+    /**
+     * The options Buglife uses unless told otherwise.
+     */
+    public static final HttpClientOptions DEFAULT = new Builder().build();
+
+    private final long mConnectTimeoutMillis;
+    private final long mReadTimeoutMillis;
+    private final long mWriteTimeoutMillis;
+    private final int mMaxIdleConnections;
+    private final long mKeepAliveMillis;
+    private final int mMaxRequests;
+    private final int mMaxRequestsPerHost;
+
+    private HttpClientOptions(Builder builder) {
+        mConnectTimeoutMillis = builder.mConnectTimeoutMillis;
+        mReadTimeoutMillis = builder.mReadTimeoutMillis;
+        mWriteTimeoutMillis = builder.mWriteTimeoutMillis;
+        mMaxIdleConnections = builder.mMaxIdleConnections;
+        mKeepAliveMillis = builder.mKeepAliveMillis;
+        mMaxRequests = builder.mMaxRequests;
+        mMaxRequestsPerHost = builder.mMaxRequestsPerHost;
+    }
+
+    public long getConnectTimeoutMillis() {
+        return mConnectTimeoutMillis;
+    }
+
+    public long getReadTimeoutMillis() {
+        return mReadTimeoutMillis;
+    }
+
+    public long getWriteTimeoutMillis() {
+        return mWriteTimeoutMillis;
+    }
+
+    public int getMaxIdleConnections() {
+        return mMaxIdleConnections;
+    }
+
+    public long getKeepAliveMillis() {
+        return mKeepAliveMillis;
+    }
+
+    public int getMaxRequests() {
+        return mMaxRequests;
+    }
+
+    public int getMaxRequestsPerHost() {
+        return mMaxRequestsPerHost;
+    }
+
+    public static final class Builder {
+        private static final long DEFAULT_TIMEOUT_MILLIS = 60 * 1000;
+
+        private long mConnectTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+        private long mReadTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+        private long mWriteTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+        private int mMaxIdleConnections = 5;
+        private long mKeepAliveMillis = 5 * 60 * 1000;
+        private int mMaxRequests = 64;
+        private int mMaxRequestsPerHost = 5;
+
+        /**
+         * @param timeoutMillis The timeout for establishing connections, or 0 for none;
+         *                      60 seconds by default
+         */
+        public Builder setConnectTimeout(long timeoutMillis) {
+            mConnectTimeoutMillis = checkNotNegative(timeoutMillis);
+            return this;
+        }
+
+        /**
+         * @param timeoutMillis The timeout for each read from a connection, or 0 for none;
+         *                      60 seconds by default
+         */
+        public Builder setReadTimeout(long timeoutMillis) {
+            mReadTimeoutMillis = checkNotNegative(timeoutMillis);
+            return this;
+        }
+
+        /**
+         * @param timeoutMillis The timeout for each write to a connection, or 0 for none;
+         *                      60 seconds by default
+         */
+        public Builder setWriteTimeout(long timeoutMillis) {
+            mWriteTimeoutMillis = checkNotNegative(timeoutMillis);
+            return this;
+        }
+
+        /**
+         * @param maxIdleConnections The number of idle connections kept open for reuse; 5 by
+         *                           default
+         */
+        public Builder setMaxIdleConnections(int maxIdleConnections) {
+            mMaxIdleConnections = (int) checkNotNegative(maxIdleConnections);
+            return this;
+        }
+
+        /**
+         * @param keepAliveMillis How long idle connections are kept open; 5 minutes by default
+         */
+        public Builder setKeepAlive(long keepAliveMillis) {
+            if (keepAliveMillis <= 0) {
+                throw new IllegalArgumentException("Keep-alive must be positive");
+            }
+            mKeepAliveMillis = keepAliveMillis;
+            return this;
+        }
+
+        /**
+         * Limits the requests that Buglife has in flight in the background, such as client events.
+         * Reports are limited by their submission queue instead.
+         * @param maxRequests The maximum number of concurrent requests; 64 by default
+         */
+        public Builder setMaxRequests(int maxRequests) {
+            mMaxRequests = checkPositive(maxRequests);
+            return this;
+        }
+
+        /**
+         * @param maxRequestsPerHost The maximum number of concurrent requests to each host, with
+         *                           the same scope as {@link #setMaxRequests}; 5 by default
+         */
+        public Builder setMaxRequestsPerHost(int maxRequestsPerHost) {
+            mMaxRequestsPerHost = checkPositive(maxRequestsPerHost);
+            return this;
+        }
+
+        public HttpClientOptions build() {
+            return new HttpClientOptions(this);
+        }
+
+        private static long checkNotNegative(long value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("Value must not be negative: " + value);
+            }
+            return value;
+        }
+
+        private static int checkPositive(int value) {
+            if (value < 1) {
+                throw new IllegalArgumentException("Value must be positive: " + value);
+            }
+            return value;
+        }
+    }
+}
@@ -28,6 +28,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class IOUtils {
     private IOUtils() {/* No instances */}
@@ -64,6 +66,25 @@ public class IOUtils {
         fileOrDirectory.delete();
     }
 
+    /**
+     * @return The total size of a file, or of the files in a directory and its subdirectories;
+     * 0 if it doesn't exist
+     */
+    public static long sizeOf(File fileOrDirectory) {
+        if (!fileOrDirectory.isDirectory()) {
+            return fileOrDirectory.length();
+        }
+
+        long size = 0;
+        File[] children = fileOrDirectory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += sizeOf(child);
+            }
+        }
+        return size;
+    }
+
     static void write(InputStream input, OutputStream output) throws IOException {
         byte[] buffer = new byte[1024];
         for (int read = 0; read != -1; read = input.read(buffer)) {
@@ -96,4 +117,41 @@ public class IOUtils {
             in.close();
         }
     }
+
+    /**
+     * Computes the SHA-256 digest of a file, reading it in fixed-size chunks.
+     * @return The digest as a lowercase hex string
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            closeQuietly(input);
+        }
+
+        return toHex(digest.digest());
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hexDigits = "0123456789abcdef".toCharArray();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = hexDigits[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = hexDigits[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
 }
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Writes UTF-8 encoded JSON directly to an output stream, one token at a time.
+ *
+ * Unlike android.util.JsonWriter, string values can be streamed in chunks, which lets us
+ * base64-encode file attachments straight from disk without holding them in memory.
+ *
+ * Null values are skipped along with their names, matching JSONObject.put().
+ */
+public final class JsonStreamWriter implements TokenWriter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Must be a multiple of 3 so that chunks can be base64-encoded independently without padding
+    private static final int BASE64_CHUNK_SIZE = 3 * 4096;
+
+    private enum Scope {
+        EMPTY_OBJECT,
+        NONEMPTY_OBJECT,
+        EMPTY_ARRAY,
+        NONEMPTY_ARRAY
+    }
+
+    private final OutputStream mOutput;
+    private final ArrayList<Scope> mStack = new ArrayList<>();
+    @Nullable private String mDeferredName;
+
+    public JsonStreamWriter(@NonNull OutputStream output) {
+        mOutput = new BufferedOutputStream(output);
+    }
+
+    @Override public JsonStreamWriter beginObject() throws IOException {
+        beforeValue();
+        mStack.add(Scope.EMPTY_OBJECT);
+        mOutput.write('{');
+        return this;
+    }
+
+    @Override public JsonStreamWriter endObject() throws IOException {
+        pop(Scope.EMPTY_OBJECT, Scope.NONEMPTY_OBJECT);
+        mOutput.write('}');
+        return this;
+    }
+
+    @Override public JsonStreamWriter beginArray() throws IOException {
+        beforeValue();
+        mStack.add(Scope.EMPTY_ARRAY);
+        mOutput.write('[');
+        return this;
+    }
+
+    @Override public JsonStreamWriter endArray() throws IOException {
+        pop(Scope.EMPTY_ARRAY, Scope.NONEMPTY_ARRAY);
+        mOutput.write(']');
+        return this;
+    }
+
+    @Override public JsonStreamWriter name(@NonNull String name) throws IOException {
+        if (mDeferredName != null) {
+            throw new IllegalStateException("Expected a value for " + mDeferredName);
+        }
+
+        Scope scope = peek();
+        if (scope != Scope.EMPTY_OBJECT && scope != Scope.NONEMPTY_OBJECT) {
+            throw new IllegalStateException("Names are only allowed within objects");
+        }
+
+        mDeferredName = name;
+        return this;
+    }
+
+    @Override public JsonStreamWriter value(@Nullable String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+
+        beforeValue();
+        writeString(value);
+        return this;
+    }
+
+    @Override public JsonStreamWriter value(boolean value) throws IOException {
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    @Override public JsonStreamWriter value(long value) throws IOException {
+        beforeValue();
+        writeAscii(Long.toString(value));
+        return this;
+    }
+
+    @Override public JsonStreamWriter value(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+        }
+
+        beforeValue();
+        if (value == (long) value) {
+            writeAscii(Long.toString((long) value));
+        } else {
+            writeAscii(Double.toString(value));
+        }
+        return this;
+    }
+
+    /**
+     * Skips the pending name, if any. Nulls are never written to the output.
+     */
+    @Override public JsonStreamWriter nullValue() throws IOException {
+        if (mDeferredName != null) {
+            mDeferredName = null;
+            return this;
+        }
+
+        Scope scope = peek();
+        if (scope == Scope.EMPTY_ARRAY || scope == Scope.NONEMPTY_ARRAY) {
+            beforeValue();
+            writeAscii("null");
+        }
+        return this;
+    }
+
+    /**
+     * Writes the contents of a file as a base64-encoded string value, reading the file in
+     * fixed-size chunks.
+     */
+    public JsonStreamWriter base64Value(@NonNull File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            return base64Value(input);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    public JsonStreamWriter base64Value(@NonNull InputStream input) throws IOException {
+        beforeValue();
+        mOutput.write('"');
+        encodeBase64(input, mOutput);
+        mOutput.write('"');
+        return this;
+    }
+
+    /**
+     * Writes binary data as a base64-encoded string value.
+     */
+    @Override public JsonStreamWriter binaryValue(@NonNull File file) throws IOException {
+        return base64Value(file);
+    }
+
+    /**
+     * Splices pre-serialized UTF-8 JSON into the output as a value, e.g. an object fragment
+     * produced by another JsonStreamWriter.
+     */
+    public JsonStreamWriter rawValue(@NonNull byte[] json) throws IOException {
+        beforeValue();
+        mOutput.write(json);
+        return this;
+    }
+
+    /**
+     * Splices pre-serialized UTF-8 object members (comma-separated name/value pairs, without
+     * the enclosing braces) into the current object.
+     */
+    public JsonStreamWriter rawMembers(@NonNull byte[] members) throws IOException {
+        if (mDeferredName != null) {
+            throw new IllegalStateException("Expected a value for " + mDeferredName);
+        }
+
+        Scope scope = peek();
+        if (scope != Scope.EMPTY_OBJECT && scope != Scope.NONEMPTY_OBJECT) {
+            throw new IllegalStateException("Members are only allowed within objects");
+        }
+
+        if (members.length == 0) {
+            return this;
+        }
+
+        if (scope == Scope.NONEMPTY_OBJECT) {
+            mOutput.write(',');
+        }
+        mOutput.write(members);
+        replaceTop(Scope.NONEMPTY_OBJECT);
+        return this;
+    }
+
+    /**
+     * Base64-encodes a stream in fixed-size chunks, without line wrapping. The output is
+     * identical to that of {@link #base64Value(InputStream)}, minus the quotes.
+     */
+    public static void encodeBase64(@NonNull InputStream input, @NonNull OutputStream output) throws IOException {
+        byte[] buffer = new byte[BASE64_CHUNK_SIZE];
+        int length;
+        while ((length = readFully(input, buffer)) > 0) {
+            output.write(Base64.encode(buffer, 0, length, Base64.NO_WRAP));
+        }
+    }
+
+    @Override public void flush() throws IOException {
+        mOutput.flush();
+    }
+
+    @Override public void close() throws IOException {
+        mOutput.close();
+
+        if (!mStack.isEmpty()) {
+            throw new IOException("Incomplete document");
+        }
+    }
+
+    private void beforeValue() throws IOException {
+        Scope scope = peek();
+
+        if (scope == null) {
+            if (mDeferredName != null) {
+                throw new IllegalStateException("Names are only allowed within objects");
+            }
+            return;
+        }
+
+        switch (scope) {
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                if (mDeferredName == null) {
+                    throw new IllegalStateException("Values within objects must be named");
+                }
+                if (scope == Scope.NONEMPTY_OBJECT) {
+                    mOutput.write(',');
+                }
+                writeString(mDeferredName);
+                mOutput.write(':');
+                mDeferredName = null;
+                replaceTop(Scope.NONEMPTY_OBJECT);
+                break;
+            case EMPTY_ARRAY:
+                replaceTop(Scope.NONEMPTY_ARRAY);
+                break;
+            case NONEMPTY_ARRAY:
+                mOutput.write(',');
+                break;
+        }
+    }
+
+    @Nullable private Scope peek() {
+        return mStack.isEmpty() ? null : mStack.get(mStack.size() - 1);
+    }
+
+    private void replaceTop(Scope scope) {
+        mStack.set(mStack.size() - 1, scope);
+    }
+
+    private void pop(Scope empty, Scope nonempty) {
+        Scope scope = peek();
+        if (mDeferredName != null) {
+            throw new IllegalStateException("Dangling name: " + mDeferredName);
+        }
+        if (scope != empty && scope != nonempty) {
+            throw new IllegalStateException("Nesting problem");
+        }
+        mStack.remove(mStack.size() - 1);
+    }
+
+    private void writeAscii(String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            mOutput.write(value.charAt(i));
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        StringBuilder builder = new StringBuilder(value.length() + 2);
+        builder.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    builder.append('\\').append(c);
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                case '\b':
+                    builder.append("\\b");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\f':
+                    builder.append("\\f");
+                    break;
+                case '\u2028':
+                case '\u2029':
+                    builder.append(String.format(Locale.US, "\\u%04x", (int) c));
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        builder.append(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                    break;
+            }
+        }
+
+        builder.append('"');
+        mOutput.write(builder.toString().getBytes(UTF_8));
+    }
+
+    private static int readFully(InputStream input, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = input.read(buffer, total, buffer.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
@@ -19,9 +19,7 @@ package com.buglife.sdk;
 
 import android.os.Parcel;
 import android.support.annotation.NonNull;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import android.support.annotation.Nullable;
 
 import java.io.File;
 import java.io.IOException;
@@ -48,9 +46,8 @@ class LogFileAttachment extends FileAttachment {
     };
 
 
-    @Override public JSONObject toJSON() throws JSONException, IOException {
-        JSONObject json = super.toJSON();
-        json.put("log_version", LOG_VERSION);
-        return json;
+    @Override void writeJSONFields(@NonNull TokenWriter writer, @Nullable String referenceName, @Nullable String referenceValue) throws IOException {
+        super.writeJSONFields(writer, referenceName, referenceValue);
+        writer.name("log_version").value(LOG_VERSION);
     }
 }
@@ -23,5 +23,6 @@ public interface MimeTypes {
     String SQLITE = "application/x-sqlite3";
     String PNG = "image/png";
     String JPG = "image/jpeg";
+    String WEBP = "image/webp";
     String MP4 = "video/mp4";
 }
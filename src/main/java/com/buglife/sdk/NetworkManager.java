@@ -17,30 +17,34 @@
 
 package com.buglife.sdk;
 
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
 import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 
 public class NetworkManager {
 
-    private static final int INITIAL_TIMEOUT_MS = 60 * 1000;
     public static final String BUGLIFE_URL = "https://www.buglife.com";
 
 
     private static NetworkManager mInstance;
-    private OkHttpClient mOkHttpClient;
+    // Shared by every client we build, so that the hosts it has learned not to compress for stick
+    private final GzipRequestInterceptor mGzipInterceptor = new GzipRequestInterceptor();
+    private volatile OkHttpClient mOkHttpClient;
+    // Whether the client was derived from the host app's, and so shares its connection pool
+    private boolean mSharedClient;
 
     private NetworkManager() {
-        mOkHttpClient = new OkHttpClient.Builder()
-                .connectTimeout(INITIAL_TIMEOUT_MS, TimeUnit.MILLISECONDS)
-                .readTimeout(INITIAL_TIMEOUT_MS, TimeUnit.MILLISECONDS)
-                .writeTimeout(INITIAL_TIMEOUT_MS, TimeUnit.MILLISECONDS)
-                .build();
+        mOkHttpClient = newHttpClient(null, HttpClientOptions.DEFAULT, mGzipInterceptor);
     }
 
     public static synchronized NetworkManager getInstance() {
@@ -51,8 +55,57 @@ public class NetworkManager {
         return mInstance;
     }
 
+    /**
+     * Replaces the client that requests are executed with. Requests that are already in flight
+     * finish on the previous client.
+     * @param hostClient The host app's client, whose connection pool, dispatcher and TLS
+     *                   configuration are shared; or null to create a client of our own
+     * @param options The tunables of our own client; ignored if the host's client is given
+     */
+    synchronized void setHttpClient(@Nullable OkHttpClient hostClient, @NonNull HttpClientOptions options) {
+        OkHttpClient previousClient = mOkHttpClient;
+        mOkHttpClient = newHttpClient(hostClient, options, mGzipInterceptor);
+
+        if (!mSharedClient) {
+            // Let go of the previous pool's sockets; its dispatcher threads time out on their own
+            previousClient.connectionPool().evictAll();
+        }
+        mSharedClient = hostClient != null;
+    }
+
+    @NonNull static OkHttpClient newHttpClient(@Nullable OkHttpClient hostClient, @NonNull HttpClientOptions options, @NonNull GzipRequestInterceptor gzipInterceptor) {
+        OkHttpClient.Builder builder;
+
+        if (hostClient != null) {
+            builder = hostClient.newBuilder();
+        } else {
+            Dispatcher dispatcher = new Dispatcher();
+            dispatcher.setMaxRequests(options.getMaxRequests());
+            dispatcher.setMaxRequestsPerHost(options.getMaxRequestsPerHost());
+
+            builder = new OkHttpClient.Builder()
+                    .connectTimeout(options.getConnectTimeoutMillis(), TimeUnit.MILLISECONDS)
+                    .readTimeout(options.getReadTimeoutMillis(), TimeUnit.MILLISECONDS)
+                    .writeTimeout(options.getWriteTimeoutMillis(), TimeUnit.MILLISECONDS)
+                    .connectionPool(new ConnectionPool(options.getMaxIdleConnections(), options.getKeepAliveMillis(), TimeUnit.MILLISECONDS))
+                    .dispatcher(dispatcher);
+        }
+
+        return builder
+                .addInterceptor(gzipInterceptor)
+                .build();
+    }
+
     public Response executeRequest(Request request) throws IOException {
-        return mOkHttpClient.newCall(request).execute();
+        return newCall(request).execute();
+    }
+
+    /**
+     * @return A call for the request, to be executed by the caller; unlike
+     * {@link #executeRequest}, this lets the caller cancel it
+     */
+    public Call newCall(Request request) {
+        return mOkHttpClient.newCall(request);
     }
 
     public void executeRequestAsync(Request request, final Callback callback) {
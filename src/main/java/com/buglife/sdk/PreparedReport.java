@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.buglife.sdk.reporting.BlobIndex;
+import com.buglife.sdk.reporting.PendingReport;
+import com.buglife.sdk.reporting.ReportContainer;
+import com.buglife.sdk.reporting.ReportContainerWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A report that is serialized ahead of time, while the user is still editing it.
+ *
+ * Attachments are final by the time the report flow starts, except for screenshots that the
+ * user annotates. So everything up to and including the attachments array is written to a
+ * temporary {@link ReportContainer} as soon as the report is created, and written again when an
+ * attachment file changes. Finishing the report then only takes writing the summary and
+ * attributes, regardless of attachment size.
+ *
+ * Preparation only applies to reports whose attachments are written inline, in JSON or CBOR;
+ * see {@link #isSupported(UploadMode, long, long, long)}.
+ *
+ * Not thread-safe; all methods are called on the report worker thread.
+ */
+final class PreparedReport {
+    private final Report mReport;
+    private final PendingReport mPendingReport;
+    private final UploadMode mUploadMode;
+    @Nullable private final BlobIndex mBlobIndex;
+    private final File mTempFile;
+    private final Map<FileAttachment, PreparedAttachment> mPreparedAttachments = new IdentityHashMap<>();
+    @Nullable private ReportContainerWriter mWriter;
+    @Nullable private AttachmentWriter mAttachmentWriter;
+
+    PreparedReport(@NonNull Report report, @NonNull PendingReport pendingReport, @NonNull UploadMode uploadMode, @Nullable BlobIndex blobIndex) {
+        mReport = report;
+        mPendingReport = pendingReport;
+        mUploadMode = uploadMode;
+        mBlobIndex = blobIndex;
+        mTempFile = new File(pendingReport.getReportFile().getPath() + ".tmp");
+    }
+
+    /**
+     * @return true if reports with the given settings can be prepared; reports that are split
+     * into multipart parts, chunked uploads or deferred attachments, or that may be reduced to
+     * fit a budget, are only written once they are submitted
+     */
+    static boolean isSupported(@NonNull UploadMode uploadMode, long chunkedUploadThreshold, long deferredAttachmentThreshold, long maxReportSize) {
+        return uploadMode != UploadMode.MULTIPART && chunkedUploadThreshold <= 0 && deferredAttachmentThreshold <= 0 && maxReportSize <= 0;
+    }
+
+    @NonNull PendingReport getPendingReport() {
+        return mPendingReport;
+    }
+
+    @NonNull UploadMode getUploadMode() {
+        return mUploadMode;
+    }
+
+    /**
+     * Brings the prepared report up to date with the report's attachments. Does nothing if none
+     * are new or have changed since the last update.
+     */
+    void update() throws IOException {
+        if (mWriter != null && !isStale()) {
+            return;
+        }
+
+        closeWriter();
+
+        try {
+            prepareAttachments();
+
+            mWriter = new ReportContainerWriter(mTempFile, mUploadMode == UploadMode.CBOR);
+            mAttachmentWriter = new AttachmentWriter().setBlobIndex(mBlobIndex);
+            mReport.writeHead(mWriter, mAttachmentWriter);
+            mWriter.flush();
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+    }
+
+    /**
+     * Completes the report with its current summary and attributes, and moves it to the
+     * pending report's location. Attachment files are deleted.
+     */
+    void finish() throws IOException {
+        update();
+
+        try {
+            mReport.writeTail(mWriter);
+            mWriter.close();
+            mWriter = null;
+            mPendingReport.setUploadedBlobs(mAttachmentWriter.getUploadedBlobs());
+
+            if (!mTempFile.renameTo(mPendingReport.getReportFile())) {
+                throw new IOException("Unable to move report to " + mPendingReport.getReportFile());
+            }
+        } catch (IOException e) {
+            discard();
+            mPendingReport.delete();
+            throw e;
+        }
+
+        mPreparedAttachments.clear();
+        mReport.deleteAttachmentFiles();
+    }
+
+    /**
+     * Deletes everything written so far. Attachment files are left in place.
+     */
+    void discard() {
+        closeWriter();
+        mPreparedAttachments.clear();
+    }
+
+    private boolean isStale() {
+        List<FileAttachment> attachments = mReport.getAttachments();
+
+        if (attachments.size() != mPreparedAttachments.size()) {
+            return true;
+        }
+
+        for (FileAttachment attachment : attachments) {
+            PreparedAttachment preparedAttachment = mPreparedAttachments.get(attachment);
+
+            if (preparedAttachment == null || !preparedAttachment.isCurrent()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void prepareAttachments() {
+        List<FileAttachment> attachments = mReport.getAttachments();
+
+        // Drop attachments that are gone, e.g. replaced by another file
+        mPreparedAttachments.keySet().retainAll(attachments);
+
+        for (FileAttachment attachment : attachments) {
+            PreparedAttachment preparedAttachment = mPreparedAttachments.get(attachment);
+
+            if (preparedAttachment != null) {
+                if (preparedAttachment.isCurrent()) {
+                    continue;
+                }
+
+                // The file was modified in place
+                attachment.clearSha256();
+            }
+
+            mPreparedAttachments.put(attachment, new PreparedAttachment(attachment.getFile()));
+        }
+    }
+
+    private void closeWriter() {
+        if (mWriter != null) {
+            IOUtils.closeQuietly(mWriter);
+            mWriter = null;
+        }
+
+        mAttachmentWriter = null;
+        mTempFile.delete();
+    }
+
+    /**
+     * The length and modification time of an attachment file when it was written to the report.
+     */
+    private static final class PreparedAttachment {
+        private final File mSourceFile;
+        private final long mLength;
+        private final long mLastModified;
+
+        PreparedAttachment(File sourceFile) {
+            mSourceFile = sourceFile;
+            mLength = sourceFile.length();
+            mLastModified = sourceFile.lastModified();
+        }
+
+        boolean isCurrent() {
+            return mSourceFile.length() == mLength && mSourceFile.lastModified() == mLastModified;
+        }
+    }
+}
@@ -18,18 +18,27 @@
 package com.buglife.sdk;
 
 import android.location.Location;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
+import com.buglife.sdk.reporting.BlobIndex;
 import com.buglife.sdk.reporting.DeviceSnapshot;
+import com.buglife.sdk.reporting.EnvelopeCache;
 import com.buglife.sdk.reporting.EnvironmentSnapshot;
+import com.buglife.sdk.reporting.PendingReport;
+import com.buglife.sdk.reporting.ReportContainer;
+import com.buglife.sdk.reporting.ReportContainerWriter;
 import com.buglife.sdk.reporting.SessionSnapshot;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.w3c.dom.Attr;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
@@ -44,64 +53,219 @@ public final class Report {
     }
 
     public JSONObject toJSON() throws JSONException, IOException {
-        JSONObject params = new JSONObject();
-        JSONObject reportParams = new JSONObject();
-        JSONObject appParams = new JSONObject();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        JsonStreamWriter writer = new JsonStreamWriter(output);
+        try {
+            writeJSON(writer, new AttachmentWriter());
+            writer.close();
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+        deleteAttachmentFiles();
+        return new JSONObject(output.toString("utf-8"));
+    }
 
-        Attribute summaryAttribute = mBugContext.getAttribute(TextInputField.SUMMARY_ATTRIBUTE_NAME);
+    /**
+     * Serializes the report to disk. Attachments are streamed from disk, so memory usage stays
+     * constant regardless of attachment size. The report is written to a temporary location
+     * first, so a partially written report is never left behind at the destination.
+     *
+     * The report is written into a {@link ReportContainer}, which keeps attachment data raw and
+     * leaves the submission attempt number blank until the report is sent, as JSON or (in
+     * {@link UploadMode#CBOR} mode) CBOR.
+     *
+     * In {@link UploadMode#MULTIPART} mode, the report is written as JSON, and attachment files
+     * are moved into the pending report's attachments directory instead of into the container.
+     *
+     * @param blobIndex If non-null, attachments are hashed, and those that have already been
+     *                  uploaded are referenced by digest rather than sent again
+     * @param chunkedUploadThreshold Attachments at least this large are moved into the pending
+     *                               report's uploads directory, to be sent as resumable chunked
+     *                               uploads; 0 to disable
+     * @param deferredAttachmentThreshold Images and videos at least this large are left out of
+     *                                    the report, and written to its deferred update instead,
+     *                                    to be sent once the report has been submitted; 0 to
+     *                                    disable
+     */
+    void writeTo(@NonNull PendingReport pendingReport, @NonNull UploadMode uploadMode, @Nullable BlobIndex blobIndex, long chunkedUploadThreshold, long deferredAttachmentThreshold) throws IOException {
+        File file = pendingReport.getReportFile();
+        File tempFile = new File(file.getPath() + ".tmp");
+        AttachmentWriter attachmentWriter = new AttachmentWriter()
+                .setBlobIndex(blobIndex)
+                .setChunkedUploads(pendingReport.getUploadsDir(), chunkedUploadThreshold);
 
-        if (summaryAttribute != null) {
-            reportParams.put("what_happened", summaryAttribute.getValue());
+        if (uploadMode == UploadMode.MULTIPART) {
+            File attachmentsDir = pendingReport.getAttachmentsDir();
+            if (!attachmentsDir.mkdirs()) {
+                throw new IOException("Unable to create attachments directory " + attachmentsDir);
+            }
+            attachmentWriter.setPartsDir(attachmentsDir);
         }
 
+        List<FileAttachment> attachments = new ArrayList<>();
+        List<FileAttachment> deferredAttachments = new ArrayList<>();
+
+        for (FileAttachment attachment : mBugContext.getAttachments()) {
+            if (shouldDefer(attachment, deferredAttachmentThreshold)) {
+                deferredAttachments.add(attachment);
+            } else {
+                attachments.add(attachment);
+            }
+        }
+
+        TokenWriter writer = new ReportContainerWriter(tempFile, uploadMode == UploadMode.CBOR);
+
+        try {
+            writeHead(writer, attachmentWriter, attachments, deferredAttachments.size());
+            writeTail(writer);
+            writer.close();
+
+            if (!deferredAttachments.isEmpty()) {
+                writeDeferredUpdate(pendingReport.getDeferredUpdate(), uploadMode == UploadMode.CBOR, blobIndex, deferredAttachments);
+            }
+
+            pendingReport.setUploadedBlobs(attachmentWriter.getUploadedBlobs());
+        } catch (IOException e) {
+            IOUtils.closeQuietly(writer);
+            tempFile.delete();
+            pendingReport.delete();
+            throw e;
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            pendingReport.delete();
+            throw new IOException("Unable to move report to " + file);
+        }
+
+        deleteAttachmentFiles();
+    }
+
+    /**
+     * Degrades the report's attachments as needed to fit the budget; see {@link ReportBudget}.
+     */
+    void applyBudget(@NonNull ReportBudget budget) {
+        budget.apply(mBugContext);
+    }
+
+    private void writeJSON(TokenWriter writer, AttachmentWriter attachmentWriter) throws IOException {
+        writeHead(writer, attachmentWriter);
+        writeTail(writer);
+    }
+
+    private static boolean shouldDefer(FileAttachment attachment, long deferredAttachmentThreshold) {
+        return deferredAttachmentThreshold > 0
+                && (attachment.isImage() || attachment.isVideo())
+                && attachment.getFile().length() >= deferredAttachmentThreshold;
+    }
+
+    /**
+     * Writes the deferred attachments as a follow-up update, shaped like {@link ReportUpdate}'s.
+     * The update is stored in a {@link ReportContainer}, so the attachment data stays raw until
+     * it is sent.
+     */
+    private void writeDeferredUpdate(PendingReport pendingUpdate, boolean cbor, @Nullable BlobIndex blobIndex, List<FileAttachment> attachments) throws IOException {
+        AttachmentWriter attachmentWriter = new AttachmentWriter().setBlobIndex(blobIndex);
+        TokenWriter writer = new ReportContainerWriter(pendingUpdate.getReportFile(), cbor);
+
+        try {
+            writer.beginObject();
+            writer.name("update").beginObject();
+            writer.name("attachments");
+            attachmentWriter.writeAttachments(writer, attachments);
+            writer.endObject();
+            writeApiIdentity(writer);
+            writer.endObject();
+            writer.close();
+            pendingUpdate.setUploadedBlobs(attachmentWriter.getUploadedBlobs());
+        } catch (IOException e) {
+            IOUtils.closeQuietly(writer);
+            pendingUpdate.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the parts of the report that are final once the report flow starts: the session,
+     * device and environment fields, and the attachments. This leaves the "report" object open.
+     */
+    void writeHead(@NonNull TokenWriter writer, @NonNull AttachmentWriter attachmentWriter) throws IOException {
+        writeHead(writer, attachmentWriter, mBugContext.getAttachments(), 0);
+    }
+
+    /**
+     * @param deferredAttachmentCount The number of attachments that follow in the report's
+     *                                deferred update
+     */
+    private void writeHead(TokenWriter writer, AttachmentWriter attachmentWriter, List<FileAttachment> attachments, int deferredAttachmentCount) throws IOException {
+        writer.beginObject();
+        writer.name("report").beginObject();
+
         SessionSnapshot sessionSnapshot = mBugContext.getSessionSnapshot();
-        reportParams.put("sdk_version", sessionSnapshot.getSDKVersion());
-        reportParams.put("sdk_name", sessionSnapshot.getSDKName());
-        reportParams.put("user_email", sessionSnapshot.getUserEmail());
-        reportParams.put("user_identifier", sessionSnapshot.getUserIdentifier());
-        reportParams.put("bundle_short_version", sessionSnapshot.getBundleShortVersion());
-        reportParams.put("bundle_version", sessionSnapshot.getBundleVersion());
+        EnvironmentSnapshot environmentSnapshot = mBugContext.getEnvironmentSnapshot();
 
+        // SDK, user, app version & device fields
         DeviceSnapshot deviceSnapshot = mBugContext.getDeviceSnapshot();
-        reportParams.put("operating_system_version", deviceSnapshot.getOSVersion());
-        reportParams.put("device_manufacturer", deviceSnapshot.getDeviceManufacturer());
-        reportParams.put("device_model", deviceSnapshot.getDeviceModel());
-        reportParams.put("device_brand", deviceSnapshot.getDeviceBrand());
-        reportParams.put("device_identifier", deviceSnapshot.getDeviceIdentifier());
+        JsonStreamWriter jsonWriter = asJsonStreamWriter(writer);
+        if (jsonWriter != null) {
+            jsonWriter.rawMembers(EnvelopeCache.getInstance().getReportFields(sessionSnapshot, deviceSnapshot));
+        } else {
+            EnvelopeCache.writeReportFields(writer, sessionSnapshot, deviceSnapshot);
+        }
 
-        EnvironmentSnapshot environmentSnapshot = mBugContext.getEnvironmentSnapshot();
-        reportParams.put("total_capacity_bytes", environmentSnapshot.getTotalCapacityBytes());
-        reportParams.put("free_capacity_bytes", environmentSnapshot.getFreeCapacityBytes());
-        reportParams.put("free_memory_bytes", environmentSnapshot.getFreeMemoryBytes());
-        reportParams.put("total_memory_bytes", environmentSnapshot.getTotalMemoryBytes());
-        reportParams.put("battery_level", environmentSnapshot.getBatteryLevel());
-        reportParams.put("carrier_name", environmentSnapshot.getCarrierName());
-        reportParams.put("android_mobile_network_subtype", environmentSnapshot.getMobileNetworkSubtype());
-        reportParams.put("wifi_connected", environmentSnapshot.getWifiConnected());
-        reportParams.put("locale", environmentSnapshot.getLocale());
-        reportParams.put("invocation_method", environmentSnapshot.getInvokationMethod().getValue());
+        writer.name("total_capacity_bytes").value(environmentSnapshot.getTotalCapacityBytes());
+        writer.name("free_capacity_bytes").value(environmentSnapshot.getFreeCapacityBytes());
+        writer.name("free_memory_bytes").value(environmentSnapshot.getFreeMemoryBytes());
+        writer.name("total_memory_bytes").value(environmentSnapshot.getTotalMemoryBytes());
+        writer.name("battery_level").value(environmentSnapshot.getBatteryLevel());
+        writer.name("carrier_name").value(environmentSnapshot.getCarrierName());
+        writer.name("android_mobile_network_subtype").value(environmentSnapshot.getMobileNetworkSubtype());
+        writer.name("wifi_connected").value(environmentSnapshot.getWifiConnected());
+        writer.name("locale").value(environmentSnapshot.getLocale());
+        writer.name("invocation_method").value(environmentSnapshot.getInvokationMethod().getValue());
 
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZZZZ", Locale.US);
 
-        reportParams.put("invoked_at", sdf.format(environmentSnapshot.getInvokedAt()));
-        reportParams.put("submission_attempts", 1);
+        writer.name("invoked_at").value(sdf.format(environmentSnapshot.getInvokedAt()));
+        if (writer instanceof ReportContainerWriter) {
+            // Filled in each time the report is sent
+            writer.name("submission_attempts");
+            ((ReportContainerWriter) writer).attemptNumberValue();
+        } else {
+            writer.name("submission_attempts").value(1);
+        }
 
         // Attachments
-        JSONArray attachmentsParams = new JSONArray();
+        if (!attachments.isEmpty()) {
+            writer.name("attachments");
+            attachmentWriter.writeAttachments(writer, attachments);
+        }
 
-        for (FileAttachment attachment : mBugContext.getAttachments()) {
-            // TODO: Handle these JSON exceptions separately? So that bug reports can still be submitted
-            attachmentsParams.put(attachment.toJSON());
-            attachment.getFile().delete();
+        if (deferredAttachmentCount > 0) {
+            writer.name("deferred_attachment_count");
+            if (writer instanceof ReportContainerWriter) {
+                // Dropped if the deferred update is stripped from the queue
+                ((ReportContainerWriter) writer).strippableValue(deferredAttachmentCount);
+            } else {
+                writer.value(deferredAttachmentCount);
+            }
         }
+    }
 
-        if (attachmentsParams.length() > 0) {
-            reportParams.put("attachments", attachmentsParams);
+    /**
+     * Writes the parts of the report that the user can edit until it is submitted: the summary
+     * and the attributes. This closes the "report" object, and the document.
+     */
+    void writeTail(@NonNull TokenWriter writer) throws IOException {
+        Attribute summaryAttribute = mBugContext.getAttribute(TextInputField.SUMMARY_ATTRIBUTE_NAME);
+
+        if (summaryAttribute != null) {
+            writer.name("what_happened").value(summaryAttribute.getValue());
         }
 
         // Attributes
-        JSONObject attributesParams = new JSONObject();
         AttributeMap attributes = mBugContext.getAttributes();
+        EnvironmentSnapshot environmentSnapshot = mBugContext.getEnvironmentSnapshot();
 
         //well this is a little awkward
         Location location = environmentSnapshot.getLocation();
@@ -111,6 +275,8 @@ public final class Report {
             attributes.put("Device location", deviceLocation);
         }
 
+        boolean hasAttributes = false;
+
         for (Map.Entry<String, Attribute> attribute : attributes.entrySet()) {
             String attributeName = attribute.getKey();
             Attribute attr = attribute.getValue();
@@ -120,33 +286,73 @@ public final class Report {
                 continue;
             }
 
-            JSONObject attributeParams = new JSONObject();
-            attributeParams.put("attribute_type", attr.getValueType());
-            attributeParams.put("attribute_value", attr.getValue());
-            attributeParams.put("flag", attr.getFlags());
-            attributesParams.put(attributeName, attributeParams);
+            if (!hasAttributes) {
+                writer.name("attributes").beginObject();
+                hasAttributes = true;
+            }
+
+            writer.name(attributeName).beginObject();
+            writer.name("attribute_type").value(attr.getValueType().toString());
+            writer.name("attribute_value").value(attr.getValue());
+            writer.name("flag").value(attr.getFlags());
+            writer.endObject();
         }
 
-        if (attributesParams.length() > 0) {
-            reportParams.put("attributes", attributesParams);
+        if (hasAttributes) {
+            writer.endObject();
         }
 
-        appParams.put("bundle_short_version", sessionSnapshot.getBundleShortVersion());
-        appParams.put("bundle_version", sessionSnapshot.getBundleVersion());
-        appParams.put("bundle_identifier", sessionSnapshot.getBundleIdentifier());
-        appParams.put("bundle_name", sessionSnapshot.getBundleName());
-        appParams.put("platform", sessionSnapshot.getPlatform());
+        writer.endObject();
 
-        params.put("report", reportParams);
-        params.put("app", appParams);
+        SessionSnapshot sessionSnapshot = mBugContext.getSessionSnapshot();
 
+        writer.name("app");
+        JsonStreamWriter jsonWriter = asJsonStreamWriter(writer);
+        if (jsonWriter != null) {
+            jsonWriter.rawValue(EnvelopeCache.getInstance().getReportApp(sessionSnapshot));
+        } else {
+            EnvelopeCache.writeReportApp(writer, sessionSnapshot);
+        }
+
+        writeApiIdentity(writer);
+        writer.endObject();
+    }
+
+    private void writeApiIdentity(TokenWriter writer) throws IOException {
         ApiIdentity identity = mBugContext.getApiIdentity();
         if (identity instanceof ApiIdentity.ApiKey) {
-            params.put("api_key", identity.getId());
+            writer.name("api_key").value(identity.getId());
         } else if (identity instanceof ApiIdentity.EmailAddress) {
-            params.put("email", identity.getId());
+            writer.name("email").value(identity.getId());
         }
+    }
+
+    /**
+     * @return The writer to splice pre-serialized JSON into, if the report is written as JSON
+     */
+    @Nullable private static JsonStreamWriter asJsonStreamWriter(TokenWriter writer) throws IOException {
+        if (writer instanceof ReportContainerWriter) {
+            writer = ((ReportContainerWriter) writer).getMetadataWriter();
+        }
+        return writer instanceof JsonStreamWriter ? (JsonStreamWriter) writer : null;
+    }
 
-        return params;
+    @NonNull List<FileAttachment> getAttachments() {
+        return mBugContext.getAttachments();
+    }
+
+    /**
+     * @return How the reporter was invoked, or {@link InvocationMethod#NONE} if it was shown
+     * programmatically
+     */
+    @NonNull InvocationMethod getInvocationMethod() {
+        EnvironmentSnapshot environmentSnapshot = mBugContext.getEnvironmentSnapshot();
+        return environmentSnapshot != null ? environmentSnapshot.getInvokationMethod() : InvocationMethod.NONE;
+    }
+
+    void deleteAttachmentFiles() {
+        for (FileAttachment attachment : mBugContext.getAttachments()) {
+            attachment.getFile().delete();
+        }
     }
 }
@@ -40,6 +40,8 @@ import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.Toast;
 
+import com.buglife.sdk.reporting.ReportSubmission;
+import com.buglife.sdk.reporting.ReportProgressCallback;
 import com.buglife.sdk.reporting.ReportSubmissionCallback;
 
 import java.util.ArrayList;
@@ -55,10 +57,14 @@ public class ReportActivity extends AppCompatActivity {
     private static final int SEND_MENU_ITEM = 1;
 
     private BugContext mBugContext;
+    private Report mReport;
+    private boolean mSubmitted;
     private AttachmentAdapter mAttachmentAdapter;
     private ListView mAttachmentListView;
     private @NonNull List<InputField> mInputFields;
     private @Nullable ProgressDialog mProgressDialog;
+    private @Nullable ReportSubmission mSubmission;
+    private @Nullable ReportSubmissionCallback mSubmissionCallback;
     private @NonNull ColorPalette mColorPalette;
 
     public static Intent newStartIntent(Context context, BugContext bugContext) {
@@ -82,6 +88,10 @@ public class ReportActivity extends AppCompatActivity {
         intent.setExtrasClassLoader(BugContext.class.getClassLoader());
         mBugContext = intent.getParcelableExtra(INTENT_KEY_BUG_CONTEXT);
 
+        // Attachments are written in the background while the user fills in the report
+        mReport = new Report(mBugContext);
+        Buglife.prepareReport(mReport);
+
         final List<FileAttachment> mediaAttachments = mBugContext.getMediaAttachments();
 
         mAttachmentAdapter = new AttachmentAdapter(mediaAttachments);
@@ -198,6 +208,8 @@ public class ReportActivity extends AppCompatActivity {
         if (requestCode == ScreenshotAnnotatorActivity.REQUEST_CODE) {
             if (resultCode == Activity.RESULT_OK) {
                 mAttachmentAdapter.notifyDataSetChanged();
+                // Only the annotated screenshot is encoded again
+                Buglife.prepareReport(mReport);
             }
         }
     }
@@ -213,25 +225,42 @@ public class ReportActivity extends AppCompatActivity {
     @Override
     public void finish() {
         super.finish();
+        if (!mSubmitted) {
+            Buglife.keepDraft(mBugContext);
+        }
         Buglife.onFinishReportFlow();
     }
 
     @Override
     protected void onDestroy() {
         dismissProgressDialog();
+        detachFromSubmission();
+        // Does nothing if the report was submitted
+        Buglife.discardReport(mReport);
         super.onDestroy();
     }
 
     private void submitReport() {
-        Report report = new Report(mBugContext);
+        // The report is written in the background; the activity is dismissed once it has been
+        // queued (or, with the manual retry policy, submitted)
+        showProgressDialog();
 
-        if (Buglife.getRetryPolicy() == RetryPolicy.MANUAL) {
-            showProgressDialog();
-        }
+        mSubmissionCallback = new ReportProgressCallback() {
+            @Override
+            public void onProgress(long bytesSent, long totalBytes) {
+                if (!isFinishing()) {
+                    updateProgressDialog(bytesSent, totalBytes);
+                }
+            }
 
-        Buglife.submitReport(report, new ReportSubmissionCallback() {
             @Override
             public void onSuccess() {
+                mSubmitted = true;
+
+                if (isFinishing()) {
+                    return;
+                }
+
                 dismissProgressDialog();
                 Toast.makeText(ReportActivity.this, R.string.thanks_for_filing_a_bug, Toast.LENGTH_SHORT).show();
                 dismiss();
@@ -239,6 +268,10 @@ public class ReportActivity extends AppCompatActivity {
 
             @Override
             public void onFailure(Error error, Throwable throwable) {
+                if (isFinishing()) {
+                    return;
+                }
+
                 dismissProgressDialog();
                 throwable.printStackTrace();
 
@@ -251,13 +284,58 @@ public class ReportActivity extends AppCompatActivity {
                         break;
                 }
             }
-        });
+        };
+        mSubmission = Buglife.submitReport(mReport, mSubmissionCallback);
+    }
+
+    /**
+     * Leaves the report to be submitted without the activity waiting for it.
+     */
+    private void sendInBackground() {
+        detachFromSubmission();
+        mSubmitted = true;
+        dismissProgressDialog();
+        Toast.makeText(this, R.string.thanks_for_filing_a_bug, Toast.LENGTH_SHORT).show();
+        dismiss();
+    }
+
+    private void detachFromSubmission() {
+        if (mSubmission != null && mSubmissionCallback != null) {
+            mSubmission.removeCallback(mSubmissionCallback);
+        }
+        mSubmission = null;
+        mSubmissionCallback = null;
     }
 
     private void showProgressDialog() {
         if (mProgressDialog == null) {
-            mProgressDialog = ProgressDialog.show(this, getString(R.string.sending_toast), "");
+            mProgressDialog = new ProgressDialog(this);
+            mProgressDialog.setTitle(getString(R.string.sending_toast));
+            mProgressDialog.setMessage("");
+            mProgressDialog.setCancelable(false);
+            // Indeterminate until the upload reports its size, which it only does when the
+            // report is submitted right away rather than queued
+            mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mProgressDialog.setIndeterminate(true);
+            mProgressDialog.setProgressNumberFormat(null);
+            mProgressDialog.setButton(DialogInterface.BUTTON_NEUTRAL, getString(R.string.send_in_background), new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    sendInBackground();
+                }
+            });
+            mProgressDialog.show();
+        }
+    }
+
+    private void updateProgressDialog(long bytesSent, long totalBytes) {
+        if (mProgressDialog == null || totalBytes <= 0) {
+            return;
         }
+
+        mProgressDialog.setIndeterminate(false);
+        mProgressDialog.setMax(100);
+        mProgressDialog.setProgress((int) (Math.min(bytesSent, totalBytes) * 100 / totalBytes));
     }
 
     private void dismissProgressDialog() {
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.media.MediaMetadataRetriever;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a report within a size budget, by degrading its attachments step by step until the
+ * estimated payload fits:
+ *
+ * 1. Screenshots are re-encoded as lossy WebP.
+ * 2. Screenshots are downscaled by half, repeatedly, down to a minimum dimension.
+ * 3. The log window is trimmed to the most recent messages, by half, repeatedly.
+ * 4. Videos are replaced by a strip of keyframes.
+ *
+ * Each step that was taken is recorded as a system attribute of the report. If the report is
+ * still over budget after the last step, it is submitted anyway.
+ */
+final class ReportBudget {
+    static final String ATTRIBUTE_BUDGET = "Payload budget";
+    static final String ATTRIBUTE_IMAGE_FORMAT = "Payload budget: screenshot format";
+    static final String ATTRIBUTE_IMAGE_SCALE = "Payload budget: screenshot scale";
+    static final String ATTRIBUTE_LOG_MESSAGES = "Payload budget: log messages";
+    static final String ATTRIBUTE_VIDEO = "Payload budget: video";
+
+    // Report fields, attributes & attachment metadata
+    private static final long ENVELOPE_BYTES = 4 * 1024;
+    private static final int WEBP_QUALITY = 80;
+    private static final int MIN_IMAGE_DIMENSION = 480;
+    private static final int MIN_LOG_MESSAGES = 50;
+    private static final int KEYFRAME_COUNT = 6;
+    private static final int KEYFRAME_HEIGHT = 320;
+
+    private final long mMaxBytes;
+    private final boolean mBase64;
+
+    /**
+     * @param maxBytes The maximum size of the report payload
+     * @param uploadMode The upload mode, which determines whether attachment data is
+     *                   base64-encoded in the payload
+     */
+    ReportBudget(long maxBytes, @NonNull UploadMode uploadMode) {
+        mMaxBytes = maxBytes;
+        mBase64 = uploadMode == UploadMode.JSON;
+    }
+
+    void apply(@NonNull BugContext bugContext) {
+        apply(bugContext.getAttachments(), bugContext.getAttributes());
+    }
+
+    /**
+     * Degrades attachments in place until the report fits the budget. Replaced attachment files
+     * are deleted.
+     */
+    void apply(@NonNull List<FileAttachment> attachments, @NonNull AttributeMap attributes) {
+        long originalSize = estimateSize(attachments);
+
+        if (originalSize <= mMaxBytes) {
+            return;
+        }
+
+        if (!fits(attachments)) {
+            reencodeImages(attachments, attributes);
+        }
+
+        if (!fits(attachments)) {
+            downscaleImages(attachments, attributes);
+        }
+
+        if (!fits(attachments)) {
+            trimLogs(attachments, attributes);
+        }
+
+        if (!fits(attachments)) {
+            stripVideos(attachments, attributes);
+        }
+
+        long size = estimateSize(attachments);
+        String value = mMaxBytes + " bytes; estimated " + originalSize + " -> " + size + " bytes";
+        putAttribute(attributes, ATTRIBUTE_BUDGET, size > mMaxBytes ? value + " (over budget)" : value);
+    }
+
+    /**
+     * @return The estimated size of a report payload with the given attachments
+     */
+    long estimateSize(@NonNull List<FileAttachment> attachments) {
+        long size = ENVELOPE_BYTES;
+
+        for (FileAttachment attachment : attachments) {
+            long length = attachment.getFile().length();
+            size += mBase64 ? (length + 2) / 3 * 4 : length;
+        }
+
+        return size;
+    }
+
+    private boolean fits(List<FileAttachment> attachments) {
+        return estimateSize(attachments) <= mMaxBytes;
+    }
+
+    private void reencodeImages(List<FileAttachment> attachments, AttributeMap attributes) {
+        boolean reencoded = false;
+
+        for (int i = 0; i < attachments.size(); i++) {
+            FileAttachment attachment = attachments.get(i);
+
+            if (!attachment.isImage() || attachment.getMimeType().equals(MimeTypes.WEBP)) {
+                continue;
+            }
+
+            Bitmap bitmap = BitmapFactory.decodeFile(attachment.getFile().getPath());
+
+            if (bitmap == null) {
+                continue;
+            }
+
+            // PNG screenshots with large flat areas can be smaller than their lossy equivalent
+            reencoded |= replaceImage(attachments, i, bitmap, true);
+        }
+
+        if (reencoded) {
+            putAttribute(attributes, ATTRIBUTE_IMAGE_FORMAT, "WebP, quality " + WEBP_QUALITY);
+        }
+    }
+
+    private void downscaleImages(List<FileAttachment> attachments, AttributeMap attributes) {
+        int scale = 1;
+
+        while (!fits(attachments)) {
+            boolean downscaled = false;
+
+            for (int i = 0; i < attachments.size(); i++) {
+                FileAttachment attachment = attachments.get(i);
+
+                if (!attachment.isImage()) {
+                    continue;
+                }
+
+                String path = attachment.getFile().getPath();
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeFile(path, options);
+
+                if (Math.max(options.outWidth, options.outHeight) / 2 < MIN_IMAGE_DIMENSION) {
+                    continue;
+                }
+
+                options = new BitmapFactory.Options();
+                options.inSampleSize = 2;
+                Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+
+                if (bitmap != null) {
+                    downscaled |= replaceImage(attachments, i, bitmap, false);
+                }
+            }
+
+            if (!downscaled) {
+                break;
+            }
+
+            scale *= 2;
+        }
+
+        if (scale > 1) {
+            putAttribute(attributes, ATTRIBUTE_IMAGE_SCALE, "1/" + scale);
+        }
+    }
+
+    private void trimLogs(List<FileAttachment> attachments, AttributeMap attributes) {
+        for (int i = 0; i < attachments.size(); i++) {
+            FileAttachment attachment = attachments.get(i);
+
+            if (!(attachment instanceof LogFileAttachment)) {
+                continue;
+            }
+
+            try {
+                JSONArray messages = new JSONArray(IOUtils.readStringFromFile(attachment.getFile()));
+                int count = messages.length();
+                int kept = count;
+
+                while (!fits(attachments) && kept > MIN_LOG_MESSAGES) {
+                    kept = Math.max(kept / 2, MIN_LOG_MESSAGES);
+
+                    // Messages are in chronological order; keep the most recent ones
+                    JSONArray trimmedMessages = new JSONArray();
+                    for (int j = count - kept; j < count; j++) {
+                        trimmedMessages.put(messages.get(j));
+                    }
+
+                    File trimmedFile = newSiblingFile(attachments.get(i).getFile(), "trimmed", ".json");
+                    IOUtils.writeStringToFile(trimmedMessages.toString(), trimmedFile);
+                    attachments.get(i).getFile().delete();
+                    attachments.set(i, new LogFileAttachment(trimmedFile));
+                }
+
+                if (kept < count) {
+                    putAttribute(attributes, ATTRIBUTE_LOG_MESSAGES, "Most recent " + kept + " of " + count);
+                }
+            } catch (IOException e) {
+                Log.e("Error trimming logs", e);
+            } catch (JSONException e) {
+                Log.e("Error trimming logs", e);
+            }
+        }
+    }
+
+    private void stripVideos(List<FileAttachment> attachments, AttributeMap attributes) {
+        for (int i = 0; i < attachments.size() && !fits(attachments); i++) {
+            FileAttachment attachment = attachments.get(i);
+
+            if (!attachment.isVideo()) {
+                continue;
+            }
+
+            List<Bitmap> keyframes = getKeyframes(attachment.getFile());
+
+            if (keyframes.isEmpty()) {
+                continue;
+            }
+
+            int width = 0;
+            for (Bitmap keyframe : keyframes) {
+                width += keyframe.getWidth() * KEYFRAME_HEIGHT / keyframe.getHeight();
+            }
+
+            Bitmap strip = Bitmap.createBitmap(width, KEYFRAME_HEIGHT, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(strip);
+            int left = 0;
+
+            for (Bitmap keyframe : keyframes) {
+                int frameWidth = keyframe.getWidth() * KEYFRAME_HEIGHT / keyframe.getHeight();
+                canvas.drawBitmap(keyframe, null, new Rect(left, 0, left + frameWidth, KEYFRAME_HEIGHT), null);
+                keyframe.recycle();
+                left += frameWidth;
+            }
+
+            if (replaceImage(attachments, i, strip, false)) {
+                putAttribute(attributes, ATTRIBUTE_VIDEO, "Keyframe strip (" + keyframes.size() + " frames)");
+            }
+        }
+    }
+
+    /**
+     * @return Keyframes evenly spaced through the video
+     */
+    private static List<Bitmap> getKeyframes(File video) {
+        List<Bitmap> keyframes = new ArrayList<>();
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+
+        try {
+            retriever.setDataSource(video.getPath());
+            String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            long durationUs = duration == null ? 0 : Long.parseLong(duration) * 1000;
+
+            for (int i = 0; i < KEYFRAME_COUNT; i++) {
+                long timeUs = durationUs * (2 * i + 1) / (2 * KEYFRAME_COUNT);
+                Bitmap keyframe = retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+
+                if (keyframe != null) {
+                    keyframes.add(keyframe);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e("Error extracting keyframes from " + video, e);
+        } finally {
+            retriever.release();
+        }
+
+        return keyframes;
+    }
+
+    /**
+     * Replaces an attachment with the bitmap encoded as WebP, and recycles the bitmap.
+     * @param onlyIfSmaller If true, the attachment is only replaced if the encoded bitmap is
+     *                      smaller than the attachment
+     * @return true if the attachment was replaced
+     */
+    private static boolean replaceImage(List<FileAttachment> attachments, int index, Bitmap bitmap, boolean onlyIfSmaller) {
+        File file = attachments.get(index).getFile();
+        File webpFile = newSiblingFile(file, null, ".webp");
+
+        try {
+            FileOutputStream output = new FileOutputStream(webpFile);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.WEBP, WEBP_QUALITY, output);
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            Log.e("Error encoding " + webpFile, e);
+            webpFile.delete();
+            return false;
+        } finally {
+            bitmap.recycle();
+        }
+
+        if (onlyIfSmaller && webpFile.length() >= file.length()) {
+            webpFile.delete();
+            return false;
+        }
+
+        file.delete();
+        attachments.set(index, new FileAttachment(webpFile, MimeTypes.WEBP));
+        return true;
+    }
+
+    /**
+     * @return A file next to the given one, with the same base name but the given suffix, that
+     * doesn't exist yet
+     */
+    private static File newSiblingFile(File file, @Nullable String qualifier, String extension) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+
+        if (qualifier != null && !baseName.endsWith("_" + qualifier)) {
+            baseName += "_" + qualifier;
+        }
+
+        File sibling = new File(file.getParentFile(), baseName + extension);
+        for (int i = 1; sibling.exists(); i++) {
+            sibling = new File(file.getParentFile(), baseName + "_" + i + extension);
+        }
+        return sibling;
+    }
+
+    private static void putAttribute(AttributeMap attributes, String name, String value) {
+        attributes.put(name, new Attribute(value, Attribute.ValueType.STRING, Attribute.FLAG_SYSTEM));
+    }
+}
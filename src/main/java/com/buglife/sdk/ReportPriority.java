@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.buglife.sdk;
+
+/**
+ * The priority of bug reports in the submission queue. Higher-priority reports are always
+ * submitted first, and each priority may only take up some of the concurrent uploads, so that a
+ * backlog of low-priority reports can't hold up urgent ones.
+ *
+ * Reports invoked by a user gesture (shaking the device, taking a screenshot or tapping the bug
+ * button) are boosted one priority above the one set with {@link Buglife#setReportPriority},
+ * and reports submitted with
+ * {@link RetryPolicy#MANUAL} are always submitted with {@link #HIGH} priority, since the user
+ * is waiting for them.
+ * @warning This is an experimental API, and is subject to change!
+ */
+public enum ReportPriority {
+    /**
+     * For bulk reports, which are submitted once nothing else is waiting. Attachments deferred
+     * by {@link Buglife#setDeferredAttachmentThreshold} are uploaded with this priority.
+     */
+    LOW(-1),
+
+    /**
+     * The default priority.
+     */
+    NORMAL(0),
+
+    /**
+     * For reports that someone is waiting for.
+     */
+    HIGH(1);
+
+    private final int mValue;
+
+    ReportPriority(int value) {
+        mValue = value;
+    }
+
+    public int getValue() {
+        return mValue;
+    }
+
+    /**
+     * @return The priority with the given value, or {@link #NORMAL} if there is none
+     */
+    public static ReportPriority valueOf(int value) {
+        for (ReportPriority priority : values()) {
+            if (priority.mValue == value) {
+                return priority;
+            }
+        }
+        return NORMAL;
+    }
+
+    /**
+     * @return The next priority up, or this one if it is the highest
+     */
+    ReportPriority boost() {
+        return this == LOW ? NORMAL : HIGH;
+    }
+}
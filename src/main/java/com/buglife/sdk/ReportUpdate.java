@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.buglife.sdk.reporting.BlobIndex;
+import com.buglife.sdk.reporting.PendingReport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A follow-up to a report that has already been submitted, carrying only what is new: extra
+ * attachments, additional or corrected attributes, and a corrected summary.
+ *
+ * Updates are append-only; the server keeps the original report as it was, and records each
+ * update alongside it. Attachments that were already uploaded are referenced by digest when
+ * attachment deduplication is enabled, so they are not sent again.
+ *
+ * The server-side ID of a report is passed to the listener set with
+ * {@link Buglife#setOnReportSubmittedListener}.
+ *
+ * @warning This is an experimental API, and is subject to change!
+ */
+public final class ReportUpdate {
+    @NonNull private final String mReportId;
+    private final List<FileAttachment> mAttachments = new ArrayList<>();
+    private final AttributeMap mAttributes = new AttributeMap();
+    @Nullable private String mSummary;
+    @Nullable private ApiIdentity mApiIdentity;
+
+    /**
+     * @param reportId The server-side ID of the report to update
+     */
+    public ReportUpdate(@NonNull String reportId) {
+        mReportId = reportId;
+    }
+
+    @NonNull public String getReportId() {
+        return mReportId;
+    }
+
+    /**
+     * Adds an attachment to the report. The attachment file is left in place.
+     */
+    public ReportUpdate addAttachment(@NonNull FileAttachment attachment) {
+        mAttachments.add(attachment);
+        return this;
+    }
+
+    /**
+     * Adds an attribute to the report, or a new value for an existing one.
+     */
+    public ReportUpdate putAttribute(@NonNull String key, @Nullable String value) {
+        mAttributes.put(key, new Attribute(value, Attribute.ValueType.STRING, Attribute.FLAG_CUSTOM));
+        return this;
+    }
+
+    /**
+     * Sets a corrected summary (i.e. "what happened") for the report.
+     */
+    public ReportUpdate setSummary(@Nullable String summary) {
+        mSummary = summary;
+        return this;
+    }
+
+    void setApiIdentity(@NonNull ApiIdentity apiIdentity) {
+        mApiIdentity = apiIdentity;
+    }
+
+    /**
+     * Serializes the update to disk, as JSON or (in {@link UploadMode#CBOR} mode) CBOR.
+     * Attachments are always carried inline.
+     * @param blobIndex If non-null, attachments that have already been uploaded are referenced
+     *                  by digest rather than sent again
+     */
+    void writeTo(@NonNull PendingReport pendingUpdate, @NonNull UploadMode uploadMode, @Nullable BlobIndex blobIndex) throws IOException {
+        File file = pendingUpdate.getReportFile();
+        File tempFile = new File(file.getPath() + ".tmp");
+        AttachmentWriter attachmentWriter = new AttachmentWriter().setBlobIndex(blobIndex);
+
+        OutputStream output = new FileOutputStream(tempFile);
+        TokenWriter writer = uploadMode == UploadMode.CBOR ? new CborStreamWriter(output) : new JsonStreamWriter(output);
+        try {
+            writeJSON(writer, attachmentWriter);
+            writer.close();
+            pendingUpdate.setUploadedBlobs(attachmentWriter.getUploadedBlobs());
+        } catch (IOException e) {
+            IOUtils.closeQuietly(writer);
+            tempFile.delete();
+            pendingUpdate.delete();
+            throw e;
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            pendingUpdate.delete();
+            throw new IOException("Unable to move report update to " + file);
+        }
+    }
+
+    private void writeJSON(TokenWriter writer, AttachmentWriter attachmentWriter) throws IOException {
+        writer.beginObject();
+        writer.name("update").beginObject();
+
+        if (mSummary != null) {
+            writer.name("what_happened").value(mSummary);
+        }
+
+        if (!mAttachments.isEmpty()) {
+            writer.name("attachments");
+            attachmentWriter.writeAttachments(writer, mAttachments);
+        }
+
+        boolean hasAttributes = false;
+
+        for (Map.Entry<String, Attribute> attribute : mAttributes.entrySet()) {
+            Attribute attr = attribute.getValue();
+
+            if (!hasAttributes) {
+                writer.name("attributes").beginObject();
+                hasAttributes = true;
+            }
+
+            writer.name(attribute.getKey()).beginObject();
+            writer.name("attribute_type").value(attr.getValueType().toString());
+            writer.name("attribute_value").value(attr.getValue());
+            writer.name("flag").value(attr.getFlags());
+            writer.endObject();
+        }
+
+        if (hasAttributes) {
+            writer.endObject();
+        }
+
+        writer.endObject();
+
+        if (mApiIdentity instanceof ApiIdentity.ApiKey) {
+            writer.name("api_key").value(mApiIdentity.getId());
+        } else if (mApiIdentity instanceof ApiIdentity.EmailAddress) {
+            writer.name("email").value(mApiIdentity.getId());
+        }
+
+        writer.endObject();
+    }
+}
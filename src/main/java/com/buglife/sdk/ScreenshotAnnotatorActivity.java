@@ -71,6 +71,7 @@ public class ScreenshotAnnotatorActivity extends AppCompatActivity {
     // The BugContext, which is required if & only if this is the initial activity in the
     // reporter flow.
     private @Nullable BugContext mBugContext;
+    private boolean mContinuedToReportActivity;
     private View mAnnotationToolbar;
     private ImageButton mArrowTool;
     private ImageButton mLoupeTool;
@@ -228,6 +229,7 @@ public class ScreenshotAnnotatorActivity extends AppCompatActivity {
     private void continueToReportActivity() {
         saveAnnotatedBitmap();
         mBugContext.addAttachment(mAttachment);
+        mContinuedToReportActivity = true;
 
         Context context = this;
         Intent intent = new Intent(context, ReportActivity.class);
@@ -305,6 +307,11 @@ public class ScreenshotAnnotatorActivity extends AppCompatActivity {
     }
 
     private void cancelReporterFlow() {
+        // Once the report activity has been shown, it has handed back the latest draft
+        if (!mContinuedToReportActivity) {
+            mBugContext.addAttachment(mAttachment);
+            Buglife.keepDraft(mBugContext);
+        }
         Buglife.onFinishReportFlow();
         finish();
     }
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * Writes a document of objects, arrays and values to an output stream, one token at a time,
+ * in a particular wire format.
+ *
+ * Null values are skipped along with their names.
+ */
+public interface TokenWriter extends Closeable, Flushable {
+    TokenWriter beginObject() throws IOException;
+
+    TokenWriter endObject() throws IOException;
+
+    TokenWriter beginArray() throws IOException;
+
+    TokenWriter endArray() throws IOException;
+
+    TokenWriter name(@NonNull String name) throws IOException;
+
+    TokenWriter value(@Nullable String value) throws IOException;
+
+    TokenWriter value(boolean value) throws IOException;
+
+    TokenWriter value(long value) throws IOException;
+
+    TokenWriter value(double value) throws IOException;
+
+    TokenWriter nullValue() throws IOException;
+
+    /**
+     * Writes the contents of a file as binary data, streaming it from disk.
+     */
+    TokenWriter binaryValue(@NonNull File file) throws IOException;
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+/**
+ * The encoding used when uploading bug reports and their attachments.
+ * @warning This is an experimental API, and is subject to change!
+ */
+public enum UploadMode {
+    /**
+     * Uploads the report as a single JSON payload, with each attachment base64-encoded inline.
+     * This is the default.
+     */
+    JSON,
+
+    /**
+     * Uploads the report as a multipart/form-data request; report metadata is sent as a JSON
+     * part, and each attachment is sent as a raw binary part streamed from disk. This avoids the
+     * ~33% size overhead of base64, as well as the CPU cost of encoding.
+     */
+    MULTIPART,
+
+    /**
+     * Uploads the report as a single CBOR (RFC 7049) payload, with each attachment inline as a
+     * byte string. Like multipart uploads, this avoids the overhead of base64, and the report
+     * stays a single self-contained file.
+     */
+    CBOR
+}
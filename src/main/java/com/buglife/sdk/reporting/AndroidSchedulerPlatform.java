@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.Context;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.RequiresApi;
+
+import com.buglife.sdk.Log;
+
+import java.io.File;
+
+/**
+ * Keeps the files of the {@link SubmissionScheduler} in the app's files directory, and wakes it
+ * up through {@link SubmitReportService}, or, below Lollipop and when asked to, through
+ * {@link SubmitReportLegacyService}.
+ */
+final class AndroidSchedulerPlatform implements SchedulerPlatform {
+    // The ID of the job that wakes the scheduler up; reports used to be given a job each
+    private static final int JOB_ID = 0x4275676c;
+    // The ID of the job that wakes the scheduler up once deferred updates can be sent
+    private static final int CONSTRAINED_JOB_ID = JOB_ID + 1;
+
+    @NonNull private final Context mContext;
+    private volatile boolean mUseLegacyService = Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP;
+
+    AndroidSchedulerPlatform(@NonNull Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Sets whether the scheduler is woken up by {@link SubmitReportLegacyService} rather than by
+     * {@link SubmitReportService}. The legacy service is always used below Lollipop.
+     */
+    void setUseLegacyService(boolean useLegacyService) {
+        mUseLegacyService = useLegacyService || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * Reports queued in the single-file queue of earlier versions of the SDK are moved into the
+     * journal the first time.
+     */
+    @NonNull @Override public ReportJournal openJournal() {
+        ReportJournal journal = new ReportJournal(new File(mContext.getFilesDir(), "report_journal"));
+        SubmissionScheduler.migrateLegacyQueue(new File(mContext.getFilesDir(), "reports"), getPendingReportsDir(), journal);
+        return journal;
+    }
+
+    @NonNull @Override public File getPendingReportsDir() {
+        File dir = new File(mContext.getFilesDir(), "pending_reports");
+        dir.mkdirs();
+        return dir;
+    }
+
+    @NonNull @Override public File getDeferredUpdatesDir() {
+        File dir = new File(mContext.getFilesDir(), "deferred_updates");
+        dir.mkdirs();
+        return dir;
+    }
+
+    @NonNull @Override public BlobIndex getBlobIndex() {
+        return BlobIndex.getInstance(mContext);
+    }
+
+    @Override public boolean isSatisfied(@NonNull UploadConstraints constraints) {
+        return constraints.isSatisfied(mContext);
+    }
+
+    @Override public void scheduleWakeUp(long delayMillis) {
+        if (useJobScheduler()) {
+            scheduleJob(delayMillis);
+        } else if (delayMillis == 0) {
+            // The legacy service keeps the process alive until the scheduler is idle. Later
+            // attempts rely on the process staying alive, or being started again.
+            SubmitReportLegacyService.start(mContext);
+        }
+    }
+
+    @Override public void cancelWakeUp() {
+        if (useJobScheduler()) {
+            cancelJob(JOB_ID);
+        }
+    }
+
+    /**
+     * Schedules a job that wakes the scheduler up once the device meets the constraints. The job
+     * replaces any earlier one, since JobScheduler updates jobs with the same ID.
+     */
+    @Override public boolean scheduleConstrainedWakeUp(@NonNull UploadConstraints constraints) {
+        if (!useJobScheduler()) {
+            return false;
+        }
+
+        JobScheduler jobScheduler = (JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+
+        if (jobScheduler == null) {
+            return false;
+        }
+
+        int networkType = constraints.requiresUnmeteredNetwork() ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY;
+        JobInfo info = new JobInfo.Builder(CONSTRAINED_JOB_ID, SubmitReportService.getComponentName(mContext))
+                .setRequiredNetworkType(networkType)
+                .setRequiresCharging(constraints.requiresCharging())
+                .setRequiresDeviceIdle(constraints.requiresDeviceIdle())
+                .setPersisted(true)
+                .build();
+
+        jobScheduler.schedule(info);
+        return true;
+    }
+
+    @Override public void cancelConstrainedWakeUp() {
+        if (useJobScheduler()) {
+            cancelJob(CONSTRAINED_JOB_ID);
+        }
+    }
+
+    private boolean useJobScheduler() {
+        return !mUseLegacyService && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void cancelJob(int jobId) {
+        JobScheduler jobScheduler = (JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+
+        if (jobScheduler != null) {
+            jobScheduler.cancel(jobId);
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void scheduleJob(long delayMillis) {
+        JobScheduler jobScheduler = (JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+
+        if (jobScheduler == null) {
+            Log.e("JobScheduler unavailable; Falling back to legacy report submission.");
+            mUseLegacyService = true;
+            if (delayMillis == 0) {
+                SubmitReportLegacyService.start(mContext);
+            }
+            return;
+        }
+
+        JobInfo info = new JobInfo.Builder(JOB_ID, SubmitReportService.getComponentName(mContext))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(delayMillis)
+                .setPersisted(true)
+                .build();
+
+        jobScheduler.schedule(info);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.buglife.sdk.IOUtils;
+import com.buglife.sdk.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local index of the attachment blobs that have already been uploaded, keyed by the SHA-256
+ * digest of their contents.
+ *
+ * Attachments are uploaded with a "sha256" field alongside their data, and the server stores
+ * them by digest. When a later report carries an attachment whose digest is in this index, the
+ * report refers to it with a "blob_sha256" field instead of carrying the data again. The server
+ * is expected to retain blobs for at least {@link #DEFAULT_MAX_AGE_MS}; entries older than that
+ * are dropped, so that the data is sent again.
+ *
+ * Since a queued report can outlive that window, it keeps the data of the blobs it refers to. If
+ * the server rejects it for referring to a blob that it no longer has, the report is made to
+ * carry the data after all, and the blob is removed from this index.
+ */
+public final class BlobIndex {
+    static final long DEFAULT_MAX_AGE_MS = TimeUnit.DAYS.toMillis(7);
+    private static final int MAX_ENTRIES = 512;
+    private static final String INDEX_FILENAME = "uploaded_blobs";
+
+    private static BlobIndex sInstance;
+
+    @NonNull private final File mFile;
+    private final long mMaxAgeMs;
+    // Digest -> upload time, in insertion order
+    @NonNull private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>();
+
+    public static synchronized BlobIndex getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new BlobIndex(new File(context.getApplicationContext().getFilesDir(), INDEX_FILENAME));
+        }
+
+        return sInstance;
+    }
+
+    public BlobIndex(@NonNull File file) {
+        this(file, DEFAULT_MAX_AGE_MS);
+    }
+
+    BlobIndex(@NonNull File file, long maxAgeMs) {
+        mFile = file;
+        mMaxAgeMs = maxAgeMs;
+        load();
+    }
+
+    /**
+     * @return true if a blob with the given digest was uploaded recently enough to be referenced
+     */
+    public synchronized boolean contains(@NonNull String sha256) {
+        Long uploadedAt = mEntries.get(sha256);
+        return uploadedAt != null && !isExpired(uploadedAt, System.currentTimeMillis());
+    }
+
+    /**
+     * Records the blobs carried by a report that has been submitted successfully.
+     */
+    public void recordUploaded(@NonNull PendingReport pendingReport) {
+        addAll(pendingReport.getUploadedBlobs());
+    }
+
+    /**
+     * Forgets blobs that the server turned out to no longer have, so that they are sent again.
+     */
+    public synchronized void removeAll(@NonNull Collection<String> digests) {
+        if (mEntries.keySet().removeAll(digests)) {
+            save();
+        }
+    }
+
+    synchronized void addAll(@NonNull Collection<String> digests) {
+        if (digests.isEmpty()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (String digest : digests) {
+            // Re-insert, so that the most recently uploaded blobs are the last to be evicted
+            mEntries.remove(digest);
+            mEntries.put(digest, now);
+        }
+
+        prune(now);
+        save();
+    }
+
+    private boolean isExpired(long uploadedAt, long now) {
+        return now - uploadedAt > mMaxAgeMs;
+    }
+
+    private void prune(long now) {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        int excess = mEntries.size() - MAX_ENTRIES;
+
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (excess > 0) {
+                iterator.remove();
+                excess--;
+            } else if (isExpired(entry.getValue(), now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length == 2) {
+                    mEntries.put(fields[0], Long.parseLong(fields[1]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.e("Error reading uploaded blob index; attachments will be re-sent", e);
+            mEntries.clear();
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+
+        prune(System.currentTimeMillis());
+    }
+
+    private void save() {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tempFile));
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(entry.getKey() + " " + entry.getValue());
+                writer.newLine();
+            }
+            writer.close();
+
+            if (!tempFile.renameTo(mFile)) {
+                throw new IOException("Unable to move blob index to " + mFile);
+            }
+        } catch (IOException e) {
+            Log.e("Error writing uploaded blob index", e);
+            tempFile.delete();
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+}
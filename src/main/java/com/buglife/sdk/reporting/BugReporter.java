@@ -18,7 +18,31 @@
 package com.buglife.sdk.reporting;
 
 import com.buglife.sdk.Report;
+import com.buglife.sdk.ReportUpdate;
 
 public interface BugReporter {
-    void report(Report report, ReportSubmissionCallback callback);
+    /**
+     * Starts serializing the report in the background, ahead of {@link #report}. May be called
+     * again after attachments have been modified, to bring the serialized report up to date.
+     */
+    void prepare(Report report);
+
+    /**
+     * Discards the work done by {@link #prepare} for a report that won't be submitted. Does
+     * nothing if the report has already been submitted.
+     */
+    void discard(Report report);
+
+    /**
+     * Writes and queues the report asynchronously.
+     * @param callback Called on the main thread
+     * @return The submission of the report, which can be cancelled
+     */
+    ReportSubmission report(Report report, ReportSubmissionCallback callback);
+
+    /**
+     * Writes and queues a follow-up update to a submitted report asynchronously.
+     * @param callback Called on the main thread
+     */
+    void update(ReportUpdate update, ReportSubmissionCallback callback);
 }
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.support.annotation.NonNull;
+
+import com.buglife.sdk.IOUtils;
+import com.buglife.sdk.Log;
+import com.buglife.sdk.NetworkManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * A large attachment that is uploaded separately from its report, in fixed-size chunks, so
+ * that an interrupted upload can be resumed rather than restarted.
+ *
+ * The attachment file is stored in the pending report's uploads directory, named after its
+ * upload ID, and the report refers to it with an "upload_id" field. Each chunk is sent as
+ * {@code PUT <uploads url>/<upload id>} with a {@code Content-Range: bytes start-end/total}
+ * header, and the server responds with the number of bytes it has durably committed, as
+ * {@code {"committed": n}}. The committed offset is persisted in a sibling ".offset" file after
+ * every acknowledged chunk, so that retries (including after process death) resume from there.
+ * If the server has committed a different number of bytes than the client expects, it
+ * responds with 409 and its own committed offset, and the client resumes from that instead.
+ */
+public final class ChunkedUpload {
+    static final String UPLOADS_URL = NetworkManager.BUGLIFE_URL + "/api/v1/uploads";
+    static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    private static final MediaType MEDIA_TYPE_OCTET_STREAM = MediaType.parse("application/octet-stream");
+    private static final String OFFSET_FILE_SUFFIX = ".offset";
+    private static final int HTTP_CONFLICT = 409;
+
+    @NonNull private final File mFile;
+    private long mCommittedOffset;
+
+    ChunkedUpload(@NonNull File file) {
+        mFile = file;
+        mCommittedOffset = readCommittedOffset();
+    }
+
+    /**
+     * @return The chunked uploads belonging to a pending report, in order of their upload IDs
+     */
+    @NonNull static List<ChunkedUpload> forReport(@NonNull PendingReport pendingReport) {
+        List<ChunkedUpload> uploads = new ArrayList<>();
+        File[] files = pendingReport.getUploadsDir().listFiles();
+
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (!file.getName().endsWith(OFFSET_FILE_SUFFIX) && !file.getName().endsWith(".tmp")) {
+                    uploads.add(new ChunkedUpload(file));
+                }
+            }
+        }
+
+        return uploads;
+    }
+
+    @NonNull public String getUploadId() {
+        return mFile.getName();
+    }
+
+    public long getCommittedOffset() {
+        return mCommittedOffset;
+    }
+
+    public boolean isComplete() {
+        return mCommittedOffset >= mFile.length();
+    }
+
+    /**
+     * Synchronously uploads the remaining chunks, starting from the last committed offset.
+     */
+    void upload(@NonNull NetworkManager networkManager) throws IOException {
+        upload(networkManager, UPLOADS_URL, DEFAULT_CHUNK_SIZE);
+    }
+
+    void upload(@NonNull NetworkManager networkManager, @NonNull String uploadsUrl, int chunkSize) throws IOException {
+        long total = mFile.length();
+        String url = uploadsUrl + "/" + getUploadId();
+
+        while (mCommittedOffset < total) {
+            long start = mCommittedOffset;
+            long length = Math.min(chunkSize, total - start);
+            String contentRange = String.format(Locale.US, "bytes %d-%d/%d", start, start + length - 1, total);
+
+            UploadMetrics uploadMetrics = new UploadMetrics();
+            Request request = new Request.Builder()
+                    .url(url)
+                    .header("Content-Range", contentRange)
+                    .put(new ProgressRequestBody(new FileSegmentRequestBody(mFile, start, length), uploadMetrics, null))
+                    .tag(UploadMetrics.class, uploadMetrics)
+                    .build();
+
+            long committed;
+            Response response = networkManager.executeRequest(request);
+            SubmitReportTask.recordUpload(request);
+            try {
+                if (!response.isSuccessful() && response.code() != HTTP_CONFLICT) {
+                    throw new IOException("Chunk upload failed with HTTP " + response.code());
+                }
+                committed = parseCommittedOffset(response);
+            } finally {
+                response.close();
+            }
+
+            if (committed < 0 || committed > total) {
+                throw new IOException("Server reported an invalid committed offset: " + committed);
+            }
+
+            if (response.isSuccessful() && committed <= start) {
+                throw new IOException("Server did not commit chunk " + contentRange);
+            }
+
+            setCommittedOffset(committed);
+        }
+    }
+
+    void delete() {
+        getOffsetFile().delete();
+        mFile.delete();
+    }
+
+    private static long parseCommittedOffset(Response response) throws IOException {
+        try {
+            return new JSONObject(response.body().string()).getLong("committed");
+        } catch (JSONException e) {
+            throw new IOException("Unable to parse chunk upload response", e);
+        }
+    }
+
+    private File getOffsetFile() {
+        return new File(mFile.getPath() + OFFSET_FILE_SUFFIX);
+    }
+
+    private long readCommittedOffset() {
+        File offsetFile = getOffsetFile();
+
+        if (!offsetFile.exists()) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(IOUtils.readStringFromFile(offsetFile).trim());
+        } catch (IOException | NumberFormatException e) {
+            Log.e("Error reading committed offset for upload " + getUploadId() + "; starting over", e);
+            return 0;
+        }
+    }
+
+    private void setCommittedOffset(long offset) throws IOException {
+        File offsetFile = getOffsetFile();
+        File tempFile = new File(offsetFile.getPath() + ".tmp");
+        OutputStream output = new FileOutputStream(tempFile);
+
+        try {
+            output.write(Long.toString(offset).getBytes("utf-8"));
+        } finally {
+            output.close();
+        }
+
+        if (!tempFile.renameTo(offsetFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to write committed offset to " + offsetFile);
+        }
+
+        mCommittedOffset = offset;
+    }
+
+    /**
+     * Streams a range of bytes from a file.
+     */
+    private static final class FileSegmentRequestBody extends RequestBody {
+        private final File mFile;
+        private final long mOffset;
+        private final long mLength;
+
+        FileSegmentRequestBody(File file, long offset, long length) {
+            mFile = file;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override public MediaType contentType() {
+            return MEDIA_TYPE_OCTET_STREAM;
+        }
+
+        @Override public long contentLength() {
+            return mLength;
+        }
+
+        @Override public void writeTo(BufferedSink sink) throws IOException {
+            InputStream input = new FileInputStream(mFile);
+            try {
+                long skipped = 0;
+                while (skipped < mOffset) {
+                    long count = input.skip(mOffset - skipped);
+                    if (count <= 0) {
+                        throw new IOException("Unable to seek to offset " + mOffset + " of " + mFile);
+                    }
+                    skipped += count;
+                }
+
+                Source source = Okio.source(input);
+                sink.write(source, mLength);
+            } finally {
+                IOUtils.closeQuietly(input);
+            }
+        }
+    }
+}
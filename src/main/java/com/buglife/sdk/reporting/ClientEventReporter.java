@@ -20,14 +20,13 @@ package com.buglife.sdk.reporting;
 
 import com.buglife.sdk.ApiIdentity;
 import com.buglife.sdk.Buglife;
+import com.buglife.sdk.JsonStreamWriter;
 import com.buglife.sdk.Log;
 import com.buglife.sdk.NetworkManager;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import android.content.Context;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import okhttp3.Call;
@@ -58,44 +57,31 @@ public final class ClientEventReporter {
 
     public void reportClientEvent(final String eventName, ApiIdentity identity)
     {
-        JSONObject params = new JSONObject();
-        DeviceSnapshot deviceSnapshot = new DeviceSnapshot(mContext);
-        SessionSnapshot sessionSnapshot = new SessionSnapshot(mContext, Buglife.getUserEmail(), Buglife.getUserIdentifier());
-        try {
-            JSONObject clientEventParams = new JSONObject();
-            if (deviceSnapshot.getDeviceIdentifier() != null) {
-                clientEventParams.put("device_identifier", deviceSnapshot.getDeviceIdentifier());
-            }
-            clientEventParams.put("sdk_version", sessionSnapshot.getSDKVersion());
-            clientEventParams.put("sdk_name", sessionSnapshot.getSDKName());
-            clientEventParams.put("event_name", eventName);
-            clientEventParams.put("bundle_short_version", sessionSnapshot.getBundleShortVersion());
-            clientEventParams.put("bundle_version", sessionSnapshot.getBundleVersion());
-            if (sessionSnapshot.getUserEmail() != null) {
-                clientEventParams.put("user_email", sessionSnapshot.getUserEmail());
-            }
-            if (sessionSnapshot.getUserIdentifier() != null) {
-                clientEventParams.put("user_identifier", sessionSnapshot.getUserIdentifier());
-            }
+        EnvelopeCache envelopeCache = EnvelopeCache.getInstance();
+        DeviceSnapshot deviceSnapshot = envelopeCache.getDeviceSnapshot(mContext);
+        SessionSnapshot sessionSnapshot = envelopeCache.getSessionSnapshot(mContext, Buglife.getUserEmail(), Buglife.getUserIdentifier());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
 
-            JSONObject appParams = new JSONObject();
-            appParams.put("bundle_identifier", sessionSnapshot.getBundleIdentifier());
-            appParams.put("platform", sessionSnapshot.getPlatform());
-            appParams.put("bundle_name", sessionSnapshot.getBundleName());
-            params.put("app", appParams);
-            params.put("client_event", clientEventParams);
+        try {
+            JsonStreamWriter writer = new JsonStreamWriter(output);
+            writer.beginObject();
+            writer.name("app").rawValue(envelopeCache.getClientEventApp(sessionSnapshot));
+            writer.name("client_event").beginObject();
+            writer.rawMembers(envelopeCache.getClientEventFields(sessionSnapshot, deviceSnapshot));
+            writer.name("event_name").value(eventName);
+            writer.endObject();
             String key = identity instanceof ApiIdentity.EmailAddress ? "email" : "api_key";
-            params.put(key, identity.getId());
-
-        }
-        catch (JSONException e) {
-            //figure out what to do here
-            e.printStackTrace();
+            writer.name(key).value(identity.getId());
+            writer.endObject();
+            writer.close();
+        } catch (IOException e) {
+            Log.e("Error serializing client event", e);
+            return;
         }
 
         final Request request = new Request.Builder()
                 .url(BUGLIFE_CLIENT_EVENTS_URL)
-                .post(RequestBody.create(MEDIA_TYPE_JSON, params.toString()))
+                .post(RequestBody.create(MEDIA_TYPE_JSON, output.toByteArray()))
                 .build();
 
         NetworkManager.getInstance().executeRequestAsync(request, new Callback() {
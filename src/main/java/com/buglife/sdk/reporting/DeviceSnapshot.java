@@ -23,6 +23,9 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.provider.Settings;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.util.Arrays;
 
 public final class DeviceSnapshot implements Parcelable {
     private final String mOSVersion;
@@ -39,6 +42,14 @@ public final class DeviceSnapshot implements Parcelable {
         mDeviceIdentifier = Settings.Secure.getString(context.getContentResolver(), Settings.Secure.ANDROID_ID);
     }
 
+    DeviceSnapshot(String osVersion, String deviceManufacturer, String deviceModel, String deviceBrand, @Nullable String deviceIdentifier) {
+        mOSVersion = osVersion;
+        mDeviceManufacturer = deviceManufacturer;
+        mDeviceModel = deviceModel;
+        mDeviceBrand = deviceBrand;
+        mDeviceIdentifier = deviceIdentifier;
+    }
+
     public String getOSVersion() {
         return mOSVersion;
     }
@@ -60,6 +71,28 @@ public final class DeviceSnapshot implements Parcelable {
         return mDeviceIdentifier;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DeviceSnapshot)) {
+            return false;
+        }
+
+        DeviceSnapshot that = (DeviceSnapshot) o;
+        return TextUtils.equals(mOSVersion, that.mOSVersion)
+                && TextUtils.equals(mDeviceManufacturer, that.mDeviceManufacturer)
+                && TextUtils.equals(mDeviceModel, that.mDeviceModel)
+                && TextUtils.equals(mDeviceBrand, that.mDeviceBrand)
+                && TextUtils.equals(mDeviceIdentifier, that.mDeviceIdentifier);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[] {mOSVersion, mDeviceManufacturer, mDeviceModel, mDeviceBrand, mDeviceIdentifier});
+    }
+
     /* Parcelable */
 
     DeviceSnapshot(Parcel in) {
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import com.buglife.sdk.JsonStreamWriter;
+import com.buglife.sdk.TokenWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A per-process cache of the parts of report and client event payloads that don't change while
+ * the app is running: the app, SDK and device fields.
+ *
+ * The snapshots these are built from are computed once, rather than re-querying the package
+ * manager for every payload, and each fragment is serialized once, as UTF-8 JSON, to be spliced
+ * into payloads by {@link JsonStreamWriter#rawValue(byte[])} and
+ * {@link JsonStreamWriter#rawMembers(byte[])}. Fragments that include the user email or
+ * identifier are invalidated when either of them changes.
+ */
+public final class EnvelopeCache {
+    private static EnvelopeCache sInstance;
+
+    @Nullable private SessionSnapshot mSessionSnapshot;
+    @Nullable private DeviceSnapshot mDeviceSnapshot;
+
+    // Fragments that only depend on the app and device
+    @Nullable private byte[] mReportApp;
+    @Nullable private byte[] mClientEventApp;
+
+    // Fragments that also depend on the user
+    @Nullable private byte[] mReportFields;
+    @Nullable private byte[] mClientEventFields;
+
+    public static synchronized EnvelopeCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new EnvelopeCache();
+        }
+
+        return sInstance;
+    }
+
+    EnvelopeCache() {
+    }
+
+    /**
+     * Seeds the cache with existing snapshots, rather than computing them from a Context.
+     */
+    EnvelopeCache(@NonNull SessionSnapshot sessionSnapshot, @NonNull DeviceSnapshot deviceSnapshot) {
+        mSessionSnapshot = sessionSnapshot;
+        mDeviceSnapshot = deviceSnapshot;
+    }
+
+    @NonNull public synchronized SessionSnapshot getSessionSnapshot(@NonNull Context context, @Nullable String userEmail, @Nullable String userIdentifier) {
+        if (mSessionSnapshot == null) {
+            mSessionSnapshot = new SessionSnapshot(context, userEmail, userIdentifier);
+        } else {
+            updateUser(userEmail, userIdentifier);
+        }
+
+        return mSessionSnapshot;
+    }
+
+    @NonNull public synchronized DeviceSnapshot getDeviceSnapshot(@NonNull Context context) {
+        if (mDeviceSnapshot == null) {
+            mDeviceSnapshot = new DeviceSnapshot(context);
+        }
+
+        return mDeviceSnapshot;
+    }
+
+    /**
+     * Switches the cached session snapshot to another user, invalidating the fragments that
+     * depend on it. Does nothing if the user hasn't changed.
+     */
+    synchronized void updateUser(@Nullable String userEmail, @Nullable String userIdentifier) {
+        if (mSessionSnapshot == null) {
+            return;
+        }
+
+        if (TextUtils.equals(userEmail, mSessionSnapshot.getUserEmail()) && TextUtils.equals(userIdentifier, mSessionSnapshot.getUserIdentifier())) {
+            return;
+        }
+
+        mSessionSnapshot = mSessionSnapshot.withUser(userEmail, userIdentifier);
+        mReportFields = null;
+        mClientEventFields = null;
+    }
+
+    /**
+     * @return The "app" object of a report
+     */
+    @NonNull public synchronized byte[] getReportApp(@NonNull SessionSnapshot sessionSnapshot) throws IOException {
+        if (!isCached(sessionSnapshot, null)) {
+            return serializeReportApp(sessionSnapshot);
+        }
+
+        if (mReportApp == null) {
+            mReportApp = serializeReportApp(sessionSnapshot);
+        }
+        return mReportApp;
+    }
+
+    /**
+     * @return The SDK, user, app version and device members of a report's "report" object
+     */
+    @NonNull public synchronized byte[] getReportFields(@NonNull SessionSnapshot sessionSnapshot, @NonNull DeviceSnapshot deviceSnapshot) throws IOException {
+        if (!isCached(sessionSnapshot, deviceSnapshot)) {
+            return serializeReportFields(sessionSnapshot, deviceSnapshot);
+        }
+
+        if (mReportFields == null) {
+            mReportFields = serializeReportFields(sessionSnapshot, deviceSnapshot);
+        }
+        return mReportFields;
+    }
+
+    /**
+     * @return The "app" object of a client event
+     */
+    @NonNull public synchronized byte[] getClientEventApp(@NonNull SessionSnapshot sessionSnapshot) throws IOException {
+        if (!isCached(sessionSnapshot, null)) {
+            return serializeClientEventApp(sessionSnapshot);
+        }
+
+        if (mClientEventApp == null) {
+            mClientEventApp = serializeClientEventApp(sessionSnapshot);
+        }
+        return mClientEventApp;
+    }
+
+    /**
+     * @return The device, SDK, app version and user members of a client event's
+     * "client_event" object
+     */
+    @NonNull public synchronized byte[] getClientEventFields(@NonNull SessionSnapshot sessionSnapshot, @NonNull DeviceSnapshot deviceSnapshot) throws IOException {
+        if (!isCached(sessionSnapshot, deviceSnapshot)) {
+            return serializeClientEventFields(sessionSnapshot, deviceSnapshot);
+        }
+
+        if (mClientEventFields == null) {
+            mClientEventFields = serializeClientEventFields(sessionSnapshot, deviceSnapshot);
+        }
+        return mClientEventFields;
+    }
+
+    /**
+     * Snapshots that were captured earlier (e.g. a report that was parceled before the user
+     * changed) don't match the cache, and are serialized on demand instead.
+     */
+    private boolean isCached(@NonNull SessionSnapshot sessionSnapshot, @Nullable DeviceSnapshot deviceSnapshot) {
+        if (!sessionSnapshot.equals(mSessionSnapshot)) {
+            return false;
+        }
+
+        return deviceSnapshot == null || deviceSnapshot.equals(mDeviceSnapshot);
+    }
+
+    /**
+     * Writes the "app" object of a report, without caching.
+     */
+    public static void writeReportApp(@NonNull TokenWriter writer, @NonNull SessionSnapshot sessionSnapshot) throws IOException {
+        writer.beginObject();
+        writer.name("bundle_short_version").value(sessionSnapshot.getBundleShortVersion());
+        writer.name("bundle_version").value(sessionSnapshot.getBundleVersion());
+        writer.name("bundle_identifier").value(sessionSnapshot.getBundleIdentifier());
+        writer.name("bundle_name").value(sessionSnapshot.getBundleName());
+        writer.name("platform").value(sessionSnapshot.getPlatform());
+        writer.endObject();
+    }
+
+    /**
+     * Writes the SDK, user, app version and device members of a report's "report" object into
+     * the current object, without caching.
+     */
+    public static void writeReportFields(@NonNull TokenWriter writer, @NonNull SessionSnapshot sessionSnapshot, @NonNull DeviceSnapshot deviceSnapshot) throws IOException {
+        writer.name("sdk_version").value(sessionSnapshot.getSDKVersion());
+        writer.name("sdk_name").value(sessionSnapshot.getSDKName());
+        writer.name("user_email").value(sessionSnapshot.getUserEmail());
+        writer.name("user_identifier").value(sessionSnapshot.getUserIdentifier());
+        writer.name("bundle_short_version").value(sessionSnapshot.getBundleShortVersion());
+        writer.name("bundle_version").value(sessionSnapshot.getBundleVersion());
+        writer.name("operating_system_version").value(deviceSnapshot.getOSVersion());
+        writer.name("device_manufacturer").value(deviceSnapshot.getDeviceManufacturer());
+        writer.name("device_model").value(deviceSnapshot.getDeviceModel());
+        writer.name("device_brand").value(deviceSnapshot.getDeviceBrand());
+        writer.name("device_identifier").value(deviceSnapshot.getDeviceIdentifier());
+    }
+
+    private static byte[] serializeReportApp(SessionSnapshot sessionSnapshot) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        JsonStreamWriter writer = new JsonStreamWriter(output);
+        writeReportApp(writer, sessionSnapshot);
+        writer.close();
+        return output.toByteArray();
+    }
+
+    private static byte[] serializeReportFields(SessionSnapshot sessionSnapshot, DeviceSnapshot deviceSnapshot) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        JsonStreamWriter writer = new JsonStreamWriter(output);
+        writer.beginObject();
+        writeReportFields(writer, sessionSnapshot, deviceSnapshot);
+        writer.endObject();
+        writer.close();
+        return members(output.toByteArray());
+    }
+
+    private static byte[] serializeClientEventApp(SessionSnapshot sessionSnapshot) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        JsonStreamWriter writer = new JsonStreamWriter(output);
+        writer.beginObject();
+        writer.name("bundle_identifier").value(sessionSnapshot.getBundleIdentifier());
+        writer.name("platform").value(sessionSnapshot.getPlatform());
+        writer.name("bundle_name").value(sessionSnapshot.getBundleName());
+        writer.endObject();
+        writer.close();
+        return output.toByteArray();
+    }
+
+    private static byte[] serializeClientEventFields(SessionSnapshot sessionSnapshot, DeviceSnapshot deviceSnapshot) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        JsonStreamWriter writer = new JsonStreamWriter(output);
+        writer.beginObject();
+        writer.name("device_identifier").value(deviceSnapshot.getDeviceIdentifier());
+        writer.name("sdk_version").value(sessionSnapshot.getSDKVersion());
+        writer.name("sdk_name").value(sessionSnapshot.getSDKName());
+        writer.name("bundle_short_version").value(sessionSnapshot.getBundleShortVersion());
+        writer.name("bundle_version").value(sessionSnapshot.getBundleVersion());
+        writer.name("user_email").value(sessionSnapshot.getUserEmail());
+        writer.name("user_identifier").value(sessionSnapshot.getUserIdentifier());
+        writer.endObject();
+        writer.close();
+        return members(output.toByteArray());
+    }
+
+    /**
+     * Strips the braces from a serialized object, leaving its members.
+     */
+    private static byte[] members(byte[] object) {
+        return Arrays.copyOfRange(object, 1, object.length - 1);
+    }
+}
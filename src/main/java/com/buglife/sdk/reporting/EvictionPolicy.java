@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.buglife.sdk.reporting;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Decides which pending reports make way once the queue goes over its quota; see
+ * {@link com.buglife.sdk.Buglife#setMaxPendingReportBytes} and
+ * {@link com.buglife.sdk.Buglife#setMaxPendingReports}.
+ *
+ * While the queue is over its byte quota, the policy is first asked for a report to strip of
+ * its images and videos, and then for a report to evict; while it is over its count quota, it
+ * is asked for reports to evict. Reports that are being submitted are not offered.
+ *
+ * @warning This is an experimental API, and is subject to change!
+ */
+public abstract class EvictionPolicy {
+    /**
+     * Evicts the oldest reports first.
+     */
+    public static final EvictionPolicy OLDEST_FIRST = new EvictionPolicy() {
+        @Nullable @Override public QueuedReport selectReportToEvict(@NonNull List<QueuedReport> reports) {
+            return reports.isEmpty() ? null : reports.get(0);
+        }
+    };
+
+    /**
+     * Evicts the reports with the most image and video data first, and the oldest reports once
+     * none have any.
+     */
+    public static final EvictionPolicy LARGEST_MEDIA_FIRST = new EvictionPolicy() {
+        @Nullable @Override public QueuedReport selectReportToEvict(@NonNull List<QueuedReport> reports) {
+            QueuedReport largest = getLargestMedia(reports);
+            return largest != null ? largest : OLDEST_FIRST.selectReportToEvict(reports);
+        }
+    };
+
+    /**
+     * Strips the images and videos of the reports with the most of them first, keeping the rest
+     * of each report, and only evicts the oldest reports once there is no media left to strip.
+     */
+    public static final EvictionPolicy STRIP_MEDIA = new EvictionPolicy() {
+        @Nullable @Override public QueuedReport selectReportToStrip(@NonNull List<QueuedReport> reports) {
+            return getLargestMedia(reports);
+        }
+
+        @Nullable @Override public QueuedReport selectReportToEvict(@NonNull List<QueuedReport> reports) {
+            return OLDEST_FIRST.selectReportToEvict(reports);
+        }
+    };
+
+    /**
+     * @param reports The reports that may be evicted, oldest first
+     * @return The report to evict next, or null to stop evicting reports, leaving the queue over
+     * its quota
+     */
+    @Nullable public abstract QueuedReport selectReportToEvict(@NonNull List<QueuedReport> reports);
+
+    /**
+     * Called before {@link #selectReportToEvict(List)} while the queue is over its byte quota.
+     * Never strips reports by default.
+     * @param reports The reports that have images or videos that can be stripped, oldest first
+     * @return The report to strip of its images and videos next, or null to evict reports instead
+     */
+    @Nullable public QueuedReport selectReportToStrip(@NonNull List<QueuedReport> reports) {
+        return null;
+    }
+
+    @Nullable private static QueuedReport getLargestMedia(List<QueuedReport> reports) {
+        QueuedReport largest = null;
+
+        for (QueuedReport report : reports) {
+            if (report.getMediaSize() > 0 && (largest == null || report.getMediaSize() > largest.getMediaSize())) {
+                largest = report;
+            }
+        }
+
+        return largest;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.support.annotation.NonNull;
+
+public interface OnReportSubmittedListener {
+    /**
+     * Called once a report has been accepted by the server. This is called on a background
+     * thread, possibly long after the report was filed, since reports are queued until the
+     * device is online.
+     * @param reportId The server-side ID of the report, which follow-up updates refer to
+     */
+    void onReportSubmitted(@NonNull String reportId);
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.buglife.sdk.IOUtils;
+import com.buglife.sdk.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * A report that has been serialized to disk and is waiting to be submitted.
+ *
+ * A pending report consists of a JSON (or CBOR) report file, and optionally a sibling attachments
+ * directory. When the attachments directory is present, the JSON file only holds report
+ * metadata, and each attachment is stored as a raw file named after its multipart part.
+ *
+ * Reports whose attachments are sent inline are stored in a {@link ReportContainer} instead,
+ * which keeps attachment data raw on disk; the report file name then has the container
+ * extension after that of the wire format, e.g. "report.json.blr".
+ *
+ * Large attachments may be stored in a sibling uploads directory instead, to be sent ahead of
+ * the report as resumable {@link ChunkedUpload}s.
+ *
+ * A sibling blobs file lists the SHA-256 digests of the attachments whose data the report
+ * carries, so that they can be recorded in the {@link BlobIndex} once the report is submitted.
+ *
+ * A sibling key file holds the report's idempotency key, which stays the same across submission
+ * attempts so that the server can recognize a report it has already received.
+ */
+public final class PendingReport {
+    static final MediaType MEDIA_TYPE_JSON = MediaType.parse("application/json; charset=utf-8");
+    static final MediaType MEDIA_TYPE_CBOR = MediaType.parse("application/cbor");
+    private static final MediaType MEDIA_TYPE_OCTET_STREAM = MediaType.parse("application/octet-stream");
+    /**
+     * Reports written in {@link com.buglife.sdk.UploadMode#CBOR} mode have this extension.
+     */
+    public static final String CBOR_EXTENSION = ".cbor";
+    /**
+     * Reports stored in a {@link ReportContainer} have this extension.
+     */
+    public static final String CONTAINER_EXTENSION = ".blr";
+    private static final String ATTACHMENTS_DIR_SUFFIX = ".attachments";
+    private static final String UPLOADS_DIR_SUFFIX = ".uploads";
+    private static final String BLOBS_FILE_SUFFIX = ".blobs";
+    private static final String DEFERRED_UPDATE_SUFFIX = ".deferred";
+    private static final String KEY_FILE_SUFFIX = ".key";
+    static final String REPORT_PART_NAME = "report";
+    // Guards key files, so that concurrent attempts at a new report agree on a single key
+    private static final Object KEY_LOCK = new Object();
+
+    @NonNull private final File mReportFile;
+
+    public PendingReport(@NonNull File reportFile) {
+        mReportFile = reportFile;
+    }
+
+    @NonNull public File getReportFile() {
+        return mReportFile;
+    }
+
+    @NonNull public File getAttachmentsDir() {
+        return new File(mReportFile.getPath() + ATTACHMENTS_DIR_SUFFIX);
+    }
+
+    @NonNull public File getUploadsDir() {
+        return new File(mReportFile.getPath() + UPLOADS_DIR_SUFFIX);
+    }
+
+    /**
+     * @return The follow-up update that carries the report's deferred attachments, which is sent
+     * once the report has been submitted; it only exists if any attachments were deferred
+     */
+    @NonNull public PendingReport getDeferredUpdate() {
+        String extension = (isCbor() ? CBOR_EXTENSION : ".json") + CONTAINER_EXTENSION;
+        return new PendingReport(new File(mReportFile.getPath() + DEFERRED_UPDATE_SUFFIX + extension));
+    }
+
+    /**
+     * @return true if any of the report's chunked uploads have been partially, but not fully,
+     * committed by the server
+     */
+    public boolean hasPartialUploads() {
+        for (ChunkedUpload upload : ChunkedUpload.forReport(this)) {
+            if (upload.getCommittedOffset() > 0 && !upload.isComplete()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NonNull public File getBlobsFile() {
+        return new File(mReportFile.getPath() + BLOBS_FILE_SUFFIX);
+    }
+
+    @NonNull public File getKeyFile() {
+        return new File(mReportFile.getPath() + KEY_FILE_SUFFIX);
+    }
+
+    /**
+     * @return The idempotency key of the report, which is sent with every submission attempt so
+     * that the server only creates the report once. The key is generated and written to the key
+     * file the first time it is asked for.
+     */
+    @NonNull public String getIdempotencyKey() throws IOException {
+        synchronized (KEY_LOCK) {
+            File keyFile = getKeyFile();
+
+            if (keyFile.exists()) {
+                BufferedReader reader = new BufferedReader(new FileReader(keyFile));
+                try {
+                    String key = reader.readLine();
+                    if (key != null && !key.isEmpty()) {
+                        return key;
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+
+            String key = UUID.randomUUID().toString();
+            setIdempotencyKey(key);
+            return key;
+        }
+    }
+
+    /**
+     * Sets the idempotency key of the report, e.g. to one derived from a report that was queued
+     * before keys were generated.
+     */
+    void setIdempotencyKey(@NonNull String key) throws IOException {
+        synchronized (KEY_LOCK) {
+            writeKey(key);
+        }
+    }
+
+    private void writeKey(String key) throws IOException {
+        File keyFile = getKeyFile();
+        // Written next to the key file and renamed into place, so that a key is never torn
+        File tempFile = new File(keyFile.getPath() + ".tmp");
+        BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile));
+        try {
+            writer.write(key);
+            writer.newLine();
+        } finally {
+            writer.close();
+        }
+
+        if (!tempFile.renameTo(keyFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to write idempotency key for report " + mReportFile);
+        }
+    }
+
+    public boolean exists() {
+        return mReportFile.exists();
+    }
+
+    public boolean isMultipart() {
+        return getAttachmentsDir().isDirectory();
+    }
+
+    public boolean isCbor() {
+        String name = mReportFile.getName();
+
+        if (isContainer()) {
+            name = name.substring(0, name.length() - CONTAINER_EXTENSION.length());
+        }
+
+        return name.endsWith(CBOR_EXTENSION);
+    }
+
+    public boolean isContainer() {
+        return mReportFile.getName().endsWith(CONTAINER_EXTENSION);
+    }
+
+    /**
+     * @return The request body of the first submission attempt; see {@link #newRequestBody(int)}
+     */
+    @NonNull public RequestBody newRequestBody() {
+        return newRequestBody(1);
+    }
+
+    /**
+     * @param attemptNumber The number of the submission attempt, starting at 1; this is filled
+     *                      into containers as they are sent
+     * @return The request body to upload; file contents are streamed when the body is written
+     */
+    @NonNull public RequestBody newRequestBody(int attemptNumber) {
+        MediaType contentType = isCbor() ? MEDIA_TYPE_CBOR : MEDIA_TYPE_JSON;
+        RequestBody reportBody;
+
+        if (isContainer()) {
+            reportBody = new ContainerRequestBody(contentType, mReportFile, attemptNumber);
+        } else {
+            // Okio streams the file to the socket in segments; the report is never held in memory
+            reportBody = RequestBody.create(contentType, mReportFile);
+        }
+
+        if (!isMultipart()) {
+            return reportBody;
+        }
+
+        MultipartBody.Builder builder = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart(REPORT_PART_NAME, null, reportBody);
+
+        File[] parts = getAttachmentsDir().listFiles();
+        if (parts != null) {
+            Arrays.sort(parts);
+            for (File part : parts) {
+                builder.addFormDataPart(part.getName(), part.getName(), RequestBody.create(MEDIA_TYPE_OCTET_STREAM, part));
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * @return The digests of the attachment blobs whose data this report carries
+     */
+    @NonNull public List<String> getUploadedBlobs() {
+        List<String> digests = new ArrayList<>();
+        File blobsFile = getBlobsFile();
+
+        if (!blobsFile.exists()) {
+            return digests;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(blobsFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    digests.add(line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e("Error reading blob list for report " + mReportFile, e);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return digests;
+    }
+
+    public void setUploadedBlobs(@NonNull List<String> digests) throws IOException {
+        File blobsFile = getBlobsFile();
+
+        if (digests.isEmpty()) {
+            blobsFile.delete();
+            return;
+        }
+
+        BufferedWriter writer = new BufferedWriter(new FileWriter(blobsFile));
+        try {
+            for (String digest : digests) {
+                writer.write(digest);
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Makes the report carry the data of the attachments that it refers to by digest, after the
+     * server rejected it for referring to blobs that it no longer has; see
+     * {@link ReportContainer#inlineBlobReferences(File)}.
+     * @return The digests of the attachments that are now carried
+     */
+    @NonNull public List<String> inlineBlobReferences() throws IOException {
+        if (!isContainer()) {
+            return new ArrayList<>();
+        }
+
+        List<String> digests = ReportContainer.inlineBlobReferences(mReportFile);
+
+        if (!digests.isEmpty()) {
+            Set<String> uploadedBlobs = new LinkedHashSet<>(getUploadedBlobs());
+            uploadedBlobs.addAll(digests);
+            setUploadedBlobs(new ArrayList<>(uploadedBlobs));
+        }
+
+        return digests;
+    }
+
+    /**
+     * @return The disk space taken up by the report, along with its attachments and deferred
+     * update
+     */
+    public long getSizeOnDisk() {
+        long size = mReportFile.length()
+                + IOUtils.sizeOf(getAttachmentsDir())
+                + IOUtils.sizeOf(getUploadsDir())
+                + getBlobsFile().length()
+                + getKeyFile().length();
+
+        PendingReport deferredUpdate = getDeferredUpdate();
+        if (deferredUpdate.exists()) {
+            size += deferredUpdate.getSizeOnDisk();
+        }
+
+        return size;
+    }
+
+    /**
+     * @return The disk space taken up by the report's images and videos that can be stripped
+     * from it; see {@link #stripMedia()}
+     */
+    public long getMediaSize() {
+        long size = 0;
+
+        if (isContainer()) {
+            try {
+                size += ReportContainer.open(mReportFile).getMediaLength();
+            } catch (IOException e) {
+                // Nothing can be stripped from a container that can't be read
+            }
+        }
+
+        PendingReport deferredUpdate = getDeferredUpdate();
+        if (deferredUpdate.exists()) {
+            size += deferredUpdate.getSizeOnDisk();
+        }
+
+        return size;
+    }
+
+    /**
+     * Drops the report's images and videos, along with its deferred update, keeping the rest of
+     * the report. Attachments that are sent as parts or chunked uploads are kept, since the
+     * report refers to them.
+     */
+    public void stripMedia() throws IOException {
+        PendingReport deferredUpdate = getDeferredUpdate();
+        if (deferredUpdate.exists()) {
+            deferredUpdate.delete();
+        }
+
+        if (isContainer() && ReportContainer.stripMedia(mReportFile) > 0) {
+            // The stripped data never reaches the server, so later reports mustn't refer to it
+            List<String> digests = getUploadedBlobs();
+
+            if (!digests.isEmpty()) {
+                setUploadedBlobs(ReportContainer.open(mReportFile).findMemberValues(ReportContainer.DIGEST_FIELD, digests));
+            }
+        }
+    }
+
+    /**
+     * Moves the report, along with its attachments, into another directory.
+     * @return The moved report
+     */
+    @NonNull public PendingReport moveTo(@NonNull File dir) throws IOException {
+        PendingReport moved = new PendingReport(new File(dir, mReportFile.getName()));
+        File attachmentsDir = getAttachmentsDir();
+
+        if (attachmentsDir.exists() && !attachmentsDir.renameTo(moved.getAttachmentsDir())) {
+            throw new IOException("Unable to move attachments to " + dir);
+        }
+
+        File uploadsDir = getUploadsDir();
+
+        if (uploadsDir.exists() && !uploadsDir.renameTo(moved.getUploadsDir())) {
+            throw new IOException("Unable to move uploads to " + dir);
+        }
+
+        File blobsFile = getBlobsFile();
+
+        if (blobsFile.exists() && !blobsFile.renameTo(moved.getBlobsFile())) {
+            throw new IOException("Unable to move blob list to " + dir);
+        }
+
+        File keyFile = getKeyFile();
+
+        if (keyFile.exists() && !keyFile.renameTo(moved.getKeyFile())) {
+            throw new IOException("Unable to move idempotency key to " + dir);
+        }
+
+        PendingReport deferredUpdate = getDeferredUpdate();
+
+        if (deferredUpdate.exists()) {
+            deferredUpdate.moveTo(dir);
+        }
+
+        if (!mReportFile.renameTo(moved.getReportFile())) {
+            throw new IOException("Unable to move report to " + dir);
+        }
+
+        return moved;
+    }
+
+    public void delete() {
+        try {
+            IOUtils.deleteRecursively(getAttachmentsDir());
+            IOUtils.deleteRecursively(getUploadsDir());
+        } catch (IOException ignored) {
+            // Ignore; there is nothing else we can do
+        }
+        getBlobsFile().delete();
+        getKeyFile().delete();
+
+        PendingReport deferredUpdate = getDeferredUpdate();
+        if (deferredUpdate.exists()) {
+            deferredUpdate.delete();
+        }
+
+        mReportFile.delete();
+    }
+
+    /**
+     * Converts a {@link ReportContainer} to its wire format as it is written.
+     */
+    private static final class ContainerRequestBody extends RequestBody {
+        private final MediaType mContentType;
+        private final File mFile;
+        private final int mAttemptNumber;
+        @Nullable private ReportContainer mContainer;
+
+        ContainerRequestBody(MediaType contentType, File file, int attemptNumber) {
+            mContentType = contentType;
+            mFile = file;
+            mAttemptNumber = attemptNumber;
+        }
+
+        @Override public MediaType contentType() {
+            return mContentType;
+        }
+
+        @Override public long contentLength() throws IOException {
+            return getContainer().getWireLength(mAttemptNumber);
+        }
+
+        @Override public void writeTo(@NonNull BufferedSink sink) throws IOException {
+            getContainer().writeWireFormat(sink.outputStream(), mAttemptNumber);
+        }
+
+        private ReportContainer getContainer() throws IOException {
+            if (mContainer == null) {
+                mContainer = ReportContainer.open(mFile);
+            }
+            return mContainer;
+        }
+    }
+}
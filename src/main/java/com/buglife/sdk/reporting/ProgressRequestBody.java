@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+import okio.Sink;
+
+/**
+ * Reports the progress of a request body as it is written, and records how long it took to
+ * write in its {@link UploadMetrics}.
+ */
+final class ProgressRequestBody extends RequestBody {
+    interface Listener {
+        /**
+         * Called on the network thread as the body is written. If the body is written again,
+         * e.g. when a compressed request is rejected and resent uncompressed, progress is reset
+         * to 0 before the body is rewritten, so that the bytes of the earlier attempt don't count.
+         * @param totalBytes The size of the body, or -1 if it isn't known
+         */
+        void onProgress(long bytesSent, long totalBytes);
+    }
+
+    private final RequestBody mBody;
+    private final UploadMetrics mMetrics;
+    @Nullable private final Listener mListener;
+    private boolean mWritten;
+
+    ProgressRequestBody(@NonNull RequestBody body, @NonNull UploadMetrics metrics, @Nullable Listener listener) {
+        mBody = body;
+        mMetrics = metrics;
+        mListener = listener;
+    }
+
+    @Override public MediaType contentType() {
+        return mBody.contentType();
+    }
+
+    @Override public long contentLength() throws IOException {
+        return mBody.contentLength();
+    }
+
+    @Override public void writeTo(@NonNull BufferedSink sink) throws IOException {
+        long totalBytes = contentLength();
+        CountingSink countingSink = new CountingSink(sink, totalBytes);
+        BufferedSink bufferedSink = Okio.buffer(countingSink);
+
+        if (mWritten && mListener != null) {
+            mListener.onProgress(0, totalBytes);
+        }
+        mWritten = true;
+
+        mMetrics.onUploadStarted(System.nanoTime());
+        mBody.writeTo(bufferedSink);
+        // Flushed rather than closed, since the sink belongs to the caller
+        bufferedSink.flush();
+        mMetrics.onUploadFinished(System.nanoTime(), countingSink.mBytesSent);
+    }
+
+    private final class CountingSink extends ForwardingSink {
+        private final long mTotalBytes;
+        private long mBytesSent;
+
+        CountingSink(Sink delegate, long totalBytes) {
+            super(delegate);
+            mTotalBytes = totalBytes;
+        }
+
+        @Override public void write(@NonNull Buffer source, long byteCount) throws IOException {
+            super.write(source, byteCount);
+            mBytesSent += byteCount;
+
+            if (mListener != null) {
+                mListener.onProgress(mBytesSent, mTotalBytes);
+            }
+        }
+    }
+}
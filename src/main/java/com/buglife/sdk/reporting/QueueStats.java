@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.buglife.sdk.reporting;
+
+import java.util.Locale;
+
+/**
+ * Counters of the queue of pending reports. The eviction counters start at zero each time the
+ * app is started.
+ *
+ * @warning This is an experimental API, and is subject to change!
+ */
+public final class QueueStats {
+    private volatile int mPendingReports;
+    private volatile long mPendingBytes;
+    private volatile int mEvictedReports;
+    private volatile long mEvictedBytes;
+
+    void setPending(int reports, long bytes) {
+        mPendingReports = reports;
+        mPendingBytes = bytes;
+    }
+
+    void recordEviction(boolean evicted, long bytes) {
+        if (evicted) {
+            mEvictedReports++;
+        }
+        mEvictedBytes += bytes;
+    }
+
+    /**
+     * @return The number of reports waiting to be submitted, i.e. the depth of the queue
+     */
+    public int getPendingReports() {
+        return mPendingReports;
+    }
+
+    /**
+     * @return The disk space taken up by the reports waiting to be submitted
+     */
+    public long getPendingBytes() {
+        return mPendingBytes;
+    }
+
+    /**
+     * @return The number of reports that were evicted to keep the queue within its quota
+     */
+    public int getEvictedReports() {
+        return mEvictedReports;
+    }
+
+    /**
+     * @return The disk space freed to keep the queue within its quota, by evicting reports or
+     * stripping their images and videos
+     */
+    public long getEvictedBytes() {
+        return mEvictedBytes;
+    }
+
+    @Override public String toString() {
+        return String.format(Locale.US, "%d pending (%d bytes), %d evicted (%d bytes freed)", mPendingReports, mPendingBytes, mEvictedReports, mEvictedBytes);
+    }
+}
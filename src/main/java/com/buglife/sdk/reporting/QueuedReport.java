@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.buglife.sdk.reporting;
+
+/**
+ * A report in the queue of pending reports, as seen by an {@link EvictionPolicy}.
+ *
+ * @warning This is an experimental API, and is subject to change!
+ */
+public final class QueuedReport {
+    private final long mId;
+    private final long mSize;
+    private final long mMediaSize;
+    private final int mAttempts;
+
+    QueuedReport(long id, long size, long mediaSize, int attempts) {
+        mId = id;
+        mSize = size;
+        mMediaSize = mediaSize;
+        mAttempts = attempts;
+    }
+
+    long getId() {
+        return mId;
+    }
+
+    /**
+     * @return The disk space taken up by the report, including its attachments
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return The disk space taken up by the report's images and videos that can be stripped,
+     * keeping the rest of the report
+     */
+    public long getMediaSize() {
+        return mMediaSize;
+    }
+
+    /**
+     * @return The number of submission attempts made so far
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Several small reports, sent together in a single request.
+ *
+ * The request body is an array of the reports' documents, in their wire format (JSON or CBOR;
+ * all reports in a batch share one). The response holds a "results" array with an object per
+ * report, in the same order: the report's "id" if it was accepted, or an "error" if it wasn't.
+ *
+ * Only reports that are sent in a single body are batched: multipart reports and reports with
+ * chunked uploads, and reports larger than {@link #MAX_REPORT_SIZE}, are sent individually.
+ */
+public final class ReportBatch {
+    static final int MAX_REPORTS = 16;
+    static final long MAX_REPORT_SIZE = 64 * 1024;
+    static final long MAX_BATCH_SIZE = 512 * 1024;
+    // An indefinite-length CBOR array is opened by its header, and closed by a break
+    private static final int CBOR_BEGIN_ARRAY = 0x9f;
+    private static final int CBOR_BREAK = 0xff;
+    // The error of a report in a batch response that refers to a blob the server doesn't have
+    private static final String UNKNOWN_BLOB_ERROR = "unknown_blob";
+
+    private final boolean mCbor;
+    private final List<PendingReport> mReports = new ArrayList<>();
+    private final List<Integer> mAttemptNumbers = new ArrayList<>();
+    private final List<RequestBody> mBodies = new ArrayList<>();
+    private final List<String> mIdempotencyKeys = new ArrayList<>();
+    // The total length of the reports' bodies, kept up to date as reports are added
+    private long mLength;
+    // The body of the last report looked at by canAdd(), so that add() doesn't build it again
+    @Nullable private PendingReport mCandidate;
+    private int mCandidateAttemptNumber;
+    @Nullable private RequestBody mCandidateBody;
+
+    /**
+     * @param cbor true if the batched reports are sent as CBOR, false if they are sent as JSON
+     */
+    public ReportBatch(boolean cbor) {
+        mCbor = cbor;
+    }
+
+    /**
+     * @return true if the report can be sent as part of a batch
+     */
+    public static boolean canBatch(@NonNull PendingReport pendingReport, int attemptNumber) {
+        if (!pendingReport.isContainer() || pendingReport.isMultipart() || !ChunkedUpload.forReport(pendingReport).isEmpty()) {
+            return false;
+        }
+
+        try {
+            return pendingReport.newRequestBody(attemptNumber).contentLength() <= MAX_REPORT_SIZE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return false if the batch is full, or the report is in another format
+     */
+    public boolean canAdd(@NonNull PendingReport pendingReport, int attemptNumber) throws IOException {
+        if (pendingReport.isCbor() != mCbor || mReports.size() >= MAX_REPORTS) {
+            return false;
+        }
+
+        return mReports.isEmpty() || mLength + getBody(pendingReport, attemptNumber).contentLength() <= MAX_BATCH_SIZE;
+    }
+
+    /**
+     * Adds a report to the batch, if it can be; see {@link #canAdd(PendingReport, int)}.
+     * @param attemptNumber The number of the submission attempt, starting at 1
+     * @return true if the report was added
+     */
+    public boolean add(@NonNull PendingReport pendingReport, int attemptNumber) throws IOException {
+        if (pendingReport.isCbor() != mCbor || mReports.size() >= MAX_REPORTS) {
+            return false;
+        }
+
+        RequestBody body = getBody(pendingReport, attemptNumber);
+        long length = body.contentLength();
+
+        if (!mReports.isEmpty() && mLength + length > MAX_BATCH_SIZE) {
+            return false;
+        }
+
+        String idempotencyKey = pendingReport.getIdempotencyKey();
+        mReports.add(pendingReport);
+        mIdempotencyKeys.add(idempotencyKey);
+        mAttemptNumbers.add(attemptNumber);
+        mBodies.add(body);
+        mLength += length;
+        mCandidate = null;
+        mCandidateBody = null;
+        return true;
+    }
+
+    /**
+     * @return The report's body, which is only built once whether or not canAdd() was called
+     * first; containers are opened to work out their length
+     */
+    private RequestBody getBody(PendingReport pendingReport, int attemptNumber) {
+        if (mCandidateBody == null || pendingReport != mCandidate || attemptNumber != mCandidateAttemptNumber) {
+            mCandidate = pendingReport;
+            mCandidateAttemptNumber = attemptNumber;
+            mCandidateBody = pendingReport.newRequestBody(attemptNumber);
+        }
+        return mCandidateBody;
+    }
+
+    public int size() {
+        return mReports.size();
+    }
+
+    public boolean isCbor() {
+        return mCbor;
+    }
+
+    @NonNull public PendingReport getReport(int index) {
+        return mReports.get(index);
+    }
+
+    public int getAttemptNumber(int index) {
+        return mAttemptNumbers.get(index);
+    }
+
+    /**
+     * @return The idempotency keys of the reports, comma-separated in the order of the batch, so
+     * that the server can skip reports that it has already received
+     */
+    @NonNull public String getIdempotencyKeys() {
+        StringBuilder keys = new StringBuilder();
+        for (String key : mIdempotencyKeys) {
+            if (keys.length() > 0) {
+                keys.append(',');
+            }
+            keys.append(key);
+        }
+        return keys.toString();
+    }
+
+    /**
+     * @return The request body of the batch; the reports are streamed from disk one after
+     * another as it is written
+     */
+    @NonNull public RequestBody newRequestBody() {
+        final List<RequestBody> bodies = new ArrayList<>(mBodies);
+        final MediaType contentType = mCbor ? PendingReport.MEDIA_TYPE_CBOR : PendingReport.MEDIA_TYPE_JSON;
+        // Either the array header and break, or the brackets and a comma between each report
+        final long framingLength = mCbor ? 2 : 2 + Math.max(0, bodies.size() - 1);
+        final long contentLength = mLength + framingLength;
+
+        return new RequestBody() {
+            @Override public MediaType contentType() {
+                return contentType;
+            }
+
+            @Override public long contentLength() {
+                return contentLength;
+            }
+
+            @Override public void writeTo(@NonNull BufferedSink sink) throws IOException {
+                sink.writeByte(mCbor ? CBOR_BEGIN_ARRAY : '[');
+
+                for (int i = 0; i < bodies.size(); i++) {
+                    if (i > 0 && !mCbor) {
+                        sink.writeByte(',');
+                    }
+                    bodies.get(i).writeTo(sink);
+                }
+
+                sink.writeByte(mCbor ? CBOR_BREAK : ']');
+            }
+        };
+    }
+
+    /**
+     * @param result The batch response's result for a report
+     * @return Why the report wasn't accepted, or null if it was
+     */
+    @Nullable static Exception getError(@Nullable JSONObject result) {
+        if (result == null) {
+            return new IOException("No result for report in batch response");
+        }
+
+        if (UNKNOWN_BLOB_ERROR.equals(result.opt("error"))) {
+            return new SubmitReportTask.UnknownBlobException("Report was rejected for referring to unknown blobs");
+        }
+
+        if (result.has("error")) {
+            return new IOException("Report was rejected: " + result.opt("error"));
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,728 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.support.annotation.NonNull;
+
+import com.buglife.sdk.CborStreamWriter;
+import com.buglife.sdk.IOUtils;
+import com.buglife.sdk.JsonStreamWriter;
+import com.buglife.sdk.TokenWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import okio.ByteString;
+
+/**
+ * A pending report stored in a compact binary container, rather than in its wire format.
+ *
+ * The container holds the report's attachment data as raw blobs, and the rest of the report as
+ * a metadata document (JSON or CBOR) in which each attachment's data is an empty string
+ * placeholder. An index maps each placeholder to its blob. The report is only converted to its
+ * wire format, with the blobs spliced back in (base64-encoded for JSON), as it is sent.
+ *
+ * The metadata may also hold a placeholder for the number of the submission attempt, a zero
+ * whose index entry has a blob length of -1, which is filled in as the report is sent; and
+ * members that refer to the report's deferred update, whose index entries have a blob length
+ * of -2, and which are dropped along with the media.
+ *
+ * Attachments that refer to an already uploaded blob by its digest keep the blob's data too,
+ * without a placeholder; it isn't sent unless the server turns out to no longer have the blob.
+ *
+ * <pre>
+ * header   "BLRC", version (u8), format (u8: 0 = JSON, 1 = CBOR)
+ * blobs    raw attachment data, back to back
+ * metadata the report document, with placeholders
+ * index    entry count (u32), then per entry: placeholder offset within the metadata,
+ *          blob offset and blob length (u64 each; -1 for the attempt number, -2 for a
+ *          strippable member), flags (u8; 1 = media, i.e. image or video data; 2 = the data
+ *          of a blob reference), and the offset and length within the metadata of the object
+ *          holding a media blob, or of the strippable member or blob reference (u64 each; 0
+ *          for other blobs); all but the first three are not present in version 1
+ * trailer  metadata offset, metadata length, index offset (u64 each)
+ * </pre>
+ *
+ * Media blobs can be stripped when the queue of pending reports runs out of space; see
+ * {@link #stripMedia(File)}. Their attachments are then dropped from the report altogether, as
+ * are the strippable members, since the deferred update is dropped at the same time.
+ *
+ * The blobs come first so that the container can be written in a single pass, streaming each
+ * attachment as it is reached; the trailer is at a fixed offset from the end of the file, so
+ * that any attachment can be read by seeking, without reading the rest of the container.
+ *
+ * See {@link ReportContainerWriter}.
+ */
+public final class ReportContainer {
+    static final byte[] MAGIC = {'B', 'L', 'R', 'C'};
+    static final int VERSION = 2;
+    // Containers written by earlier versions of the SDK are still read
+    private static final int MIN_VERSION = 1;
+    static final int FORMAT_JSON = 0;
+    static final int FORMAT_CBOR = 1;
+    static final int HEADER_SIZE = MAGIC.length + 2;
+    static final int TRAILER_SIZE = 3 * 8;
+    // The encoded size of an empty string, which stands in for attachment data in the metadata
+    static final int JSON_PLACEHOLDER_SIZE = 2;
+    static final int CBOR_PLACEHOLDER_SIZE = 1;
+    // The encoded size of a zero, which stands in for the attempt number, in either format
+    static final int ATTEMPT_NUMBER_PLACEHOLDER_SIZE = 1;
+    static final long ATTEMPT_NUMBER = -1;
+    static final long STRIPPABLE_MEMBER = -2;
+    static final int FLAG_MEDIA = 1;
+    static final int FLAG_BLOB_REFERENCE = 2;
+    // The members of an attachment that carry its data, and the digest of its data
+    static final String DATA_FIELD = "base64_attachment_data";
+    static final String DIGEST_FIELD = "sha256";
+
+    @NonNull private final File mFile;
+    private final boolean mCbor;
+    private final long mMetadataOffset;
+    private final long mMetadataLength;
+    private final List<Entry> mEntries;
+    private final List<Entry> mBlobs = new ArrayList<>();
+
+    private ReportContainer(@NonNull File file, boolean cbor, long metadataOffset, long metadataLength, List<Entry> entries) {
+        mFile = file;
+        mCbor = cbor;
+        mMetadataOffset = metadataOffset;
+        mMetadataLength = metadataLength;
+        mEntries = entries;
+
+        for (Entry entry : entries) {
+            if (entry.mBlobLength >= 0 && (entry.mFlags & FLAG_BLOB_REFERENCE) == 0) {
+                mBlobs.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Reads the header, trailer and index of a container. Blobs and metadata are not read.
+     */
+    @NonNull public static ReportContainer open(@NonNull File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+
+        try {
+            long length = input.length();
+            if (length < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("Truncated report container " + file);
+            }
+
+            byte[] magic = new byte[MAGIC.length];
+            input.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a report container: " + file);
+            }
+
+            int version = input.readUnsignedByte();
+            if (version < MIN_VERSION || version > VERSION) {
+                throw new IOException("Unsupported report container version " + version);
+            }
+
+            int format = input.readUnsignedByte();
+            if (format != FORMAT_JSON && format != FORMAT_CBOR) {
+                throw new IOException("Unsupported report container format " + format);
+            }
+
+            input.seek(length - TRAILER_SIZE);
+            long metadataOffset = input.readLong();
+            long metadataLength = input.readLong();
+            long indexOffset = input.readLong();
+
+            input.seek(indexOffset);
+            int count = input.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long placeholderOffset = input.readLong();
+                long blobOffset = input.readLong();
+                long blobLength = input.readLong();
+                int flags = 0;
+                long objectOffset = 0;
+                long objectLength = 0;
+                if (version >= 2) {
+                    flags = input.readUnsignedByte();
+                    objectOffset = input.readLong();
+                    objectLength = input.readLong();
+                }
+                entries.add(new Entry(placeholderOffset, blobOffset, blobLength, flags, objectOffset, objectLength));
+            }
+
+            return new ReportContainer(file, format == FORMAT_CBOR, metadataOffset, metadataLength, entries);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * @return true if the report is sent as CBOR, false if it is sent as JSON
+     */
+    public boolean isCbor() {
+        return mCbor;
+    }
+
+    public int getBlobCount() {
+        return mBlobs.size();
+    }
+
+    public long getBlobLength(int index) {
+        return mBlobs.get(index).mBlobLength;
+    }
+
+    /**
+     * @return A stream of the raw data of the attachment at the given position in the index
+     */
+    @NonNull public InputStream openBlob(int index) throws IOException {
+        Entry entry = mBlobs.get(index);
+        return openRange(entry.mBlobOffset, entry.mBlobLength);
+    }
+
+    /**
+     * @return The total size of the image and video data in the container
+     */
+    public long getMediaLength() {
+        long length = 0;
+
+        for (Entry entry : mBlobs) {
+            if ((entry.mFlags & FLAG_MEDIA) != 0) {
+                length += entry.mBlobLength;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * @return A stream of the metadata document, in which attachment data is left empty
+     */
+    @NonNull public InputStream openMetadata() throws IOException {
+        return openRange(mMetadataOffset, mMetadataLength);
+    }
+
+    /**
+     * @param attemptNumber The number of the submission attempt, starting at 1
+     * @return The size of the report in its wire format
+     */
+    public long getWireLength(int attemptNumber) {
+        long length = mMetadataLength;
+
+        for (Entry entry : mEntries) {
+            if (entry.mBlobLength == STRIPPABLE_MEMBER || (entry.mFlags & FLAG_BLOB_REFERENCE) != 0) {
+                continue;
+            } else if (entry.mBlobLength == ATTEMPT_NUMBER) {
+                int size = mCbor ? getHeaderSize(attemptNumber) : Integer.toString(attemptNumber).length();
+                length += size - ATTEMPT_NUMBER_PLACEHOLDER_SIZE;
+            } else if (mCbor) {
+                length += getHeaderSize(entry.mBlobLength) + entry.mBlobLength - CBOR_PLACEHOLDER_SIZE;
+            } else {
+                // Padded base64: 4 characters for every 3 bytes or part thereof
+                length += (entry.mBlobLength + 2) / 3 * 4;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Writes the report in its wire format, splicing each blob into the metadata in place of
+     * its placeholder.
+     * @param attemptNumber The number of the submission attempt, starting at 1
+     */
+    public void writeWireFormat(@NonNull OutputStream output, int attemptNumber) throws IOException {
+        FileInputStream input = new FileInputStream(mFile);
+
+        try {
+            long metadataPosition = 0;
+
+            for (Entry entry : mEntries) {
+                if (entry.mBlobLength == STRIPPABLE_MEMBER || (entry.mFlags & FLAG_BLOB_REFERENCE) != 0) {
+                    // Sent as they are in the metadata
+                    continue;
+                }
+
+                copy(input, mMetadataOffset + metadataPosition, entry.mPlaceholderOffset - metadataPosition, output);
+
+                if (entry.mBlobLength == ATTEMPT_NUMBER) {
+                    if (mCbor) {
+                        CborStreamWriter.writeUnsignedInteger(output, attemptNumber);
+                    } else {
+                        output.write(Integer.toString(attemptNumber).getBytes("US-ASCII"));
+                    }
+                    metadataPosition = entry.mPlaceholderOffset + ATTEMPT_NUMBER_PLACEHOLDER_SIZE;
+                } else if (mCbor) {
+                    CborStreamWriter.writeByteStringHeader(output, entry.mBlobLength);
+                    copy(input, entry.mBlobOffset, entry.mBlobLength, output);
+                    metadataPosition = entry.mPlaceholderOffset + CBOR_PLACEHOLDER_SIZE;
+                } else {
+                    output.write('"');
+                    input.getChannel().position(entry.mBlobOffset);
+                    JsonStreamWriter.encodeBase64(new RangeInputStream(input, entry.mBlobLength), output);
+                    output.write('"');
+                    metadataPosition = entry.mPlaceholderOffset + JSON_PLACEHOLDER_SIZE;
+                }
+            }
+
+            copy(input, mMetadataOffset + metadataPosition, mMetadataLength - metadataPosition, output);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Rewrites a container without its image and video data, keeping the rest of the report.
+     * The objects holding the stripped data, i.e. their attachments, are dropped from the
+     * metadata, so that the server isn't sent attachments without any data; as are the
+     * strippable members, which refer to the deferred update that is dropped along with them.
+     * @return The number of bytes freed
+     */
+    public static long stripMedia(@NonNull File file) throws IOException {
+        ReportContainer container = open(file);
+
+        if (container.getMediaLength() == 0 && !container.hasStrippableMembers()) {
+            return 0;
+        }
+
+        long originalLength = file.length();
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileInputStream input = new FileInputStream(file);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+        try {
+            output.write(MAGIC);
+            output.writeByte(VERSION);
+            output.writeByte(container.mCbor ? FORMAT_CBOR : FORMAT_JSON);
+            long offset = HEADER_SIZE;
+            byte[] metadata = container.readMetadata();
+            // The ranges of the metadata that are dropped, in order, as start and end offsets
+            List<long[]> droppedRanges = new ArrayList<>();
+            List<Entry> entries = new ArrayList<>(container.mEntries.size());
+
+            for (Entry entry : container.mEntries) {
+                boolean media = (entry.mFlags & FLAG_MEDIA) != 0;
+
+                if (entry.mBlobLength == STRIPPABLE_MEMBER || (media && entry.mObjectLength > 0)) {
+                    droppedRanges.add(container.getDroppedRange(metadata, entry, droppedRanges));
+                    continue;
+                }
+
+                long placeholderOffset = entry.mPlaceholderOffset - getDroppedLength(droppedRanges, entry.mPlaceholderOffset);
+
+                if (entry.mBlobLength == ATTEMPT_NUMBER) {
+                    entries.add(new Entry(placeholderOffset, entry.mBlobOffset, entry.mBlobLength, entry.mFlags));
+                } else if (media) {
+                    // Not held by an object of its own, so only the data can be dropped
+                    entries.add(new Entry(placeholderOffset, offset, 0, entry.mFlags));
+                } else {
+                    long objectOffset = entry.mObjectLength > 0 ? entry.mObjectOffset - getDroppedLength(droppedRanges, entry.mObjectOffset) : 0;
+                    copy(input, entry.mBlobOffset, entry.mBlobLength, output);
+                    entries.add(new Entry(placeholderOffset, offset, entry.mBlobLength, entry.mFlags, objectOffset, entry.mObjectLength));
+                    offset += entry.mBlobLength;
+                }
+            }
+
+            long metadataPosition = 0;
+            for (long[] range : droppedRanges) {
+                output.write(metadata, (int) metadataPosition, (int) (range[0] - metadataPosition));
+                metadataPosition = range[1];
+            }
+            output.write(metadata, (int) metadataPosition, (int) (metadata.length - metadataPosition));
+
+            writeIndex(output, entries, offset, metadata.length - getDroppedLength(droppedRanges, metadata.length));
+            output.close();
+        } catch (IOException e) {
+            IOUtils.closeQuietly(output);
+            tempFile.delete();
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to replace report container " + file);
+        }
+
+        return originalLength - file.length();
+    }
+
+    /**
+     * Rewrites a container so that it carries the data of the blobs that it refers to by
+     * digest, in case the server no longer has them. The references are replaced with the
+     * data, and its digest, as if the attachments had never been uploaded before.
+     * @return The digests of the blobs that are now carried
+     */
+    @NonNull public static List<String> inlineBlobReferences(@NonNull File file) throws IOException {
+        ReportContainer container = open(file);
+        List<String> digests = new ArrayList<>();
+
+        if (!container.hasBlobReferences()) {
+            return digests;
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileInputStream input = new FileInputStream(file);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+        try {
+            output.write(MAGIC);
+            output.writeByte(VERSION);
+            output.writeByte(container.mCbor ? FORMAT_CBOR : FORMAT_JSON);
+            long offset = HEADER_SIZE;
+            byte[] metadata = container.readMetadata();
+            ByteArrayOutputStream inlinedMetadata = new ByteArrayOutputStream(metadata.length + 1024);
+            int metadataPosition = 0;
+            List<Entry> entries = new ArrayList<>(container.mEntries.size());
+
+            for (Entry entry : container.mEntries) {
+                // How far the entry has moved, with the references before it replaced
+                long shift = inlinedMetadata.size() - metadataPosition;
+                boolean reference = (entry.mFlags & FLAG_BLOB_REFERENCE) != 0;
+                MessageDigest digest = reference ? newSha256Digest() : null;
+                long blobOffset = entry.mBlobOffset;
+
+                if (entry.mBlobLength >= 0) {
+                    blobOffset = offset;
+                    copy(input, entry.mBlobOffset, entry.mBlobLength, reference ? new DigestOutputStream(output, digest) : output);
+                    offset += entry.mBlobLength;
+                }
+
+                if (!reference) {
+                    long objectOffset = entry.mObjectLength > 0 ? entry.mObjectOffset + shift : 0;
+                    entries.add(new Entry(entry.mPlaceholderOffset + shift, blobOffset, entry.mBlobLength, entry.mFlags, objectOffset, entry.mObjectLength));
+                    continue;
+                }
+
+                // The reference member is replaced, but not the comma before it, if any
+                int start = (int) entry.mObjectOffset;
+                if (!container.mCbor && metadata[start] == ',') {
+                    start++;
+                }
+
+                String sha256 = ByteString.of(digest.digest()).hex();
+                ByteString dataMember = container.encodeMember(DATA_FIELD, "");
+                int placeholderSize = container.mCbor ? CBOR_PLACEHOLDER_SIZE : JSON_PLACEHOLDER_SIZE;
+
+                inlinedMetadata.write(metadata, metadataPosition, start - metadataPosition);
+                long placeholderOffset = inlinedMetadata.size() + dataMember.size() - placeholderSize;
+                dataMember.write(inlinedMetadata);
+                if (!container.mCbor) {
+                    inlinedMetadata.write(',');
+                }
+                container.encodeMember(DIGEST_FIELD, sha256).write(inlinedMetadata);
+                metadataPosition = (int) (entry.mObjectOffset + entry.mObjectLength);
+
+                entries.add(new Entry(placeholderOffset, blobOffset, entry.mBlobLength, entry.mFlags & ~FLAG_BLOB_REFERENCE));
+                digests.add(sha256);
+            }
+
+            inlinedMetadata.write(metadata, metadataPosition, metadata.length - metadataPosition);
+            inlinedMetadata.writeTo(output);
+            writeIndex(output, entries, offset, inlinedMetadata.size());
+            output.close();
+        } catch (IOException e) {
+            IOUtils.closeQuietly(output);
+            tempFile.delete();
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to replace report container " + file);
+        }
+
+        return digests;
+    }
+
+    private static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private boolean hasBlobReferences() {
+        for (Entry entry : mEntries) {
+            if ((entry.mFlags & FLAG_BLOB_REFERENCE) != 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean hasStrippableMembers() {
+        for (Entry entry : mEntries) {
+            if (entry.mBlobLength == STRIPPABLE_MEMBER) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return Those of the given values that the metadata holds as the string value of a
+     * member with the given name
+     */
+    @NonNull List<String> findMemberValues(@NonNull String name, @NonNull List<String> values) throws IOException {
+        ByteString metadata = ByteString.of(readMetadata());
+        List<String> found = new ArrayList<>();
+
+        for (String value : values) {
+            if (metadata.indexOf(encodeMember(name, value)) != -1) {
+                found.add(value);
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * @return A member as it is encoded in the metadata, minus the separator before it
+     */
+    private ByteString encodeMember(String name, String value) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TokenWriter writer = mCbor ? new CborStreamWriter(output) : new JsonStreamWriter(output);
+        writer.beginObject();
+        writer.name(name).value(value);
+        writer.endObject();
+        writer.close();
+
+        // Objects open and close with a single byte in either format
+        byte[] object = output.toByteArray();
+        return ByteString.of(object, 1, object.length - 2);
+    }
+
+    /**
+     * @return The metadata, which only takes a few kilobytes with the attachment data kept out
+     * of it
+     */
+    private byte[] readMetadata() throws IOException {
+        byte[] metadata = new byte[(int) mMetadataLength];
+        RandomAccessFile input = new RandomAccessFile(mFile, "r");
+
+        try {
+            input.seek(mMetadataOffset);
+            input.readFully(metadata);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+
+        return metadata;
+    }
+
+    /**
+     * @param droppedRanges The ranges dropped before the entry's, which this one mustn't overlap
+     * @return The range of the metadata to drop along with a media entry: the object holding it,
+     * or the strippable member, and in JSON, the comma that separates it from its neighbour
+     */
+    private long[] getDroppedRange(byte[] metadata, Entry entry, List<long[]> droppedRanges) {
+        long start = entry.mObjectOffset;
+        long end = entry.mObjectOffset + entry.mObjectLength;
+
+        if (!mCbor && metadata[(int) start] == ',') {
+            // The extent of a strippable member starts with the comma before it, if any
+            return new long[] { start, end };
+        }
+
+        if (!mCbor) {
+            long previousEnd = droppedRanges.isEmpty() ? 0 : droppedRanges.get(droppedRanges.size() - 1)[1];
+
+            if (end < metadata.length && metadata[(int) end] == ',') {
+                end++;
+            } else if (start > previousEnd && metadata[(int) start - 1] == ',') {
+                start--;
+            }
+        }
+
+        return new long[] { start, end };
+    }
+
+    /**
+     * @return The number of bytes dropped from the metadata before the given offset
+     */
+    private static long getDroppedLength(List<long[]> droppedRanges, long offset) {
+        long length = 0;
+
+        for (long[] range : droppedRanges) {
+            if (range[0] < offset) {
+                length += Math.min(range[1], offset) - range[0];
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Writes the index and trailer of a container whose metadata has just been written.
+     */
+    static void writeIndex(DataOutputStream output, List<Entry> entries, long metadataOffset, long metadataLength) throws IOException {
+        long indexOffset = metadataOffset + metadataLength;
+
+        output.writeInt(entries.size());
+        for (Entry entry : entries) {
+            output.writeLong(entry.mPlaceholderOffset);
+            output.writeLong(entry.mBlobOffset);
+            output.writeLong(entry.mBlobLength);
+            output.writeByte(entry.mFlags);
+            output.writeLong(entry.mObjectOffset);
+            output.writeLong(entry.mObjectLength);
+        }
+
+        output.writeLong(metadataOffset);
+        output.writeLong(metadataLength);
+        output.writeLong(indexOffset);
+    }
+
+    private InputStream openRange(long offset, long length) throws IOException {
+        FileInputStream input = new FileInputStream(mFile);
+
+        try {
+            input.getChannel().position(offset);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(input);
+            throw e;
+        }
+
+        return new RangeInputStream(input, length);
+    }
+
+    private static void copy(FileInputStream input, long offset, long length, OutputStream output) throws IOException {
+        input.getChannel().position(offset);
+
+        byte[] buffer = new byte[8192];
+        long remaining = length;
+        while (remaining > 0) {
+            int count = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (count == -1) {
+                throw new IOException("Truncated report container");
+            }
+            output.write(buffer, 0, count);
+            remaining -= count;
+        }
+    }
+
+    /**
+     * @return The size of a CBOR header with the given argument, e.g. a byte string's length
+     */
+    private static int getHeaderSize(long argument) {
+        if (argument < 24) {
+            return 1;
+        } else if (argument <= 0xffL) {
+            return 2;
+        } else if (argument <= 0xffffL) {
+            return 3;
+        } else if (argument <= 0xffffffffL) {
+            return 5;
+        } else {
+            return 9;
+        }
+    }
+
+    static final class Entry {
+        final long mPlaceholderOffset;
+        final long mBlobOffset;
+        final long mBlobLength;
+        final int mFlags;
+        // The extent within the metadata of the object holding a media blob, or of a strippable
+        // member or blob reference, if any
+        final long mObjectOffset;
+        final long mObjectLength;
+
+        Entry(long placeholderOffset, long blobOffset, long blobLength, int flags) {
+            this(placeholderOffset, blobOffset, blobLength, flags, 0, 0);
+        }
+
+        Entry(long placeholderOffset, long blobOffset, long blobLength, int flags, long objectOffset, long objectLength) {
+            mPlaceholderOffset = placeholderOffset;
+            mBlobOffset = blobOffset;
+            mBlobLength = blobLength;
+            mFlags = flags;
+            mObjectOffset = objectOffset;
+            mObjectLength = objectLength;
+        }
+    }
+
+    /**
+     * Reads up to a fixed number of bytes from the current position of the underlying stream.
+     */
+    private static final class RangeInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        RangeInputStream(InputStream input, long length) {
+            super(input);
+            mRemaining = length;
+        }
+
+        @Override public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+
+            int result = super.read();
+            if (result != -1) {
+                mRemaining--;
+            }
+            return result;
+        }
+
+        @Override public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+
+            int count = super.read(buffer, offset, (int) Math.min(length, mRemaining));
+            if (count != -1) {
+                mRemaining -= count;
+            }
+            return count;
+        }
+
+        @Override public long skip(long count) throws IOException {
+            long skipped = super.skip(Math.min(count, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override public int available() throws IOException {
+            return (int) Math.min(super.available(), mRemaining);
+        }
+
+        @Override public boolean markSupported() {
+            return false;
+        }
+    }
+}
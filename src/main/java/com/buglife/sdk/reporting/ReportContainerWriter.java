@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.buglife.sdk.CborStreamWriter;
+import com.buglife.sdk.IOUtils;
+import com.buglife.sdk.JsonStreamWriter;
+import com.buglife.sdk.TokenWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a report into a {@link ReportContainer}.
+ *
+ * Binary values are copied as is into the container's blob area, and an empty string is
+ * written in their place to the metadata document, which is written by a {@link JsonStreamWriter}
+ * or {@link CborStreamWriter} depending on the wire format. Everything else is passed on to
+ * the metadata writer.
+ *
+ * The metadata is buffered in memory until the writer is closed; with the attachment data kept
+ * out of it, it only takes a few kilobytes.
+ */
+public final class ReportContainerWriter implements TokenWriter {
+    private final DataOutputStream mOutput;
+    private final ByteArrayOutputStream mMetadata = new ByteArrayOutputStream();
+    private final TokenWriter mMetadataWriter;
+    private final boolean mCbor;
+    private final List<ReportContainer.Entry> mEntries = new ArrayList<>();
+    private long mOffset;
+    @Nullable private String mDeferredName;
+    // The metadata offsets of the objects that are open, innermost last
+    private final List<Long> mObjectOffsets = new ArrayList<>();
+    // The index of the media entry held by the innermost open object, or -1
+    private int mMediaEntry = -1;
+    private int mMediaEntryDepth;
+
+    /**
+     * @param cbor true if the report is to be sent as CBOR, false if it is to be sent as JSON
+     */
+    public ReportContainerWriter(@NonNull File file, boolean cbor) throws IOException {
+        mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        mMetadataWriter = cbor ? new CborStreamWriter(mMetadata) : new JsonStreamWriter(mMetadata);
+        mCbor = cbor;
+
+        mOutput.write(ReportContainer.MAGIC);
+        mOutput.writeByte(ReportContainer.VERSION);
+        mOutput.writeByte(cbor ? ReportContainer.FORMAT_CBOR : ReportContainer.FORMAT_JSON);
+        mOffset = ReportContainer.HEADER_SIZE;
+    }
+
+    /**
+     * @return The writer of the metadata document, e.g. to splice pre-serialized fragments into
+     * it; any pending name is passed on to it first. Binary values must not be written to it
+     * directly.
+     */
+    @NonNull public TokenWriter getMetadataWriter() throws IOException {
+        forwardName();
+        return mMetadataWriter;
+    }
+
+    @Override public ReportContainerWriter beginObject() throws IOException {
+        forwardName();
+        mMetadataWriter.beginObject();
+        mMetadataWriter.flush();
+        // Objects open with a single byte in either format
+        mObjectOffsets.add(mMetadata.size() - 1L);
+        return this;
+    }
+
+    @Override public ReportContainerWriter endObject() throws IOException {
+        forwardName();
+        mMetadataWriter.endObject();
+        long objectOffset = mObjectOffsets.remove(mObjectOffsets.size() - 1);
+
+        if (mMediaEntry != -1 && mMediaEntryDepth == mObjectOffsets.size() + 1) {
+            // Stripping the media drops the object that holds it, e.g. its attachment
+            mMetadataWriter.flush();
+            ReportContainer.Entry entry = mEntries.get(mMediaEntry);
+            mEntries.set(mMediaEntry, new ReportContainer.Entry(entry.mPlaceholderOffset, entry.mBlobOffset, entry.mBlobLength, entry.mFlags, objectOffset, mMetadata.size() - objectOffset));
+            mMediaEntry = -1;
+        }
+        return this;
+    }
+
+    @Override public ReportContainerWriter beginArray() throws IOException {
+        forwardName();
+        mMetadataWriter.beginArray();
+        return this;
+    }
+
+    @Override public ReportContainerWriter endArray() throws IOException {
+        forwardName();
+        mMetadataWriter.endArray();
+        return this;
+    }
+
+    /**
+     * Names are held back until their value is known, since binary values are written to the
+     * metadata as placeholders.
+     */
+    @Override public ReportContainerWriter name(@NonNull String name) throws IOException {
+        forwardName();
+        mDeferredName = name;
+        return this;
+    }
+
+    @Override public ReportContainerWriter value(@Nullable String value) throws IOException {
+        forwardName();
+        mMetadataWriter.value(value);
+        return this;
+    }
+
+    @Override public ReportContainerWriter value(boolean value) throws IOException {
+        forwardName();
+        mMetadataWriter.value(value);
+        return this;
+    }
+
+    @Override public ReportContainerWriter value(long value) throws IOException {
+        forwardName();
+        mMetadataWriter.value(value);
+        return this;
+    }
+
+    @Override public ReportContainerWriter value(double value) throws IOException {
+        forwardName();
+        mMetadataWriter.value(value);
+        return this;
+    }
+
+    @Override public ReportContainerWriter nullValue() throws IOException {
+        forwardName();
+        mMetadataWriter.nullValue();
+        return this;
+    }
+
+    /**
+     * Writes a placeholder for the number of the submission attempt, which is filled in each
+     * time the report is sent.
+     */
+    public ReportContainerWriter attemptNumberValue() throws IOException {
+        forwardName();
+        mMetadataWriter.value(0);
+        mMetadataWriter.flush();
+        long placeholderOffset = mMetadata.size() - ReportContainer.ATTEMPT_NUMBER_PLACEHOLDER_SIZE;
+        mEntries.add(new ReportContainer.Entry(placeholderOffset, ReportContainer.ATTEMPT_NUMBER, ReportContainer.ATTEMPT_NUMBER, 0));
+        return this;
+    }
+
+    /**
+     * Writes a number that refers to the report's deferred update, e.g. the number of
+     * attachments sent with it, which is dropped along with its name when the media is
+     * stripped from the container; see {@link ReportContainer#stripMedia(File)}.
+     */
+    public ReportContainerWriter strippableValue(long value) throws IOException {
+        if (mDeferredName == null) {
+            throw new IllegalStateException("Strippable values must be named");
+        }
+
+        mMetadataWriter.flush();
+        // In JSON, this includes the comma before the member, if any
+        long memberOffset = mMetadata.size();
+        forwardName();
+        mMetadataWriter.value(value);
+        mMetadataWriter.flush();
+        mEntries.add(new ReportContainer.Entry(memberOffset, 0, ReportContainer.STRIPPABLE_MEMBER, 0, memberOffset, mMetadata.size() - memberOffset));
+        return this;
+    }
+
+    /**
+     * Writes a reference to a blob that has already been uploaded, by its digest. The blob's
+     * data is kept in the blob area, but isn't sent, so that the report can carry it after all
+     * should the server no longer have it; see {@link ReportContainer#inlineBlobReferences(File)}.
+     */
+    public ReportContainerWriter blobReferenceValue(@NonNull String sha256, @NonNull File file) throws IOException {
+        if (mDeferredName == null) {
+            throw new IllegalStateException("Blob references must be named");
+        }
+
+        mMetadataWriter.flush();
+        // In JSON, this includes the comma before the member, if any
+        long memberOffset = mMetadata.size();
+        forwardName();
+        mMetadataWriter.value(sha256);
+        mMetadataWriter.flush();
+
+        long length = copyBlob(file);
+        mEntries.add(new ReportContainer.Entry(memberOffset, mOffset, length, ReportContainer.FLAG_BLOB_REFERENCE, memberOffset, mMetadata.size() - memberOffset));
+        mOffset += length;
+        return this;
+    }
+
+    /**
+     * Copies the contents of a file into the blob area, and writes a placeholder in its place.
+     * Binary values are only supported as object members.
+     */
+    @Override public ReportContainerWriter binaryValue(@NonNull File file) throws IOException {
+        return binaryValue(file, 0);
+    }
+
+    /**
+     * Like {@link #binaryValue(File)}, for image or video data, which can be stripped from the
+     * container later on to save space, along with the object that holds it; see
+     * {@link ReportContainer#stripMedia(File)}. An object holds at most one media value.
+     */
+    public ReportContainerWriter mediaValue(@NonNull File file) throws IOException {
+        binaryValue(file, ReportContainer.FLAG_MEDIA);
+        mMediaEntry = mEntries.size() - 1;
+        mMediaEntryDepth = mObjectOffsets.size();
+        return this;
+    }
+
+    private ReportContainerWriter binaryValue(File file, int flags) throws IOException {
+        if (mDeferredName == null) {
+            throw new IllegalStateException("Binary values must be named");
+        }
+
+        forwardName();
+        mMetadataWriter.value("");
+        mMetadataWriter.flush();
+        int placeholderSize = mCbor ? ReportContainer.CBOR_PLACEHOLDER_SIZE : ReportContainer.JSON_PLACEHOLDER_SIZE;
+        long placeholderOffset = mMetadata.size() - placeholderSize;
+
+        long length = copyBlob(file);
+        mEntries.add(new ReportContainer.Entry(placeholderOffset, mOffset, length, flags));
+        mOffset += length;
+        return this;
+    }
+
+    /**
+     * Copies the contents of a file to the end of the blob area.
+     * @return The length of the blob
+     */
+    private long copyBlob(File file) throws IOException {
+        long length = file.length();
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            long remaining = length;
+            int count;
+            while (remaining > 0 && (count = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                mOutput.write(buffer, 0, count);
+                remaining -= count;
+            }
+
+            if (remaining > 0) {
+                throw new IOException("File " + file + " was truncated while being written");
+            }
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+
+        return length;
+    }
+
+    @Override public void flush() throws IOException {
+        mMetadataWriter.flush();
+        mOutput.flush();
+    }
+
+    /**
+     * Appends the metadata, index and trailer, and closes the file.
+     */
+    @Override public void close() throws IOException {
+        try {
+            mMetadataWriter.close();
+
+            mMetadata.writeTo(mOutput);
+            ReportContainer.writeIndex(mOutput, mEntries, mOffset, mMetadata.size());
+        } finally {
+            mOutput.close();
+        }
+    }
+
+    private void forwardName() throws IOException {
+        if (mDeferredName != null) {
+            String name = mDeferredName;
+            mDeferredName = null;
+            mMetadataWriter.name(name);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.buglife.sdk.IOUtils;
+import com.buglife.sdk.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A segmented, append-only journal of the reports queued for submission.
+ *
+ * Each entry is a single line; enqueueing a report appends an entry to the newest segment, and
+ * acknowledging it (once it has been submitted, or given up on) appends a marker, so both take
+ * constant time regardless of the size of the queue. Submission attempts are recorded the same
+ * way, with the latest record for an entry superseding earlier ones. An entry's priority, if it
+ * has one other than the default, is written along with its ID. A segment is sealed once it
+ * grows past {@link #DEFAULT_MAX_SEGMENT_SIZE}, and a new one is started.
+ *
+ * {@link #compact()} reclaims sealed segments: a segment whose entries have all been
+ * acknowledged is deleted; a segment that is mostly acknowledged is rewritten, by appending its
+ * live entries (and their latest attempt records) to the newest segment. An acknowledgement
+ * marker is kept for as long as the entry it refers to is still on disk.
+ *
+ * The journal is read in full when it is opened, and writing resumes in a new segment. A torn
+ * line at the end of a segment (e.g. after a crash) is ignored, as is an entry that is present
+ * twice (e.g. after a crash during compaction).
+ */
+public final class ReportJournal {
+    static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024;
+    private static final String SEGMENT_EXTENSION = ".seg";
+    private static final char ENTRY = '+';
+    private static final char ACKNOWLEDGEMENT = '-';
+    private static final char ATTEMPT = '@';
+    // Separates the ID of an entry from its priority, if it has one other than the default
+    private static final char PRIORITY = ':';
+    static final int DEFAULT_PRIORITY = 0;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @NonNull private final File mDir;
+    private final long mMaxSegmentSize;
+    // Segment number -> segment, oldest first
+    private final TreeMap<Long, Segment> mSegments = new TreeMap<>();
+    // Entry ID -> entry, for entries that have not been acknowledged, in the order they were queued
+    private final TreeMap<Long, Entry> mPending = new TreeMap<>();
+    private long mNextId = 1;
+    // The newest segment is only appended to if it was started by this instance
+    @Nullable private OutputStream mOutput;
+
+    public ReportJournal(@NonNull File dir) {
+        this(dir, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    ReportJournal(@NonNull File dir, long maxSegmentSize) {
+        mDir = dir;
+        mMaxSegmentSize = maxSegmentSize;
+        load();
+    }
+
+    /**
+     * Queues a report with the default priority.
+     * @param payload The path to a report file, or an inline report; must be a single line
+     * @return The ID of the entry, to acknowledge it with
+     */
+    public long append(@NonNull String payload) throws IOException {
+        return append(payload, DEFAULT_PRIORITY);
+    }
+
+    /**
+     * Queues a report.
+     * @param payload The path to a report file, or an inline report; must be a single line
+     * @param priority The priority of the report; see {@link com.buglife.sdk.ReportPriority}
+     * @return The ID of the entry, to acknowledge it with
+     */
+    public synchronized long append(@NonNull String payload, int priority) throws IOException {
+        if (payload.indexOf('\n') != -1 || payload.indexOf('\r') != -1) {
+            throw new IllegalArgumentException("Journal entries must be a single line");
+        }
+
+        long id = mNextId++;
+        Entry entry = new Entry(id, payload, priority, 0);
+        Segment segment = write(formatEntry(entry));
+        segment.mRecordCount++;
+        entry.mSegment = segment.mNumber;
+        mPending.put(id, entry);
+        return id;
+    }
+
+    /**
+     * Removes a report from the queue. Does nothing if it was already acknowledged.
+     */
+    public synchronized void acknowledge(long id) throws IOException {
+        Entry entry = mPending.remove(id);
+
+        if (entry == null) {
+            return;
+        }
+
+        entry.mAcknowledged = true;
+        Segment segment = write(ACKNOWLEDGEMENT + Long.toString(id));
+        segment.mRecordCount++;
+        segment.mAcknowledgements.put(id, entry);
+    }
+
+    /**
+     * Records a submission attempt for a report. Does nothing if it was already acknowledged.
+     * @param attempts The number of attempts made so far, including this one
+     * @param nextAttemptAt The earliest time to try again, in milliseconds since the epoch
+     */
+    public synchronized void recordAttempt(long id, int attempts, long nextAttemptAt) throws IOException {
+        Entry entry = mPending.get(id);
+
+        if (entry == null) {
+            return;
+        }
+
+        Segment segment = write(formatAttempt(id, attempts, nextAttemptAt));
+        segment.mRecordCount++;
+        entry.mAttempts = attempts;
+        entry.mNextAttemptAt = nextAttemptAt;
+        entry.mAttemptSegment = segment.mNumber;
+    }
+
+    /**
+     * @return The entries that have not been acknowledged, in the order they were queued
+     */
+    @NonNull public synchronized List<Entry> getPending() {
+        return new ArrayList<>(mPending.values());
+    }
+
+    public synchronized boolean isEmpty() {
+        return mPending.isEmpty();
+    }
+
+    /**
+     * Deletes or rewrites sealed segments that are no longer needed, oldest first.
+     */
+    public synchronized void compact() throws IOException {
+        List<Segment> sealed = new ArrayList<>(mSegments.values());
+        if (mOutput != null) {
+            sealed.remove(sealed.size() - 1);
+        }
+
+        for (Segment segment : sealed) {
+            List<Entry> carriedEntries = new ArrayList<>();
+            List<Entry> carriedAttempts = new ArrayList<>();
+            List<Entry> carriedAcknowledgements = new ArrayList<>();
+
+            for (Entry entry : mPending.values()) {
+                if (entry.mSegment == segment.mNumber) {
+                    carriedEntries.add(entry);
+                } else if (entry.mAttemptSegment == segment.mNumber) {
+                    carriedAttempts.add(entry);
+                }
+            }
+
+            for (Entry entry : segment.mAcknowledgements.values()) {
+                // The marker is needed for as long as the entry is still on disk elsewhere
+                if (entry.mSegment != segment.mNumber && mSegments.containsKey(entry.mSegment)) {
+                    carriedAcknowledgements.add(entry);
+                }
+            }
+
+            int carried = carriedEntries.size() + carriedAttempts.size() + carriedAcknowledgements.size();
+            if (carried > 0 && carriedEntries.size() * 2 > segment.mRecordCount) {
+                // Mostly live; rewriting it would cost more than it reclaims
+                continue;
+            }
+
+            for (Entry entry : carriedEntries) {
+                Segment destination = write(formatEntry(entry));
+                destination.mRecordCount++;
+                entry.mSegment = destination.mNumber;
+
+                if (entry.mAttempts > 0) {
+                    carriedAttempts.add(entry);
+                }
+            }
+
+            for (Entry entry : carriedAttempts) {
+                Segment destination = write(formatAttempt(entry.mId, entry.mAttempts, entry.mNextAttemptAt));
+                destination.mRecordCount++;
+                entry.mAttemptSegment = destination.mNumber;
+            }
+
+            for (Entry entry : carriedAcknowledgements) {
+                Segment destination = write(ACKNOWLEDGEMENT + Long.toString(entry.mId));
+                destination.mRecordCount++;
+                destination.mAcknowledgements.put(entry.mId, entry);
+            }
+
+            mSegments.remove(segment.mNumber);
+            if (!segment.mFile.delete()) {
+                Log.e("Unable to delete journal segment " + segment.mFile);
+            }
+        }
+    }
+
+    /**
+     * Appends a line to the newest segment, starting a new one if it is full.
+     */
+    private Segment write(String line) throws IOException {
+        Segment segment = mSegments.isEmpty() ? null : mSegments.lastEntry().getValue();
+
+        if (segment == null || mOutput == null || segment.mFile.length() >= mMaxSegmentSize) {
+            closeOutput();
+            long number = segment == null ? 1 : segment.mNumber + 1;
+            segment = new Segment(number, new File(mDir, number + SEGMENT_EXTENSION));
+
+            if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                throw new IOException("Unable to create journal directory " + mDir);
+            }
+            mOutput = new FileOutputStream(segment.mFile, true);
+            mSegments.put(number, segment);
+        }
+
+        mOutput.write((line + '\n').getBytes(UTF_8));
+        mOutput.flush();
+        return segment;
+    }
+
+    private void closeOutput() {
+        IOUtils.closeQuietly(mOutput);
+        mOutput = null;
+    }
+
+    private void load() {
+        File[] files = mDir.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SEGMENT_EXTENSION)) {
+                try {
+                    long number = Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+                    mSegments.put(number, new Segment(number, file));
+                } catch (NumberFormatException ignored) {
+                    // Not a segment
+                }
+            }
+        }
+
+        Map<Long, Entry> entries = new TreeMap<>();
+
+        for (Segment segment : mSegments.values()) {
+            try {
+                // Segments are small; anything after the last line break is a torn line
+                String contents = IOUtils.readStringFromFile(segment.mFile);
+                String[] lines = contents.substring(0, contents.lastIndexOf('\n') + 1).split("\n");
+                for (String line : lines) {
+                    replay(segment, line, entries);
+                }
+            } catch (IOException e) {
+                Log.e("Error reading journal segment " + segment.mFile, e);
+            }
+        }
+
+        for (Entry entry : entries.values()) {
+            if (!entry.mAcknowledged) {
+                mPending.put(entry.mId, entry);
+            }
+        }
+    }
+
+    private void replay(Segment segment, String line, Map<Long, Entry> entries) {
+        if (line.isEmpty()) {
+            return;
+        }
+
+        try {
+            if (line.charAt(0) == ENTRY) {
+                int separator = line.indexOf(' ');
+                if (separator == -1) {
+                    return;
+                }
+
+                int prioritySeparator = line.lastIndexOf(PRIORITY, separator);
+                boolean hasPriority = prioritySeparator != -1;
+                long id = parseId(line, hasPriority ? prioritySeparator : separator);
+                Entry entry = entries.get(id);
+                if (entry == null) {
+                    int priority = hasPriority ? Integer.parseInt(line.substring(prioritySeparator + 1, separator)) : DEFAULT_PRIORITY;
+                    entry = new Entry(id, line.substring(separator + 1), priority, segment.mNumber);
+                    entries.put(id, entry);
+                } else {
+                    // A copy carried over by compaction; the original is deleted right after
+                    entry.mSegment = segment.mNumber;
+                }
+                segment.mRecordCount++;
+                mNextId = Math.max(mNextId, id + 1);
+            } else if (line.charAt(0) == ACKNOWLEDGEMENT) {
+                long id = parseId(line, line.length());
+                Entry entry = entries.get(id);
+                if (entry != null) {
+                    entry.mAcknowledged = true;
+                    segment.mAcknowledgements.put(id, entry);
+                    segment.mRecordCount++;
+                }
+            } else if (line.charAt(0) == ATTEMPT) {
+                String[] fields = line.substring(1).split(" ");
+                Entry entry = entries.get(Long.parseLong(fields[0]));
+                if (entry != null && fields.length == 3) {
+                    entry.mAttempts = Integer.parseInt(fields[1]);
+                    entry.mNextAttemptAt = Long.parseLong(fields[2]);
+                    entry.mAttemptSegment = segment.mNumber;
+                    segment.mRecordCount++;
+                }
+            }
+        } catch (NumberFormatException ignored) {
+            // Not a valid line
+        }
+    }
+
+    private static long parseId(String line, int end) {
+        return Long.parseLong(line.substring(1, end));
+    }
+
+    private static String formatEntry(Entry entry) {
+        if (entry.mPriority == DEFAULT_PRIORITY) {
+            return ENTRY + Long.toString(entry.mId) + ' ' + entry.mPayload;
+        }
+        return ENTRY + Long.toString(entry.mId) + PRIORITY + entry.mPriority + ' ' + entry.mPayload;
+    }
+
+    private static String formatAttempt(long id, int attempts, long nextAttemptAt) {
+        return ATTEMPT + Long.toString(id) + ' ' + attempts + ' ' + nextAttemptAt;
+    }
+
+    /**
+     * A queued report.
+     */
+    public static final class Entry {
+        private final long mId;
+        @NonNull private final String mPayload;
+        private final int mPriority;
+        // The segment that holds the entry itself, and the one that holds its latest attempt
+        private long mSegment;
+        private long mAttemptSegment;
+        private int mAttempts;
+        private long mNextAttemptAt;
+        private boolean mAcknowledged;
+
+        Entry(long id, @NonNull String payload, int priority, long segment) {
+            mId = id;
+            mPayload = payload;
+            mPriority = priority;
+            mSegment = segment;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * @return The path to a report file, or an inline report
+         */
+        @NonNull public String getPayload() {
+            return mPayload;
+        }
+
+        /**
+         * @return The priority of the report, which is fixed when it is queued
+         */
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * @return The number of submission attempts recorded so far
+         */
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        /**
+         * @return The earliest time to try again, in milliseconds since the epoch; 0 if no
+         * attempt has been recorded
+         */
+        public long getNextAttemptAt() {
+            return mNextAttemptAt;
+        }
+    }
+
+    private static final class Segment {
+        final long mNumber;
+        @NonNull final File mFile;
+        // The entries acknowledged in this segment, by ID
+        final Map<Long, Entry> mAcknowledgements = new TreeMap<>();
+        int mRecordCount;
+
+        Segment(long number, @NonNull File file) {
+            mNumber = number;
+            mFile = file;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+/**
+ * A {@link ReportSubmissionCallback} that is also told how far the upload of the report has
+ * come, e.g. to show a determinate progress bar.
+ *
+ * @warning This is an experimental API, and is subject to change!
+ */
+public interface ReportProgressCallback extends ReportSubmissionCallback {
+    /**
+     * Called on the main thread as the report is uploaded; updates that arrive faster than they
+     * can be delivered are coalesced. Starts over from 0 if the upload is retried.
+     * @param totalBytes The size of the report, or -1 if it isn't known
+     */
+    void onProgress(long bytesSent, long totalBytes);
+}
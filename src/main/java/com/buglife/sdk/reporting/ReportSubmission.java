@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import okhttp3.Call;
+
+/**
+ * A handle to a report on its way to the server.
+ *
+ * The submission completes once the report has been durably queued, or, with the manual retry
+ * policy, once its single attempt has been answered by the server with a successful status. Its
+ * value is the server-side ID of the report, which is only known in the latter case.
+ *
+ * Cancelling the submission stops the report from being written or queued, or aborts its
+ * attempt in flight; reports that have already been queued to be retried are not affected.
+ * Callbacks are delivered on the main thread, and are not called once the submission has been
+ * cancelled. Removing the callback of a screen that goes away leaves the report to complete in
+ * the background.
+ *
+ * @warning This is an experimental API, and is subject to change!
+ */
+public final class ReportSubmission implements Future<String> {
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private final Executor mCallbackExecutor;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    // Guarded by this
+    private final List<ReportSubmissionCallback> mCallbacks = new ArrayList<>();
+    private int mState = PENDING;
+    @Nullable private String mReportId;
+    @Nullable private ReportSubmissionCallback.Error mError;
+    @Nullable private Throwable mThrowable;
+    @Nullable private Call mCall;
+    @Nullable private Runnable mOnCancelListener;
+    private long mBytesSent;
+    private long mTotalBytes = -1;
+    private boolean mProgressPosted;
+
+    public ReportSubmission() {
+        this(new Executor() {
+            private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+            @Override public void execute(@NonNull Runnable runnable) {
+                mMainHandler.post(runnable);
+            }
+        });
+    }
+
+    /**
+     * @param callbackExecutor The executor that callbacks are delivered on
+     */
+    ReportSubmission(@NonNull Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Adds a callback, which is notified of the outcome right away if the submission has already
+     * completed.
+     */
+    public void addCallback(@NonNull ReportSubmissionCallback callback) {
+        synchronized (this) {
+            if (mState == CANCELLED) {
+                return;
+            }
+
+            mCallbacks.add(callback);
+
+            if (mState == PENDING) {
+                return;
+            }
+        }
+
+        deliver(callback);
+    }
+
+    /**
+     * Removes a callback, which is then no longer notified, even if the outcome is already on
+     * its way to the main thread.
+     */
+    public synchronized void removeCallback(@NonNull ReportSubmissionCallback callback) {
+        mCallbacks.remove(callback);
+    }
+
+    /**
+     * Cancels the submission, if it hasn't completed yet. The call in flight, if any, is
+     * aborted regardless of mayInterruptIfRunning, since aborting it doesn't interrupt any
+     * threads.
+     * @return false if the submission had already completed
+     */
+    @Override public boolean cancel(boolean mayInterruptIfRunning) {
+        Call call;
+        Runnable onCancelListener;
+
+        synchronized (this) {
+            if (mState != PENDING) {
+                return false;
+            }
+
+            mState = CANCELLED;
+            mCallbacks.clear();
+            call = mCall;
+            mCall = null;
+            onCancelListener = mOnCancelListener;
+            mOnCancelListener = null;
+        }
+
+        mDone.countDown();
+
+        if (call != null) {
+            call.cancel();
+        }
+
+        if (onCancelListener != null) {
+            onCancelListener.run();
+        }
+
+        return true;
+    }
+
+    @Override public synchronized boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    @Override public synchronized boolean isDone() {
+        return mState != PENDING;
+    }
+
+    /**
+     * Waits for the submission to complete.
+     * @return The server-side ID of the report, or null if it was queued to be submitted later
+     * @throws ExecutionException If the report couldn't be written or submitted
+     * @throws CancellationException If the submission was cancelled
+     */
+    @Override @Nullable public String get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getResult();
+    }
+
+    /**
+     * Waits for the submission to complete, for at most the given time; see {@link #get()}.
+     * The submission carries on if the wait times out.
+     */
+    @Override @Nullable public String get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException("Report submission did not complete within " + unit.toMillis(timeout) + " ms");
+        }
+        return getResult();
+    }
+
+    /**
+     * @return Why the submission failed, or null if it hasn't
+     */
+    @Nullable public synchronized ReportSubmissionCallback.Error getError() {
+        return mError;
+    }
+
+    /**
+     * Completes the submission successfully. Called by the SDK; see
+     * {@link ReportSubmissionAccessor}.
+     * @param reportId The server-side ID of the report, if it has been submitted
+     * @return false if the submission had already completed or been cancelled
+     */
+    boolean complete(@Nullable String reportId) {
+        List<ReportSubmissionCallback> callbacks;
+
+        synchronized (this) {
+            if (mState != PENDING) {
+                return false;
+            }
+
+            mState = SUCCEEDED;
+            mReportId = reportId;
+            callbacks = finish();
+        }
+
+        notifyCallbacks(callbacks);
+        return true;
+    }
+
+    /**
+     * Completes the submission with an error. Called by the SDK; see
+     * {@link ReportSubmissionAccessor}.
+     * @return false if the submission had already completed or been cancelled
+     */
+    boolean fail(@NonNull ReportSubmissionCallback.Error error, @NonNull Throwable throwable) {
+        List<ReportSubmissionCallback> callbacks;
+
+        synchronized (this) {
+            if (mState != PENDING) {
+                return false;
+            }
+
+            mState = FAILED;
+            mError = error;
+            mThrowable = throwable;
+            callbacks = finish();
+        }
+
+        notifyCallbacks(callbacks);
+        return true;
+    }
+
+    /**
+     * Sets the call of the current submission attempt, to be aborted if the submission is
+     * cancelled. A call set after cancellation is aborted right away, before it is executed.
+     */
+    synchronized void setCall(@NonNull Call call) {
+        if (mState == CANCELLED) {
+            call.cancel();
+        } else {
+            mCall = call;
+        }
+    }
+
+    /**
+     * Sets a listener that is run once if the submission is cancelled, right away if it already
+     * has been.
+     */
+    void setOnCancelListener(@NonNull Runnable listener) {
+        synchronized (this) {
+            if (mState != CANCELLED) {
+                mOnCancelListener = listener;
+                return;
+            }
+        }
+
+        listener.run();
+    }
+
+    /**
+     * Passes the progress of the current upload on to the {@link ReportProgressCallback}s. Only
+     * one update is posted at a time; later ones replace it until it has been delivered.
+     */
+    void setProgress(long bytesSent, long totalBytes) {
+        synchronized (this) {
+            if (mState != PENDING) {
+                return;
+            }
+
+            mBytesSent = bytesSent;
+            mTotalBytes = totalBytes;
+
+            if (mProgressPosted) {
+                return;
+            }
+            mProgressPosted = true;
+        }
+
+        mCallbackExecutor.execute(new Runnable() {
+            @Override public void run() {
+                List<ReportProgressCallback> callbacks = new ArrayList<>();
+                long bytesSent;
+                long totalBytes;
+
+                synchronized (ReportSubmission.this) {
+                    mProgressPosted = false;
+                    if (mState != PENDING) {
+                        return;
+                    }
+
+                    for (ReportSubmissionCallback callback : mCallbacks) {
+                        if (callback instanceof ReportProgressCallback) {
+                            callbacks.add((ReportProgressCallback) callback);
+                        }
+                    }
+                    bytesSent = mBytesSent;
+                    totalBytes = mTotalBytes;
+                }
+
+                for (ReportProgressCallback callback : callbacks) {
+                    callback.onProgress(bytesSent, totalBytes);
+                }
+            }
+        });
+    }
+
+    private List<ReportSubmissionCallback> finish() {
+        List<ReportSubmissionCallback> callbacks = new ArrayList<>(mCallbacks);
+        mCall = null;
+        mOnCancelListener = null;
+        mDone.countDown();
+        return callbacks;
+    }
+
+    private void notifyCallbacks(List<ReportSubmissionCallback> callbacks) {
+        for (ReportSubmissionCallback callback : callbacks) {
+            deliver(callback);
+        }
+    }
+
+    private void deliver(final ReportSubmissionCallback callback) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override public void run() {
+                ReportSubmissionCallback.Error error;
+                Throwable throwable;
+
+                synchronized (ReportSubmission.this) {
+                    // Callbacks that have been removed in the meantime aren't notified
+                    if (!mCallbacks.remove(callback)) {
+                        return;
+                    }
+                    error = mError;
+                    throwable = mThrowable;
+                }
+
+                if (error == null) {
+                    callback.onSuccess();
+                } else {
+                    callback.onFailure(error, throwable);
+                }
+            }
+        });
+    }
+
+    private synchronized String getResult() throws ExecutionException {
+        switch (mState) {
+            case SUCCEEDED:
+                return mReportId;
+            case FAILED:
+                throw new ExecutionException(mThrowable);
+            default:
+                throw new CancellationException("Report submission was cancelled");
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.buglife.sdk.reporting;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Completes report submissions on behalf of the SDK outside of this package, so that completing
+ * a submission isn't part of the API of {@link ReportSubmission} itself. Not for use by apps.
+ */
+public final class ReportSubmissionAccessor {
+    private ReportSubmissionAccessor() {
+    }
+
+    /**
+     * @see ReportSubmission#complete(String)
+     */
+    public static boolean complete(@NonNull ReportSubmission submission, @Nullable String reportId) {
+        return submission.complete(reportId);
+    }
+
+    /**
+     * @see ReportSubmission#fail(ReportSubmissionCallback.Error, Throwable)
+     */
+    public static boolean fail(@NonNull ReportSubmission submission, @NonNull ReportSubmissionCallback.Error error, @NonNull Throwable throwable) {
+        return submission.fail(error, throwable);
+    }
+}
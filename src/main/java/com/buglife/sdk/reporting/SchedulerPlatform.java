@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+
+/**
+ * The ties of the {@link SubmissionScheduler} to the platform: where its files are kept, and how
+ * it is woken up should the process be gone by the time it has work to do. All methods are
+ * called on the scheduler thread.
+ */
+interface SchedulerPlatform {
+    /**
+     * @return The journal of pending reports, with any reports left in older queues moved into it
+     */
+    @NonNull ReportJournal openJournal();
+
+    @NonNull File getPendingReportsDir();
+
+    @NonNull File getDeferredUpdatesDir();
+
+    @NonNull BlobIndex getBlobIndex();
+
+    boolean isSatisfied(@NonNull UploadConstraints constraints);
+
+    /**
+     * Wakes the scheduler up after a delay through a service, replacing any earlier wake-up.
+     */
+    void scheduleWakeUp(long delayMillis);
+
+    void cancelWakeUp();
+
+    /**
+     * Wakes the scheduler up through a service once the device meets the constraints.
+     * @return false if the constraints can't be waited on, and have to be checked in-process
+     */
+    boolean scheduleConstrainedWakeUp(@NonNull UploadConstraints constraints);
+
+    void cancelConstrainedWakeUp();
+}
@@ -24,9 +24,12 @@ import android.content.pm.PackageManager;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 
 import com.buglife.sdk.Log;
 
+import java.util.Arrays;
+
 public class SessionSnapshot implements Parcelable {
     private final String mPlatform;
     private final String mSDKVersion;
@@ -74,6 +77,25 @@ public class SessionSnapshot implements Parcelable {
         }
     }
 
+    SessionSnapshot(String platform, String sdkVersion, String sdkName, String userEmail, String userIdentifier, String bundleIdentifier, String bundleName, @Nullable String bundleShortVersion, @Nullable String bundleVersion) {
+        mPlatform = platform;
+        mSDKVersion = sdkVersion;
+        mSDKName = sdkName;
+        mUserEmail = userEmail;
+        mUserIdentifier = userIdentifier;
+        mBundleIdentifier = bundleIdentifier;
+        mBundleName = bundleName;
+        mBundleShortVersion = bundleShortVersion;
+        mBundleVersion = bundleVersion;
+    }
+
+    /**
+     * @return A copy of this snapshot for another user, without querying the package manager
+     */
+    SessionSnapshot withUser(String userEmail, String userIdentifier) {
+        return new SessionSnapshot(mPlatform, mSDKVersion, mSDKName, userEmail, userIdentifier, mBundleIdentifier, mBundleName, mBundleShortVersion, mBundleVersion);
+    }
+
     public String getPlatform() {
         return mPlatform;
     }
@@ -112,6 +134,32 @@ public class SessionSnapshot implements Parcelable {
         return mBundleName;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SessionSnapshot)) {
+            return false;
+        }
+
+        SessionSnapshot that = (SessionSnapshot) o;
+        return TextUtils.equals(mPlatform, that.mPlatform)
+                && TextUtils.equals(mSDKVersion, that.mSDKVersion)
+                && TextUtils.equals(mSDKName, that.mSDKName)
+                && TextUtils.equals(mUserEmail, that.mUserEmail)
+                && TextUtils.equals(mUserIdentifier, that.mUserIdentifier)
+                && TextUtils.equals(mBundleIdentifier, that.mBundleIdentifier)
+                && TextUtils.equals(mBundleName, that.mBundleName)
+                && TextUtils.equals(mBundleShortVersion, that.mBundleShortVersion)
+                && TextUtils.equals(mBundleVersion, that.mBundleVersion);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[] {mPlatform, mSDKVersion, mSDKName, mUserEmail, mUserIdentifier, mBundleIdentifier, mBundleName, mBundleShortVersion, mBundleVersion});
+    }
+
     /* Parcelable */
 
     SessionSnapshot(Parcel in) {
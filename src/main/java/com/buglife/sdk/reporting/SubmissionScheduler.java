@@ -0,0 +1,1102 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.content.Context;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.buglife.sdk.IOUtils;
+import com.buglife.sdk.Log;
+import com.buglife.sdk.ReportPriority;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The single owner of all pending reports, which submits them, and retries them until they
+ * succeed, with exponential backoff and jitter.
+ *
+ * Reports are queued in a {@link ReportJournal}, along with the number of attempts made so far
+ * and the earliest time to try again; both survive process restarts, and the attempt number is
+ * sent with each attempt as the report's submission_attempts. At most
+ * {@link #MAX_CONCURRENT_UPLOADS} reports are uploaded at a time, and a report is given up on
+ * after {@link #MAX_ATTEMPTS} attempts.
+ *
+ * Each {@link ReportPriority} is a lane of the queue. Higher lanes are always drained first, and
+ * each lane, together with the lanes below it, may only take up some of the upload slots (see
+ * {@link #getMaxUploads(ReportPriority)}), so that the highest lane always has a slot free of
+ * lower-priority uploads.
+ *
+ * Attachments deferred by {@link com.buglife.sdk.Buglife#setDeferredAttachmentThreshold} are
+ * queued as a follow-up update once their report has been submitted, and its server-side ID is
+ * known. Updates are only sent while the device meets their {@link UploadConstraints}; a
+ * separate job, with those constraints, wakes the scheduler up for them.
+ *
+ * The queue can be given a quota, in bytes and in reports; once it goes over it, an
+ * {@link EvictionPolicy} decides which reports make way. See {@link #getStats()} for counters.
+ *
+ * The queue is worked through while the process is alive; {@link SubmitReportService} (or, below
+ * Lollipop and with {@link com.buglife.sdk.RetryPolicy#AUTOMATIC_LEGACY},
+ * {@link SubmitReportLegacyService}) only wakes it up, and keeps the process alive until it is
+ * idle. All of the scheduler's state, including the journal, is only accessed on its own thread.
+ */
+public final class SubmissionScheduler {
+    static final int MAX_CONCURRENT_UPLOADS = 3;
+    static final int MAX_ATTEMPTS = 10;
+    static final long BASE_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.HOURS.toMillis(6);
+    // Below Lollipop, the constraints of deferred updates are checked this often in-process
+    static final long CONSTRAINTS_CHECK_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    // Journal payloads of deferred updates: the prefix, constraint flags, report ID, and path
+    private static final String UPDATE_PREFIX = "update ";
+    private static final int NOT_WAITING = -1;
+    private static SubmissionScheduler sInstance;
+
+    @NonNull private final SchedulerPlatform mPlatform;
+    private final ScheduledExecutorService mExecutor;
+    private final Executor mUploadExecutor;
+    private final SubmitReportTask mTask;
+    private final Random mRandom = new Random();
+    // Only accessed on the scheduler thread
+    private ReportJournal mJournal;
+    private final Set<Long> mInFlight = new HashSet<>();
+    // The number of upload slots taken by each lane, by ordinal
+    private final int[] mActiveUploads = new int[ReportPriority.values().length];
+    // Entry ID -> submission, for reports that are only attempted once
+    private final Map<Long, ReportSubmission> mSubmissions = new HashMap<>();
+    private final List<Runnable> mIdleListeners = new ArrayList<>();
+    @Nullable private ScheduledFuture<?> mWakeUp;
+    @NonNull private volatile UploadConstraints mDeferredUploadConstraints = UploadConstraints.NONE;
+    private volatile long mMaxPendingBytes;
+    private volatile int mMaxPendingReports;
+    @NonNull private volatile EvictionPolicy mEvictionPolicy = EvictionPolicy.OLDEST_FIRST;
+    private final QueueStats mStats = new QueueStats();
+    // Entry ID -> queued report, so that the size of each report is only computed once
+    private final Map<Long, QueuedReport> mQueuedReports = new HashMap<>();
+
+    // Higher lanes first; within a lane, in the order the reports were queued
+    private static final Comparator<ReportJournal.Entry> LANE_ORDER = new Comparator<ReportJournal.Entry>() {
+        @Override public int compare(ReportJournal.Entry a, ReportJournal.Entry b) {
+            int lane = getLane(b).ordinal() - getLane(a).ordinal();
+            return lane != 0 ? lane : (a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1));
+        }
+    };
+
+    private final Runnable mSchedule = new Runnable() {
+        @Override public void run() {
+            schedule();
+        }
+    };
+
+    /**
+     * @return The scheduler; it starts working through any reports left over from an earlier
+     * process right away
+     */
+    public static synchronized SubmissionScheduler getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new SubmissionScheduler(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private SubmissionScheduler(@NonNull Context context) {
+        this(new AndroidSchedulerPlatform(context),
+                new SubmitReportTask(),
+                Executors.newSingleThreadScheduledExecutor(newThreadFactory("Buglife submission scheduler")),
+                Executors.newFixedThreadPool(MAX_CONCURRENT_UPLOADS, newThreadFactory("Buglife submission")));
+    }
+
+    /**
+     * @param executor The scheduler thread, which all of the scheduler's state is confined to
+     * @param uploadExecutor Runs uploads, at most {@link #MAX_CONCURRENT_UPLOADS} at a time
+     */
+    SubmissionScheduler(@NonNull SchedulerPlatform platform, @NonNull SubmitReportTask task, @NonNull ScheduledExecutorService executor, @NonNull Executor uploadExecutor) {
+        mPlatform = platform;
+        mTask = task;
+        mExecutor = executor;
+        mUploadExecutor = uploadExecutor;
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                mJournal = mPlatform.openJournal();
+                enforceQuota();
+                schedule();
+            }
+        });
+    }
+
+    /**
+     * Sets whether the scheduler is woken up by {@link SubmitReportLegacyService} rather than by
+     * {@link SubmitReportService}. The legacy service is always used below Lollipop.
+     */
+    public void setUseLegacyService(boolean useLegacyService) {
+        if (mPlatform instanceof AndroidSchedulerPlatform) {
+            ((AndroidSchedulerPlatform) mPlatform).setUseLegacyService(useLegacyService);
+        }
+    }
+
+    /**
+     * Sets the constraints of the deferred updates of reports that are submitted from now on.
+     */
+    public void setDeferredUploadConstraints(@NonNull UploadConstraints constraints) {
+        mDeferredUploadConstraints = constraints;
+    }
+
+    /**
+     * Sets the quota of the queue, which is enforced as reports are queued.
+     * @param maxBytes The maximum disk space taken up by pending reports, or 0 for no limit
+     * @param maxReports The maximum number of pending reports, or 0 for no limit
+     * @param evictionPolicy Decides which reports make way once the queue goes over its quota
+     */
+    public void setQuota(long maxBytes, int maxReports, @NonNull EvictionPolicy evictionPolicy) {
+        mMaxPendingBytes = maxBytes;
+        mMaxPendingReports = maxReports;
+        mEvictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * @return The counters of the queue, which are kept up to date as reports are queued,
+     * submitted and evicted
+     */
+    @NonNull public QueueStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Durably queues a report for submission, with {@link ReportPriority#NORMAL} priority.
+     * @see #enqueue(PendingReport, ReportPriority, ReportSubmission)
+     */
+    public void enqueue(@NonNull PendingReport pendingReport, @Nullable ReportSubmission submission) throws IOException {
+        enqueue(pendingReport, ReportPriority.NORMAL, submission);
+    }
+
+    /**
+     * Durably queues a report for submission. The report is moved into the pending reports
+     * directory.
+     * @param priority The lane of the queue that the report is submitted from
+     * @param submission If non-null, the report is only attempted once, and the submission is
+     *                   completed with the outcome; cancelling it drops the report, or aborts
+     *                   its attempt in flight. Otherwise the report is retried until it succeeds.
+     * @throws IOException If the report couldn't be queued
+     */
+    public void enqueue(@NonNull PendingReport pendingReport, @NonNull ReportPriority priority, @Nullable ReportSubmission submission) throws IOException {
+        enqueue(pendingReport, null, priority, submission);
+    }
+
+    /**
+     * Durably queues an update to a report that has already been submitted. Updates are retried
+     * like reports; they are moved into the deferred updates directory, but unlike the deferred
+     * attachments of a report, they aren't held back by the deferred upload constraints.
+     * @param reportId The server-side ID of the report that the update is for
+     * @see #enqueue(PendingReport, ReportPriority, ReportSubmission)
+     */
+    public void enqueueUpdate(@NonNull PendingReport pendingUpdate, @NonNull String reportId, @NonNull ReportPriority priority, @Nullable ReportSubmission submission) throws IOException {
+        enqueue(pendingUpdate, reportId, priority, submission);
+    }
+
+    private void enqueue(@NonNull final PendingReport pendingReport, @Nullable final String reportId, @NonNull final ReportPriority priority, @Nullable final ReportSubmission submission) throws IOException {
+        try {
+            mExecutor.submit(new Callable<Void>() {
+                @Override public Void call() throws IOException {
+                    File dir = reportId != null ? mPlatform.getDeferredUpdatesDir() : mPlatform.getPendingReportsDir();
+                    PendingReport queuedReport = pendingReport.moveTo(dir);
+                    long id;
+
+                    try {
+                        // The key is fixed before the first attempt, so that every attempt shares it
+                        queuedReport.getIdempotencyKey();
+                        String payload = reportId != null ? newUpdatePayload(UploadConstraints.NONE, reportId, queuedReport) : queuedReport.getReportFile().getAbsolutePath();
+                        id = mJournal.append(payload, priority.getValue());
+                    } catch (IOException e) {
+                        queuedReport.delete();
+                        throw e;
+                    }
+
+                    if (submission != null) {
+                        mSubmissions.put(id, submission);
+                        // Cancelled reports are dropped the next time the queue is looked at
+                        submission.setOnCancelListener(new Runnable() {
+                            @Override public void run() {
+                                mExecutor.execute(mSchedule);
+                            }
+                        });
+                    }
+
+                    enforceQuota();
+                    scheduleWakeUp(0);
+                    return null;
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing report", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error queueing report", e.getCause());
+        }
+    }
+
+    /**
+     * Submits every report that is due, and calls back once none are left in flight or due.
+     * @param onIdle Called on the scheduler thread
+     */
+    public void runUntilIdle(@NonNull final Runnable onIdle) {
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                mIdleListeners.add(onIdle);
+                schedule();
+            }
+        });
+    }
+
+    /**
+     * Called when the system stops the job that keeps the process alive, after which the process
+     * may be gone at any moment. Uploads that are in flight are left to finish if they can; since
+     * their attempts are already recorded, the service is woken up again for their retries, as
+     * well as for every other report that is pending.
+     */
+    public void onJobStopped() {
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                rearm();
+            }
+        });
+    }
+
+    private void rearm() {
+        long now = System.currentTimeMillis();
+        long nextAttemptAt = Long.MAX_VALUE;
+        int waitingFlags = NOT_WAITING;
+
+        for (ReportJournal.Entry entry : mJournal.getPending()) {
+            if (isDeferredUpdate(entry)) {
+                int flags = getUpdateConstraints(entry).getFlags();
+                waitingFlags = waitingFlags == NOT_WAITING ? flags : waitingFlags & flags;
+            } else {
+                nextAttemptAt = Math.min(nextAttemptAt, entry.getNextAttemptAt());
+            }
+        }
+
+        if (waitingFlags != NOT_WAITING && !mPlatform.scheduleConstrainedWakeUp(UploadConstraints.fromFlags(waitingFlags))) {
+            nextAttemptAt = Math.min(nextAttemptAt, now + CONSTRAINTS_CHECK_INTERVAL_MILLIS);
+        }
+
+        if (nextAttemptAt != Long.MAX_VALUE) {
+            mPlatform.scheduleWakeUp(Math.max(0, nextAttemptAt - now));
+        }
+    }
+
+    /**
+     * Dispatches the reports that are due, highest lane first, as long as their lane has free
+     * upload slots. Small reports of the same lane are packed into batches, each of which takes
+     * a single slot. This runs again as each upload
+     * finishes, so once nothing is in flight, nothing is due either. Deferred updates whose
+     * constraints aren't met are left waiting, without counting an attempt.
+     */
+    private void schedule() {
+        long now = System.currentTimeMillis();
+        long nextAttemptAt = Long.MAX_VALUE;
+        // The constraints that all waiting updates have in common, if any are waiting
+        int waitingFlags = NOT_WAITING;
+        // The open batch, which already holds an upload slot in its lane
+        ReportBatch batch = null;
+        ReportPriority batchLane = null;
+        List<ReportJournal.Entry> batchEntries = new ArrayList<>();
+        List<ReportJournal.Entry> pending = mJournal.getPending();
+        Collections.sort(pending, LANE_ORDER);
+
+        for (ReportJournal.Entry entry : pending) {
+            if (mInFlight.contains(entry.getId())) {
+                continue;
+            }
+
+            ReportSubmission submission = mSubmissions.get(entry.getId());
+
+            if (submission != null && submission.isCancelled()) {
+                remove(entry);
+                continue;
+            }
+
+            if (entry.getNextAttemptAt() > now) {
+                nextAttemptAt = Math.min(nextAttemptAt, entry.getNextAttemptAt());
+                continue;
+            }
+
+            PendingReport pendingReport = getPendingReport(entry);
+
+            if (pendingReport != null && !pendingReport.exists()) {
+                // If the report is gone, there's no point in retrying.
+                Log.e("Error reading report from disk! Report not found at " + entry.getPayload());
+                giveUp(entry, new IOException("Report not found at " + entry.getPayload()));
+                continue;
+            }
+
+            boolean update = isDeferredUpdate(entry);
+
+            if (update) {
+                UploadConstraints constraints = getUpdateConstraints(entry);
+
+                if (!mPlatform.isSatisfied(constraints)) {
+                    waitingFlags = waitingFlags == NOT_WAITING ? constraints.getFlags() : waitingFlags & constraints.getFlags();
+                    continue;
+                }
+            }
+
+            ReportPriority lane = getLane(entry);
+            int attemptNumber = entry.getAttempts() + 1;
+            // Reports that someone is waiting on are sent on their own, so that they can be cancelled
+            boolean batched = pendingReport != null && !update && submission == null && mTask.isBatchSupported() && ReportBatch.canBatch(pendingReport, attemptNumber);
+
+            if (batched && batch != null && (lane != batchLane || !canAddToBatch(batch, pendingReport, attemptNumber))) {
+                if (!dispatch(batch, batchEntries, batchLane, now)) {
+                    nextAttemptAt = Math.min(nextAttemptAt, now + BASE_BACKOFF_MILLIS);
+                }
+                batch = null;
+                batchEntries = new ArrayList<>();
+            }
+
+            if ((!batched || batch == null) && !canStartUpload(lane)) {
+                if (getActiveUploads() >= MAX_CONCURRENT_UPLOADS) {
+                    break;
+                }
+                // Lower lanes may still have free slots
+                continue;
+            }
+
+            if (batched) {
+                if (batch == null) {
+                    batch = new ReportBatch(pendingReport.isCbor());
+                    batchLane = lane;
+                    mActiveUploads[lane.ordinal()]++;
+                }
+
+                try {
+                    if (batch.add(pendingReport, attemptNumber)) {
+                        mInFlight.add(entry.getId());
+                        batchEntries.add(entry);
+                        continue;
+                    }
+                } catch (IOException e) {
+                    Log.e("Error adding report to batch!", e);
+                }
+
+                // Sent on its own instead, so that an error counts as an attempt like any other
+                if (batch.size() == 0) {
+                    mActiveUploads[lane.ordinal()]--;
+                    batch = null;
+                }
+
+                if (!canStartUpload(lane)) {
+                    // Tried again once the batch that holds the lane's slot is done, or else after a backoff
+                    nextAttemptAt = Math.min(nextAttemptAt, now + getBackoffMillis(attemptNumber, mRandom));
+                    continue;
+                }
+            }
+
+            long retryAt = now + getBackoffMillis(attemptNumber, mRandom);
+
+            if (!dispatch(entry, attemptNumber, retryAt)) {
+                nextAttemptAt = Math.min(nextAttemptAt, retryAt);
+            }
+        }
+
+        if (batch != null && !dispatch(batch, batchEntries, batchLane, now)) {
+            nextAttemptAt = Math.min(nextAttemptAt, now + BASE_BACKOFF_MILLIS);
+        }
+
+        if (getActiveUploads() > 0) {
+            return;
+        }
+
+        try {
+            mJournal.compact();
+        } catch (IOException e) {
+            Log.e("Error compacting report journal", e);
+        }
+
+        for (Runnable listener : mIdleListeners) {
+            listener.run();
+        }
+        mIdleListeners.clear();
+
+        if (waitingFlags == NOT_WAITING) {
+            mPlatform.cancelConstrainedWakeUp();
+        } else if (!mPlatform.scheduleConstrainedWakeUp(UploadConstraints.fromFlags(waitingFlags))) {
+            nextAttemptAt = Math.min(nextAttemptAt, now + CONSTRAINTS_CHECK_INTERVAL_MILLIS);
+        }
+
+        if (nextAttemptAt == Long.MAX_VALUE) {
+            cancelWakeUp();
+        } else {
+            scheduleWakeUp(Math.max(0, nextAttemptAt - now));
+        }
+    }
+
+    private static boolean canAddToBatch(ReportBatch batch, PendingReport pendingReport, int attemptNumber) {
+        try {
+            return batch.canAdd(pendingReport, attemptNumber);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return The maximum number of upload slots taken by a lane and the lanes below it; the
+     * rest are kept free for the lanes above it
+     */
+    static int getMaxUploads(@NonNull ReportPriority lane) {
+        return MAX_CONCURRENT_UPLOADS - (ReportPriority.HIGH.ordinal() - lane.ordinal());
+    }
+
+    /**
+     * An upload counts against the limit of its own lane and of every lane above it.
+     */
+    private boolean canStartUpload(ReportPriority lane) {
+        return canStartUpload(mActiveUploads, lane);
+    }
+
+    static boolean canStartUpload(@NonNull int[] activeUploads, @NonNull ReportPriority lane) {
+        ReportPriority[] lanes = ReportPriority.values();
+        int count = 0;
+
+        for (int i = 0; i < lanes.length; i++) {
+            count += activeUploads[i];
+
+            if (i >= lane.ordinal() && count >= getMaxUploads(lanes[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int getActiveUploads() {
+        int activeUploads = 0;
+
+        for (int count : mActiveUploads) {
+            activeUploads += count;
+        }
+
+        return activeUploads;
+    }
+
+    /**
+     * Records the attempt, and hands the report to the upload pool.
+     * @param retryAt The earliest time to try again should the attempt fail
+     * @return false if the attempt couldn't be recorded, in which case the report isn't sent
+     */
+    private boolean dispatch(final ReportJournal.Entry entry, final int attemptNumber, long retryAt) {
+        try {
+            // Recorded before the attempt, so that an attempt that crashes the process counts
+            mJournal.recordAttempt(entry.getId(), attemptNumber, retryAt);
+        } catch (IOException e) {
+            Log.e("Error recording submission attempt!", e);
+            return false;
+        }
+
+        final ReportPriority lane = getLane(entry);
+        final ReportSubmission submission = mSubmissions.get(entry.getId());
+        mInFlight.add(entry.getId());
+        mActiveUploads[lane.ordinal()]++;
+        mUploadExecutor.execute(new Runnable() {
+            @Override public void run() {
+                final SubmitReportTask.Result result = submit(entry, attemptNumber, submission);
+
+                mExecutor.execute(new Runnable() {
+                    @Override public void run() {
+                        mActiveUploads[lane.ordinal()]--;
+                        mInFlight.remove(entry.getId());
+                        onAttemptFinished(entry, attemptNumber, result);
+                        schedule();
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Records the attempts, and hands a batch, whose upload slot is already taken, and whose
+     * entries are already in flight, to the upload pool. A batch of one is sent as an individual
+     * report.
+     * @return false if the attempts couldn't be recorded, in which case the batch isn't sent
+     */
+    private boolean dispatch(final ReportBatch batch, final List<ReportJournal.Entry> entries, final ReportPriority lane, long now) {
+        if (batch.size() == 0) {
+            mActiveUploads[lane.ordinal()]--;
+            return true;
+        }
+
+        if (batch.size() == 1) {
+            mActiveUploads[lane.ordinal()]--;
+            mInFlight.remove(entries.get(0).getId());
+            return dispatch(entries.get(0), batch.getAttemptNumber(0), now + getBackoffMillis(batch.getAttemptNumber(0), mRandom));
+        }
+
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                int attemptNumber = batch.getAttemptNumber(i);
+                mJournal.recordAttempt(entries.get(i).getId(), attemptNumber, now + getBackoffMillis(attemptNumber, mRandom));
+            }
+        } catch (IOException e) {
+            // Reports whose attempts were recorded wait out their backoff, as if the batch had failed
+            Log.e("Error recording submission attempt!", e);
+            mActiveUploads[lane.ordinal()]--;
+            for (ReportJournal.Entry entry : entries) {
+                mInFlight.remove(entry.getId());
+            }
+            return false;
+        }
+
+        mUploadExecutor.execute(new Runnable() {
+            @Override public void run() {
+                final List<SubmitReportTask.Result> results = submit(batch);
+
+                mExecutor.execute(new Runnable() {
+                    @Override public void run() {
+                        mActiveUploads[lane.ordinal()]--;
+                        for (int i = 0; i < entries.size(); i++) {
+                            mInFlight.remove(entries.get(i).getId());
+                            onAttemptFinished(entries.get(i), batch.getAttemptNumber(i), results.get(i));
+                        }
+                        schedule();
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    private List<SubmitReportTask.Result> submit(ReportBatch batch) {
+        try {
+            return mTask.executeBatch(batch);
+        } catch (RuntimeException e) {
+            List<SubmitReportTask.Result> results = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                results.add(mTask.new Result(e));
+            }
+            return results;
+        }
+    }
+
+    private SubmitReportTask.Result submit(ReportJournal.Entry entry, int attemptNumber, @Nullable ReportSubmission submission) {
+        try {
+            if (isInlineReport(entry)) {
+                // Reports queued inline by older versions of the SDK are sent as they are
+                return mTask.execute(SubmitReportTask.newRequestBody(entry.getPayload()), getInlineIdempotencyKey(entry));
+            }
+
+            if (isDeferredUpdate(entry)) {
+                return mTask.executeUpdate(getUpdateReportId(entry), getPendingReport(entry));
+            }
+
+            return mTask.execute(getPendingReport(entry), attemptNumber, submission);
+        } catch (RuntimeException e) {
+            return mTask.new Result(e);
+        }
+    }
+
+    private void onAttemptFinished(ReportJournal.Entry entry, int attemptNumber, SubmitReportTask.Result result) {
+        ReportSubmission submission = mSubmissions.get(entry.getId());
+        Exception error = result.getError();
+
+        if (error == null) {
+            PendingReport pendingReport = getPendingReport(entry);
+
+            if (pendingReport != null) {
+                // Reports written without deduplication carry no digests, and leave the index alone
+                if (!pendingReport.getUploadedBlobs().isEmpty()) {
+                    mPlatform.getBlobIndex().recordUploaded(pendingReport);
+                }
+
+                if (!isDeferredUpdate(entry)) {
+                    queueDeferredUpdate(pendingReport, result.getReportId());
+                }
+            }
+            remove(entry);
+            Log.i("Report submitted!");
+
+            if (submission != null) {
+                submission.complete(result.getReportId());
+            }
+            return;
+        }
+
+        if (error instanceof SubmitReportTask.UnknownBlobException && retryWithBlobData(entry, attemptNumber)) {
+            return;
+        }
+
+        Log.e("Error submitting report! Attempt " + attemptNumber + " of " + MAX_ATTEMPTS, error);
+
+        if (submission != null || attemptNumber >= MAX_ATTEMPTS) {
+            giveUp(entry, error);
+        }
+    }
+
+    /**
+     * Makes a report that was rejected for referring to blobs that the server doesn't have carry
+     * their data instead, and retries it right away.
+     * @return false if the report doesn't refer to any blobs, and is to be treated as failed
+     */
+    private boolean retryWithBlobData(ReportJournal.Entry entry, int attemptNumber) {
+        PendingReport pendingReport = getPendingReport(entry);
+
+        if (pendingReport == null) {
+            return false;
+        }
+
+        try {
+            List<String> digests = pendingReport.inlineBlobReferences();
+
+            if (digests.isEmpty()) {
+                return false;
+            }
+
+            Log.d("Server doesn't have " + digests.size() + " blobs referred to by report; sending their data");
+            mPlatform.getBlobIndex().removeAll(digests);
+            mJournal.recordAttempt(entry.getId(), attemptNumber, System.currentTimeMillis());
+            return true;
+        } catch (IOException e) {
+            Log.e("Error adding blob data to report!", e);
+            return false;
+        }
+    }
+
+    private void giveUp(ReportJournal.Entry entry, Exception error) {
+        ReportSubmission submission = mSubmissions.get(entry.getId());
+        remove(entry);
+
+        if (submission != null) {
+            submission.fail(ReportSubmissionCallback.Error.NETWORK, error);
+        }
+    }
+
+    private void remove(ReportJournal.Entry entry) {
+        mSubmissions.remove(entry.getId());
+
+        try {
+            mJournal.acknowledge(entry.getId());
+        } catch (IOException e) {
+            // The report is retried on the next run
+            Log.e("Error acknowledging report!", e);
+            return;
+        }
+
+        PendingReport pendingReport = getPendingReport(entry);
+
+        if (pendingReport != null) {
+            pendingReport.delete();
+        }
+
+        mQueuedReports.remove(entry.getId());
+        updateStats();
+    }
+
+    /**
+     * Strips or evicts reports, as the eviction policy decides, until the queue is within its
+     * quota. Reports that are in flight, or that are only attempted once, are left alone.
+     */
+    private void enforceQuota() {
+        long maxBytes = mMaxPendingBytes;
+        int maxReports = mMaxPendingReports;
+        EvictionPolicy policy = mEvictionPolicy;
+        List<ReportJournal.Entry> pending = mJournal.getPending();
+        Map<Long, ReportJournal.Entry> entries = new HashMap<>();
+        List<QueuedReport> evictable = new ArrayList<>();
+        long bytes = 0;
+        int count = pending.size();
+
+        for (ReportJournal.Entry entry : pending) {
+            QueuedReport report = getQueuedReport(entry);
+            bytes += report.getSize();
+
+            if (!mInFlight.contains(entry.getId()) && !mSubmissions.containsKey(entry.getId())) {
+                entries.put(entry.getId(), entry);
+                evictable.add(report);
+            }
+        }
+
+        while ((maxBytes > 0 && bytes > maxBytes) || (maxReports > 0 && count > maxReports)) {
+            QueuedReport report = null;
+
+            if (maxBytes > 0 && bytes > maxBytes) {
+                report = policy.selectReportToStrip(getStrippable(evictable));
+            }
+
+            // An update only carries images and videos, so stripping it means evicting it; so does
+            // stripping a report that can't be stripped
+            if (report != null && entries.containsKey(report.getId()) && !isDeferredUpdate(entries.get(report.getId()))) {
+                QueuedReport strippedReport = strip(entries.get(report.getId()), report);
+
+                if (strippedReport != null) {
+                    evictable.set(evictable.indexOf(report), strippedReport);
+                    bytes -= report.getSize() - strippedReport.getSize();
+                    continue;
+                }
+            } else if (report == null) {
+                report = policy.selectReportToEvict(evictable);
+            }
+
+            // Policies may only pick from the reports they were given
+            if (report == null || !entries.containsKey(report.getId())) {
+                Log.w("Pending reports are over quota: " + count + " reports, " + bytes + " bytes");
+                break;
+            }
+
+            Log.w("Evicting pending report to stay within quota: " + entries.get(report.getId()).getPayload());
+            remove(entries.remove(report.getId()));
+            evictable.remove(report);
+            mStats.recordEviction(true, report.getSize());
+            bytes -= report.getSize();
+            count--;
+        }
+
+        updateStats();
+    }
+
+    /**
+     * @return The report without its images and videos, or null if it couldn't be stripped
+     */
+    @Nullable private QueuedReport strip(ReportJournal.Entry entry, QueuedReport report) {
+        PendingReport pendingReport = getPendingReport(entry);
+
+        try {
+            pendingReport.stripMedia();
+        } catch (IOException e) {
+            Log.e("Error stripping media from pending report!", e);
+            return null;
+        }
+
+        mQueuedReports.remove(entry.getId());
+        QueuedReport strippedReport = getQueuedReport(entry);
+        mStats.recordEviction(false, report.getSize() - strippedReport.getSize());
+        Log.w("Stripped media from pending report to stay within quota: " + entry.getPayload());
+        return strippedReport;
+    }
+
+    private static List<QueuedReport> getStrippable(List<QueuedReport> reports) {
+        List<QueuedReport> strippable = new ArrayList<>();
+
+        for (QueuedReport report : reports) {
+            if (report.getMediaSize() > 0) {
+                strippable.add(report);
+            }
+        }
+
+        return strippable;
+    }
+
+    private QueuedReport getQueuedReport(ReportJournal.Entry entry) {
+        QueuedReport report = mQueuedReports.get(entry.getId());
+
+        if (report == null) {
+            PendingReport pendingReport = getPendingReport(entry);
+
+            if (pendingReport == null) {
+                report = new QueuedReport(entry.getId(), entry.getPayload().length(), 0, entry.getAttempts());
+            } else if (isDeferredUpdate(entry)) {
+                // An update only carries deferred images and videos
+                long size = pendingReport.getSizeOnDisk();
+                report = new QueuedReport(entry.getId(), size, size, entry.getAttempts());
+            } else {
+                report = new QueuedReport(entry.getId(), pendingReport.getSizeOnDisk(), pendingReport.getMediaSize(), entry.getAttempts());
+            }
+
+            mQueuedReports.put(entry.getId(), report);
+        } else if (report.getAttempts() != entry.getAttempts()) {
+            report = new QueuedReport(entry.getId(), report.getSize(), report.getMediaSize(), entry.getAttempts());
+            mQueuedReports.put(entry.getId(), report);
+        }
+
+        return report;
+    }
+
+    private void updateStats() {
+        List<ReportJournal.Entry> pending = mJournal.getPending();
+        long bytes = 0;
+
+        for (ReportJournal.Entry entry : pending) {
+            bytes += getQueuedReport(entry).getSize();
+        }
+
+        mStats.setPending(pending.size(), bytes);
+    }
+
+    /**
+     * Queues the deferred attachments of a report that has just been submitted, if it has any,
+     * as an update to the report. The update is moved out of the way of the report, which is
+     * deleted along with anything that is still next to it.
+     */
+    private void queueDeferredUpdate(PendingReport pendingReport, @Nullable String reportId) {
+        PendingReport pendingUpdate = pendingReport.getDeferredUpdate();
+
+        if (!pendingUpdate.exists()) {
+            return;
+        }
+
+        if (reportId == null) {
+            Log.e("Report ID missing from response; dropping deferred attachments");
+            return;
+        }
+
+        try {
+            PendingReport queuedUpdate = pendingUpdate.moveTo(mPlatform.getDeferredUpdatesDir());
+            try {
+                queuedUpdate.getIdempotencyKey();
+                mJournal.append(newUpdatePayload(mDeferredUploadConstraints, reportId, queuedUpdate), ReportPriority.LOW.getValue());
+            } catch (IOException e) {
+                queuedUpdate.delete();
+                throw e;
+            }
+
+            enforceQuota();
+        } catch (IOException e) {
+            Log.e("Error queueing deferred attachments!", e);
+        }
+    }
+
+    /**
+     * Wakes the scheduler up after a delay, both in this process and, should it be gone by then,
+     * through a service.
+     */
+    private void scheduleWakeUp(long delayMillis) {
+        if (mWakeUp != null) {
+            mWakeUp.cancel(false);
+        }
+        mWakeUp = mExecutor.schedule(mSchedule, delayMillis, TimeUnit.MILLISECONDS);
+        mPlatform.scheduleWakeUp(delayMillis);
+    }
+
+    private void cancelWakeUp() {
+        if (mWakeUp != null) {
+            mWakeUp.cancel(false);
+            mWakeUp = null;
+        }
+
+        mPlatform.cancelWakeUp();
+    }
+
+    /**
+     * @param attempts The number of attempts made so far, starting at 1
+     * @return How long to wait before the next attempt: exponential backoff from
+     * {@link #BASE_BACKOFF_MILLIS} up to {@link #MAX_BACKOFF_MILLIS}, with "equal jitter", i.e. a
+     * random delay between half the backoff and all of it, so that devices that failed together
+     * don't retry together
+     */
+    static long getBackoffMillis(int attempts, @NonNull Random random) {
+        int exponent = Math.max(0, attempts - 1);
+        long backoff = MAX_BACKOFF_MILLIS;
+
+        if (exponent < 32) {
+            backoff = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << exponent);
+        }
+
+        long half = backoff / 2;
+        return half + (long) (random.nextDouble() * (backoff - half));
+    }
+
+    @NonNull static ReportPriority getLane(ReportJournal.Entry entry) {
+        return ReportPriority.valueOf(entry.getPriority());
+    }
+
+    private static boolean isInlineReport(ReportJournal.Entry entry) {
+        return entry.getPayload().startsWith("{");
+    }
+
+    /**
+     * @return The idempotency key of a report that was queued inline, which is derived from the
+     * report itself since there is nowhere to keep a generated one
+     */
+    @NonNull static String getInlineIdempotencyKey(ReportJournal.Entry entry) {
+        return getInlineIdempotencyKey(entry.getPayload());
+    }
+
+    private static String getInlineIdempotencyKey(String report) {
+        try {
+            return UUID.nameUUIDFromBytes(report.getBytes("UTF-8")).toString();
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static boolean isDeferredUpdate(ReportJournal.Entry entry) {
+        return entry.getPayload().startsWith(UPDATE_PREFIX);
+    }
+
+    /**
+     * @return The report or update that the entry refers to, or null for reports that were
+     * queued inline
+     */
+    @Nullable static PendingReport getPendingReport(ReportJournal.Entry entry) {
+        if (isInlineReport(entry)) {
+            return null;
+        }
+
+        String path = isDeferredUpdate(entry) ? splitUpdatePayload(entry)[3] : entry.getPayload();
+        return new PendingReport(new File(path));
+    }
+
+    @NonNull static String newUpdatePayload(@NonNull UploadConstraints constraints, @NonNull String reportId, @NonNull PendingReport pendingUpdate) {
+        try {
+            return UPDATE_PREFIX + constraints.getFlags() + " " + URLEncoder.encode(reportId, "UTF-8") + " " + pendingUpdate.getReportFile().getAbsolutePath();
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @NonNull static UploadConstraints getUpdateConstraints(ReportJournal.Entry entry) {
+        try {
+            return UploadConstraints.fromFlags(Integer.parseInt(splitUpdatePayload(entry)[1]));
+        } catch (NumberFormatException e) {
+            return UploadConstraints.NONE;
+        }
+    }
+
+    @NonNull static String getUpdateReportId(ReportJournal.Entry entry) {
+        try {
+            return URLDecoder.decode(splitUpdatePayload(entry)[2], "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String[] splitUpdatePayload(ReportJournal.Entry entry) {
+        // The path comes last, since it may contain spaces
+        String[] fields = entry.getPayload().split(" ", 4);
+
+        if (fields.length < 4) {
+            return new String[] { fields[0], "0", "", "" };
+        }
+        return fields;
+    }
+
+    /* Utility methods */
+
+    /**
+     * Moves the reports of the single-file queue of earlier versions of the SDK into the journal.
+     * Each report is written out to a report file of its own, so that the journal only holds its
+     * path, rather than carrying the whole report through every compaction. Reports that a
+     * migration interrupted by a crash has already queued are skipped when it is run again.
+     */
+    static void migrateLegacyQueue(File file, File pendingReportsDir, ReportJournal journal) {
+        if (!file.exists()) {
+            return;
+        }
+
+        Set<String> queued = new HashSet<>();
+        for (ReportJournal.Entry entry : journal.getPending()) {
+            queued.add(entry.getPayload());
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                String path = getLegacyReportFile(line, pendingReportsDir).getAbsolutePath();
+                if (queued.add(path)) {
+                    journal.append(writeLegacyReport(line, pendingReportsDir).getReportFile().getAbsolutePath());
+                }
+            }
+        } catch (IOException e) {
+            Log.e("Error migrating report queue!", e);
+            return;
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+
+        file.delete();
+    }
+
+    /**
+     * Writes a report from the legacy queue to a report file. The file and its idempotency key
+     * are derived from the report, as they would have been for the report inline, so that a
+     * migration that is interrupted and run again neither duplicates the file nor the report on
+     * the server.
+     */
+    private static PendingReport writeLegacyReport(String report, File pendingReportsDir) throws IOException {
+        PendingReport pendingReport = new PendingReport(getLegacyReportFile(report, pendingReportsDir));
+        File reportFile = pendingReport.getReportFile();
+        File tempFile = new File(reportFile.getPath() + ".tmp");
+
+        OutputStream output = new FileOutputStream(tempFile);
+        try {
+            output.write(report.getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+
+        if (!tempFile.renameTo(reportFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to write migrated report " + reportFile);
+        }
+
+        pendingReport.setIdempotencyKey(getInlineIdempotencyKey(report));
+        return pendingReport;
+    }
+
+    private static File getLegacyReportFile(String report, File pendingReportsDir) {
+        return new File(pendingReportsDir, "legacy_" + getInlineIdempotencyKey(report) + ".json");
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override public Thread newThread(@NonNull final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, name);
+            }
+        };
+    }
+}
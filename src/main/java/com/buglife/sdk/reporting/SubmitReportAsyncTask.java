@@ -21,7 +21,7 @@ import org.json.JSONObject;
 
 import android.os.AsyncTask;
 
-public class SubmitReportAsyncTask extends AsyncTask<JSONObject, Void, SubmitReportTask.Result> {
+public class SubmitReportAsyncTask extends AsyncTask<PendingReport, Void, SubmitReportTask.Result> {
     private final ResultCallback mCallback;
     private final SubmitReportTask mTask;
 
@@ -30,7 +30,7 @@ public class SubmitReportAsyncTask extends AsyncTask<JSONObject, Void, SubmitRep
         mCallback = callback;
     }
 
-    @Override protected SubmitReportTask.Result doInBackground(JSONObject... reports) {
+    @Override protected SubmitReportTask.Result doInBackground(PendingReport... reports) {
         return mTask.execute(reports[0]);
     }
 
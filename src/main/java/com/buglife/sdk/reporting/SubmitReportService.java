@@ -23,20 +23,19 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.os.Build;
 import android.support.annotation.RequiresApi;
-import android.widget.Toast;
 
-import com.buglife.sdk.IOUtils;
 import com.buglife.sdk.Log;
-import com.buglife.sdk.R;
-
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
 
+/**
+ * Wakes up the {@link SubmissionScheduler}, and keeps the process alive until it is idle. The
+ * scheduler reschedules the job for its next retry, if any.
+ */
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 public class SubmitReportService extends JobService {
+    // Jobs scheduled by earlier versions of the SDK carry the path of a single report
     public static final String KEY_EXTRA_REPORT_PATH = "report_path";
 
     public static ComponentName getComponentName(Context context) {
@@ -44,36 +43,36 @@ public class SubmitReportService extends JobService {
     }
 
     @Override public boolean onStartJob(final JobParameters params) {
-        try {
-            String reportPath = params.getExtras().getString(KEY_EXTRA_REPORT_PATH);
-            final File reportFile = new File(reportPath);
-            String report = IOUtils.readStringFromFile(reportFile);
-            JSONObject jsonReport = new JSONObject(report);
-            SubmitReportAsyncTask task = new SubmitReportAsyncTask(new SubmitReportAsyncTask.ResultCallback() {
-                @Override public void onSuccess(JSONObject response) {
-                    jobFinished(params, false);
-                    reportFile.delete();
-                }
+        SubmissionScheduler scheduler = SubmissionScheduler.getInstance(getApplicationContext());
+        String reportPath = params.getExtras().getString(KEY_EXTRA_REPORT_PATH);
 
-                @Override public void onFailure(Exception error) {
-                    Log.e("Error submitting report!", error);
-                    jobFinished(params, false);
+        if (reportPath != null) {
+            PendingReport pendingReport = new PendingReport(new File(reportPath));
+
+            if (!pendingReport.exists()) {
+                Log.e("Error reading report from disk! Report not found at " + reportPath);
+            } else {
+                try {
+                    scheduler.enqueue(pendingReport, null);
+                } catch (IOException e) {
+                    Log.e("Error queueing report!", e);
                 }
-            });
-            task.execute(jsonReport);
-            return true;
-        } catch (Exception error) {
-            if (error instanceof JSONException) {
-                Log.e("Error deserializing JSON report!", error);
-            } else if (error instanceof IOException) {
-                Log.e("Error reading report from disk!", error);
             }
-            Toast.makeText(getApplicationContext(), R.string.error_process_report, Toast.LENGTH_LONG).show();
         }
-        return false;
+
+        scheduler.runUntilIdle(new Runnable() {
+            @Override public void run() {
+                // Retries are scheduled by the scheduler itself
+                jobFinished(params, false);
+            }
+        });
+        return true;
     }
 
     @Override public boolean onStopJob(JobParameters params) {
-        return true;
+        // Rather than having the job retried with the system's own backoff, the scheduler
+        // schedules it again for its pending reports
+        SubmissionScheduler.getInstance(getApplicationContext()).onJobStopped();
+        return false;
     }
 }
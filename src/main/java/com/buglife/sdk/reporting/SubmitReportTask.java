@@ -17,99 +17,467 @@
 
 package com.buglife.sdk.reporting;
 
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.buglife.sdk.CompressionStats;
 import com.buglife.sdk.Log;
 import com.buglife.sdk.NetworkManager;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
-import okhttp3.Callback;
+import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 
 public final class SubmitReportTask {
+    private static final int HTTP_NOT_FOUND = 404;
+    /**
+     * The status with which the server rejects a report that refers to a blob that it doesn't
+     * have; see {@link BlobIndex}.
+     */
+    static final int HTTP_UNPROCESSABLE_ENTITY = 422;
+    /**
+     * How long reports are sent individually once a server turns out not to support batches,
+     * after which batches are tried again, in case the server has been updated since.
+     */
+    static final long BATCH_UNSUPPORTED_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(24);
+    /**
+     * Identifies a report across submission attempts; the server creates the report once, and
+     * answers repeated attempts with the same key as it did the first.
+     */
+    static final String HEADER_IDEMPOTENCY_KEY = "Idempotency-Key";
+    /**
+     * The idempotency keys of the reports in a batch, comma-separated in the order of the batch.
+     */
+    static final String HEADER_IDEMPOTENCY_KEYS = "Idempotency-Keys";
     private final NetworkManager mNetworkManager;
     private static final MediaType MEDIA_TYPE_JSON = MediaType.parse("application/json; charset=utf-8");
     private static final String BUGLIFE_REPORT_URL = NetworkManager.BUGLIFE_URL+"/api/v1/reports.json";
+    private static final String BUGLIFE_REPORTS_URL = NetworkManager.BUGLIFE_URL+"/api/v1/reports";
+    @Nullable private static volatile OnReportSubmittedListener sOnReportSubmittedListener;
+    // Host and port -> when the server turned out not to support batches
+    private static final Map<String, Long> sBatchUnsupportedAt = Collections.synchronizedMap(new HashMap<String, Long>());
+    private static final UploadStats sUploadStats = new UploadStats();
+
+    private final String mReportUrl;
+    private final String mReportsUrl;
 
     public SubmitReportTask() {
+        this(BUGLIFE_REPORT_URL, BUGLIFE_REPORTS_URL);
+    }
+
+    /**
+     * @param reportUrl The URL that reports are posted to
+     * @param reportsUrl The URL under which follow-up updates to submitted reports are posted
+     */
+    SubmitReportTask(@NonNull String reportUrl, @NonNull String reportsUrl) {
         mNetworkManager = NetworkManager.getInstance();
+        mReportUrl = reportUrl;
+        mReportsUrl = reportsUrl;
+    }
+
+    /**
+     * Sets a listener that is notified with the server-side ID of each report once it has been
+     * submitted, whichever way it was submitted.
+     */
+    public static void setOnReportSubmittedListener(@Nullable OnReportSubmittedListener listener) {
+        sOnReportSubmittedListener = listener;
+    }
+
+    /**
+     * @return The throughput and latency of the uploads of reports, updates and chunks since
+     * the app was started
+     */
+    @NonNull public static UploadStats getUploadStats() {
+        return sUploadStats;
+    }
+
+    /**
+     * Synchronously executes a POST request, as the report's first submission attempt; see
+     * {@link #execute(PendingReport, int)}.
+     */
+    public Result execute(PendingReport pendingReport) {
+        return execute(pendingReport, 1);
+    }
+
+    /**
+     * Synchronously executes a POST request; see {@link #execute(PendingReport, int, ReportSubmission)}.
+     */
+    public Result execute(PendingReport pendingReport, int attemptNumber) {
+        return execute(pendingReport, attemptNumber, null);
+    }
+
+    /**
+     * Synchronously executes a POST request. Any chunked uploads belonging to the report are
+     * completed first, resuming from their last committed offsets.
+     * @param pendingReport the report to submit; its files are streamed to the network as-is
+     * @param attemptNumber The number of the submission attempt, starting at 1, which is sent
+     *                      as the report's submission_attempts
+     * @param submission If non-null, cancelling it aborts the request, and it is told about the
+     *                   progress of the upload
+     * @return The result of the network request; responses with an HTTP error status are
+     * treated as errors
+     */
+    public Result execute(PendingReport pendingReport, int attemptNumber, @Nullable ReportSubmission submission) {
+        for (ChunkedUpload upload : ChunkedUpload.forReport(pendingReport)) {
+            try {
+                upload.upload(mNetworkManager);
+            } catch (Exception error) {
+                Log.d("Error uploading attachment " + upload.getUploadId() + "; " + upload.getCommittedOffset() + " bytes committed", error);
+                return new Result(error);
+            }
+        }
+
+        Request request;
+        try {
+            request = newReportRequest(pendingReport, attemptNumber, submission);
+        } catch (IOException error) {
+            Log.d("Error reading idempotency key", error);
+            return new Result(error);
+        }
+        return executeReport(request);
     }
 
     /**
      * Synchronously executes a POST request
-     * @param report a JSON payload with the report to submit
+     * @param reportBody the JSON payload of the report to submit
+     * @param idempotencyKey The key that the report is sent with on every attempt, if any
      * @return The result of the network request
      */
-    public Result execute(JSONObject report) {
-        final Request request = newRequest(report);
+    public Result execute(RequestBody reportBody, @Nullable String idempotencyKey) {
+        return executeReport(newRequest(HttpUrl.get(mReportUrl), reportBody, idempotencyKey, null));
+    }
+
+    private Result executeReport(Request request) {
+        final Result result = execute(request);
+
+        if (result.getReportId() != null) {
+            notifyReportSubmitted(result.getReportId());
+        }
+        return result;
+    }
+
+    /**
+     * Synchronously posts a follow-up update to a submitted report. Attachments of the update
+     * are always carried inline.
+     * @param reportId The server-side ID of the report to update
+     * @param pendingUpdate The update, serialized by {@link com.buglife.sdk.ReportUpdate}
+     * @return The result of the network request
+     */
+    public Result executeUpdate(@NonNull String reportId, @NonNull PendingReport pendingUpdate) {
+        final Request request;
+        try {
+            request = newRequest(getUpdatesUrl(reportId), pendingUpdate.newRequestBody(), pendingUpdate.getIdempotencyKey(), null);
+        } catch (IOException error) {
+            Log.d("Error reading idempotency key", error);
+            return new Result(error);
+        }
+        return execute(request);
+    }
+
+    /**
+     * @return false if the server doesn't accept batches, and reports are to be sent individually
+     */
+    public boolean isBatchSupported() {
+        return isBatchSupported(System.currentTimeMillis());
+    }
+
+    boolean isBatchSupported(long now) {
+        String server = getServer(getBatchUrl());
+        Long unsupportedAt = sBatchUnsupportedAt.get(server);
+
+        if (unsupportedAt == null) {
+            return true;
+        }
+
+        if (now - unsupportedAt > BATCH_UNSUPPORTED_MAX_AGE_MILLIS) {
+            sBatchUnsupportedAt.remove(server);
+            return true;
+        }
+
+        return false;
+    }
+
+    private static String getServer(HttpUrl url) {
+        return url.host() + ":" + url.port();
+    }
+
+    /**
+     * Synchronously posts several reports in a single request. If the server doesn't support
+     * batches, the reports are sent individually instead.
+     * @return The result of each report, in the order of the batch
+     */
+    @NonNull public List<Result> executeBatch(@NonNull ReportBatch batch) {
+        final Request request = newBatchRequest(batch);
+        final CompressionStats compressionStats = request.tag(CompressionStats.class);
+        final UploadMetrics uploadMetrics = request.tag(UploadMetrics.class);
+        final List<Result> results = new ArrayList<>(batch.size());
+        JSONArray batchResults;
 
         try {
             final Response response = mNetworkManager.executeRequest(request);
+            recordUpload(request);
+            if (response.code() == HTTP_NOT_FOUND) {
+                response.close();
+                Log.d("Batch submission unsupported; submitting reports individually");
+                sBatchUnsupportedAt.put(getServer(request.url()), System.currentTimeMillis());
+
+                for (int i = 0; i < batch.size(); i++) {
+                    results.add(execute(batch.getReport(i), batch.getAttemptNumber(i)));
+                }
+                return results;
+            }
+
+            if (!response.isSuccessful() || response.body() == null) {
+                response.close();
+                throw new IOException("Request to " + request.url().encodedPath() + " failed with HTTP " + response.code());
+            }
+
+            batchResults = new JSONObject(response.body().string()).getJSONArray("results");
+            Log.d("Batch of " + batch.size() + " reports submitted! Payload: " + compressionStats + "; upload: " + uploadMetrics);
+        } catch (Exception error) {
+            Log.d("Error submitting batch of reports", error);
+
+            for (int i = 0; i < batch.size(); i++) {
+                results.add(new Result(error));
+            }
+            return results;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            JSONObject batchResult = batchResults.optJSONObject(i);
+            Exception error = ReportBatch.getError(batchResult);
+
+            if (error != null) {
+                results.add(new Result(error));
+                continue;
+            }
+
+            Result result = new Result(batchResult, compressionStats, uploadMetrics);
+            if (result.getReportId() != null) {
+                notifyReportSubmitted(result.getReportId());
+            }
+            results.add(result);
+        }
+
+        return results;
+    }
+
+    /**
+     * Responses with an HTTP error status are treated as errors.
+     */
+    private Result execute(Request request) {
+        final CompressionStats compressionStats = request.tag(CompressionStats.class);
+        final UploadMetrics uploadMetrics = request.tag(UploadMetrics.class);
+        final ReportSubmission submission = request.tag(ReportSubmission.class);
+        try {
+            final Call call = mNetworkManager.newCall(request);
+            if (submission != null) {
+                submission.setCall(call);
+            }
+
+            final Response response = call.execute();
+            recordUpload(request);
+            if (response.code() == HTTP_UNPROCESSABLE_ENTITY) {
+                response.close();
+                return new Result(new UnknownBlobException("Request to " + request.url().encodedPath() + " was rejected for referring to unknown blobs"));
+            }
+
+            if (!response.isSuccessful()) {
+                response.close();
+                return new Result(new IOException("Request to " + request.url().encodedPath() + " failed with HTTP " + response.code()));
+            }
+
             if (response.body() == null) {
                 return new Result(new IllegalStateException("Response body was null!"));
             }
 
             final JSONObject responseJSONObject = new JSONObject(response.body().string());
-            Log.d("Report submitted successfully!");
-            return new Result(responseJSONObject);
+            Log.d("Request to " + request.url().encodedPath() + " succeeded! Payload: " + compressionStats + "; upload: " + uploadMetrics);
+            return new Result(responseJSONObject, compressionStats, uploadMetrics);
         } catch (Exception error) {
             Log.d("Error submitting report", error);
             return new Result(error);
         }
     }
 
+    static RequestBody newRequestBody(String jsonReport) {
+        return RequestBody.create(MEDIA_TYPE_JSON, jsonReport);
+    }
+
+    @NonNull HttpUrl getBatchUrl() {
+        return HttpUrl.get(mReportsUrl).newBuilder()
+                .addPathSegment("batch.json")
+                .build();
+    }
+
+    @NonNull HttpUrl getUpdatesUrl(@NonNull String reportId) {
+        return HttpUrl.get(mReportsUrl).newBuilder()
+                .addPathSegment(reportId)
+                .addPathSegment("updates.json")
+                .build();
+    }
+
     /**
-     * Asynchronously executes a POST request
-     * @param report a JSON payload with the report to submit
-     * @param callback Calls back with the result of the request; this is called on the main thread
+     * @return The server-side ID of a submitted report, from either an "id" field of the
+     * response, or of a "report" object within it
      */
-    public void execute(JSONObject report, final ReportSubmissionCallback callback) {
-        mNetworkManager.executeRequestAsync(newRequest(report), new Callback() {
-            @Override
-            public void onFailure(final Call call, final IOException error) {
-                Log.d("Error submitting report", error);
-                callback.onFailure(ReportSubmissionCallback.Error.NETWORK, error);
-            }
+    @Nullable static String parseReportId(@Nullable JSONObject response) {
+        if (response == null) {
+            return null;
+        }
 
-            @Override
-            public void onResponse(final Call call, final Response response) throws IOException {
-                Log.d("Report submitted successfully!");
-                callback.onSuccess();
-            }
-        });
-        Log.d("JSON object request for report added to request queue...");
+        JSONObject report = response.optJSONObject("report");
+        Object id = report != null ? report.opt("id") : response.opt("id");
+        return id == null || id == JSONObject.NULL ? null : id.toString();
+    }
+
+    /**
+     * Records the upload of a request in the upload stats, once its response has arrived. Called
+     * right after the call returns, so that the time to first byte isn't inflated by reading the
+     * response body.
+     */
+    static void recordUpload(@NonNull Request request) {
+        UploadMetrics metrics = request.tag(UploadMetrics.class);
+
+        if (metrics != null) {
+            metrics.onResponse(System.nanoTime());
+            sUploadStats.record(metrics);
+        }
+    }
+
+    private static void notifyReportSubmitted(String reportId) {
+        OnReportSubmittedListener listener = sOnReportSubmittedListener;
+
+        if (listener != null) {
+            listener.onReportSubmitted(reportId);
+        }
+    }
+
+    /**
+     * @return The request for a submission attempt of a report, carrying its idempotency key
+     */
+    @NonNull Request newReportRequest(@NonNull PendingReport pendingReport, int attemptNumber) throws IOException {
+        return newReportRequest(pendingReport, attemptNumber, null);
     }
 
-    private Request newRequest(JSONObject report) {
-        return new Request.Builder()
-                .url(BUGLIFE_REPORT_URL)
-                .post(RequestBody.create(MEDIA_TYPE_JSON, report.toString()))
+    /**
+     * @return The request for a submission attempt of a report, carrying its idempotency key,
+     * and tagged with the submission, which is told about the progress of the upload
+     */
+    @NonNull Request newReportRequest(@NonNull PendingReport pendingReport, int attemptNumber, @Nullable final ReportSubmission submission) throws IOException {
+        ProgressRequestBody.Listener listener = null;
+
+        if (submission != null) {
+            listener = new ProgressRequestBody.Listener() {
+                @Override public void onProgress(long bytesSent, long totalBytes) {
+                    submission.setProgress(bytesSent, totalBytes);
+                }
+            };
+        }
+
+        Request request = newRequest(HttpUrl.get(mReportUrl), pendingReport.newRequestBody(attemptNumber), pendingReport.getIdempotencyKey(), listener);
+        if (submission == null) {
+            return request;
+        }
+
+        return request.newBuilder()
+                .tag(ReportSubmission.class, submission)
                 .build();
     }
 
+    /**
+     * @return The request for a batch, carrying the idempotency key of each of its reports
+     */
+    @NonNull Request newBatchRequest(@NonNull ReportBatch batch) {
+        return newRequest(getBatchUrl(), batch.newRequestBody(), null, null).newBuilder()
+                .header(HEADER_IDEMPOTENCY_KEYS, batch.getIdempotencyKeys())
+                .build();
+    }
+
+    private Request newRequest(HttpUrl url, RequestBody reportBody, @Nullable String idempotencyKey, @Nullable ProgressRequestBody.Listener listener) {
+        UploadMetrics uploadMetrics = new UploadMetrics();
+        Request.Builder builder = new Request.Builder()
+                .url(url)
+                .post(new ProgressRequestBody(reportBody, uploadMetrics, listener))
+                .tag(CompressionStats.class, new CompressionStats())
+                .tag(UploadMetrics.class, uploadMetrics);
+
+        if (idempotencyKey != null) {
+            builder.header(HEADER_IDEMPOTENCY_KEY, idempotencyKey);
+        }
+        return builder.build();
+    }
+
+    /**
+     * A report was rejected for referring to blobs that the server doesn't have, e.g. because
+     * they were uploaded too long ago; it can be sent again once it carries their data.
+     */
+    static final class UnknownBlobException extends IOException {
+        UnknownBlobException(String message) {
+            super(message);
+        }
+    }
+
     public class Result {
         private final JSONObject mResponse;
         private final Exception mError;
+        private final CompressionStats mCompressionStats;
+        private final UploadMetrics mUploadMetrics;
 
-        Result(JSONObject response) {
+        Result(JSONObject response, CompressionStats compressionStats, UploadMetrics uploadMetrics) {
             mResponse = response;
             mError = null;
+            mCompressionStats = compressionStats;
+            mUploadMetrics = uploadMetrics;
         }
 
         Result(Exception error) {
             mResponse = null;
             mError = error;
+            mCompressionStats = null;
+            mUploadMetrics = null;
         }
 
         JSONObject getResponse() {
             return mResponse;
         }
 
+        /**
+         * @return The server-side ID of the submitted report, if the server returned one
+         */
+        @Nullable public String getReportId() {
+            return parseReportId(mResponse);
+        }
+
+        /**
+         * @return How much the report payload was compressed on the wire, if it was submitted
+         */
+        public CompressionStats getCompressionStats() {
+            return mCompressionStats;
+        }
+
+        /**
+         * @return How long the report took to upload, and the server to respond, if it was
+         * submitted; shared by the reports of a batch
+         */
+        public UploadMetrics getUploadMetrics() {
+            return mUploadMetrics;
+        }
+
         public Exception getError() {
             return mError;
         }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.support.annotation.NonNull;
+
+/**
+ * The conditions under which deferred attachments, such as screen recordings, are uploaded.
+ * See {@link com.buglife.sdk.Buglife#setDeferredUploadConstraints}.
+ *
+ * @warning This is an experimental API, and is subject to change!
+ */
+public final class UploadConstraints {
+    /**
+     * No constraints; deferred attachments are uploaded right after their report.
+     */
+    public static final UploadConstraints NONE = new Builder().build();
+
+    static final int FLAG_UNMETERED_NETWORK = 1;
+    static final int FLAG_CHARGING = 1 << 1;
+    static final int FLAG_DEVICE_IDLE = 1 << 2;
+
+    private final int mFlags;
+
+    private UploadConstraints(int flags) {
+        mFlags = flags;
+    }
+
+    public boolean requiresUnmeteredNetwork() {
+        return (mFlags & FLAG_UNMETERED_NETWORK) != 0;
+    }
+
+    public boolean requiresCharging() {
+        return (mFlags & FLAG_CHARGING) != 0;
+    }
+
+    public boolean requiresDeviceIdle() {
+        return (mFlags & FLAG_DEVICE_IDLE) != 0;
+    }
+
+    int getFlags() {
+        return mFlags;
+    }
+
+    static UploadConstraints fromFlags(int flags) {
+        return new UploadConstraints(flags & (FLAG_UNMETERED_NETWORK | FLAG_CHARGING | FLAG_DEVICE_IDLE));
+    }
+
+    /**
+     * @return true if the device currently meets the constraints
+     */
+    boolean isSatisfied(@NonNull Context context) {
+        if (requiresUnmeteredNetwork()) {
+            ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (connectivityManager == null || connectivityManager.isActiveNetworkMetered()) {
+                return false;
+            }
+        }
+
+        if (requiresCharging()) {
+            Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (battery == null || battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0) {
+                return false;
+            }
+        }
+
+        if (requiresDeviceIdle()) {
+            PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            if (powerManager == null || !isDeviceIdle(powerManager)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Idle means not in use, as with JobScheduler's idle constraint, rather than in Doze.
+     */
+    @SuppressWarnings("deprecation")
+    private static boolean isDeviceIdle(PowerManager powerManager) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+            return !powerManager.isInteractive();
+        } else {
+            return !powerManager.isScreenOn();
+        }
+    }
+
+    public static final class Builder {
+        private int mFlags;
+
+        /**
+         * Waits for a Wi-Fi or other unmetered network, rather than using cellular data.
+         */
+        public Builder setRequiresUnmeteredNetwork(boolean requiresUnmeteredNetwork) {
+            return setFlag(FLAG_UNMETERED_NETWORK, requiresUnmeteredNetwork);
+        }
+
+        /**
+         * Waits for the device to be plugged in.
+         */
+        public Builder setRequiresCharging(boolean requiresCharging) {
+            return setFlag(FLAG_CHARGING, requiresCharging);
+        }
+
+        /**
+         * Waits for the device to be idle, i.e. not in use.
+         */
+        public Builder setRequiresDeviceIdle(boolean requiresDeviceIdle) {
+            return setFlag(FLAG_DEVICE_IDLE, requiresDeviceIdle);
+        }
+
+        public UploadConstraints build() {
+            return new UploadConstraints(mFlags);
+        }
+
+        private Builder setFlag(int flag, boolean enabled) {
+            mFlags = enabled ? mFlags | flag : mFlags & ~flag;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long a request body took to upload, and how long the server then took to start
+ * responding. Attach an instance to a request as a tag, and wrap its body in a
+ * {@link ProgressRequestBody}; it will be filled in as the request is executed.
+ *
+ * @warning This is an experimental API, and is subject to change!
+ */
+public final class UploadMetrics {
+    private volatile long mBytesSent;
+    private volatile long mUploadStartNanos;
+    private volatile long mUploadEndNanos;
+    private volatile long mResponseNanos;
+    private volatile boolean mUploaded;
+    private volatile boolean mResponded;
+
+    /**
+     * Called each time the body starts being written, which may be more than once if the
+     * request is retried; nothing of the earlier attempt is kept, so only the request that
+     * the server answers is measured.
+     */
+    void onUploadStarted(long nanos) {
+        mUploadStartNanos = nanos;
+        mUploadEndNanos = nanos;
+        mResponseNanos = nanos;
+        mBytesSent = 0;
+        mUploaded = false;
+        mResponded = false;
+    }
+
+    void onUploadFinished(long nanos, long bytesSent) {
+        mUploadEndNanos = nanos;
+        mBytesSent = bytesSent;
+        mUploaded = true;
+    }
+
+    void onResponse(long nanos) {
+        mResponseNanos = nanos;
+        mResponded = mUploaded;
+    }
+
+    /**
+     * @return true if the body was written in full, and the server responded to it
+     */
+    boolean isComplete() {
+        return mResponded;
+    }
+
+    /**
+     * @return The size of the request body, before any compression
+     */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * @return How long the request body took to write, or -1 if it wasn't written in full
+     */
+    public long getUploadMillis() {
+        return mUploaded ? TimeUnit.NANOSECONDS.toMillis(mUploadEndNanos - mUploadStartNanos) : -1;
+    }
+
+    /**
+     * @return The number of bytes sent per second, or 0 if the body wasn't written in full
+     */
+    public long getThroughput() {
+        long nanos = mUploadEndNanos - mUploadStartNanos;
+        return mUploaded && nanos > 0 ? mBytesSent * TimeUnit.SECONDS.toNanos(1) / nanos : 0;
+    }
+
+    /**
+     * @return The time from the end of the upload to the response headers, or -1 if the server
+     * didn't respond
+     */
+    public long getTimeToFirstByteMillis() {
+        return mResponded ? TimeUnit.NANOSECONDS.toMillis(mResponseNanos - mUploadEndNanos) : -1;
+    }
+
+    long getUploadNanos() {
+        return mUploadEndNanos - mUploadStartNanos;
+    }
+
+    long getTimeToFirstByteNanos() {
+        return mResponseNanos - mUploadEndNanos;
+    }
+
+    @Override public String toString() {
+        if (!mResponded) {
+            return "incomplete";
+        }
+        return String.format(Locale.US, "%d bytes in %d ms (%d bytes/s), first byte after %d ms", mBytesSent, getUploadMillis(), getThroughput(), getTimeToFirstByteMillis());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.support.annotation.Nullable;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters of the uploads of reports, updates and chunks that the server responded to, such
+ * as the achieved throughput. The counters start at zero each time the app is started.
+ *
+ * @warning This is an experimental API, and is subject to change!
+ */
+public final class UploadStats {
+    private int mUploads;
+    private long mBytesSent;
+    private long mUploadNanos;
+    private long mTimeToFirstByteNanos;
+    @Nullable private UploadMetrics mLastUpload;
+
+    synchronized void record(UploadMetrics metrics) {
+        if (!metrics.isComplete()) {
+            return;
+        }
+
+        mUploads++;
+        mBytesSent += metrics.getBytesSent();
+        mUploadNanos += metrics.getUploadNanos();
+        mTimeToFirstByteNanos += metrics.getTimeToFirstByteNanos();
+        mLastUpload = metrics;
+    }
+
+    public synchronized int getUploads() {
+        return mUploads;
+    }
+
+    /**
+     * @return The size of the request bodies sent, before any compression
+     */
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * @return The number of bytes sent per second, over all uploads
+     */
+    public synchronized long getAverageThroughput() {
+        return mUploadNanos > 0 ? mBytesSent * TimeUnit.SECONDS.toNanos(1) / mUploadNanos : 0;
+    }
+
+    /**
+     * @return The mean time from the end of an upload to the response headers
+     */
+    public synchronized long getAverageTimeToFirstByteMillis() {
+        return mUploads > 0 ? TimeUnit.NANOSECONDS.toMillis(mTimeToFirstByteNanos / mUploads) : 0;
+    }
+
+    /**
+     * @return The metrics of the most recent upload, or null if there hasn't been one
+     */
+    @Nullable public synchronized UploadMetrics getLastUpload() {
+        return mLastUpload;
+    }
+
+    @Override public synchronized String toString() {
+        return String.format(Locale.US, "%d uploads (%d bytes), %d bytes/s, first byte after %d ms", mUploads, mBytesSent, getAverageThroughput(), getAverageTimeToFirstByteMillis());
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import com.buglife.sdk.reporting.BlobIndex;
+import com.buglife.sdk.reporting.PendingReport;
+import com.buglife.sdk.reporting.ReportContainerWriter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.ByteString;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class AttachmentDeduplicationSpec {
+    private static final String TEST_JSON_SHA256 = "e1f83844d69c84257e694520a26460d4988aa47577590ec51480d836f116ad04";
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private BlobStandInServer mStandInServer;
+    private OkHttpClient mClient;
+    private File mIndexFile;
+    private BlobIndex mBlobIndex;
+
+    @Before
+    public void beforeEach() throws IOException {
+        mStandInServer = new BlobStandInServer();
+        mServer = new MockWebServer();
+        mServer.setDispatcher(mStandInServer);
+        mServer.start();
+        mClient = new OkHttpClient();
+        mIndexFile = new File(mTemporaryFolder.getRoot(), "uploaded_blobs");
+        mBlobIndex = new BlobIndex(mIndexFile);
+    }
+
+    @After
+    public void afterEach() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void hashAttachmentContents() throws IOException {
+        FileAttachment attachment = new FileAttachment(SpecUtils.getResourceFile("test_json.json"), MimeTypes.JSON);
+        assertThat(attachment.getSha256()).isEqualTo(TEST_JSON_SHA256);
+    }
+
+    @Test
+    public void referenceAttachmentsUploadedWithEarlierReports() throws IOException, JSONException {
+        PendingReport firstReport = writeReport(jsonAttachment(), imageAttachment());
+        assertThat(firstReport.getUploadedBlobs()).hasSize(2);
+        assertThat(submit(firstReport)).isEqualTo(200);
+
+        PendingReport secondReport = writeReport(jsonAttachment(), videoAttachment());
+        JSONArray attachments = readAttachments(secondReport);
+
+        assertThat(attachments.getJSONObject(0).getString("blob_sha256")).isEqualTo(TEST_JSON_SHA256);
+        assertThat(attachments.getJSONObject(0).has("base64_attachment_data")).isFalse();
+        assertThat(attachments.getJSONObject(1).has("base64_attachment_data")).isTrue();
+        assertThat(secondReport.getUploadedBlobs()).hasSize(1);
+        assertThat(submit(secondReport)).isEqualTo(200);
+
+        // The JSON attachment was only sent once
+        long expectedBytes = SpecUtils.getResourceFile("test_json.json").length()
+                + SpecUtils.getResourceFile("test_image.png").length()
+                + SpecUtils.getResourceFile("test_video.mp4").length();
+        assertThat(mStandInServer.mBlobs).hasSize(3);
+        assertThat(mStandInServer.mAttachmentBytesReceived).isEqualTo(expectedBytes);
+    }
+
+    @Test
+    public void referenceDuplicatesWithinReport() throws IOException, JSONException {
+        PendingReport report = writeReport(jsonAttachment(), jsonAttachment());
+        JSONArray attachments = readAttachments(report);
+
+        assertThat(attachments.getJSONObject(0).getString("sha256")).isEqualTo(TEST_JSON_SHA256);
+        assertThat(attachments.getJSONObject(1).getString("blob_sha256")).isEqualTo(TEST_JSON_SHA256);
+        assertThat(report.getUploadedBlobs()).containsExactly(TEST_JSON_SHA256);
+        assertThat(submit(report)).isEqualTo(200);
+    }
+
+    @Test
+    public void sendDataUntilReportIsSubmitted() throws IOException {
+        PendingReport firstReport = writeReport(jsonAttachment());
+        PendingReport secondReport = writeReport(jsonAttachment());
+
+        assertThat(secondReport.getUploadedBlobs()).containsExactly(TEST_JSON_SHA256);
+        assertThat(submit(firstReport)).isEqualTo(200);
+        assertThat(submit(secondReport)).isEqualTo(200);
+    }
+
+    @Test
+    public void persistIndex() throws IOException {
+        PendingReport report = writeReport(jsonAttachment());
+        submit(report);
+
+        assertThat(new BlobIndex(mIndexFile).contains(TEST_JSON_SHA256)).isTrue();
+    }
+
+    @Test
+    public void serverRejectsUnknownBlobs() throws IOException {
+        mBlobIndex.recordUploaded(writeReport(jsonAttachment()));
+
+        assertThat(submit(writeReport(jsonAttachment()))).isEqualTo(422);
+    }
+
+    @Test
+    public void inlineAttachmentsThatWereStrippedFromQueuedReports() throws IOException, JSONException {
+        PendingReport strippedReport = writeContainerReport(jsonAttachment(), imageAttachment());
+        strippedReport.stripMedia();
+
+        assertThat(strippedReport.getUploadedBlobs()).containsExactly(TEST_JSON_SHA256);
+        assertThat(submit(strippedReport)).isEqualTo(200);
+
+        // The server never received the screenshot, so it is sent again
+        PendingReport nextReport = writeReport(imageAttachment());
+        JSONArray attachments = readAttachments(nextReport);
+
+        assertThat(attachments.getJSONObject(0).has("base64_attachment_data")).isTrue();
+        assertThat(submit(nextReport)).isEqualTo(200);
+        assertThat(mStandInServer.mBlobs).hasSize(2);
+    }
+
+    @Test
+    public void sendDataOfBlobsTheServerNoLongerHas() throws IOException, JSONException {
+        mBlobIndex.recordUploaded(writeReport(jsonAttachment()));
+        PendingReport report = writeContainerReport(jsonAttachment(), imageAttachment());
+
+        assertThat(submit(report)).isEqualTo(422);
+
+        assertThat(report.inlineBlobReferences()).containsExactly(TEST_JSON_SHA256);
+        assertThat(report.getUploadedBlobs()).contains(TEST_JSON_SHA256);
+        assertThat(submit(report)).isEqualTo(200);
+        assertThat(mStandInServer.mBlobs).containsKey(TEST_JSON_SHA256);
+    }
+
+    /**
+     * Mirrors Report.writeTo() for a report that only has attachments.
+     */
+    private PendingReport writeReport(FileAttachment... attachments) throws IOException {
+        File reportFile = mTemporaryFolder.newFile();
+        PendingReport pendingReport = new PendingReport(reportFile);
+
+        JsonStreamWriter writer = new JsonStreamWriter(new FileOutputStream(reportFile));
+        writer.beginObject();
+        writer.name("report").beginObject();
+        writer.name("attachments");
+        AttachmentWriter attachmentWriter = new AttachmentWriter().setBlobIndex(mBlobIndex);
+        attachmentWriter.writeAttachments(writer, Arrays.asList(attachments));
+        writer.endObject();
+        writer.endObject();
+        writer.close();
+
+        pendingReport.setUploadedBlobs(attachmentWriter.getUploadedBlobs());
+        return pendingReport;
+    }
+
+    /**
+     * Like {@link #writeReport(FileAttachment...)}, for a report that is queued in a container.
+     */
+    private PendingReport writeContainerReport(FileAttachment... attachments) throws IOException {
+        PendingReport pendingReport = new PendingReport(new File(mTemporaryFolder.getRoot(), "report.json" + PendingReport.CONTAINER_EXTENSION));
+
+        ReportContainerWriter writer = new ReportContainerWriter(pendingReport.getReportFile(), false);
+        writer.beginObject();
+        writer.name("report").beginObject();
+        writer.name("attachments");
+        AttachmentWriter attachmentWriter = new AttachmentWriter().setBlobIndex(mBlobIndex);
+        attachmentWriter.writeAttachments(writer, Arrays.asList(attachments));
+        writer.endObject();
+        writer.endObject();
+        writer.close();
+
+        pendingReport.setUploadedBlobs(attachmentWriter.getUploadedBlobs());
+        return pendingReport;
+    }
+
+    private int submit(PendingReport pendingReport) throws IOException {
+        Request request = new Request.Builder()
+                .url(mServer.url("/api/v1/reports.json"))
+                .post(pendingReport.newRequestBody())
+                .build();
+        Response response = mClient.newCall(request).execute();
+        response.close();
+
+        if (response.isSuccessful()) {
+            mBlobIndex.recordUploaded(pendingReport);
+        }
+        return response.code();
+    }
+
+    private static JSONArray readAttachments(PendingReport pendingReport) throws IOException, JSONException {
+        JSONObject json = new JSONObject(IOUtils.readStringFromFile(pendingReport.getReportFile()));
+        return json.getJSONObject("report").getJSONArray("attachments");
+    }
+
+    private static FileAttachment jsonAttachment() {
+        return new FileAttachment(SpecUtils.getResourceFile("test_json.json"), MimeTypes.JSON);
+    }
+
+    private static FileAttachment imageAttachment() {
+        return new FileAttachment(SpecUtils.getResourceFile("test_image.png"), MimeTypes.PNG);
+    }
+
+    private static FileAttachment videoAttachment() {
+        return new FileAttachment(SpecUtils.getResourceFile("test_video.mp4"), MimeTypes.MP4);
+    }
+
+    /**
+     * A stand-in for the server side of the deduplication protocol: attachment data is stored by
+     * its "sha256" digest, and "blob_sha256" references are resolved against stored blobs. A
+     * reference to an unknown blob fails the request with a 422.
+     */
+    private static final class BlobStandInServer extends Dispatcher {
+        final Map<String, ByteString> mBlobs = new HashMap<>();
+        long mAttachmentBytesReceived;
+
+        @Override public synchronized MockResponse dispatch(RecordedRequest request) {
+            try {
+                JSONObject report = new JSONObject(request.getBody().readUtf8()).getJSONObject("report");
+                JSONArray attachments = report.getJSONArray("attachments");
+
+                for (int i = 0; i < attachments.length(); i++) {
+                    JSONObject attachment = attachments.getJSONObject(i);
+
+                    if (attachment.has("blob_sha256")) {
+                        if (!mBlobs.containsKey(attachment.getString("blob_sha256"))) {
+                            return new MockResponse().setResponseCode(422);
+                        }
+                        continue;
+                    }
+
+                    ByteString data = ByteString.decodeBase64(attachment.getString("base64_attachment_data"));
+                    String sha256 = data.sha256().hex();
+
+                    if (!sha256.equals(attachment.getString("sha256"))) {
+                        return new MockResponse().setResponseCode(400);
+                    }
+
+                    mBlobs.put(sha256, data);
+                    mAttachmentBytesReceived += data.size();
+                }
+
+                return new MockResponse().setBody("{}");
+            } catch (JSONException e) {
+                return new MockResponse().setResponseCode(400);
+            }
+        }
+    }
+}
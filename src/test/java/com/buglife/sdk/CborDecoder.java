@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes CBOR (RFC 7049) into plain Java values, for stand-in servers in tests: maps become
+ * a {@link Map} with String keys, arrays a {@link List}, byte strings a byte[], text strings a
+ * String, integers a Long, and floating-point numbers a Double.
+ *
+ * Tags and simple values other than booleans and null are not supported.
+ */
+public final class CborDecoder {
+    private static final Object BREAK = new Object();
+
+    private final DataInputStream mInput;
+
+    public CborDecoder(InputStream input) {
+        mInput = new DataInputStream(input);
+    }
+
+    public static Object decode(byte[] cbor) throws IOException {
+        CborDecoder decoder = new CborDecoder(new ByteArrayInputStream(cbor));
+        Object value = decoder.read();
+
+        if (decoder.mInput.read() != -1) {
+            throw new IOException("Trailing data after CBOR value");
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> decodeMap(byte[] cbor) throws IOException {
+        return (Map<String, Object>) decode(cbor);
+    }
+
+    public Object read() throws IOException {
+        Object value = readItem();
+
+        if (value == BREAK) {
+            throw new IOException("Unexpected break");
+        }
+        return value;
+    }
+
+    private Object readItem() throws IOException {
+        int initialByte = mInput.read();
+
+        if (initialByte == -1) {
+            throw new EOFException();
+        }
+
+        int majorType = initialByte >> 5;
+        int additionalInfo = initialByte & 0x1f;
+
+        if (majorType == 7) {
+            return readSimpleValue(additionalInfo);
+        }
+
+        boolean indefinite = additionalInfo == 31;
+        long argument = indefinite ? -1 : readArgument(additionalInfo);
+
+        switch (majorType) {
+            case 0:
+                return argument;
+            case 1:
+                return -1 - argument;
+            case 2:
+                return indefinite ? readChunks(2) : readBytes(argument);
+            case 3:
+                return new String(indefinite ? readChunks(3) : readBytes(argument), "UTF-8");
+            case 4:
+                return readArray(argument);
+            case 5:
+                return readMap(argument);
+            default:
+                throw new IOException("Unsupported major type " + majorType);
+        }
+    }
+
+    private Object readSimpleValue(int additionalInfo) throws IOException {
+        switch (additionalInfo) {
+            case 20:
+                return false;
+            case 21:
+                return true;
+            case 22:
+                return null;
+            case 26:
+                return (double) Float.intBitsToFloat(mInput.readInt());
+            case 27:
+                return Double.longBitsToDouble(mInput.readLong());
+            case 31:
+                return BREAK;
+            default:
+                throw new IOException("Unsupported simple value " + additionalInfo);
+        }
+    }
+
+    private long readArgument(int additionalInfo) throws IOException {
+        if (additionalInfo < 24) {
+            return additionalInfo;
+        }
+
+        switch (additionalInfo) {
+            case 24:
+                return mInput.readUnsignedByte();
+            case 25:
+                return mInput.readUnsignedShort();
+            case 26:
+                return mInput.readInt() & 0xffffffffL;
+            case 27:
+                return mInput.readLong();
+            default:
+                throw new IOException("Invalid additional info " + additionalInfo);
+        }
+    }
+
+    private byte[] readBytes(long length) throws IOException {
+        byte[] bytes = new byte[(int) length];
+        mInput.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads the definite-length chunks of an indefinite-length byte or text string.
+     */
+    private byte[] readChunks(int majorType) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        while (true) {
+            int initialByte = mInput.readUnsignedByte();
+
+            if (initialByte == 0xff) {
+                return output.toByteArray();
+            }
+
+            if (initialByte >> 5 != majorType) {
+                throw new IOException("Invalid string chunk");
+            }
+
+            output.write(readBytes(readArgument(initialByte & 0x1f)));
+        }
+    }
+
+    private List<Object> readArray(long length) throws IOException {
+        List<Object> array = new ArrayList<>();
+
+        for (long i = 0; length < 0 || i < length; i++) {
+            Object item = readItem();
+
+            if (item == BREAK) {
+                if (length >= 0) {
+                    throw new IOException("Unexpected break");
+                }
+                break;
+            }
+
+            array.add(item);
+        }
+        return array;
+    }
+
+    private Map<String, Object> readMap(long length) throws IOException {
+        Map<String, Object> map = new LinkedHashMap<>();
+
+        for (long i = 0; length < 0 || i < length; i++) {
+            Object key = readItem();
+
+            if (key == BREAK) {
+                if (length >= 0) {
+                    throw new IOException("Unexpected break");
+                }
+                break;
+            }
+
+            if (!(key instanceof String)) {
+                throw new IOException("Unsupported map key " + key);
+            }
+
+            map.put((String) key, read());
+        }
+        return map;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import com.buglife.sdk.reporting.PendingReport;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class CborStreamWriterSpec {
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private ByteArrayOutputStream mOutput;
+    private CborStreamWriter mWriter;
+
+    @Before
+    public void beforeEach() {
+        mOutput = new ByteArrayOutputStream();
+        mWriter = new CborStreamWriter(mOutput);
+    }
+
+    @Test
+    public void writeNestedValues() throws IOException {
+        mWriter.beginObject();
+        mWriter.name("report").beginObject();
+        mWriter.name("what_happened").value("It \"crashed\"\n again ☃");
+        mWriter.name("submission_attempts").value(1);
+        mWriter.name("free_capacity_bytes").value(-5000000000L);
+        mWriter.name("battery_level").value(0.5f);
+        mWriter.name("wifi_connected").value(true);
+        mWriter.endObject();
+        mWriter.name("tags").beginArray().value("a").value("b").endArray();
+        mWriter.endObject();
+        mWriter.close();
+
+        Map<String, Object> cbor = CborDecoder.decodeMap(mOutput.toByteArray());
+        Map<String, Object> report = getMap(cbor, "report");
+        assertThat(report.get("what_happened")).isEqualTo("It \"crashed\"\n again ☃");
+        assertThat(report.get("submission_attempts")).isEqualTo(1L);
+        assertThat(report.get("free_capacity_bytes")).isEqualTo(-5000000000L);
+        assertThat(report.get("battery_level")).isEqualTo(0.5);
+        assertThat(report.get("wifi_connected")).isEqualTo(true);
+        assertThat(getList(cbor, "tags")).containsExactly("a", "b");
+    }
+
+    @Test
+    public void writeIntegersInShortestForm() throws IOException {
+        mWriter.beginArray().value(0).value(23).value(24).value(1000).value(1000000).value(1000000000000L).value(-1).value(-1000).endArray();
+        mWriter.close();
+
+        // Examples from RFC 7049, appendix A
+        assertThat(ByteString.of(mOutput.toByteArray()).hex()).isEqualTo("9f"
+                + "00"
+                + "17"
+                + "1818"
+                + "1903e8"
+                + "1a000f4240"
+                + "1b000000e8d4a51000"
+                + "20"
+                + "3903e7"
+                + "ff");
+    }
+
+    @Test
+    public void skipNullValues() throws IOException {
+        mWriter.beginObject();
+        mWriter.name("user_email").value((String) null);
+        mWriter.name("values").beginArray().nullValue().endArray();
+        mWriter.endObject();
+        mWriter.close();
+
+        Map<String, Object> cbor = CborDecoder.decodeMap(mOutput.toByteArray());
+        assertThat(cbor.containsKey("user_email")).isFalse();
+        assertThat(getList(cbor, "values")).containsExactly((Object) null);
+    }
+
+    @Test
+    public void writeFilesAsByteStrings() throws IOException {
+        File file = SpecUtils.getResourceFile("test_image.png");
+        mWriter.beginObject();
+        mWriter.name("data").binaryValue(file);
+        mWriter.endObject();
+        mWriter.close();
+
+        byte[] data = (byte[]) CborDecoder.decodeMap(mOutput.toByteArray()).get("data");
+        assertThat(data).isEqualTo(readBytes(file));
+    }
+
+    @Test
+    public void submitToStandInServer() throws IOException, InterruptedException {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody("{}"));
+        server.start();
+
+        try {
+            PendingReport pendingReport = writeReport(
+                    new FileAttachment(SpecUtils.getResourceFile("test_json.json"), MimeTypes.JSON),
+                    new FileAttachment(SpecUtils.getResourceFile("test_video.mp4"), MimeTypes.MP4));
+
+            Request request = new Request.Builder()
+                    .url(server.url("/api/v1/reports.json"))
+                    .post(pendingReport.newRequestBody())
+                    .build();
+            Response response = new OkHttpClient().newCall(request).execute();
+            response.close();
+
+            RecordedRequest recordedRequest = server.takeRequest();
+            assertThat(recordedRequest.getHeader("Content-Type")).isEqualTo("application/cbor");
+
+            Map<String, Object> report = getMap(CborDecoder.decodeMap(recordedRequest.getBody().readByteArray()), "report");
+            List<Object> attachments = getList(report, "attachments");
+            assertThat(attachments).hasSize(2);
+
+            Map<?, ?> video = (Map<?, ?>) attachments.get(1);
+            byte[] videoData = (byte[]) video.get("base64_attachment_data");
+            assertThat(video.get("filename")).isEqualTo("test_video.mp4");
+            assertThat(video.get("mime_type")).isEqualTo(MimeTypes.MP4);
+            assertThat(videoData).isEqualTo(readBytes(SpecUtils.getResourceFile("test_video.mp4")));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Mirrors Report.writeTo() in CBOR mode, for a report that only has attachments.
+     */
+    private PendingReport writeReport(FileAttachment... attachments) throws IOException {
+        File reportFile = mTemporaryFolder.newFile("report" + PendingReport.CBOR_EXTENSION);
+        PendingReport pendingReport = new PendingReport(reportFile);
+
+        CborStreamWriter writer = new CborStreamWriter(new FileOutputStream(reportFile));
+        writer.beginObject();
+        writer.name("report").beginObject();
+        writer.name("attachments");
+        new AttachmentWriter().writeAttachments(writer, Arrays.asList(attachments));
+        writer.endObject();
+        writer.endObject();
+        writer.close();
+
+        assertThat(pendingReport.isCbor()).isTrue();
+        return pendingReport;
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        BufferedSource source = Okio.buffer(Okio.source(file));
+        try {
+            return source.readByteArray();
+        } finally {
+            source.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> getMap(Map<String, Object> map, String key) {
+        return (Map<String, Object>) map.get(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> getList(Map<String, Object> map, String key) {
+        return (List<Object>) map.get(key);
+    }
+}
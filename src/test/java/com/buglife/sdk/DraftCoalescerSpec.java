@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class DraftCoalescerSpec {
+    private static final long WINDOW = 60 * 1000;
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private DraftCoalescer mCoalescer;
+    private BugContext mDraft;
+
+    @Before
+    public void beforeEach() throws IOException {
+        mCoalescer = new DraftCoalescer();
+        mCoalescer.setWindow(WINDOW);
+
+        List<FileAttachment> attachments = new ArrayList<>();
+        attachments.add(new LogFileAttachment(mTemporaryFolder.newFile("log.json")));
+        attachments.add(screenshot("screenshot_1.png"));
+        mDraft = new BugContext(null, attachments, new AttributeMap(), null, null, null);
+    }
+
+    @Test
+    public void reopenDraftWithinWindow() throws IOException {
+        mCoalescer.keep(mDraft, 0);
+
+        BugContext reopened = mCoalescer.reopen(WINDOW - 1);
+        reopened.addAttachment(screenshot("screenshot_2.png"));
+
+        assertThat(reopened).isSameAs(mDraft);
+        assertThat(reopened.getAttachments()).hasSize(3);
+        assertThat(reopened.getAttribute(DraftCoalescer.ATTRIBUTE_COALESCED_INVOCATIONS).getValue()).isEqualTo("2");
+    }
+
+    @Test
+    public void appendEachCaptureOnceWhenReopenedRepeatedly() throws IOException {
+        mCoalescer.keep(mDraft, 0);
+        FileAttachment secondCapture = screenshot("screenshot_2.png");
+
+        mCoalescer.reopen(1000, Collections.singletonList(secondCapture));
+        BugContext reopened = mCoalescer.reopen(2000, Arrays.asList(secondCapture, screenshot("screenshot_3.png")));
+
+        assertThat(reopened).isSameAs(mDraft);
+        assertThat(reopened.getAttachments()).hasSize(4);
+        assertThat(reopened.getAttribute(DraftCoalescer.ATTRIBUTE_COALESCED_INVOCATIONS).getValue()).isEqualTo("3");
+    }
+
+    @Test
+    public void extendWindowWithEachInvocation() {
+        mCoalescer.keep(mDraft, 0);
+
+        assertThat(mCoalescer.reopen(WINDOW)).isNotNull();
+        assertThat(mCoalescer.reopen(2 * WINDOW)).isNotNull();
+        assertThat(mDraft.getAttribute(DraftCoalescer.ATTRIBUTE_COALESCED_INVOCATIONS).getValue()).isEqualTo("3");
+    }
+
+    @Test
+    public void dropDraftAfterWindow() {
+        mCoalescer.keep(mDraft, 0);
+
+        assertThat(mCoalescer.reopen(WINDOW + 1)).isNull();
+        // The expired draft's captures are no longer needed
+        for (FileAttachment attachment : mDraft.getAttachments()) {
+            assertThat(attachment.getFile().exists()).isFalse();
+        }
+    }
+
+    @Test
+    public void appendDismissedCapturesToOpenDraft() throws IOException {
+        mCoalescer.keep(mDraft, 0);
+
+        assertThat(mCoalescer.append(screenshot("screenshot_2.png"), 1000)).isTrue();
+        assertThat(mCoalescer.append(mDraft.getAttachments().get(1), 2000)).isTrue();
+        assertThat(mDraft.getAttachments()).hasSize(3);
+    }
+
+    @Test
+    public void keepAttachmentsOfSubmittedDrafts() {
+        mCoalescer.keep(mDraft, 0);
+        mCoalescer.close();
+
+        assertThat(mCoalescer.reopen(1000)).isNull();
+        assertThat(mDraft.getAttachments().get(1).getFile().exists()).isTrue();
+    }
+
+    @Test
+    public void doNothingWhenDisabled() throws IOException {
+        mCoalescer.setWindow(0);
+        mCoalescer.keep(mDraft, 0);
+
+        assertThat(mCoalescer.reopen(1)).isNull();
+        assertThat(mCoalescer.append(screenshot("screenshot_2.png"), 1)).isFalse();
+        assertThat(mDraft.getAttachments().get(1).getFile().exists()).isTrue();
+    }
+
+    private FileAttachment screenshot(String name) throws IOException {
+        return new FileAttachment(mTemporaryFolder.newFile(name), MimeTypes.PNG);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSource;
+import okio.Okio;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class GzipRequestInterceptorSpec {
+    private static final MediaType MEDIA_TYPE_JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private MockWebServer mServer;
+    private OkHttpClient mClient;
+    private String mPayload;
+
+    @Before
+    public void beforeEach() throws IOException {
+        mServer = new MockWebServer();
+        mServer.start();
+        mClient = new OkHttpClient.Builder()
+                .addInterceptor(new GzipRequestInterceptor())
+                .build();
+        mPayload = SpecUtils.readContentsOfResourceFile("test_image_base64.txt");
+    }
+
+    @After
+    public void afterEach() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void compressJsonBodies() throws IOException, InterruptedException {
+        mServer.enqueue(new MockResponse().setBody("{}"));
+        CompressionStats stats = new CompressionStats();
+
+        post(RequestBody.create(MEDIA_TYPE_JSON, mPayload), stats).close();
+
+        RecordedRequest recordedRequest = mServer.takeRequest();
+        assertThat(recordedRequest.getHeader("Content-Encoding")).isEqualTo("gzip");
+        assertThat(gunzip(recordedRequest.getBody())).isEqualTo(mPayload);
+        assertThat(stats.isCompressed()).isTrue();
+        assertThat(stats.getUncompressedBytes()).isEqualTo(mPayload.length());
+        assertThat(stats.getCompressedBytes()).isEqualTo(recordedRequest.getBodySize());
+        assertThat(stats.getRatio()).isGreaterThan(1f);
+    }
+
+    @Test
+    public void skipNonJsonBodies() throws IOException, InterruptedException {
+        mServer.enqueue(new MockResponse().setBody("{}"));
+
+        post(RequestBody.create(MediaType.parse("application/octet-stream"), mPayload), null).close();
+
+        RecordedRequest recordedRequest = mServer.takeRequest();
+        assertThat(recordedRequest.getHeader("Content-Encoding")).isNull();
+        assertThat(recordedRequest.getBody().readUtf8()).isEqualTo(mPayload);
+    }
+
+    @Test
+    public void fallBackWhenServerRejectsCompression() throws IOException, InterruptedException {
+        mServer.enqueue(new MockResponse().setResponseCode(415));
+        mServer.enqueue(new MockResponse().setBody("{}"));
+        mServer.enqueue(new MockResponse().setBody("{}"));
+        CompressionStats stats = new CompressionStats();
+
+        Response response = post(RequestBody.create(MEDIA_TYPE_JSON, mPayload), stats);
+        assertThat(response.isSuccessful()).isTrue();
+        response.close();
+
+        assertThat(mServer.takeRequest().getHeader("Content-Encoding")).isEqualTo("gzip");
+        RecordedRequest retriedRequest = mServer.takeRequest();
+        assertThat(retriedRequest.getHeader("Content-Encoding")).isNull();
+        assertThat(retriedRequest.getBody().readUtf8()).isEqualTo(mPayload);
+        assertThat(stats.isCompressed()).isFalse();
+
+        // Subsequent requests to the same host are not compressed
+        post(RequestBody.create(MEDIA_TYPE_JSON, mPayload), null).close();
+        assertThat(mServer.takeRequest().getHeader("Content-Encoding")).isNull();
+    }
+
+    @Test
+    public void fallBackWhenBadRequestNamesTheEncoding() throws IOException, InterruptedException {
+        mServer.enqueue(new MockResponse().setResponseCode(400).setBody("{\"error\":\"Unsupported Content-Encoding: gzip\"}"));
+        mServer.enqueue(new MockResponse().setBody("{}"));
+
+        Response response = post(RequestBody.create(MEDIA_TYPE_JSON, mPayload), null);
+        assertThat(response.isSuccessful()).isTrue();
+        response.close();
+
+        assertThat(mServer.takeRequest().getHeader("Content-Encoding")).isEqualTo("gzip");
+        assertThat(mServer.takeRequest().getHeader("Content-Encoding")).isNull();
+    }
+
+    @Test
+    public void passOnOtherBadRequests() throws IOException, InterruptedException {
+        mServer.enqueue(new MockResponse().setResponseCode(400).setBody("{\"error\":\"Invalid API key\"}"));
+        mServer.enqueue(new MockResponse().setBody("{}"));
+
+        Response response = post(RequestBody.create(MEDIA_TYPE_JSON, mPayload), null);
+        assertThat(response.code()).isEqualTo(400);
+        assertThat(response.body().string()).contains("Invalid API key");
+        response.close();
+        assertThat(mServer.getRequestCount()).isEqualTo(1);
+
+        // The host keeps being sent compressed requests
+        post(RequestBody.create(MEDIA_TYPE_JSON, mPayload), null).close();
+        mServer.takeRequest();
+        assertThat(mServer.takeRequest().getHeader("Content-Encoding")).isEqualTo("gzip");
+    }
+
+    private Response post(RequestBody body, CompressionStats stats) throws IOException {
+        Request request = new Request.Builder()
+                .url(mServer.url("/api/v1/reports.json"))
+                .post(body)
+                .tag(CompressionStats.class, stats)
+                .build();
+        return mClient.newCall(request).execute();
+    }
+
+    private static String gunzip(Buffer body) throws IOException {
+        return Okio.buffer(new GzipSource(body)).readUtf8();
+    }
+}
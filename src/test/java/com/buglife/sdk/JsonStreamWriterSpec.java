@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class JsonStreamWriterSpec {
+
+    private ByteArrayOutputStream mOutput;
+    private JsonStreamWriter mWriter;
+
+    @Before
+    public void beforeEach() {
+        mOutput = new ByteArrayOutputStream();
+        mWriter = new JsonStreamWriter(mOutput);
+    }
+
+    @Test
+    public void writeNestedValues() throws JSONException, IOException {
+        mWriter.beginObject();
+        mWriter.name("report").beginObject();
+        mWriter.name("what_happened").value("It \"crashed\"\n again");
+        mWriter.name("submission_attempts").value(1);
+        mWriter.name("battery_level").value(0.5f);
+        mWriter.name("wifi_connected").value(true);
+        mWriter.endObject();
+        mWriter.name("tags").beginArray().value("a").value("b").endArray();
+        mWriter.endObject();
+        mWriter.close();
+
+        JSONObject json = new JSONObject(mOutput.toString("utf-8"));
+        JSONObject report = json.getJSONObject("report");
+        assertThat(report.getString("what_happened")).isEqualTo("It \"crashed\"\n again");
+        assertThat(report.getInt("submission_attempts")).isEqualTo(1);
+        assertThat(report.getDouble("battery_level")).isEqualTo(0.5);
+        assertThat(report.getBoolean("wifi_connected")).isTrue();
+        assertThat(json.getJSONArray("tags").length()).isEqualTo(2);
+    }
+
+    @Test
+    public void skipNullValues() throws IOException {
+        mWriter.beginObject();
+        mWriter.name("user_email").value((String) null);
+        mWriter.name("locale").value("en_US");
+        mWriter.endObject();
+        mWriter.close();
+
+        assertThat(mOutput.toString("utf-8")).isEqualTo("{\"locale\":\"en_US\"}");
+    }
+
+    @Test
+    public void streamBase64ValueAcrossChunks() throws IOException {
+        String testVideoBase64 = SpecUtils.readContentsOfResourceFile("test_video_base64.txt");
+        mWriter.base64Value(SpecUtils.getResourceFile("test_video.mp4"));
+        mWriter.close();
+
+        assertThat(mOutput.toString("utf-8")).isEqualTo("\"" + testVideoBase64 + "\"");
+    }
+
+    @Test
+    public void spliceRawFragments() throws JSONException, IOException {
+        mWriter.beginObject();
+        mWriter.name("what_happened").value("It crashed");
+        mWriter.rawMembers("\"sdk_name\":\"Android\",\"sdk_version\":\"1.0\"".getBytes("utf-8"));
+        mWriter.name("app").rawValue("{\"platform\":\"android\"}".getBytes("utf-8"));
+        mWriter.name("nested").beginObject();
+        mWriter.rawMembers("\"first\":1".getBytes("utf-8"));
+        mWriter.endObject();
+        mWriter.endObject();
+        mWriter.close();
+
+        JSONObject json = new JSONObject(mOutput.toString("utf-8"));
+        assertThat(json.getString("what_happened")).isEqualTo("It crashed");
+        assertThat(json.getString("sdk_name")).isEqualTo("Android");
+        assertThat(json.getString("sdk_version")).isEqualTo("1.0");
+        assertThat(json.getJSONObject("app").getString("platform")).isEqualTo("android");
+        assertThat(json.getJSONObject("nested").getInt("first")).isEqualTo(1);
+    }
+}
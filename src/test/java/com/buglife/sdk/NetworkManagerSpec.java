@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import org.junit.Test;
+
+import okhttp3.OkHttpClient;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class NetworkManagerSpec {
+    @Test
+    public void shareHostConnectionPoolAndDispatcher() {
+        OkHttpClient hostClient = new OkHttpClient();
+        GzipRequestInterceptor gzipInterceptor = new GzipRequestInterceptor();
+        OkHttpClient client = NetworkManager.newHttpClient(hostClient, HttpClientOptions.DEFAULT, gzipInterceptor);
+
+        assertThat(client.connectionPool()).isSameAs(hostClient.connectionPool());
+        assertThat(client.dispatcher()).isSameAs(hostClient.dispatcher());
+        assertThat(client.interceptors().get(0)).isSameAs(gzipInterceptor);
+        assertThat(hostClient.interceptors()).isEmpty();
+    }
+
+    @Test
+    public void applyOptionsToOwnClient() {
+        HttpClientOptions options = new HttpClientOptions.Builder()
+                .setConnectTimeout(10 * 1000)
+                .setReadTimeout(20 * 1000)
+                .setWriteTimeout(0)
+                .setMaxRequests(8)
+                .setMaxRequestsPerHost(2)
+                .build();
+        OkHttpClient client = NetworkManager.newHttpClient(null, options, new GzipRequestInterceptor());
+
+        assertThat(client.connectTimeoutMillis()).isEqualTo(10 * 1000);
+        assertThat(client.readTimeoutMillis()).isEqualTo(20 * 1000);
+        assertThat(client.writeTimeoutMillis()).isEqualTo(0);
+        assertThat(client.dispatcher().getMaxRequests()).isEqualTo(8);
+        assertThat(client.dispatcher().getMaxRequestsPerHost()).isEqualTo(2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectNonPositiveRequestLimits() {
+        new HttpClientOptions.Builder().setMaxRequestsPerHost(0);
+    }
+}
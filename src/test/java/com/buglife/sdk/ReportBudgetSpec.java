@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class ReportBudgetSpec {
+    private static final int LOG_MESSAGES = 500;
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mLogFile;
+    private List<FileAttachment> mAttachments;
+    private AttributeMap mAttributes;
+
+    @Before
+    public void beforeEach() throws IOException, JSONException {
+        JSONArray messages = new JSONArray();
+        for (int i = 0; i < LOG_MESSAGES; i++) {
+            JSONObject message = new JSONObject();
+            message.put("type", 4);
+            message.put("message", "Message " + i + ": the quick brown fox jumps over the lazy dog, again and again and again and again");
+            message.put("context", "Example");
+            message.put("timestamp", 1500000000000L + i);
+            messages.put(message);
+        }
+
+        mLogFile = mTemporaryFolder.newFile("log.json");
+        IOUtils.writeStringToFile(messages.toString(), mLogFile);
+
+        mAttachments = new ArrayList<>();
+        mAttachments.add(new FileAttachment(SpecUtils.getResourceFile("test_json.json"), MimeTypes.JSON));
+        mAttachments.add(new LogFileAttachment(mLogFile));
+        mAttributes = new AttributeMap();
+    }
+
+    @Test
+    public void estimateEncodedSize() {
+        ReportBudget jsonBudget = new ReportBudget(1024, UploadMode.JSON);
+        ReportBudget multipartBudget = new ReportBudget(1024, UploadMode.MULTIPART);
+        long jsonSize = jsonBudget.estimateSize(mAttachments);
+        long multipartSize = multipartBudget.estimateSize(mAttachments);
+
+        assertThat(jsonSize).isGreaterThan(multipartSize);
+        assertThat(jsonSize - multipartSize).isGreaterThanOrEqualTo(mLogFile.length() / 3);
+    }
+
+    @Test
+    public void leaveReportWithinBudgetUntouched() {
+        new ReportBudget(1024 * 1024, UploadMode.JSON).apply(mAttachments, mAttributes);
+
+        assertThat(mAttachments.get(1).getFile()).isEqualTo(mLogFile);
+        assertThat(mAttributes.entrySet()).isEmpty();
+    }
+
+    @Test
+    public void trimLogWindowToFit() throws IOException, JSONException {
+        ReportBudget budget = new ReportBudget(48 * 1024, UploadMode.JSON);
+        budget.apply(mAttachments, mAttributes);
+
+        File trimmedFile = mAttachments.get(1).getFile();
+        JSONArray messages = new JSONArray(IOUtils.readStringFromFile(trimmedFile));
+
+        assertThat(budget.estimateSize(mAttachments)).isLessThanOrEqualTo(48 * 1024);
+        assertThat(mAttachments.get(1)).isInstanceOf(LogFileAttachment.class);
+        assertThat(mLogFile.exists()).isFalse();
+        assertThat(messages.length()).isEqualTo(125);
+        // The most recent messages are kept
+        assertThat(messages.getJSONObject(124).getString("message")).startsWith("Message 499:");
+        assertThat(mAttributes.get(ReportBudget.ATTRIBUTE_LOG_MESSAGES).getValue()).isEqualTo("Most recent 125 of 500");
+        assertThat(mAttributes.get(ReportBudget.ATTRIBUTE_BUDGET).getValue()).doesNotContain("over budget");
+        assertThat(mAttributes.get(ReportBudget.ATTRIBUTE_IMAGE_FORMAT)).isNull();
+    }
+
+    @Test
+    public void recordReportsThatRemainOverBudget() throws IOException, JSONException {
+        new ReportBudget(1024, UploadMode.JSON).apply(mAttachments, mAttributes);
+
+        JSONArray messages = new JSONArray(IOUtils.readStringFromFile(mAttachments.get(1).getFile()));
+
+        assertThat(messages.length()).isEqualTo(50);
+        assertThat(mAttributes.get(ReportBudget.ATTRIBUTE_BUDGET).getValue()).endsWith("(over budget)");
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.buglife.sdk;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class ReportPrioritySpec {
+    @Test
+    public void boostReportsInvokedByTheUser() {
+        for (InvocationMethod invocationMethod : new InvocationMethod[] { InvocationMethod.SHAKE, InvocationMethod.SCREENSHOT, InvocationMethod.BUG_BUTTON }) {
+            assertThat(BugReporterImpl.getPriority(ReportPriority.LOW, invocationMethod)).isEqualTo(ReportPriority.NORMAL);
+            assertThat(BugReporterImpl.getPriority(ReportPriority.NORMAL, invocationMethod)).isEqualTo(ReportPriority.HIGH);
+            assertThat(BugReporterImpl.getPriority(ReportPriority.HIGH, invocationMethod)).isEqualTo(ReportPriority.HIGH);
+        }
+    }
+
+    @Test
+    public void keepPriorityOfReportsShownProgrammatically() {
+        for (ReportPriority priority : ReportPriority.values()) {
+            assertThat(BugReporterImpl.getPriority(priority, InvocationMethod.NONE)).isEqualTo(priority);
+            // Screen recordings can be started by the app as well as by the user
+            assertThat(BugReporterImpl.getPriority(priority, InvocationMethod.SCREEN_RECORDING)).isEqualTo(priority);
+        }
+    }
+
+    @Test
+    public void readPriorityFromValue() {
+        for (ReportPriority priority : ReportPriority.values()) {
+            assertThat(ReportPriority.valueOf(priority.getValue())).isEqualTo(priority);
+        }
+        assertThat(ReportPriority.valueOf(42)).isEqualTo(ReportPriority.NORMAL);
+    }
+}
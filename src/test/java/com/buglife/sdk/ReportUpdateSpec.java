@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import com.buglife.sdk.reporting.BlobIndex;
+import com.buglife.sdk.reporting.PendingReport;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Okio;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class ReportUpdateSpec {
+    private static final String REPORT_ID = "42";
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private ReportsStandInServer mStandInServer;
+    private OkHttpClient mClient;
+
+    @Before
+    public void beforeEach() throws IOException {
+        mStandInServer = new ReportsStandInServer();
+        mStandInServer.mUpdates.put(REPORT_ID, new ArrayList<JSONObject>());
+        mServer = new MockWebServer();
+        mServer.setDispatcher(mStandInServer);
+        mServer.start();
+        mClient = new OkHttpClient();
+    }
+
+    @After
+    public void afterEach() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void sendOnlyTheDelta() throws IOException, JSONException {
+        ReportUpdate update = new ReportUpdate(REPORT_ID)
+                .addAttachment(imageAttachment())
+                .putAttribute("Build", "1234")
+                .setSummary("It also crashed on the second try");
+        update.setApiIdentity(new ApiIdentity.ApiKey("test-api-key"));
+
+        assertThat(submit(update, writeUpdate(update, UploadMode.JSON, null))).isEqualTo(200);
+        assertThat(mStandInServer.mUpdates.get(REPORT_ID)).hasSize(1);
+
+        JSONObject body = mStandInServer.mUpdates.get(REPORT_ID).get(0);
+        JSONObject delta = body.getJSONObject("update");
+        assertThat(body.getString("api_key")).isEqualTo("test-api-key");
+        assertThat(delta.getString("what_happened")).isEqualTo("It also crashed on the second try");
+        assertThat(delta.getJSONObject("attributes").getJSONObject("Build").getString("attribute_value")).isEqualTo("1234");
+        assertThat(delta.getJSONArray("attachments").length()).isEqualTo(1);
+        assertThat(delta.getJSONArray("attachments").getJSONObject(0).getString("base64_attachment_data")).isNotEmpty();
+
+        // No device context, environment, or app fields are sent again
+        assertThat(delta.has("sdk_version")).isFalse();
+        assertThat(delta.has("free_memory_bytes")).isFalse();
+        assertThat(body.has("app")).isFalse();
+    }
+
+    @Test
+    public void keepAttachmentFiles() throws IOException {
+        FileAttachment attachment = new FileAttachment(mTemporaryFolder.newFile("extra.json"), MimeTypes.JSON);
+        ReportUpdate update = new ReportUpdate(REPORT_ID).addAttachment(attachment);
+
+        writeUpdate(update, UploadMode.JSON, null);
+
+        assertThat(attachment.getFile().exists()).isTrue();
+    }
+
+    @Test
+    public void referenceAttachmentsThatWereAlreadyUploaded() throws IOException, JSONException {
+        BlobIndex blobIndex = new BlobIndex(new File(mTemporaryFolder.getRoot(), "uploaded_blobs"));
+        ReportUpdate firstUpdate = new ReportUpdate(REPORT_ID).addAttachment(imageAttachment());
+        blobIndex.recordUploaded(writeUpdate(firstUpdate, UploadMode.JSON, blobIndex));
+
+        ReportUpdate secondUpdate = new ReportUpdate(REPORT_ID).addAttachment(imageAttachment());
+        PendingReport pendingUpdate = writeUpdate(secondUpdate, UploadMode.JSON, blobIndex);
+        JSONObject attachment = new JSONObject(IOUtils.readStringFromFile(pendingUpdate.getReportFile()))
+                .getJSONObject("update").getJSONArray("attachments").getJSONObject(0);
+
+        assertThat(attachment.has("blob_sha256")).isTrue();
+        assertThat(attachment.has("base64_attachment_data")).isFalse();
+    }
+
+    @Test
+    public void writeCborUpdates() throws IOException {
+        ReportUpdate update = new ReportUpdate(REPORT_ID).addAttachment(imageAttachment()).putAttribute("Build", "1234");
+        PendingReport pendingUpdate = writeUpdate(update, UploadMode.CBOR, null);
+
+        Map<String, Object> body = CborDecoder.decodeMap(Okio.buffer(Okio.source(pendingUpdate.getReportFile())).readByteArray());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> delta = (Map<String, Object>) body.get("update");
+        @SuppressWarnings("unchecked")
+        List<Object> attachments = (List<Object>) delta.get("attachments");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> attachment = (Map<String, Object>) attachments.get(0);
+
+        assertThat(pendingUpdate.isCbor()).isTrue();
+        assertThat((byte[]) attachment.get("base64_attachment_data")).hasSize((int) SpecUtils.getResourceFile("test_image.png").length());
+    }
+
+    @Test
+    public void rejectUpdatesToUnknownReports() throws IOException {
+        ReportUpdate update = new ReportUpdate("unknown").putAttribute("Build", "1234");
+
+        assertThat(submit(update, writeUpdate(update, UploadMode.JSON, null))).isEqualTo(404);
+    }
+
+    private PendingReport writeUpdate(ReportUpdate update, UploadMode uploadMode, BlobIndex blobIndex) throws IOException {
+        String extension = uploadMode == UploadMode.CBOR ? PendingReport.CBOR_EXTENSION : ".json";
+        File file = new File(mTemporaryFolder.getRoot(), "update_" + System.nanoTime() + extension);
+        PendingReport pendingUpdate = new PendingReport(file);
+        update.writeTo(pendingUpdate, uploadMode, blobIndex);
+        return pendingUpdate;
+    }
+
+    /**
+     * Mirrors SubmitReportTask.executeUpdate().
+     */
+    private int submit(ReportUpdate update, PendingReport pendingUpdate) throws IOException {
+        Request request = new Request.Builder()
+                .url(mServer.url("/api/v1/reports/" + update.getReportId() + "/updates.json"))
+                .post(pendingUpdate.newRequestBody())
+                .build();
+        Response response = mClient.newCall(request).execute();
+        response.close();
+        return response.code();
+    }
+
+    private FileAttachment imageAttachment() throws IOException {
+        return new FileAttachment(SpecUtils.getResourceFile("test_image.png"), MimeTypes.PNG);
+    }
+
+    /**
+     * A stand-in for the server side of report updates: each update is appended to the list of
+     * updates of the report it refers to. Updates to unknown reports fail with a 404.
+     */
+    private static final class ReportsStandInServer extends Dispatcher {
+        private static final Pattern UPDATES_PATH = Pattern.compile("/api/v1/reports/([^/]+)/updates.json");
+
+        final Map<String, List<JSONObject>> mUpdates = new HashMap<>();
+
+        @Override public synchronized MockResponse dispatch(RecordedRequest request) {
+            Matcher matcher = UPDATES_PATH.matcher(request.getPath());
+
+            if (!"POST".equals(request.getMethod()) || !matcher.matches()) {
+                return new MockResponse().setResponseCode(400);
+            }
+
+            List<JSONObject> updates = mUpdates.get(matcher.group(1));
+
+            if (updates == null) {
+                return new MockResponse().setResponseCode(404);
+            }
+
+            try {
+                updates.add(new JSONObject(request.getBody().readUtf8()));
+                return new MockResponse().setBody("{}");
+            } catch (JSONException e) {
+                return new MockResponse().setResponseCode(400);
+            }
+        }
+    }
+}
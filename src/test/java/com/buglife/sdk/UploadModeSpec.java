@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import com.buglife.sdk.reporting.PendingReport;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+/**
+ * Compares bytes on the wire of the JSON (base64) and multipart upload modes for a typical set
+ * of attachments.
+ */
+public final class UploadModeSpec {
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private List<FileAttachment> mAttachments;
+
+    @Before
+    public void beforeEach() {
+        mAttachments = new ArrayList<>();
+        mAttachments.add(new FileAttachment(SpecUtils.getResourceFile("test_image.png"), MimeTypes.PNG));
+        mAttachments.add(new FileAttachment(SpecUtils.getResourceFile("test_json.json"), MimeTypes.JSON));
+        mAttachments.add(new FileAttachment(SpecUtils.getResourceFile("test_video.mp4"), MimeTypes.MP4));
+    }
+
+    @Test
+    public void multipartSendsFewerBytesThanBase64() throws IOException {
+        long jsonBytes = writeReport(UploadMode.JSON).newRequestBody().contentLength();
+        long multipartBytes = writeReport(UploadMode.MULTIPART).newRequestBody().contentLength();
+
+        assertThat(multipartBytes).isLessThan(jsonBytes);
+    }
+
+    /**
+     * Mirrors Report.writeTo(), except that attachments are copied rather than moved, so that
+     * the test resources are left intact.
+     */
+    private PendingReport writeReport(UploadMode uploadMode) throws IOException {
+        File reportFile = mTemporaryFolder.newFile();
+        PendingReport pendingReport = new PendingReport(reportFile);
+        File attachmentsDir = null;
+
+        if (uploadMode == UploadMode.MULTIPART) {
+            attachmentsDir = pendingReport.getAttachmentsDir();
+            attachmentsDir.mkdirs();
+        }
+
+        JsonStreamWriter writer = new JsonStreamWriter(new FileOutputStream(reportFile));
+        writer.beginObject();
+        writer.name("report").beginObject();
+        writer.name("attachments").beginArray();
+
+        for (int i = 0; i < mAttachments.size(); i++) {
+            FileAttachment attachment = mAttachments.get(i);
+
+            if (attachmentsDir != null) {
+                String partName = "attachment_" + i;
+                IOUtils.copy(attachment.getFile(), new File(attachmentsDir, partName));
+                attachment.writeJSON(writer, partName);
+            } else {
+                attachment.writeJSON(writer);
+            }
+        }
+
+        writer.endArray();
+        writer.endObject();
+        writer.endObject();
+        writer.close();
+
+        return pendingReport;
+    }
+}
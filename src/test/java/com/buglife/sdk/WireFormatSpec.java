@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+/**
+ * Compares the payload size of a typical report encoded as CBOR and as streamed JSON.
+ */
+public final class WireFormatSpec {
+    private List<FileAttachment> mAttachments;
+
+    @Before
+    public void beforeEach() {
+        mAttachments = new ArrayList<>();
+        mAttachments.add(new FileAttachment(SpecUtils.getResourceFile("test_image.png"), MimeTypes.PNG));
+        mAttachments.add(new FileAttachment(SpecUtils.getResourceFile("test_json.json"), MimeTypes.JSON));
+        mAttachments.add(new FileAttachment(SpecUtils.getResourceFile("test_video.mp4"), MimeTypes.MP4));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void cborPayloadIsSmallerThanJson() throws IOException, JSONException {
+        byte[] json = encodeJson();
+        byte[] cbor = encodeCbor();
+        Map<String, Object> report = (Map<String, Object>) CborDecoder.decodeMap(cbor).get("report");
+
+        assertThat(cbor.length).isLessThan(json.length);
+        assertThat(report.get("what_happened")).isEqualTo(new JSONObject(new String(json, "utf-8")).getJSONObject("report").getString("what_happened"));
+    }
+
+    private byte[] encodeJson() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writeReport(new JsonStreamWriter(output));
+        return output.toByteArray();
+    }
+
+    private byte[] encodeCbor() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writeReport(new CborStreamWriter(output));
+        return output.toByteArray();
+    }
+
+    /**
+     * Mirrors the structure of Report.writeJSON().
+     */
+    private void writeReport(TokenWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("report").beginObject();
+        writer.name("what_happened").value("The checkout button does nothing after rotating the device");
+        writer.name("sdk_version").value("1.5.3");
+        writer.name("sdk_name").value("Android");
+        writer.name("user_email").value("qa@example.com");
+        writer.name("bundle_short_version").value("2.4.1");
+        writer.name("bundle_version").value("241");
+        writer.name("operating_system_version").value("9");
+        writer.name("device_manufacturer").value("Google");
+        writer.name("device_model").value("Pixel 3");
+        writer.name("device_brand").value("google");
+        writer.name("device_identifier").value("8af2c1d0e5b94f31");
+        writer.name("total_capacity_bytes").value(64000000000L);
+        writer.name("free_capacity_bytes").value(21000000000L);
+        writer.name("free_memory_bytes").value(1200000000L);
+        writer.name("total_memory_bytes").value(4000000000L);
+        writer.name("battery_level").value(0.73f);
+        writer.name("carrier_name").value("Example Mobile");
+        writer.name("wifi_connected").value(true);
+        writer.name("locale").value("en_US");
+        writer.name("invocation_method").value("shake");
+        writer.name("invoked_at").value("2018-11-22T10:54:01-0800");
+        writer.name("submission_attempts").value(1);
+        writer.name("attachments");
+        new AttachmentWriter().writeAttachments(writer, mAttachments);
+        writer.name("attributes").beginObject();
+        for (int i = 0; i < 10; i++) {
+            writer.name("Attribute " + i).beginObject();
+            writer.name("attribute_type").value(0);
+            writer.name("attribute_value").value("Value " + i);
+            writer.name("flag").value(Attribute.FLAG_CUSTOM);
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.endObject();
+        writer.name("app").beginObject();
+        writer.name("bundle_identifier").value("com.example.app");
+        writer.name("bundle_name").value("Example");
+        writer.name("platform").value("android");
+        writer.endObject();
+        writer.name("api_key").value("abcdef0123456789");
+        writer.endObject();
+        writer.close();
+    }
+}
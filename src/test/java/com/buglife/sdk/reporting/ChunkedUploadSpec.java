@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import com.buglife.sdk.NetworkManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.ByteString;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.assertj.core.api.Java6Assertions.fail;
+
+public final class ChunkedUploadSpec {
+    private static final int CHUNK_SIZE = 1024;
+    private static final int FILE_SIZE = 10 * CHUNK_SIZE + 100;
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private UploadStandInServer mStandInServer;
+    private String mUploadsUrl;
+    private PendingReport mPendingReport;
+    private byte[] mData;
+
+    @Before
+    public void beforeEach() throws IOException {
+        mStandInServer = new UploadStandInServer();
+        mServer = new MockWebServer();
+        mServer.setDispatcher(mStandInServer);
+        mServer.start();
+        mUploadsUrl = mServer.url("/api/v1/uploads").toString();
+
+        mData = new byte[FILE_SIZE];
+        new Random(42).nextBytes(mData);
+        mPendingReport = new PendingReport(mTemporaryFolder.newFile("report.json"));
+        File uploadsDir = mPendingReport.getUploadsDir();
+        uploadsDir.mkdirs();
+        FileOutputStream output = new FileOutputStream(new File(uploadsDir, "upload-1"));
+        output.write(mData);
+        output.close();
+    }
+
+    @After
+    public void afterEach() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void uploadInChunks() throws IOException {
+        ChunkedUpload upload = ChunkedUpload.forReport(mPendingReport).get(0);
+        upload.upload(NetworkManager.getInstance(), mUploadsUrl, CHUNK_SIZE);
+
+        assertThat(upload.isComplete()).isTrue();
+        assertThat(mStandInServer.mReceived.snapshot()).isEqualTo(ByteString.of(mData));
+        assertThat(mStandInServer.mContentRanges).hasSize(11);
+        assertThat(mStandInServer.mContentRanges.get(0)).isEqualTo("bytes 0-1023/10340");
+        assertThat(mStandInServer.mContentRanges.get(10)).isEqualTo("bytes 10240-10339/10340");
+    }
+
+    @Test
+    public void resumeFromCommittedOffsetAfterProcessDeath() throws IOException {
+        mStandInServer.mFailAtChunk = 4;
+
+        try {
+            ChunkedUpload.forReport(mPendingReport).get(0).upload(NetworkManager.getInstance(), mUploadsUrl, CHUNK_SIZE);
+            fail("Expected the upload to be interrupted");
+        } catch (IOException expected) {
+            // The chunk was lost
+        }
+
+        // A fresh instance only knows what was persisted to disk
+        ChunkedUpload upload = ChunkedUpload.forReport(mPendingReport).get(0);
+        assertThat(upload.getCommittedOffset()).isEqualTo(4 * CHUNK_SIZE);
+        assertThat(mPendingReport.hasPartialUploads()).isTrue();
+
+        upload.upload(NetworkManager.getInstance(), mUploadsUrl, CHUNK_SIZE);
+
+        assertThat(upload.isComplete()).isTrue();
+        assertThat(mPendingReport.hasPartialUploads()).isFalse();
+        assertThat(mStandInServer.mReceived.snapshot()).isEqualTo(ByteString.of(mData));
+        // Chunks 0-3 were sent once, chunk 4 was retried, and chunks 5-10 followed
+        assertThat(mStandInServer.mContentRanges).hasSize(12);
+        assertThat(mStandInServer.mContentRanges.get(5)).isEqualTo("bytes 4096-5119/10340");
+    }
+
+    @Test
+    public void adoptServerOffsetWhenAckIsLost() throws IOException {
+        mStandInServer.mDropAckAtChunk = 2;
+
+        try {
+            ChunkedUpload.forReport(mPendingReport).get(0).upload(NetworkManager.getInstance(), mUploadsUrl, CHUNK_SIZE);
+            fail("Expected the upload to be interrupted");
+        } catch (IOException expected) {
+            // The server committed chunk 2, but the acknowledgement never arrived
+        }
+
+        ChunkedUpload upload = ChunkedUpload.forReport(mPendingReport).get(0);
+        assertThat(upload.getCommittedOffset()).isEqualTo(2 * CHUNK_SIZE);
+
+        upload.upload(NetworkManager.getInstance(), mUploadsUrl, CHUNK_SIZE);
+
+        assertThat(upload.isComplete()).isTrue();
+        assertThat(mStandInServer.mReceived.snapshot()).isEqualTo(ByteString.of(mData));
+    }
+
+    @Test
+    public void deleteUploadsWithReport() throws IOException {
+        ChunkedUpload.forReport(mPendingReport).get(0).upload(NetworkManager.getInstance(), mUploadsUrl, CHUNK_SIZE);
+        mPendingReport.delete();
+
+        assertThat(mPendingReport.getUploadsDir().exists()).isFalse();
+    }
+
+    /**
+     * A stand-in for the server side of the chunked upload protocol. Chunks are appended only if
+     * they start at the committed offset; otherwise the server responds with 409 and the offset
+     * it has committed.
+     */
+    private static final class UploadStandInServer extends Dispatcher {
+        private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+        final Buffer mReceived = new Buffer();
+        final List<String> mContentRanges = new ArrayList<>();
+        // Fails the request for a chunk without committing it
+        int mFailAtChunk = -1;
+        // Commits a chunk, but fails the request as if the acknowledgement was lost
+        int mDropAckAtChunk = -1;
+
+        @Override public synchronized MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            String contentRange = request.getHeader("Content-Range");
+            mContentRanges.add(contentRange);
+            Matcher matcher = CONTENT_RANGE.matcher(contentRange);
+
+            if (!"PUT".equals(request.getMethod()) || !matcher.matches()) {
+                return new MockResponse().setResponseCode(400);
+            }
+
+            long start = Long.parseLong(matcher.group(1));
+            int chunk = (int) (start / CHUNK_SIZE);
+
+            if (chunk == mFailAtChunk) {
+                mFailAtChunk = -1;
+                return new MockResponse().setResponseCode(503);
+            }
+
+            if (start != mReceived.size()) {
+                return committed(409);
+            }
+
+            try {
+                mReceived.writeAll(request.getBody());
+            } catch (IOException e) {
+                return new MockResponse().setResponseCode(500);
+            }
+
+            if (chunk == mDropAckAtChunk) {
+                mDropAckAtChunk = -1;
+                return new MockResponse().setResponseCode(503);
+            }
+
+            return committed(200);
+        }
+
+        private MockResponse committed(int code) {
+            return new MockResponse().setResponseCode(code).setBody("{\"committed\": " + mReceived.size() + "}");
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class EnvelopeCacheSpec {
+    private SessionSnapshot mSessionSnapshot;
+    private DeviceSnapshot mDeviceSnapshot;
+    private EnvelopeCache mEnvelopeCache;
+
+    @Before
+    public void beforeEach() {
+        mSessionSnapshot = new SessionSnapshot("android", "1.5.3", "Android", "jane@example.com", null, "com.example.app", "Example", "2.0", "20");
+        mDeviceSnapshot = new DeviceSnapshot("9", "Google", "Pixel", "google", "abc123");
+        mEnvelopeCache = new EnvelopeCache(mSessionSnapshot, mDeviceSnapshot);
+    }
+
+    @Test
+    public void serializeReportFields() throws IOException, JSONException {
+        JSONObject fields = new JSONObject("{" + new String(mEnvelopeCache.getReportFields(mSessionSnapshot, mDeviceSnapshot), "utf-8") + "}");
+
+        assertThat(fields.getString("sdk_version")).isEqualTo("1.5.3");
+        assertThat(fields.getString("user_email")).isEqualTo("jane@example.com");
+        assertThat(fields.has("user_identifier")).isFalse();
+        assertThat(fields.getString("bundle_version")).isEqualTo("20");
+        assertThat(fields.getString("device_model")).isEqualTo("Pixel");
+        assertThat(fields.getString("device_identifier")).isEqualTo("abc123");
+    }
+
+    @Test
+    public void reuseFragments() throws IOException {
+        byte[] reportFields = mEnvelopeCache.getReportFields(mSessionSnapshot, mDeviceSnapshot);
+        byte[] reportApp = mEnvelopeCache.getReportApp(mSessionSnapshot);
+        byte[] clientEventFields = mEnvelopeCache.getClientEventFields(mSessionSnapshot, mDeviceSnapshot);
+        byte[] clientEventApp = mEnvelopeCache.getClientEventApp(mSessionSnapshot);
+
+        // An equal snapshot (e.g. one that was parceled) hits the cache too
+        SessionSnapshot sessionSnapshot = mSessionSnapshot.withUser("jane@example.com", null);
+
+        assertThat(mEnvelopeCache.getReportFields(sessionSnapshot, mDeviceSnapshot)).isSameAs(reportFields);
+        assertThat(mEnvelopeCache.getReportApp(sessionSnapshot)).isSameAs(reportApp);
+        assertThat(mEnvelopeCache.getClientEventFields(sessionSnapshot, mDeviceSnapshot)).isSameAs(clientEventFields);
+        assertThat(mEnvelopeCache.getClientEventApp(sessionSnapshot)).isSameAs(clientEventApp);
+    }
+
+    @Test
+    public void invalidateUserFragmentsWhenUserChanges() throws IOException, JSONException {
+        byte[] reportFields = mEnvelopeCache.getReportFields(mSessionSnapshot, mDeviceSnapshot);
+        byte[] reportApp = mEnvelopeCache.getReportApp(mSessionSnapshot);
+
+        mEnvelopeCache.updateUser("john@example.com", "42");
+        SessionSnapshot sessionSnapshot = mSessionSnapshot.withUser("john@example.com", "42");
+        byte[] updatedReportFields = mEnvelopeCache.getReportFields(sessionSnapshot, mDeviceSnapshot);
+        JSONObject fields = new JSONObject("{" + new String(updatedReportFields, "utf-8") + "}");
+
+        assertThat(updatedReportFields).isNotSameAs(reportFields);
+        assertThat(fields.getString("user_email")).isEqualTo("john@example.com");
+        assertThat(fields.getString("user_identifier")).isEqualTo("42");
+        assertThat(mEnvelopeCache.getReportFields(sessionSnapshot, mDeviceSnapshot)).isSameAs(updatedReportFields);
+        // The app fragment doesn't depend on the user
+        assertThat(mEnvelopeCache.getReportApp(sessionSnapshot)).isSameAs(reportApp);
+    }
+
+    @Test
+    public void serializeStaleSnapshotsWithoutCaching() throws IOException, JSONException {
+        mEnvelopeCache.updateUser("john@example.com", "42");
+
+        // A report captured before the user changed keeps its own user
+        byte[] first = mEnvelopeCache.getReportFields(mSessionSnapshot, mDeviceSnapshot);
+        byte[] second = mEnvelopeCache.getReportFields(mSessionSnapshot, mDeviceSnapshot);
+        JSONObject fields = new JSONObject("{" + new String(first, "utf-8") + "}");
+
+        assertThat(fields.getString("user_email")).isEqualTo("jane@example.com");
+        assertThat(second).isNotSameAs(first).isEqualTo(first);
+    }
+}
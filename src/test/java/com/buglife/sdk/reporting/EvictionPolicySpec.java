@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.buglife.sdk.reporting;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class EvictionPolicySpec {
+    private final QueuedReport mOldText = new QueuedReport(1, 2000, 0, 3);
+    private final QueuedReport mVideo = new QueuedReport(2, 9000000, 8000000, 1);
+    private final QueuedReport mScreenshot = new QueuedReport(3, 500000, 400000, 0);
+    private final List<QueuedReport> mReports = Arrays.asList(mOldText, mVideo, mScreenshot);
+
+    @Test
+    public void evictOldestFirst() {
+        assertThat(EvictionPolicy.OLDEST_FIRST.selectReportToEvict(mReports)).isSameAs(mOldText);
+        assertThat(EvictionPolicy.OLDEST_FIRST.selectReportToStrip(mReports)).isNull();
+        assertThat(EvictionPolicy.OLDEST_FIRST.selectReportToEvict(new ArrayList<QueuedReport>())).isNull();
+    }
+
+    @Test
+    public void evictLargestMediaFirst() {
+        assertThat(EvictionPolicy.LARGEST_MEDIA_FIRST.selectReportToEvict(mReports)).isSameAs(mVideo);
+        assertThat(EvictionPolicy.LARGEST_MEDIA_FIRST.selectReportToStrip(mReports)).isNull();
+
+        // Once no report has any media, the oldest report goes first
+        QueuedReport newText = new QueuedReport(4, 3000, 0, 0);
+        assertThat(EvictionPolicy.LARGEST_MEDIA_FIRST.selectReportToEvict(Arrays.asList(mOldText, newText))).isSameAs(mOldText);
+    }
+
+    @Test
+    public void stripLargestMediaBeforeEvicting() {
+        assertThat(EvictionPolicy.STRIP_MEDIA.selectReportToStrip(mReports)).isSameAs(mVideo);
+        assertThat(EvictionPolicy.STRIP_MEDIA.selectReportToStrip(Arrays.asList(mOldText))).isNull();
+        assertThat(EvictionPolicy.STRIP_MEDIA.selectReportToEvict(mReports)).isSameAs(mOldText);
+    }
+}
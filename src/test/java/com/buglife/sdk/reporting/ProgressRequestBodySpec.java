@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class ProgressRequestBodySpec {
+    private static final MediaType MEDIA_TYPE = MediaType.parse("application/octet-stream");
+    private static final int BODY_SIZE = 64 * 1024;
+
+    @Test
+    public void reportProgressAsTheBodyIsWritten() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        UploadMetrics metrics = new UploadMetrics();
+        ProgressRequestBody body = new ProgressRequestBody(newBody(), metrics, listener);
+
+        Buffer sink = new Buffer();
+        body.writeTo(sink);
+
+        assertThat(sink.size()).isEqualTo(BODY_SIZE);
+        assertThat(listener.mBytesSent).isNotEmpty();
+        assertThat(listener.mBytesSent).isSorted();
+        assertThat(listener.mBytesSent.get(listener.mBytesSent.size() - 1)).isEqualTo((long) BODY_SIZE);
+        assertThat(listener.mTotalBytes).containsOnly((long) BODY_SIZE);
+        assertThat(metrics.getBytesSent()).isEqualTo(BODY_SIZE);
+        assertThat(metrics.getUploadMillis()).isGreaterThanOrEqualTo(0);
+    }
+
+    @Test
+    public void startOverWhenTheBodyIsRewritten() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        ProgressRequestBody body = new ProgressRequestBody(newBody(), new UploadMetrics(), listener);
+
+        body.writeTo(new Buffer());
+        int firstWrites = listener.mBytesSent.size();
+        body.writeTo(new Buffer());
+
+        assertThat(listener.mBytesSent.get(firstWrites)).isEqualTo(0);
+        assertThat(listener.mBytesSent.subList(firstWrites, listener.mBytesSent.size())).isSorted();
+        assertThat(listener.mBytesSent.get(listener.mBytesSent.size() - 1)).isEqualTo((long) BODY_SIZE);
+    }
+
+    @Test
+    public void recordOnlyUploadsThatWereAnswered() throws IOException {
+        UploadStats stats = new UploadStats();
+        UploadMetrics unanswered = new UploadMetrics();
+        new ProgressRequestBody(newBody(), unanswered, null).writeTo(new Buffer());
+        stats.record(unanswered);
+
+        UploadMetrics answered = new UploadMetrics();
+        new ProgressRequestBody(newBody(), answered, null).writeTo(new Buffer());
+        answered.onResponse(System.nanoTime());
+        stats.record(answered);
+
+        assertThat(unanswered.getTimeToFirstByteMillis()).isEqualTo(-1);
+        assertThat(answered.getTimeToFirstByteMillis()).isGreaterThanOrEqualTo(0);
+        assertThat(stats.getUploads()).isEqualTo(1);
+        assertThat(stats.getBytesSent()).isEqualTo(BODY_SIZE);
+        assertThat(stats.getLastUpload()).isSameAs(answered);
+    }
+
+    @Test
+    public void computeThroughputFromTheUploadTime() {
+        UploadMetrics metrics = new UploadMetrics();
+        metrics.onUploadStarted(0);
+        metrics.onUploadFinished(500000000L, BODY_SIZE);
+        metrics.onResponse(750000000L);
+
+        UploadStats stats = new UploadStats();
+        stats.record(metrics);
+
+        assertThat(metrics.getThroughput()).isEqualTo(2 * BODY_SIZE);
+        assertThat(metrics.getTimeToFirstByteMillis()).isEqualTo(250);
+        assertThat(stats.getAverageThroughput()).isEqualTo(2 * BODY_SIZE);
+        assertThat(stats.getAverageTimeToFirstByteMillis()).isEqualTo(250);
+    }
+
+    private static RequestBody newBody() {
+        return RequestBody.create(MEDIA_TYPE, new byte[BODY_SIZE]);
+    }
+
+    private static final class RecordingListener implements ProgressRequestBody.Listener {
+        final List<Long> mBytesSent = new ArrayList<>();
+        final List<Long> mTotalBytes = new ArrayList<>();
+
+        @Override public void onProgress(long bytesSent, long totalBytes) {
+            mBytesSent.add(bytesSent);
+            mTotalBytes.add(totalBytes);
+        }
+    }
+}
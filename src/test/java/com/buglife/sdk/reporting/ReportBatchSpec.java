@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import com.buglife.sdk.CborDecoder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.RequestBody;
+import okio.Buffer;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class ReportBatchSpec {
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private int mReportCount;
+
+    @Test
+    public void sendReportsAsJsonArray() throws IOException, JSONException {
+        ReportBatch batch = new ReportBatch(false);
+        assertThat(batch.add(writeReport("first", false, 0), 1)).isTrue();
+        assertThat(batch.add(writeReport("second", false, 0), 3)).isTrue();
+
+        RequestBody body = batch.newRequestBody();
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertThat(body.contentLength()).isEqualTo(buffer.size());
+
+        JSONArray reports = new JSONArray(buffer.readUtf8());
+        assertThat(reports.length()).isEqualTo(2);
+        assertThat(reports.getJSONObject(0).getJSONObject("report").getString("what_happened")).isEqualTo("first");
+        assertThat(reports.getJSONObject(1).getJSONObject("report").getInt("submission_attempts")).isEqualTo(3);
+    }
+
+    @Test
+    public void sendReportsAsCborArray() throws IOException {
+        ReportBatch batch = new ReportBatch(true);
+        batch.add(writeReport("first", true, 0), 1);
+        batch.add(writeReport("second", true, 0), 2);
+
+        RequestBody body = batch.newRequestBody();
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertThat(body.contentLength()).isEqualTo(buffer.size());
+
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> reports = (List<Map<String, Object>>) CborDecoder.decode(buffer.readByteArray());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> second = (Map<String, Object>) reports.get(1).get("report");
+        assertThat(reports).hasSize(2);
+        assertThat(second.get("what_happened")).isEqualTo("second");
+        assertThat(((Number) second.get("submission_attempts")).intValue()).isEqualTo(2);
+    }
+
+    @Test
+    public void sendLargeReportsIndividually() throws IOException {
+        PendingReport smallReport = writeReport("small", false, 1024);
+        PendingReport largeReport = writeReport("large", false, (int) ReportBatch.MAX_REPORT_SIZE);
+
+        assertThat(ReportBatch.canBatch(smallReport, 1)).isTrue();
+        assertThat(ReportBatch.canBatch(largeReport, 1)).isFalse();
+    }
+
+    @Test
+    public void neverMixFormatsOrOverfillBatches() throws IOException {
+        ReportBatch batch = new ReportBatch(false);
+
+        assertThat(batch.canAdd(writeReport("cbor", true, 0), 1)).isFalse();
+        for (int i = 0; i < ReportBatch.MAX_REPORTS; i++) {
+            assertThat(batch.add(writeReport("report " + i, false, 0), 1)).isTrue();
+        }
+        assertThat(batch.add(writeReport("one too many", false, 0), 1)).isFalse();
+        assertThat(batch.size()).isEqualTo(ReportBatch.MAX_REPORTS);
+    }
+
+    @Test
+    public void addTheAttemptThatWasLookedAt() throws IOException, JSONException {
+        ReportBatch batch = new ReportBatch(false);
+        PendingReport first = writeReport("first", false, 0);
+        PendingReport second = writeReport("second", false, 0);
+        batch.add(first, 1);
+
+        // The body built by canAdd() is only reused for the same report and attempt
+        assertThat(batch.canAdd(second, 2)).isTrue();
+        assertThat(batch.add(second, 5)).isTrue();
+
+        RequestBody body = batch.newRequestBody();
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertThat(body.contentLength()).isEqualTo(buffer.size());
+        assertThat(new JSONArray(buffer.readUtf8()).getJSONObject(1).getJSONObject("report").getInt("submission_attempts")).isEqualTo(5);
+    }
+
+    @Test
+    public void mapBatchResultsToErrors() throws JSONException {
+        assertThat(ReportBatch.getError(new JSONObject("{\"id\": \"abc\"}"))).isNull();
+        assertThat(ReportBatch.getError(new JSONObject("{\"error\": \"Invalid API key\"}"))).hasMessageContaining("Invalid API key");
+        assertThat(ReportBatch.getError(null)).isNotNull();
+    }
+
+    /**
+     * Writes a report shaped like Report.writeJSON(), with an attachment of the given size.
+     */
+    private PendingReport writeReport(String whatHappened, boolean cbor, int attachmentSize) throws IOException {
+        String extension = (cbor ? PendingReport.CBOR_EXTENSION : ".json") + PendingReport.CONTAINER_EXTENSION;
+        PendingReport pendingReport = new PendingReport(mTemporaryFolder.newFile("report_" + mReportCount++ + extension));
+        ReportContainerWriter writer = new ReportContainerWriter(pendingReport.getReportFile(), cbor);
+
+        writer.beginObject();
+        writer.name("report").beginObject();
+        writer.name("submission_attempts").attemptNumberValue();
+        writer.name("what_happened").value(whatHappened);
+
+        if (attachmentSize > 0) {
+            File file = mTemporaryFolder.newFile();
+            FileOutputStream output = new FileOutputStream(file);
+            try {
+                output.write(new byte[attachmentSize]);
+            } finally {
+                output.close();
+            }
+
+            writer.name("attachments").beginArray();
+            writer.beginObject();
+            writer.name("filename").value("log.txt");
+            writer.name("base64_attachment_data").binaryValue(file);
+            writer.endObject();
+            writer.endArray();
+        }
+
+        writer.endObject();
+        writer.name("api_key").value("test-api-key");
+        writer.endObject();
+        writer.close();
+
+        return pendingReport;
+    }
+}
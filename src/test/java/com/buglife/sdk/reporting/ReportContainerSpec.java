@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.util.Base64;
+
+import com.buglife.sdk.CborDecoder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.ByteString;
+import okio.Okio;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class ReportContainerSpec {
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private byte[] mScreenshot;
+    private byte[] mLog;
+
+    @Before
+    public void beforeEach() {
+        Random random = new Random(42);
+        mScreenshot = new byte[20000];
+        random.nextBytes(mScreenshot);
+        // Not a multiple of 3, so base64 padding is needed
+        mLog = new byte[301];
+        random.nextBytes(mLog);
+    }
+
+    @Test
+    public void convertToJsonAtSendTime() throws IOException, JSONException {
+        PendingReport pendingReport = writeReport(".json" + PendingReport.CONTAINER_EXTENSION, false);
+        Buffer body = send(pendingReport);
+        JSONObject report = new JSONObject(body.readUtf8()).getJSONObject("report");
+        JSONArray attachments = report.getJSONArray("attachments");
+
+        assertThat(pendingReport.isContainer()).isTrue();
+        assertThat(pendingReport.isCbor()).isFalse();
+        assertThat(report.getString("what_happened")).isEqualTo("It crashed");
+        assertThat(Base64.decode(attachments.getJSONObject(0).getString("base64_attachment_data"), Base64.DEFAULT)).isEqualTo(mScreenshot);
+        assertThat(Base64.decode(attachments.getJSONObject(1).getString("base64_attachment_data"), Base64.DEFAULT)).isEqualTo(mLog);
+        assertThat(attachments.getJSONObject(1).getString("mime_type")).isEqualTo("text/plain");
+    }
+
+    @Test
+    public void convertToCborAtSendTime() throws IOException {
+        PendingReport pendingReport = writeReport(PendingReport.CBOR_EXTENSION + PendingReport.CONTAINER_EXTENSION, true);
+        Map<String, Object> body = CborDecoder.decodeMap(send(pendingReport).readByteArray());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> report = (Map<String, Object>) body.get("report");
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> attachments = (List<Map<String, Object>>) report.get("attachments");
+
+        assertThat(pendingReport.isCbor()).isTrue();
+        assertThat(report.get("what_happened")).isEqualTo("It crashed");
+        assertThat((byte[]) attachments.get(0).get("base64_attachment_data")).isEqualTo(mScreenshot);
+        assertThat((byte[]) attachments.get(1).get("base64_attachment_data")).isEqualTo(mLog);
+    }
+
+    @Test
+    public void storeAttachmentsRaw() throws IOException {
+        PendingReport pendingReport = writeReport(".json" + PendingReport.CONTAINER_EXTENSION, false);
+        long wireLength = pendingReport.newRequestBody().contentLength();
+
+        // Base64 makes attachment data a third larger on the wire, but not on disk
+        assertThat(pendingReport.getReportFile().length()).isLessThan(mScreenshot.length + mLog.length + 1024);
+        assertThat(wireLength).isGreaterThan(pendingReport.getReportFile().length() + mScreenshot.length / 4);
+    }
+
+    @Test
+    public void readAttachmentsIndividually() throws IOException, JSONException {
+        PendingReport pendingReport = writeReport(".json" + PendingReport.CONTAINER_EXTENSION, false);
+        ReportContainer container = ReportContainer.open(pendingReport.getReportFile());
+
+        assertThat(container.getBlobCount()).isEqualTo(2);
+        assertThat(container.getBlobLength(1)).isEqualTo(mLog.length);
+        assertThat(read(container.openBlob(1))).isEqualTo(mLog);
+        assertThat(read(container.openBlob(0))).isEqualTo(mScreenshot);
+
+        // The metadata is a valid document on its own, without the attachment data
+        JSONObject metadata = new JSONObject(new String(read(container.openMetadata()), "UTF-8"));
+        JSONObject attachment = metadata.getJSONObject("report").getJSONArray("attachments").getJSONObject(0);
+        assertThat(attachment.getString("filename")).isEqualTo("screenshot.png");
+        assertThat(attachment.getString("base64_attachment_data")).isEmpty();
+    }
+
+    @Test
+    public void reportContentLengthOfWireFormat() throws IOException {
+        for (boolean cbor : new boolean[] { false, true }) {
+            String extension = (cbor ? PendingReport.CBOR_EXTENSION : ".json") + PendingReport.CONTAINER_EXTENSION;
+            RequestBody body = writeReport(extension, cbor).newRequestBody();
+            Buffer buffer = new Buffer();
+            body.writeTo(buffer);
+
+            assertThat(body.contentLength()).isEqualTo(buffer.size());
+        }
+    }
+
+    @Test
+    public void fillInAttemptNumberAtSendTime() throws IOException, JSONException {
+        PendingReport jsonReport = writeReport(".json" + PendingReport.CONTAINER_EXTENSION, false);
+        PendingReport cborReport = writeReport(PendingReport.CBOR_EXTENSION + PendingReport.CONTAINER_EXTENSION, true);
+
+        for (int attemptNumber : new int[] { 1, 7, 300 }) {
+            JSONObject json = new JSONObject(send(jsonReport, attemptNumber).readUtf8()).getJSONObject("report");
+            @SuppressWarnings("unchecked")
+            Map<String, Object> cbor = (Map<String, Object>) CborDecoder.decodeMap(send(cborReport, attemptNumber).readByteArray()).get("report");
+
+            assertThat(json.getInt("submission_attempts")).isEqualTo(attemptNumber);
+            assertThat(((Number) cbor.get("submission_attempts")).intValue()).isEqualTo(attemptNumber);
+            assertThat(jsonReport.newRequestBody(attemptNumber).contentLength()).isEqualTo(send(jsonReport, attemptNumber).size());
+            assertThat(cborReport.newRequestBody(attemptNumber).contentLength()).isEqualTo(send(cborReport, attemptNumber).size());
+        }
+
+        // The attempt number is not an attachment
+        assertThat(ReportContainer.open(jsonReport.getReportFile()).getBlobCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void keepDeferredUpdateWithItsReport() throws IOException, JSONException {
+        PendingReport pendingReport = writeReport(".json" + PendingReport.CONTAINER_EXTENSION, false);
+        PendingReport pendingUpdate = pendingReport.getDeferredUpdate();
+        ReportContainerWriter writer = new ReportContainerWriter(pendingUpdate.getReportFile(), false);
+
+        // Shaped like Report.writeDeferredUpdate()
+        writer.beginObject();
+        writer.name("update").beginObject();
+        writer.name("attachments").beginArray();
+        writeAttachment(writer, "recording.mp4", "video/mp4", mScreenshot, true);
+        writer.endArray();
+        writer.endObject();
+        writer.name("api_key").value("test-api-key");
+        writer.endObject();
+        writer.close();
+
+        PendingReport movedReport = pendingReport.moveTo(mTemporaryFolder.newFolder("pending_reports"));
+        PendingReport movedUpdate = movedReport.getDeferredUpdate();
+
+        assertThat(pendingUpdate.exists()).isFalse();
+        assertThat(movedUpdate.exists()).isTrue();
+        assertThat(movedUpdate.isContainer()).isTrue();
+
+        JSONObject update = new JSONObject(send(movedUpdate).readUtf8()).getJSONObject("update");
+        JSONObject attachment = update.getJSONArray("attachments").getJSONObject(0);
+        assertThat(Base64.decode(attachment.getString("base64_attachment_data"), Base64.DEFAULT)).isEqualTo(mScreenshot);
+
+        movedReport.delete();
+        assertThat(movedReport.exists()).isFalse();
+        assertThat(movedUpdate.exists()).isFalse();
+    }
+
+    @Test
+    public void stripMediaButKeepTheRest() throws IOException, JSONException {
+        PendingReport pendingReport = writeReport(".json" + PendingReport.CONTAINER_EXTENSION, false);
+        long originalLength = pendingReport.getReportFile().length();
+
+        assertThat(pendingReport.getMediaSize()).isEqualTo(mScreenshot.length);
+        long freed = ReportContainer.stripMedia(pendingReport.getReportFile());
+        // The screenshot's attachment goes along with its data
+        assertThat(freed).isGreaterThan(mScreenshot.length);
+        assertThat(pendingReport.getReportFile().length()).isEqualTo(originalLength - freed);
+        assertThat(pendingReport.getMediaSize()).isZero();
+        assertThat(ReportContainer.stripMedia(pendingReport.getReportFile())).isZero();
+
+        JSONObject report = new JSONObject(send(pendingReport, 3).readUtf8()).getJSONObject("report");
+        JSONArray attachments = report.getJSONArray("attachments");
+        assertThat(report.getString("what_happened")).isEqualTo("It crashed");
+        assertThat(report.getInt("submission_attempts")).isEqualTo(3);
+        assertThat(attachments.length()).isEqualTo(1);
+        assertThat(attachments.getJSONObject(0).getString("filename")).isEqualTo("log.txt");
+        assertThat(Base64.decode(attachments.getJSONObject(0).getString("base64_attachment_data"), Base64.DEFAULT)).isEqualTo(mLog);
+        assertThat(pendingReport.newRequestBody(3).contentLength()).isEqualTo(send(pendingReport, 3).size());
+    }
+
+    @Test
+    public void stripMediaFromCbor() throws IOException {
+        PendingReport pendingReport = writeReport(PendingReport.CBOR_EXTENSION + PendingReport.CONTAINER_EXTENSION, true);
+        pendingReport.stripMedia();
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> report = (Map<String, Object>) CborDecoder.decodeMap(send(pendingReport).readByteArray()).get("report");
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> attachments = (List<Map<String, Object>>) report.get("attachments");
+        assertThat(attachments).hasSize(1);
+        assertThat(attachments.get(0).get("filename")).isEqualTo("log.txt");
+        assertThat((byte[]) attachments.get(0).get("base64_attachment_data")).isEqualTo(mLog);
+        assertThat(report.get("what_happened")).isEqualTo("It crashed");
+    }
+
+    @Test
+    public void dropEveryStrippedAttachment() throws IOException, JSONException {
+        PendingReport pendingReport = new PendingReport(new File(mTemporaryFolder.getRoot(), "report.json" + PendingReport.CONTAINER_EXTENSION));
+        ReportContainerWriter writer = new ReportContainerWriter(pendingReport.getReportFile(), false);
+
+        writer.beginObject();
+        writer.name("report").beginObject();
+        writer.name("attachments").beginArray();
+        writeAttachment(writer, "first.png", "image/png", mScreenshot, true);
+        writeAttachment(writer, "log.txt", "text/plain", mLog, false);
+        writeAttachment(writer, "second.png", "image/png", mScreenshot, true);
+        writeAttachment(writer, "third.png", "image/png", mScreenshot, true);
+        writer.endArray();
+        writer.name("submission_attempts").attemptNumberValue();
+        writer.endObject();
+        writer.endObject();
+        writer.close();
+
+        pendingReport.stripMedia();
+
+        // Read back from the rewritten container
+        ReportContainer container = ReportContainer.open(pendingReport.getReportFile());
+        assertThat(container.getBlobCount()).isEqualTo(1);
+        assertThat(container.getMediaLength()).isZero();
+        JSONObject report = new JSONObject(send(pendingReport, 2).readUtf8()).getJSONObject("report");
+        JSONArray attachments = report.getJSONArray("attachments");
+        assertThat(attachments.length()).isEqualTo(1);
+        assertThat(attachments.getJSONObject(0).getString("filename")).isEqualTo("log.txt");
+        assertThat(report.getInt("submission_attempts")).isEqualTo(2);
+    }
+
+    @Test
+    public void dropDeferredAttachmentCountWithTheMedia() throws IOException, JSONException {
+        for (boolean cbor : new boolean[] { false, true }) {
+            String extension = (cbor ? PendingReport.CBOR_EXTENSION : ".json") + PendingReport.CONTAINER_EXTENSION;
+            PendingReport pendingReport = new PendingReport(new File(mTemporaryFolder.getRoot(), "deferred" + extension));
+            ReportContainerWriter writer = new ReportContainerWriter(pendingReport.getReportFile(), cbor);
+
+            writer.beginObject();
+            writer.name("report").beginObject();
+            writer.name("attachments").beginArray();
+            writeAttachment(writer, "screenshot.png", "image/png", mScreenshot, true);
+            writer.endArray();
+            writer.name("deferred_attachment_count").strippableValue(2);
+            writer.name("what_happened").value("It crashed");
+            writer.endObject();
+            writer.endObject();
+            writer.close();
+
+            assertThat(readReport(pendingReport, cbor)).containsEntry("deferred_attachment_count", 2L);
+            assertThat(pendingReport.newRequestBody().contentLength()).isEqualTo(send(pendingReport).size());
+
+            pendingReport.stripMedia();
+
+            Map<String, Object> report = readReport(pendingReport, cbor);
+            assertThat(report).doesNotContainKey("deferred_attachment_count");
+            assertThat(report).containsEntry("what_happened", "It crashed");
+            assertThat(pendingReport.newRequestBody().contentLength()).isEqualTo(send(pendingReport).size());
+        }
+    }
+
+    @Test
+    public void sendDataOfBlobReferencesOnlyOnceInlined() throws IOException, JSONException {
+        String sha256 = ByteString.of(mScreenshot).sha256().hex();
+
+        for (boolean cbor : new boolean[] { false, true }) {
+            String extension = (cbor ? PendingReport.CBOR_EXTENSION : ".json") + PendingReport.CONTAINER_EXTENSION;
+            PendingReport pendingReport = new PendingReport(new File(mTemporaryFolder.getRoot(), "reference" + extension));
+            File screenshot = new File(mTemporaryFolder.getRoot(), "screenshot.png");
+            Okio.buffer(Okio.sink(screenshot)).write(mScreenshot).close();
+            ReportContainerWriter writer = new ReportContainerWriter(pendingReport.getReportFile(), cbor);
+
+            writer.beginObject();
+            writer.name("report").beginObject();
+            writer.name("attachments").beginArray();
+            writer.beginObject();
+            writer.name("filename").value("screenshot.png");
+            writer.name("blob_sha256").blobReferenceValue(sha256, screenshot);
+            writer.name("mime_type").value("image/png");
+            writer.endObject();
+            writeAttachment(writer, "log.txt", "text/plain", mLog, false);
+            writer.endArray();
+            writer.name("submission_attempts").attemptNumberValue();
+            writer.endObject();
+            writer.endObject();
+            writer.close();
+
+            Map<String, Object> attachment = readAttachments(pendingReport, cbor).get(0);
+            assertThat(attachment).containsEntry("blob_sha256", sha256).doesNotContainKey("base64_attachment_data");
+            assertThat(pendingReport.newRequestBody(2).contentLength()).isEqualTo(send(pendingReport, 2).size());
+            assertThat(ReportContainer.open(pendingReport.getReportFile()).getBlobCount()).isEqualTo(1);
+
+            assertThat(ReportContainer.inlineBlobReferences(pendingReport.getReportFile())).containsExactly(sha256);
+
+            List<Map<String, Object>> attachments = readAttachments(pendingReport, cbor);
+            assertThat(attachments.get(0)).containsEntry("sha256", sha256).containsEntry("mime_type", "image/png").doesNotContainKey("blob_sha256");
+            assertThat(attachments.get(0).get("base64_attachment_data")).isEqualTo(mScreenshot);
+            assertThat(attachments.get(1).get("base64_attachment_data")).isEqualTo(mLog);
+            assertThat(pendingReport.newRequestBody(2).contentLength()).isEqualTo(send(pendingReport, 2).size());
+            assertThat(ReportContainer.inlineBlobReferences(pendingReport.getReportFile())).isEmpty();
+        }
+    }
+
+    /**
+     * Writes a report shaped like Report.writeJSON(), with two attachments.
+     */
+    private PendingReport writeReport(String extension, boolean cbor) throws IOException {
+        PendingReport pendingReport = new PendingReport(new File(mTemporaryFolder.getRoot(), "report" + extension));
+        ReportContainerWriter writer = new ReportContainerWriter(pendingReport.getReportFile(), cbor);
+
+        writer.beginObject();
+        writer.name("report").beginObject();
+        writer.name("free_memory_bytes").value(1024L);
+        writer.name("submission_attempts").attemptNumberValue();
+        writer.name("attachments").beginArray();
+        writeAttachment(writer, "screenshot.png", "image/png", mScreenshot, true);
+        writeAttachment(writer, "log.txt", "text/plain", mLog, false);
+        writer.endArray();
+        writer.name("what_happened").value("It crashed");
+        writer.endObject();
+        writer.name("api_key").value("test-api-key");
+        writer.endObject();
+        writer.close();
+
+        return pendingReport;
+    }
+
+    private void writeAttachment(ReportContainerWriter writer, String filename, String mimeType, byte[] data, boolean media) throws IOException {
+        File file = new File(mTemporaryFolder.getRoot(), filename);
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+
+        writer.beginObject();
+        writer.name("filename").value(filename);
+        if (media) {
+            writer.name("base64_attachment_data").mediaValue(file);
+        } else {
+            writer.name("base64_attachment_data").binaryValue(file);
+        }
+        writer.name("mime_type").value(mimeType);
+        writer.endObject();
+    }
+
+    /**
+     * @return The attachments of the sent report, with their data decoded in either format
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> readAttachments(PendingReport pendingReport, boolean cbor) throws IOException, JSONException {
+        List<Map<String, Object>> attachments = new ArrayList<>();
+
+        if (cbor) {
+            Map<String, Object> report = (Map<String, Object>) CborDecoder.decodeMap(send(pendingReport).readByteArray()).get("report");
+            attachments.addAll((List<Map<String, Object>>) report.get("attachments"));
+            return attachments;
+        }
+
+        JSONArray array = new JSONObject(send(pendingReport).readUtf8()).getJSONObject("report").getJSONArray("attachments");
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject json = array.getJSONObject(i);
+            Map<String, Object> attachment = new HashMap<>();
+            Iterator<String> names = json.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                attachment.put(name, name.equals("base64_attachment_data") ? Base64.decode(json.getString(name), Base64.DEFAULT) : json.get(name));
+            }
+            attachments.add(attachment);
+        }
+        return attachments;
+    }
+
+    /**
+     * @return The members of the sent report, with numbers as longs in either format
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> readReport(PendingReport pendingReport, boolean cbor) throws IOException, JSONException {
+        Map<String, Object> report = new HashMap<>();
+
+        if (cbor) {
+            report.putAll((Map<String, Object>) CborDecoder.decodeMap(send(pendingReport).readByteArray()).get("report"));
+        } else {
+            JSONObject json = new JSONObject(send(pendingReport).readUtf8()).getJSONObject("report");
+            Iterator<String> names = json.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                report.put(name, json.get(name));
+            }
+        }
+
+        for (Map.Entry<String, Object> member : report.entrySet()) {
+            if (member.getValue() instanceof Number) {
+                member.setValue(((Number) member.getValue()).longValue());
+            }
+        }
+
+        return report;
+    }
+
+    private static Buffer send(PendingReport pendingReport) throws IOException {
+        return send(pendingReport, 1);
+    }
+
+    private static Buffer send(PendingReport pendingReport, int attemptNumber) throws IOException {
+        Buffer buffer = new Buffer();
+        pendingReport.newRequestBody(attemptNumber).writeTo(buffer);
+        return buffer;
+    }
+
+    private static byte[] read(InputStream input) throws IOException {
+        try {
+            return Okio.buffer(Okio.source(input)).readByteArray();
+        } finally {
+            input.close();
+        }
+    }
+}
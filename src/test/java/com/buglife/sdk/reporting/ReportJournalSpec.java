@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class ReportJournalSpec {
+    private static final long SEGMENT_SIZE = 256;
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void beforeEach() {
+        mDir = new File(mTemporaryFolder.getRoot(), "journal");
+    }
+
+    @Test
+    public void keepUnacknowledgedEntriesAcrossRestarts() throws IOException {
+        ReportJournal journal = new ReportJournal(mDir, SEGMENT_SIZE);
+        long first = journal.append("/reports/1.json.blr");
+        journal.append("/reports/2.json.blr");
+        journal.append("{\"report\":{}}");
+        journal.acknowledge(first);
+
+        assertThat(getPayloads(new ReportJournal(mDir, SEGMENT_SIZE))).containsExactly("/reports/2.json.blr", "{\"report\":{}}");
+    }
+
+    @Test
+    public void neverRewriteSealedSegments() throws IOException {
+        ReportJournal journal = new ReportJournal(mDir, SEGMENT_SIZE);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ids.add(journal.append("/reports/" + i + ".json.blr"));
+        }
+
+        File firstSegment = getSegments()[0];
+        long length = firstSegment.length();
+        for (long id : ids) {
+            journal.acknowledge(id);
+        }
+
+        assertThat(getSegments().length).isGreaterThan(1);
+        assertThat(firstSegment.length()).isEqualTo(length);
+        assertThat(journal.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void deleteAcknowledgedSegments() throws IOException {
+        ReportJournal journal = new ReportJournal(mDir, SEGMENT_SIZE);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ids.add(journal.append("/reports/" + i + ".json.blr"));
+        }
+        for (long id : ids.subList(0, 19)) {
+            journal.acknowledge(id);
+        }
+        int segmentCount = getSegments().length;
+
+        journal.compact();
+
+        assertThat(getSegments().length).isLessThan(segmentCount);
+        assertThat(getPayloads(journal)).containsExactly("/reports/19.json.blr");
+        assertThat(getPayloads(new ReportJournal(mDir, SEGMENT_SIZE))).containsExactly("/reports/19.json.blr");
+    }
+
+    @Test
+    public void carryLiveEntriesOutOfSparseSegments() throws IOException {
+        ReportJournal journal = new ReportJournal(mDir, SEGMENT_SIZE);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            ids.add(journal.append("/reports/" + i + ".json.blr"));
+        }
+        // Leave one live entry in every segment
+        for (int i = 0; i < ids.size(); i++) {
+            if (i % 5 != 0) {
+                journal.acknowledge(ids.get(i));
+            }
+        }
+        List<String> pending = getPayloads(journal);
+        File[] segments = getSegments();
+
+        journal.compact();
+
+        assertThat(getSegments().length).isLessThan(segments.length);
+        assertThat(segments[0].exists()).isFalse();
+        assertThat(getPayloads(journal)).isEqualTo(pending);
+        assertThat(getPayloads(new ReportJournal(mDir, SEGMENT_SIZE))).isEqualTo(pending);
+    }
+
+    @Test
+    public void keepAcknowledgementsOfEntriesInRetainedSegments() throws IOException {
+        ReportJournal journal = new ReportJournal(mDir, SEGMENT_SIZE);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            ids.add(journal.append("/reports/" + i + ".json.blr"));
+        }
+        // Fill up later segments, then acknowledge a single entry of the mostly live first segment
+        for (int i = 0; i < 20; i++) {
+            journal.acknowledge(journal.append("/reports/filler_" + i + ".json.blr"));
+        }
+        journal.acknowledge(ids.get(0));
+        for (int i = 0; i < 20; i++) {
+            journal.acknowledge(journal.append("/reports/filler_" + i + ".json.blr"));
+        }
+
+        journal.compact();
+
+        assertThat(getPayloads(new ReportJournal(mDir, SEGMENT_SIZE))).doesNotContain("/reports/0.json.blr").contains("/reports/1.json.blr");
+    }
+
+    @Test
+    public void keepLatestAttemptAcrossRestartsAndCompaction() throws IOException {
+        ReportJournal journal = new ReportJournal(mDir, SEGMENT_SIZE);
+        long id = journal.append("/reports/1.json.blr");
+        journal.recordAttempt(id, 1, 1000);
+        journal.recordAttempt(id, 2, 3000);
+        // Leave the entry and its attempts alone in sparse sealed segments
+        for (int i = 0; i < 20; i++) {
+            journal.acknowledge(journal.append("/reports/filler_" + i + ".json.blr"));
+        }
+
+        ReportJournal.Entry entry = new ReportJournal(mDir, SEGMENT_SIZE).getPending().get(0);
+        assertThat(entry.getAttempts()).isEqualTo(2);
+        assertThat(entry.getNextAttemptAt()).isEqualTo(3000);
+
+        File firstSegment = getSegments()[0];
+        journal.compact();
+
+        entry = new ReportJournal(mDir, SEGMENT_SIZE).getPending().get(0);
+        assertThat(firstSegment.exists()).isFalse();
+        assertThat(entry.getId()).isEqualTo(id);
+        assertThat(entry.getAttempts()).isEqualTo(2);
+        assertThat(entry.getNextAttemptAt()).isEqualTo(3000);
+    }
+
+    @Test
+    public void keepPriorityAcrossRestartsAndCompaction() throws IOException {
+        ReportJournal journal = new ReportJournal(mDir, SEGMENT_SIZE);
+        long high = journal.append("/reports/1.json.blr", 1);
+        long low = journal.append("{\"report\":{\"what_happened\":\"a: b\"}}", -1);
+        long normal = journal.append("/reports/3.json.blr");
+        for (int i = 0; i < 20; i++) {
+            journal.acknowledge(journal.append("/reports/filler_" + i + ".json.blr"));
+        }
+        journal.compact();
+
+        List<ReportJournal.Entry> entries = new ReportJournal(mDir, SEGMENT_SIZE).getPending();
+        assertThat(entries).hasSize(3);
+        assertThat(entries.get(0).getId()).isEqualTo(high);
+        assertThat(entries.get(0).getPriority()).isEqualTo(1);
+        assertThat(entries.get(1).getId()).isEqualTo(low);
+        assertThat(entries.get(1).getPriority()).isEqualTo(-1);
+        assertThat(entries.get(1).getPayload()).isEqualTo("{\"report\":{\"what_happened\":\"a: b\"}}");
+        assertThat(entries.get(2).getId()).isEqualTo(normal);
+        assertThat(entries.get(2).getPriority()).isEqualTo(ReportJournal.DEFAULT_PRIORITY);
+    }
+
+    @Test
+    public void ignoreTornLines() throws IOException {
+        ReportJournal journal = new ReportJournal(mDir, SEGMENT_SIZE);
+        long id = journal.append("/reports/1.json.blr");
+        journal.append("/reports/2.json.blr");
+        File[] segments = getSegments();
+        FileOutputStream output = new FileOutputStream(segments[segments.length - 1], true);
+        try {
+            output.write(("-" + id).getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+
+        ReportJournal reopened = new ReportJournal(mDir, SEGMENT_SIZE);
+        reopened.append("/reports/3.json.blr");
+
+        assertThat(getPayloads(new ReportJournal(mDir, SEGMENT_SIZE))).containsExactly("/reports/1.json.blr", "/reports/2.json.blr", "/reports/3.json.blr");
+    }
+
+    private File[] getSegments() {
+        File[] segments = mDir.listFiles();
+        Arrays.sort(segments, new Comparator<File>() {
+            @Override public int compare(File a, File b) {
+                return Long.valueOf(a.getName().replace(".seg", "")).compareTo(Long.valueOf(b.getName().replace(".seg", "")));
+            }
+        });
+        return segments;
+    }
+
+    private static List<String> getPayloads(ReportJournal journal) {
+        List<String> payloads = new ArrayList<>();
+        for (ReportJournal.Entry entry : journal.getPending()) {
+            payloads.add(entry.getPayload());
+        }
+        return payloads;
+    }
+}
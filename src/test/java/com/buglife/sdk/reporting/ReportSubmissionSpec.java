@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.assertj.core.api.Java6Assertions.fail;
+
+public final class ReportSubmissionSpec {
+    private final List<Runnable> mPosted = new ArrayList<>();
+    private ReportSubmission mSubmission;
+    private RecordingCallback mCallback;
+
+    @Before
+    public void beforeEach() {
+        // Callbacks are posted, as they would be to the main thread, and run by the test
+        mSubmission = new ReportSubmission(new Executor() {
+            @Override public void execute(@NonNull Runnable runnable) {
+                mPosted.add(runnable);
+            }
+        });
+        mCallback = new RecordingCallback();
+        mSubmission.addCallback(mCallback);
+    }
+
+    @Test
+    public void completeWithReportId() throws Exception {
+        assertThat(mSubmission.complete("42")).isTrue();
+        assertThat(mSubmission.fail(ReportSubmissionCallback.Error.NETWORK, new IOException())).isFalse();
+        runPosted();
+
+        assertThat(mSubmission.isDone()).isTrue();
+        assertThat(mSubmission.get()).isEqualTo("42");
+        assertThat(mCallback.mOutcomes).containsExactly("success");
+    }
+
+    @Test
+    public void failWithError() throws InterruptedException {
+        IOException error = new IOException("HTTP 500");
+        mSubmission.fail(ReportSubmissionCallback.Error.NETWORK, error);
+        runPosted();
+
+        try {
+            mSubmission.get();
+            fail("Expected the submission to have failed");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isSameAs(error);
+        }
+        assertThat(mSubmission.getError()).isEqualTo(ReportSubmissionCallback.Error.NETWORK);
+        assertThat(mCallback.mOutcomes).containsExactly("NETWORK");
+    }
+
+    @Test
+    public void notifyCallbacksAddedAfterCompletion() {
+        mSubmission.complete(null);
+        RecordingCallback lateCallback = new RecordingCallback();
+        mSubmission.addCallback(lateCallback);
+        runPosted();
+
+        assertThat(lateCallback.mOutcomes).containsExactly("success");
+    }
+
+    @Test
+    public void skipCallbacksRemovedBeforeDelivery() {
+        mSubmission.complete("42");
+        mSubmission.removeCallback(mCallback);
+        runPosted();
+
+        assertThat(mCallback.mOutcomes).isEmpty();
+    }
+
+    @Test
+    public void cancelOnlyPendingSubmissions() throws Exception {
+        final List<String> cancelled = new ArrayList<>();
+        mSubmission.setOnCancelListener(new Runnable() {
+            @Override public void run() {
+                cancelled.add("cancelled");
+            }
+        });
+
+        assertThat(mSubmission.cancel(true)).isTrue();
+        assertThat(mSubmission.cancel(true)).isFalse();
+        assertThat(mSubmission.complete("42")).isFalse();
+        runPosted();
+
+        assertThat(mSubmission.isCancelled()).isTrue();
+        assertThat(cancelled).containsExactly("cancelled");
+        assertThat(mCallback.mOutcomes).isEmpty();
+
+        try {
+            mSubmission.get();
+            fail("Expected the submission to have been cancelled");
+        } catch (CancellationException expected) {
+            // Cancelled submissions have no outcome
+        }
+    }
+
+    @Test
+    public void abortCallInFlight() throws Exception {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        server.start();
+
+        try {
+            Call call = new OkHttpClient().newCall(new Request.Builder().url(server.url("/api/v1/reports.json")).build());
+            mSubmission.setCall(call);
+            cancelAfter(100);
+
+            try {
+                call.execute();
+                fail("Expected the call to be aborted");
+            } catch (IOException expected) {
+                // The call was cancelled while waiting for the response
+            }
+            assertThat(call.isCanceled()).isTrue();
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void abortCallsStartedAfterCancellation() {
+        Call call = new OkHttpClient().newCall(new Request.Builder().url("https://example.com/api/v1/reports.json").build());
+        mSubmission.cancel(true);
+        mSubmission.setCall(call);
+
+        assertThat(call.isCanceled()).isTrue();
+    }
+
+    @Test
+    public void coalesceProgressUpdates() {
+        RecordingCallback plainCallback = new RecordingCallback();
+        RecordingProgressCallback progressCallback = new RecordingProgressCallback();
+        mSubmission.addCallback(plainCallback);
+        mSubmission.addCallback(progressCallback);
+
+        mSubmission.setProgress(100, 1000);
+        mSubmission.setProgress(500, 1000);
+        assertThat(mPosted).hasSize(1);
+        runPosted();
+        mSubmission.setProgress(1000, 1000);
+        runPosted();
+
+        assertThat(progressCallback.mProgress).containsExactly("500/1000", "1000/1000");
+        assertThat(plainCallback.mOutcomes).isEmpty();
+    }
+
+    @Test
+    public void dropProgressAfterCompletion() {
+        RecordingProgressCallback progressCallback = new RecordingProgressCallback();
+        mSubmission.addCallback(progressCallback);
+
+        mSubmission.setProgress(500, 1000);
+        mSubmission.complete("42");
+        mSubmission.setProgress(1000, 1000);
+        runPosted();
+
+        assertThat(progressCallback.mProgress).isEmpty();
+        assertThat(progressCallback.mOutcomes).containsExactly("success");
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void stopWaitingAfterTimeout() throws Exception {
+        mSubmission.get(10, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelAfter(final long delayMillis) {
+        new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException ignored) {
+                }
+                mSubmission.cancel(true);
+            }
+        }).start();
+    }
+
+    private void runPosted() {
+        for (Runnable runnable : new ArrayList<>(mPosted)) {
+            runnable.run();
+        }
+        mPosted.clear();
+    }
+
+    private static class RecordingCallback implements ReportSubmissionCallback {
+        final List<String> mOutcomes = new ArrayList<>();
+
+        @Override public void onSuccess() {
+            mOutcomes.add("success");
+        }
+
+        @Override public void onFailure(Error error, Throwable throwable) {
+            mOutcomes.add(error.name());
+        }
+    }
+
+    private static final class RecordingProgressCallback extends RecordingCallback implements ReportProgressCallback {
+        final List<String> mProgress = new ArrayList<>();
+
+        @Override public void onProgress(long bytesSent, long totalBytes) {
+            mProgress.add(bytesSent + "/" + totalBytes);
+        }
+    }
+}
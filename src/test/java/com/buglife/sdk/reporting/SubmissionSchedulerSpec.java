@@ -0,0 +1,655 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.buglife.sdk.IOUtils;
+import com.buglife.sdk.ReportPriority;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.ByteString;
+import okio.GzipSource;
+import okio.Okio;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public final class SubmissionSchedulerSpec {
+    private static final Pattern WHAT_HAPPENED = Pattern.compile("\"what_happened\":\"([^\"]*)\"");
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    // Set up by startScheduler(), for the specs that run the scheduler itself
+    private MockWebServer mServer;
+    private final List<String> mReceived = Collections.synchronizedList(new ArrayList<String>());
+    private volatile int mResponseCode = 200;
+    private ScheduledExecutorService mSchedulerThread;
+    private ManualExecutor mUploads;
+    private StandInPlatform mPlatform;
+    private ReportJournal mJournal;
+    private SubmissionScheduler mScheduler;
+
+    @After
+    public void afterEach() throws IOException {
+        if (mSchedulerThread != null) {
+            mSchedulerThread.shutdownNow();
+        }
+
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+    }
+
+    @Test
+    public void backOffExponentiallyWithinJitterBounds() {
+        Random random = new Random(42);
+
+        for (int attempts = 1; attempts <= 8; attempts++) {
+            long backoff = Math.min(SubmissionScheduler.MAX_BACKOFF_MILLIS, SubmissionScheduler.BASE_BACKOFF_MILLIS << (attempts - 1));
+
+            for (int i = 0; i < 100; i++) {
+                long delay = SubmissionScheduler.getBackoffMillis(attempts, random);
+                assertThat(delay).isBetween(backoff / 2, backoff);
+            }
+        }
+    }
+
+    @Test
+    public void capBackoff() {
+        Random random = new Random(42);
+
+        for (int attempts : new int[] { SubmissionScheduler.MAX_ATTEMPTS, 40, 64, Integer.MAX_VALUE }) {
+            long delay = SubmissionScheduler.getBackoffMillis(attempts, random);
+            assertThat(delay).isBetween(SubmissionScheduler.MAX_BACKOFF_MILLIS / 2, SubmissionScheduler.MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    @Test
+    public void spreadRetriesOfReportsThatFailedTogether() {
+        Random random = new Random(42);
+        Set<Long> delays = new HashSet<>();
+
+        for (int i = 0; i < 20; i++) {
+            delays.add(SubmissionScheduler.getBackoffMillis(3, random));
+        }
+
+        assertThat(delays.size()).isGreaterThan(15);
+    }
+
+    @Test
+    public void readBackDeferredUpdatePayload() {
+        UploadConstraints constraints = new UploadConstraints.Builder()
+                .setRequiresUnmeteredNetwork(true)
+                .setRequiresCharging(true)
+                .build();
+        PendingReport pendingUpdate = new PendingReport(new File("/data/pending reports/update.json.blr"));
+        String payload = SubmissionScheduler.newUpdatePayload(constraints, "report 42/a", pendingUpdate);
+        ReportJournal.Entry entry = new ReportJournal.Entry(1, payload, ReportJournal.DEFAULT_PRIORITY, 0);
+
+        assertThat(SubmissionScheduler.isDeferredUpdate(entry)).isTrue();
+        assertThat(SubmissionScheduler.getUpdateReportId(entry)).isEqualTo("report 42/a");
+        assertThat(SubmissionScheduler.getPendingReport(entry).getReportFile()).isEqualTo(pendingUpdate.getReportFile().getAbsoluteFile());
+
+        UploadConstraints readConstraints = SubmissionScheduler.getUpdateConstraints(entry);
+        assertThat(readConstraints.requiresUnmeteredNetwork()).isTrue();
+        assertThat(readConstraints.requiresCharging()).isTrue();
+        assertThat(readConstraints.requiresDeviceIdle()).isFalse();
+    }
+
+    @Test
+    public void tellReportsFromDeferredUpdates() {
+        ReportJournal.Entry report = new ReportJournal.Entry(1, "/data/pending_reports/report.json.blr", ReportJournal.DEFAULT_PRIORITY, 0);
+        ReportJournal.Entry inlineReport = new ReportJournal.Entry(2, "{\"report\":{}}", ReportJournal.DEFAULT_PRIORITY, 0);
+
+        assertThat(SubmissionScheduler.isDeferredUpdate(report)).isFalse();
+        assertThat(SubmissionScheduler.getPendingReport(report).getReportFile().getPath()).isEqualTo("/data/pending_reports/report.json.blr");
+        assertThat(SubmissionScheduler.isDeferredUpdate(inlineReport)).isFalse();
+        assertThat(SubmissionScheduler.getPendingReport(inlineReport)).isNull();
+    }
+
+    @Test
+    public void keepAnUploadSlotFreeForHighPriorityReports() {
+        assertThat(SubmissionScheduler.getMaxUploads(ReportPriority.HIGH)).isEqualTo(SubmissionScheduler.MAX_CONCURRENT_UPLOADS);
+
+        // Lower lanes fill up the slots they may take, one by one
+        int[] activeUploads = new int[ReportPriority.values().length];
+        while (SubmissionScheduler.canStartUpload(activeUploads, ReportPriority.LOW)) {
+            activeUploads[ReportPriority.LOW.ordinal()]++;
+        }
+        while (SubmissionScheduler.canStartUpload(activeUploads, ReportPriority.NORMAL)) {
+            activeUploads[ReportPriority.NORMAL.ordinal()]++;
+        }
+
+        assertThat(activeUploads[ReportPriority.LOW.ordinal()]).isEqualTo(SubmissionScheduler.getMaxUploads(ReportPriority.LOW));
+        assertThat(SubmissionScheduler.canStartUpload(activeUploads, ReportPriority.HIGH)).isTrue();
+
+        activeUploads[ReportPriority.HIGH.ordinal()]++;
+        assertThat(SubmissionScheduler.canStartUpload(activeUploads, ReportPriority.HIGH)).isFalse();
+
+        // A finished normal-priority upload doesn't free a slot for low-priority ones
+        activeUploads[ReportPriority.NORMAL.ordinal()]--;
+        assertThat(SubmissionScheduler.canStartUpload(activeUploads, ReportPriority.LOW)).isFalse();
+        assertThat(SubmissionScheduler.canStartUpload(activeUploads, ReportPriority.NORMAL)).isTrue();
+    }
+
+    @Test
+    public void readLaneOfEntry() {
+        ReportJournal.Entry high = new ReportJournal.Entry(1, "/data/pending_reports/1.json.blr", ReportPriority.HIGH.getValue(), 0);
+        ReportJournal.Entry legacy = new ReportJournal.Entry(2, "/data/pending_reports/2.json.blr", ReportJournal.DEFAULT_PRIORITY, 0);
+        ReportJournal.Entry unknown = new ReportJournal.Entry(3, "/data/pending_reports/3.json.blr", 7, 0);
+
+        assertThat(SubmissionScheduler.getLane(high)).isEqualTo(ReportPriority.HIGH);
+        assertThat(SubmissionScheduler.getLane(legacy)).isEqualTo(ReportPriority.NORMAL);
+        assertThat(SubmissionScheduler.getLane(unknown)).isEqualTo(ReportPriority.NORMAL);
+    }
+
+    @Test
+    public void migrateLegacyReportsToFilesOfTheirOwn() throws IOException {
+        File legacyQueue = mTemporaryFolder.newFile("reports");
+        File pendingReportsDir = mTemporaryFolder.newFolder("pending_reports");
+        FileWriter writer = new FileWriter(legacyQueue);
+        writer.write("{\"report\":{\"what_happened\":\"first\"}}\n\n{\"report\":{\"what_happened\":\"second\"}}\n");
+        writer.close();
+        ReportJournal journal = new ReportJournal(mTemporaryFolder.newFolder("report_journal"));
+
+        SubmissionScheduler.migrateLegacyQueue(legacyQueue, pendingReportsDir, journal);
+
+        List<ReportJournal.Entry> entries = journal.getPending();
+        assertThat(entries).hasSize(2);
+        assertThat(legacyQueue.exists()).isFalse();
+
+        ReportJournal.Entry entry = entries.get(0);
+        PendingReport pendingReport = SubmissionScheduler.getPendingReport(entry);
+        assertThat(pendingReport).isNotNull();
+        assertThat(pendingReport.getReportFile().getParentFile()).isEqualTo(pendingReportsDir);
+        assertThat(IOUtils.readStringFromFile(pendingReport.getReportFile())).isEqualTo("{\"report\":{\"what_happened\":\"first\"}}");
+        // Keyed as the report would have been inline
+        ReportJournal.Entry inlineEntry = new ReportJournal.Entry(1, "{\"report\":{\"what_happened\":\"first\"}}", ReportJournal.DEFAULT_PRIORITY, 0);
+        assertThat(pendingReport.getIdempotencyKey()).isEqualTo(SubmissionScheduler.getInlineIdempotencyKey(inlineEntry));
+    }
+
+    @Test
+    public void resumeInterruptedMigration() throws IOException {
+        File legacyQueue = mTemporaryFolder.newFile("reports");
+        File pendingReportsDir = mTemporaryFolder.newFolder("pending_reports");
+        ReportJournal journal = new ReportJournal(mTemporaryFolder.newFolder("report_journal"));
+        FileWriter writer = new FileWriter(legacyQueue);
+        writer.write("{\"report\":{\"what_happened\":\"first\"}}\n");
+        writer.close();
+        SubmissionScheduler.migrateLegacyQueue(legacyQueue, pendingReportsDir, journal);
+
+        // As if the migration had crashed after queueing the first report, leaving the queue behind
+        writer = new FileWriter(legacyQueue);
+        writer.write("{\"report\":{\"what_happened\":\"first\"}}\n{\"report\":{\"what_happened\":\"second\"}}\n");
+        writer.close();
+        SubmissionScheduler.migrateLegacyQueue(legacyQueue, pendingReportsDir, journal);
+
+        List<ReportJournal.Entry> entries = journal.getPending();
+        assertThat(entries).hasSize(2);
+        assertThat(IOUtils.readStringFromFile(SubmissionScheduler.getPendingReport(entries.get(1)).getReportFile())).isEqualTo("{\"report\":{\"what_happened\":\"second\"}}");
+        assertThat(pendingReportsDir.list()).hasSize(4);
+        assertThat(legacyQueue.exists()).isFalse();
+    }
+
+    @Test
+    public void acknowledgeSubmittedReports() throws Exception {
+        File report = queueReport("submitted", ReportPriority.NORMAL);
+        startScheduler();
+
+        assertThat(mUploads.size()).isEqualTo(1);
+        runUpload();
+
+        assertThat(mReceived).containsExactly("submitted");
+        assertThat(mJournal.isEmpty()).isTrue();
+        assertThat(report.exists()).isFalse();
+    }
+
+    @Test
+    public void retryFailedReportsAfterBackoff() throws Exception {
+        mResponseCode = 500;
+        File report = queueReport("failed", ReportPriority.NORMAL);
+        long startedAt = System.currentTimeMillis();
+        startScheduler();
+        runUpload();
+
+        List<ReportJournal.Entry> pending = mJournal.getPending();
+        assertThat(pending).hasSize(1);
+        assertThat(pending.get(0).getAttempts()).isEqualTo(1);
+        assertThat(pending.get(0).getNextAttemptAt()).isGreaterThanOrEqualTo(startedAt + SubmissionScheduler.BASE_BACKOFF_MILLIS / 2);
+        assertThat(report.exists()).isTrue();
+        // Not retried until the backoff has passed, but a wake-up is scheduled for then
+        assertThat(mUploads.size()).isEqualTo(0);
+        assertThat(mPlatform.mWakeUpDelayMillis).isGreaterThan(SubmissionScheduler.BASE_BACKOFF_MILLIS / 2 - 1000);
+    }
+
+    @Test
+    public void retryFailedUpdatesAfterBackoff() throws Exception {
+        mResponseCode = 500;
+        startScheduler();
+        mScheduler.enqueueUpdate(new PendingReport(newReportFile("update")), "report-id", ReportPriority.NORMAL, null);
+        awaitScheduler();
+        runUpload();
+
+        assertThat(mServer.takeRequest().getPath()).contains("report-id");
+        List<ReportJournal.Entry> pending = mJournal.getPending();
+        assertThat(pending).hasSize(1);
+        assertThat(pending.get(0).getAttempts()).isEqualTo(1);
+        assertThat(SubmissionScheduler.isDeferredUpdate(pending.get(0))).isTrue();
+        assertThat(SubmissionScheduler.getUpdateReportId(pending.get(0))).isEqualTo("report-id");
+        assertThat(SubmissionScheduler.getPendingReport(pending.get(0)).getReportFile().getParentFile()).isEqualTo(mPlatform.getDeferredUpdatesDir());
+        assertThat(mUploads.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void giveUpAfterMaxAttempts() throws Exception {
+        mResponseCode = 500;
+        File report = queueReport("hopeless", ReportPriority.NORMAL);
+        long id = mJournal.getPending().get(0).getId();
+        mJournal.recordAttempt(id, SubmissionScheduler.MAX_ATTEMPTS - 1, 0);
+        startScheduler();
+        runUpload();
+
+        assertThat(mReceived).containsExactly("hopeless");
+        assertThat(mJournal.isEmpty()).isTrue();
+        assertThat(report.exists()).isFalse();
+        assertThat(mUploads.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void giveUpOnReportsThatAreGone() throws Exception {
+        File report = queueReport("gone", ReportPriority.NORMAL);
+        report.delete();
+        startScheduler();
+
+        assertThat(mUploads.size()).isEqualTo(0);
+        assertThat(mJournal.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void recordAttemptsAsReportsAreHandedToTheUploadPool() throws Exception {
+        queueReport("sent", ReportPriority.LOW);
+        queueReport("waiting", ReportPriority.LOW);
+        startScheduler();
+
+        // Only one upload slot is open to the low lane, so the second report waits without an attempt
+        List<ReportJournal.Entry> pending = mJournal.getPending();
+        assertThat(mUploads.size()).isEqualTo(1);
+        assertThat(pending.get(0).getAttempts()).isEqualTo(1);
+        assertThat(pending.get(1).getAttempts()).isEqualTo(0);
+        assertThat(pending.get(1).getNextAttemptAt()).isEqualTo(0);
+
+        runUpload();
+        assertThat(mReceived).containsExactly("sent");
+        assertThat(mJournal.getPending().get(0).getAttempts()).isEqualTo(1);
+    }
+
+    @Test
+    public void wakeUpForReportsInFlightWhenStopped() throws Exception {
+        long startedAt = System.currentTimeMillis();
+        queueReport("interrupted", ReportPriority.NORMAL);
+        startScheduler();
+        assertThat(mUploads.size()).isEqualTo(1);
+        assertThat(mPlatform.mWakeUpDelayMillis).isEqualTo(-1);
+
+        mScheduler.onJobStopped();
+        awaitScheduler();
+
+        // Woken up in time to retry the report, should the process be gone before its upload ends
+        long retryAt = mJournal.getPending().get(0).getNextAttemptAt();
+        assertThat(mPlatform.mWakeUpDelayMillis).isBetween(0L, retryAt - startedAt);
+        assertThat(mPlatform.mWakeUpDelayMillis).isGreaterThan(SubmissionScheduler.BASE_BACKOFF_MILLIS / 2 - 1000);
+    }
+
+    @Test
+    public void letHighPriorityReportsOvertakeQueuedOnes() throws Exception {
+        for (String name : new String[] { "low1", "low2", "low3" }) {
+            queueReport(name, ReportPriority.LOW);
+        }
+        for (String name : new String[] { "normal1", "normal2", "normal3" }) {
+            queueReport(name, ReportPriority.NORMAL);
+        }
+        startScheduler();
+
+        // The normal lane takes two slots, and the last one is kept free for the high lane
+        assertThat(mUploads.size()).isEqualTo(2);
+        assertThat(getLanesInFlight()).containsExactly(ReportPriority.NORMAL, ReportPriority.NORMAL);
+
+        mScheduler.enqueue(new PendingReport(newReportFile("high")), ReportPriority.HIGH, null);
+        awaitScheduler();
+        assertThat(mUploads.size()).isEqualTo(3);
+        assertThat(getLanesInFlight()).contains(ReportPriority.HIGH);
+
+        while (mUploads.size() > 0) {
+            runUpload();
+            assertThat(getLanesInFlight().size()).isEqualTo(mUploads.size());
+            assertThat(Collections.frequency(getLanesInFlight(), ReportPriority.LOW)).isLessThanOrEqualTo(1);
+        }
+
+        assertThat(mReceived).hasSize(7);
+        assertThat(mReceived.subList(0, 4)).containsOnly("normal1", "normal2", "normal3", "high");
+        assertThat(mReceived.subList(4, 7)).containsExactly("low1", "low2", "low3");
+        assertThat(mJournal.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void limitLowPriorityReportsToASingleUpload() throws Exception {
+        for (String name : new String[] { "low1", "low2", "low3" }) {
+            queueReport(name, ReportPriority.LOW);
+        }
+        startScheduler();
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(mUploads.size()).isEqualTo(1);
+            runUpload();
+        }
+
+        assertThat(mReceived).containsExactly("low1", "low2", "low3");
+        assertThat(mUploads.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void packSmallReportsIntoBatches() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            queueContainerReport("crash" + i, ReportPriority.NORMAL);
+        }
+        startScheduler();
+
+        // A full batch, and a batch of the rest, each taking one of the normal lane's slots
+        assertThat(mUploads.size()).isEqualTo(2);
+        runUpload();
+        runUpload();
+
+        assertThat(mServer.getRequestCount()).isEqualTo(2);
+        assertThat(mReceived).hasSize(20);
+        assertThat(mJournal.isEmpty()).isTrue();
+        assertThat(mUploads.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void sendDataOfBlobsTheServerDoesNotHave() throws Exception {
+        byte[] data = "screenshot".getBytes("UTF-8");
+        String sha256 = ByteString.of(data).sha256().hex();
+        File blob = mTemporaryFolder.newFile("screenshot.png");
+        Okio.buffer(Okio.sink(blob)).write(data).close();
+        queueContainerReport("referenced", ReportPriority.NORMAL, sha256, blob);
+        startScheduler();
+        PendingReport earlierReport = new PendingReport(newReportFile("earlier"));
+        earlierReport.setUploadedBlobs(Collections.singletonList(sha256));
+        mPlatform.getBlobIndex().recordUploaded(earlierReport);
+
+        // Rejected, so the data goes with the report right away and the index forgets the blob
+        runUpload();
+        assertThat(mPlatform.getBlobIndex().contains(sha256)).isFalse();
+        assertThat(mJournal.getPending()).hasSize(1);
+        assertThat(mUploads.size()).isEqualTo(1);
+
+        runUpload();
+        assertThat(mReceived).containsExactly("referenced", "referenced");
+        assertThat(mJournal.isEmpty()).isTrue();
+        assertThat(mPlatform.getBlobIndex().contains(sha256)).isTrue();
+    }
+
+    /**
+     * @return The lanes of the reports that have been handed to the upload pool, but not sent yet
+     */
+    private List<ReportPriority> getLanesInFlight() {
+        List<ReportPriority> lanes = new ArrayList<>();
+
+        for (ReportJournal.Entry entry : mJournal.getPending()) {
+            if (entry.getAttempts() > 0) {
+                lanes.add(SubmissionScheduler.getLane(entry));
+            }
+        }
+
+        return lanes;
+    }
+
+    /**
+     * Writes a report, and queues it in the journal that the scheduler is started with.
+     */
+    private File queueReport(String name, ReportPriority priority) throws IOException {
+        if (mJournal == null) {
+            mJournal = new ReportJournal(mTemporaryFolder.newFolder("report_journal"));
+        }
+
+        File file = newReportFile(name);
+        mJournal.append(file.getAbsolutePath(), priority.getValue());
+        return file;
+    }
+
+    /**
+     * Writes a small report in a container, like a crash report without attachments, so that
+     * it can be batched, and queues it.
+     */
+    private File queueContainerReport(String name, ReportPriority priority) throws IOException {
+        return queueContainerReport(name, priority, null, null);
+    }
+
+    /**
+     * Like {@link #queueContainerReport(String, ReportPriority)}, with an attachment that refers
+     * to a blob that was uploaded before, if there is one.
+     */
+    private File queueContainerReport(String name, ReportPriority priority, @Nullable String sha256, @Nullable File blob) throws IOException {
+        if (mJournal == null) {
+            mJournal = new ReportJournal(mTemporaryFolder.newFolder("report_journal"));
+        }
+
+        File file = mTemporaryFolder.newFile(name + ".json" + PendingReport.CONTAINER_EXTENSION);
+        ReportContainerWriter writer = new ReportContainerWriter(file, false);
+        writer.beginObject();
+        writer.name("report").beginObject();
+        writer.name("submission_attempts").attemptNumberValue();
+        writer.name("what_happened").value(name);
+        if (sha256 != null && blob != null) {
+            writer.name("attachments").beginArray();
+            writer.beginObject();
+            writer.name("filename").value(blob.getName());
+            writer.name("blob_sha256").blobReferenceValue(sha256, blob);
+            writer.endObject();
+            writer.endArray();
+        }
+        writer.endObject();
+        writer.name("api_key").value("test-api-key");
+        writer.endObject();
+        writer.close();
+
+        mJournal.append(file.getAbsolutePath(), priority.getValue());
+        return file;
+    }
+
+    private File newReportFile(String name) throws IOException {
+        File file = mTemporaryFolder.newFile(name + ".json");
+        FileWriter writer = new FileWriter(file);
+        writer.write("{\"report\":{\"what_happened\":\"" + name + "\"}}");
+        writer.close();
+        return file;
+    }
+
+    /**
+     * Starts the scheduler against a stand-in server, with uploads that only run when the spec
+     * runs them, and waits for its first pass over the queue.
+     */
+    private void startScheduler() throws Exception {
+        if (mJournal == null) {
+            mJournal = new ReportJournal(mTemporaryFolder.newFolder("report_journal"));
+        }
+
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override public MockResponse dispatch(RecordedRequest request) {
+                String body = readBody(request);
+                Matcher matcher = WHAT_HAPPENED.matcher(body);
+
+                // Blobs are never known to the stand-in server, so every reference to one is rejected
+                boolean unknownBlob = body.contains("\"blob_sha256\"");
+
+                if (request.getPath().endsWith("/batch.json")) {
+                    StringBuilder results = new StringBuilder();
+                    while (matcher.find()) {
+                        mReceived.add(matcher.group(1));
+                        results.append(results.length() == 0 ? "" : ",").append("{\"id\":\"").append(matcher.group(1)).append("\"");
+                        results.append(unknownBlob ? ",\"error\":\"unknown_blob\"}" : "}");
+                    }
+                    return new MockResponse()
+                            .setResponseCode(mResponseCode)
+                            .setBody("{\"results\":[" + results + "]}");
+                }
+
+                String name = matcher.find() ? matcher.group(1) : "";
+                mReceived.add(name);
+                return new MockResponse()
+                        .setResponseCode(unknownBlob ? 422 : mResponseCode)
+                        .setBody("{\"id\":\"" + name + "\"}");
+            }
+        });
+        mServer.start();
+
+        mSchedulerThread = Executors.newSingleThreadScheduledExecutor();
+        mUploads = new ManualExecutor();
+        mPlatform = new StandInPlatform(mJournal, mTemporaryFolder.newFolder());
+        SubmitReportTask task = new SubmitReportTask(mServer.url("/api/v1/reports.json").toString(), mServer.url("/api/v1/reports").toString());
+        mScheduler = new SubmissionScheduler(mPlatform, task, mSchedulerThread, mUploads);
+        awaitScheduler();
+    }
+
+    private static String readBody(RecordedRequest request) {
+        try {
+            if ("gzip".equals(request.getHeader("Content-Encoding"))) {
+                return Okio.buffer(new GzipSource(request.getBody())).readUtf8();
+            }
+            return request.getBody().readUtf8();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Runs the oldest upload that has been handed to the upload pool, and waits for the
+     * scheduler to have handled its outcome.
+     */
+    private void runUpload() throws Exception {
+        mUploads.runNext();
+        awaitScheduler();
+    }
+
+    private void awaitScheduler() throws Exception {
+        mSchedulerThread.submit(new Callable<Void>() {
+            @Override public Void call() {
+                return null;
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    private static final class ManualExecutor implements Executor {
+        private final List<Runnable> mQueued = new ArrayList<>();
+
+        @Override public synchronized void execute(@NonNull Runnable runnable) {
+            mQueued.add(runnable);
+        }
+
+        synchronized int size() {
+            return mQueued.size();
+        }
+
+        void runNext() {
+            Runnable runnable;
+            synchronized (this) {
+                runnable = mQueued.remove(0);
+            }
+            runnable.run();
+        }
+    }
+
+    private static final class StandInPlatform implements SchedulerPlatform {
+        private final ReportJournal mJournal;
+        private final File mFilesDir;
+        private final BlobIndex mBlobIndex;
+        volatile long mWakeUpDelayMillis = -1;
+
+        StandInPlatform(ReportJournal journal, File filesDir) {
+            mJournal = journal;
+            mFilesDir = filesDir;
+            mBlobIndex = new BlobIndex(new File(filesDir, "uploaded_blobs"));
+        }
+
+        @NonNull @Override public ReportJournal openJournal() {
+            return mJournal;
+        }
+
+        @NonNull @Override public File getPendingReportsDir() {
+            File dir = new File(mFilesDir, "pending_reports");
+            dir.mkdirs();
+            return dir;
+        }
+
+        @NonNull @Override public File getDeferredUpdatesDir() {
+            File dir = new File(mFilesDir, "deferred_updates");
+            dir.mkdirs();
+            return dir;
+        }
+
+        @NonNull @Override public BlobIndex getBlobIndex() {
+            return mBlobIndex;
+        }
+
+        @Override public boolean isSatisfied(@NonNull UploadConstraints constraints) {
+            return true;
+        }
+
+        @Override public void scheduleWakeUp(long delayMillis) {
+            mWakeUpDelayMillis = delayMillis;
+        }
+
+        @Override public void cancelWakeUp() {
+            mWakeUpDelayMillis = -1;
+        }
+
+        @Override public boolean scheduleConstrainedWakeUp(@NonNull UploadConstraints constraints) {
+            return true;
+        }
+
+        @Override public void cancelConstrainedWakeUp() {
+        }
+    }
+}
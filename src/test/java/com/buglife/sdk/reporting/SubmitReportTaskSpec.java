@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2017 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.sdk.reporting;
+
+import android.support.annotation.NonNull;
+
+import com.buglife.sdk.NetworkManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.assertj.core.api.Java6Assertions.fail;
+
+public final class SubmitReportTaskSpec {
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private ReportStandInServer mStandInServer;
+    private SubmitReportTask mTask;
+
+    @Before
+    public void beforeEach() throws IOException {
+        mStandInServer = new ReportStandInServer();
+        mServer = new MockWebServer();
+        mServer.setDispatcher(mStandInServer);
+        mServer.start();
+        mTask = new SubmitReportTask(mServer.url("/api/v1/reports.json").toString(), mServer.url("/api/v1/reports").toString());
+    }
+
+    @After
+    public void afterEach() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void parseReportIds() throws JSONException {
+        assertThat(SubmitReportTask.parseReportId(new JSONObject("{\"id\": \"abc\"}"))).isEqualTo("abc");
+        assertThat(SubmitReportTask.parseReportId(new JSONObject("{\"report\": {\"id\": 7}}"))).isEqualTo("7");
+        assertThat(SubmitReportTask.parseReportId(new JSONObject("{\"report\": {\"id\": null}}"))).isNull();
+        assertThat(SubmitReportTask.parseReportId(new JSONObject("{}"))).isNull();
+        assertThat(SubmitReportTask.parseReportId(null)).isNull();
+    }
+
+    @Test
+    public void postUpdatesUnderTheirReport() {
+        SubmitReportTask task = new SubmitReportTask("https://example.com/api/v1/reports.json", "https://example.com/api/v1/reports");
+
+        assertThat(task.getUpdatesUrl("42").toString()).isEqualTo("https://example.com/api/v1/reports/42/updates.json");
+        assertThat(task.getUpdatesUrl("a/b").encodedPath()).isEqualTo("/api/v1/reports/a%2Fb/updates.json");
+    }
+
+    @Test
+    public void postBatchesUnderReports() {
+        SubmitReportTask task = new SubmitReportTask("https://example.com/api/v1/reports.json", "https://example.com/api/v1/reports");
+
+        assertThat(task.getBatchUrl().toString()).isEqualTo("https://example.com/api/v1/reports/batch.json");
+    }
+
+    @Test
+    public void keepIdempotencyKeyWithItsReport() throws IOException {
+        PendingReport pendingReport = newPendingReport("keep");
+        String key = pendingReport.getIdempotencyKey();
+
+        assertThat(new PendingReport(pendingReport.getReportFile()).getIdempotencyKey()).isEqualTo(key);
+
+        PendingReport moved = pendingReport.moveTo(mTemporaryFolder.newFolder("moved"));
+        assertThat(moved.getIdempotencyKey()).isEqualTo(key);
+
+        moved.delete();
+        assertThat(moved.getKeyFile().exists()).isFalse();
+    }
+
+    @Test
+    public void createReportOnceWhenResponseIsLost() throws IOException, JSONException {
+        PendingReport pendingReport = newPendingReport("lost");
+        mStandInServer.mDropResponses = 1;
+
+        try {
+            send(mTask.newReportRequest(pendingReport, 1));
+            fail("Expected the response to be lost");
+        } catch (IOException expected) {
+            // The server created the report, but the response never arrived
+        }
+
+        String reportId = send(mTask.newReportRequest(pendingReport, 2)).getString("id");
+
+        assertThat(mStandInServer.mReportIds).hasSize(1);
+        assertThat(mStandInServer.mReportIds.get(pendingReport.getIdempotencyKey())).isEqualTo(reportId);
+    }
+
+    @Test
+    public void createReportOnceWhenRetriedConcurrently() throws Exception {
+        final PendingReport pendingReport = newPendingReport("concurrent");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<String>> reportIds = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < 4; i++) {
+                final int attemptNumber = i + 1;
+                reportIds.add(executor.submit(new Callable<String>() {
+                    @Override public String call() throws Exception {
+                        return send(mTask.newReportRequest(pendingReport, attemptNumber)).getString("id");
+                    }
+                }));
+            }
+
+            for (Future<String> reportId : reportIds) {
+                assertThat(reportId.get()).isEqualTo(reportIds.get(0).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(mStandInServer.mReportIds).hasSize(1);
+    }
+
+    @Test
+    public void skipBatchedReportsThatWereAlreadyReceived() throws IOException, InterruptedException, JSONException {
+        PendingReport sent = newPendingReport("sent");
+        PendingReport unsent = newPendingReport("unsent");
+        String reportId = send(mTask.newReportRequest(sent, 1)).getString("id");
+
+        ReportBatch batch = new ReportBatch(false);
+        batch.add(sent, 2);
+        batch.add(unsent, 1);
+        JSONArray results = send(mTask.newBatchRequest(batch)).getJSONArray("results");
+
+        mServer.takeRequest();
+        assertThat(mServer.takeRequest().getHeader(SubmitReportTask.HEADER_IDEMPOTENCY_KEYS)).isEqualTo(sent.getIdempotencyKey() + "," + unsent.getIdempotencyKey());
+        assertThat(results.getJSONObject(0).getString("id")).isEqualTo(reportId);
+        assertThat(mStandInServer.mReportIds).hasSize(2);
+    }
+
+    @Test
+    public void sendReportsIndividuallyWhileTheServerDoesNotSupportBatches() throws IOException {
+        mStandInServer.mBatchUnsupported = true;
+        ReportBatch batch = new ReportBatch(false);
+        batch.add(newPendingReport("first"), 1);
+        batch.add(newPendingReport("second"), 1);
+
+        List<SubmitReportTask.Result> results = mTask.executeBatch(batch);
+
+        assertThat(results).hasSize(2);
+        assertThat(results.get(0).getError()).isNull();
+        assertThat(results.get(1).getError()).isNull();
+        assertThat(mStandInServer.mReportIds).hasSize(2);
+        assertThat(mTask.isBatchSupported()).isFalse();
+        // Only this server is affected, and only for a while
+        assertThat(new SubmitReportTask("https://example.com/api/v1/reports.json", "https://example.com/api/v1/reports").isBatchSupported()).isTrue();
+        assertThat(mTask.isBatchSupported(System.currentTimeMillis() + SubmitReportTask.BATCH_UNSUPPORTED_MAX_AGE_MILLIS + 1)).isTrue();
+        assertThat(mTask.isBatchSupported()).isTrue();
+    }
+
+    @Test
+    public void countTheBodyOnceWhenCompressionIsRejected() throws IOException {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setResponseCode(415));
+        server.enqueue(new MockResponse().setBody("{\"id\": \"1\"}"));
+        server.start();
+        // Not localhost, so that other specs keep getting compressed requests
+        HttpUrl url = server.url("/api/v1/reports.json").newBuilder().host("127.0.0.1").build();
+        SubmitReportTask task = new SubmitReportTask(url.toString(), url.resolve("reports").toString());
+        PendingReport pendingReport = newPendingReport("uncompressed");
+        long length = pendingReport.newRequestBody(1).contentLength();
+        final List<Long> progress = new ArrayList<>();
+        ReportSubmission submission = new ReportSubmission(new Executor() {
+            @Override public void execute(@NonNull Runnable runnable) {
+                runnable.run();
+            }
+        });
+        submission.addCallback(new ReportProgressCallback() {
+            @Override public void onProgress(long bytesSent, long totalBytes) {
+                progress.add(bytesSent);
+            }
+
+            @Override public void onSuccess() {
+            }
+
+            @Override public void onFailure(Error error, Throwable throwable) {
+            }
+        });
+        UploadStats stats = SubmitReportTask.getUploadStats();
+        int uploads = stats.getUploads();
+        long bytesSent = stats.getBytesSent();
+
+        try {
+            SubmitReportTask.Result result = task.execute(pendingReport, 1, submission);
+
+            assertThat(result.getError()).isNull();
+            assertThat(server.getRequestCount()).isEqualTo(2);
+            assertThat(result.getUploadMetrics().getBytesSent()).isEqualTo(length);
+            assertThat(stats.getUploads()).isEqualTo(uploads + 1);
+            assertThat(stats.getBytesSent()).isEqualTo(bytesSent + length);
+            // Progress starts over for the uncompressed request
+            assertThat(progress.subList(progress.lastIndexOf(0L), progress.size())).isSorted().endsWith(length);
+            assertThat(progress.lastIndexOf(0L)).isGreaterThan(0);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private PendingReport newPendingReport(String name) throws IOException {
+        File file = mTemporaryFolder.newFile(name + ".json");
+        FileWriter writer = new FileWriter(file);
+        writer.write("{\"report\": {\"summary\": \"" + name + "\"}}");
+        writer.close();
+        return new PendingReport(file);
+    }
+
+    private static JSONObject send(Request request) throws IOException {
+        Response response = NetworkManager.getInstance().executeRequest(request);
+        try {
+            return new JSONObject(response.body().string());
+        } catch (JSONException e) {
+            throw new IOException(e);
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * A stand-in for the server's report endpoints, which creates a report only for a key that
+     * it hasn't seen before, and otherwise answers with the report that it created for the key.
+     */
+    private static final class ReportStandInServer extends Dispatcher {
+        final Map<String, String> mReportIds = new HashMap<>();
+        // Creates reports, but disconnects as if the response was lost
+        int mDropResponses;
+        // Answers batches with a 404, like servers that predate them
+        boolean mBatchUnsupported;
+
+        @Override public synchronized MockResponse dispatch(RecordedRequest request) {
+            String keys = request.getHeader(SubmitReportTask.HEADER_IDEMPOTENCY_KEYS);
+            String body;
+
+            if (keys != null && mBatchUnsupported) {
+                return new MockResponse().setResponseCode(404);
+            }
+
+            if (keys != null) {
+                StringBuilder results = new StringBuilder();
+                for (String key : keys.split(",")) {
+                    results.append(results.length() > 0 ? "," : "").append(newResult(key));
+                }
+                body = "{\"results\": [" + results + "]}";
+            } else {
+                String key = request.getHeader(SubmitReportTask.HEADER_IDEMPOTENCY_KEY);
+                if (key == null) {
+                    return new MockResponse().setResponseCode(400);
+                }
+                body = newResult(key);
+            }
+
+            if (mDropResponses > 0) {
+                mDropResponses--;
+                return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+            }
+            return new MockResponse().setBody(body);
+        }
+
+        private String newResult(String key) {
+            String reportId = mReportIds.get(key);
+            if (reportId == null) {
+                reportId = String.valueOf(mReportIds.size() + 1);
+                mReportIds.put(key, reportId);
+            }
+            return "{\"id\": \"" + reportId + "\"}";
+        }
+    }
+}